@@ -0,0 +1,76 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq.benchmarks;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.github.trask.sandbox.commandq.CommandQueueService;
+import com.github.trask.sandbox.commandq.NodeAwareCommandExecutorService;
+import com.github.trask.sandbox.executors.DaemonExecutors;
+
+/**
+ * Throughput of CommandQueueService.add() on a single node, i.e. insert, execute and delete of a
+ * no-op command, from several threads at once.
+ * 
+ * @author Trask Stalnaker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class AddThroughputBenchmark {
+
+    @Param(BenchmarkCluster.MEMORY)
+    private String backend;
+
+    private ScheduledExecutorService scheduledExecutorService;
+    private NodeAwareCommandExecutorService executorService;
+    private CommandQueueService commandQueueService;
+
+    @Setup
+    public void setUp() {
+        BenchmarkCluster cluster = new BenchmarkCluster(backend);
+        scheduledExecutorService =
+                DaemonExecutors.newSingleThreadScheduledExecutor("AddThroughputBenchmark");
+        executorService = cluster.newExecutorService("node", 0);
+        commandQueueService = new CommandQueueService(cluster.newQueuedCommandDao("node"),
+                cluster.newQueueNodeDao("node"), executorService, scheduledExecutorService);
+    }
+
+    @TearDown
+    public void tearDown() {
+        commandQueueService.shutdown();
+        executorService.shutdown();
+        scheduledExecutorService.shutdownNow();
+    }
+
+    @Benchmark
+    public void add() {
+        commandQueueService.add(new NoopCommand());
+    }
+}
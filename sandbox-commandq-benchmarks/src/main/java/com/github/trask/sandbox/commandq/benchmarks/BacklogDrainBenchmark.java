@@ -0,0 +1,89 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.trask.sandbox.commandq.NodeAwareCommandExecutorService;
+
+/**
+ * Time for a single node to drain a backlog of visible commands, the same way the visible
+ * command sweeper does after an outage or a burst of retries.
+ * 
+ * @author Trask Stalnaker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BacklogDrainBenchmark {
+
+    @Param(BenchmarkCluster.MEMORY)
+    private String backend;
+
+    @Param("10000")
+    private int backlogSize;
+
+    @Param("100")
+    private int claimBatchSize;
+
+    // 0 means commands are executed on the claiming thread
+    @Param({ "0", "8" })
+    private int nWorkerThreads;
+
+    private BenchmarkCluster cluster;
+    private NodeAwareCommandExecutorService executorService;
+
+    @Setup
+    public void setUp() {
+        cluster = new BenchmarkCluster(backend);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpBacklog() {
+        cluster.clear();
+        executorService = cluster.newExecutorService("node", nWorkerThreads);
+        cluster.insertVisible(backlogSize);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownExecutorService() {
+        cluster.shutdownExecutorServices();
+    }
+
+    @Benchmark
+    public void drain() throws InterruptedException {
+        executorService.claimAndRunVisibleCommands(claimBatchSize);
+        // the last claimed commands may still be executing on the worker pool
+        while (executorService.getLockCount() > 0) {
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.github.trask.sandbox.clock.Clock;
+import com.github.trask.sandbox.commandq.BasicCommandExecutorService;
+import com.github.trask.sandbox.commandq.Command;
+import com.github.trask.sandbox.commandq.CommandWorkerPool;
+import com.github.trask.sandbox.commandq.InMemoryQueueNodeDao;
+import com.github.trask.sandbox.commandq.InMemoryQueuedCommandDao;
+import com.github.trask.sandbox.commandq.InMemoryQueuedCommandStore;
+import com.github.trask.sandbox.commandq.MongoQueueNodeDao;
+import com.github.trask.sandbox.commandq.MongoQueuedCommandDao;
+import com.github.trask.sandbox.commandq.NodeAwareCommandExecutorService;
+import com.github.trask.sandbox.commandq.QueueNode;
+import com.github.trask.sandbox.commandq.QueueNodeDao;
+import com.github.trask.sandbox.commandq.QueuedCommandDao;
+import com.github.trask.sandbox.mongodb.MongoDatastoreProvider;
+import com.google.code.morphia.AdvancedDatastore;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Simulated nodes of a single app that share one backend, either "memory" (a shared
+ * {@link InMemoryQueuedCommandStore}, so the suite runs offline) or "mongo" (the database given by
+ * the mongodb.uri system property, localhost by default, which is dropped between runs).
+ * 
+ * @author Trask Stalnaker
+ */
+public class BenchmarkCluster {
+
+    public static final String MEMORY = "memory";
+    public static final String MONGO = "mongo";
+
+    private static final String APP_ID = "benchmarks/1.0";
+    private static final String DB_NAME = "commandq_benchmarks";
+    // inserts are split into batches of this size
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    private final String backend;
+    private final Injector injector = Guice.createInjector();
+
+    // only used by the memory backend
+    private InMemoryQueuedCommandStore store;
+    private ConcurrentMap<String, QueueNode> queueNodes;
+
+    // only used by the mongo backend
+    private final AdvancedDatastore datastore;
+
+    // created by newExecutorService(), kept so that their threads can be shut down
+    private final List<NodeAwareCommandExecutorService> executorServices =
+            new ArrayList<NodeAwareCommandExecutorService>();
+    private final List<CommandWorkerPool> workerPools = new ArrayList<CommandWorkerPool>();
+
+    public BenchmarkCluster(String backend) {
+        this.backend = backend;
+        if (backend.equals(MEMORY)) {
+            datastore = null;
+        } else if (backend.equals(MONGO)) {
+            datastore = new MongoDatastoreProvider(System.getProperty("mongodb.uri",
+                    "mongodb://localhost"), DB_NAME).get();
+        } else {
+            throw new IllegalArgumentException("Unexpected backend: " + backend);
+        }
+        clear();
+    }
+
+    // removes all commands and nodes
+    public void clear() {
+        if (datastore == null) {
+            store = new InMemoryQueuedCommandStore();
+            queueNodes = new ConcurrentHashMap<String, QueueNode>();
+        } else {
+            datastore.getMongo().dropDatabase(DB_NAME);
+        }
+    }
+
+    public QueuedCommandDao newQueuedCommandDao(String nodeId) {
+        return newQueuedCommandDao(nodeId, Clock.systemClock());
+    }
+
+    public QueueNodeDao newQueueNodeDao(String nodeId) {
+        if (datastore == null) {
+            return new InMemoryQueueNodeDao(nodeId, APP_ID, Clock.systemClock(), queueNodes);
+        } else {
+            return new MongoQueueNodeDao(nodeId, APP_ID, datastore, Clock.systemClock());
+        }
+    }
+
+    // nWorkerThreads of 0 means commands are executed on the thread that claims them
+    public NodeAwareCommandExecutorService newExecutorService(String nodeId,
+            int nWorkerThreads) {
+
+        BasicCommandExecutorService basicExecutorService =
+                new BasicCommandExecutorService(newQueuedCommandDao(nodeId), injector);
+        CommandWorkerPool workerPool = null;
+        if (nWorkerThreads > 0) {
+            workerPool = new CommandWorkerPool(nWorkerThreads, nWorkerThreads * 10);
+            workerPools.add(workerPool);
+        }
+        NodeAwareCommandExecutorService executorService = new NodeAwareCommandExecutorService(
+                basicExecutorService, newQueueNodeDao(nodeId), workerPool);
+        executorServices.add(executorService);
+        return executorService;
+    }
+
+    // shuts down the executor services created so far (along with their worker pools), which
+    // benchmarks that create executor services per invocation must call per invocation, since
+    // their threads would otherwise pile up across the run
+    public void shutdownExecutorServices() {
+        for (NodeAwareCommandExecutorService executorService : executorServices) {
+            executorService.shutdown();
+        }
+        executorServices.clear();
+        for (CommandWorkerPool workerPool : workerPools) {
+            workerPool.shutdown();
+        }
+        workerPools.clear();
+    }
+
+    // inserts unlocked no-op commands that are visible right away
+    public void insertVisible(int nCommands) {
+        QueuedCommandDao queuedCommandDao = newQueuedCommandDao("loader");
+        for (int i = 0; i < nCommands; i += INSERT_BATCH_SIZE) {
+            queuedCommandDao.insertAll(newNoopCommands(Math.min(INSERT_BATCH_SIZE,
+                    nCommands - i)));
+        }
+    }
+
+    // inserts no-op commands locked by the given node, whose leases have already expired (the
+    // same as once a killed node has been gone for the lease duration), since commands are only
+    // taken over from a failed node once their leases have expired
+    public void insertLocked(String nodeId, int nCommands) {
+        QueuedCommandDao queuedCommandDao = newQueuedCommandDao(nodeId, new Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return System.currentTimeMillis()
+                        - QueuedCommandDao.DEFAULT_LEASE_DURATION_MILLIS - 1;
+            }
+        });
+        for (int i = 0; i < nCommands; i += INSERT_BATCH_SIZE) {
+            queuedCommandDao.lockAndInsertAll(newNoopCommands(Math.min(INSERT_BATCH_SIZE,
+                    nCommands - i)));
+        }
+    }
+
+    public String getBackend() {
+        return backend;
+    }
+
+    private QueuedCommandDao newQueuedCommandDao(String nodeId, Clock clock) {
+        if (datastore == null) {
+            return new InMemoryQueuedCommandDao(nodeId, APP_ID, clock,
+                    QueuedCommandDao.DEFAULT_LEASE_DURATION_MILLIS, store);
+        } else {
+            return new MongoQueuedCommandDao(nodeId, APP_ID, datastore, clock);
+        }
+    }
+
+    private static List<Command> newNoopCommands(int nCommands) {
+        List<Command> commands = new ArrayList<Command>(nCommands);
+        for (int i = 0; i < nCommands; i++) {
+            commands.add(new NoopCommand());
+        }
+        return commands;
+    }
+}
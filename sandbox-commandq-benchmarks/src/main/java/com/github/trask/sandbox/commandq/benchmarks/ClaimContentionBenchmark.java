@@ -0,0 +1,126 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.trask.sandbox.commandq.QueuedCommand;
+import com.github.trask.sandbox.commandq.QueuedCommandDao;
+
+/**
+ * Time for N simulated nodes, each on its own thread, to claim (and delete) a shared backlog,
+ * which measures how claims from different nodes contend with each other on the backend.
+ * 
+ * @author Trask Stalnaker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class ClaimContentionBenchmark {
+
+    @Param(BenchmarkCluster.MEMORY)
+    private String backend;
+
+    @Param("10000")
+    private int backlogSize;
+
+    @Param("100")
+    private int claimBatchSize;
+
+    @Param({ "1", "4", "16" })
+    private int nNodes;
+
+    private BenchmarkCluster cluster;
+    private ExecutorService executorService;
+    private List<QueuedCommandDao> nodes;
+
+    @Setup
+    public void setUp() {
+        cluster = new BenchmarkCluster(backend);
+        executorService = Executors.newFixedThreadPool(nNodes);
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpBacklog() {
+        cluster.clear();
+        nodes = new ArrayList<QueuedCommandDao>();
+        for (int i = 0; i < nNodes; i++) {
+            nodes.add(cluster.newQueuedCommandDao("node" + i));
+        }
+        cluster.insertVisible(backlogSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    // returns the total number of commands claimed, which is always the backlog size since each
+    // command is claimed by exactly one node
+    @Benchmark
+    public int claimAll() throws Exception {
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (final QueuedCommandDao node : nodes) {
+            futures.add(executorService.submit(new Callable<Integer>() {
+                public Integer call() {
+                    return claimAll(node);
+                }
+            }));
+        }
+        int total = 0;
+        for (Future<Integer> future : futures) {
+            total += future.get();
+        }
+        return total;
+    }
+
+    private int claimAll(QueuedCommandDao node) {
+        int total = 0;
+        List<QueuedCommand> claimed = node.claimVisible(claimBatchSize);
+        while (!claimed.isEmpty()) {
+            List<ObjectId> ids = new ArrayList<ObjectId>(claimed.size());
+            for (QueuedCommand queuedCommand : claimed) {
+                ids.add(queuedCommand.getId());
+            }
+            node.deleteAll(ids);
+            total += claimed.size();
+            claimed = node.claimVisible(claimBatchSize);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.trask.sandbox.commandq.NodeAwareCommandExecutorService;
+
+/**
+ * Time for the surviving nodes to take over and run all of the commands that a killed node had
+ * locked, once the failure has been detected.
+ * 
+ * @author Trask Stalnaker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class FailoverRecoveryBenchmark {
+
+    private static final String FAILED_NODE_ID = "failed";
+
+    @Param(BenchmarkCluster.MEMORY)
+    private String backend;
+
+    @Param("10000")
+    private int nLockedCommands;
+
+    @Param("100")
+    private int claimBatchSize;
+
+    @Param({ "1", "4" })
+    private int nSurvivors;
+
+    private BenchmarkCluster cluster;
+    private ExecutorService executorService;
+    private List<NodeAwareCommandExecutorService> survivors;
+    private Set<String> liveNodeIds;
+
+    @Setup
+    public void setUp() {
+        cluster = new BenchmarkCluster(backend);
+        executorService = Executors.newFixedThreadPool(nSurvivors);
+    }
+
+    // the failed node locks its commands and is then abandoned, the same as a killed node
+    @Setup(Level.Invocation)
+    public void setUpFailedNode() {
+        cluster.clear();
+        cluster.newQueueNodeDao(FAILED_NODE_ID).updateAliveAtAndLockedCommands(true);
+        cluster.insertLocked(FAILED_NODE_ID, nLockedCommands);
+        survivors = new ArrayList<NodeAwareCommandExecutorService>();
+        liveNodeIds = new HashSet<String>();
+        for (int i = 0; i < nSurvivors; i++) {
+            String nodeId = "survivor" + i;
+            survivors.add(cluster.newExecutorService(nodeId, 0));
+            liveNodeIds.add(nodeId);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownSurvivors() {
+        cluster.shutdownExecutorServices();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executorService.shutdownNow();
+    }
+
+    // detection time is left out since it is configuration (heartbeat timeouts, or the gossip
+    // membership's phi threshold) rather than something the queue can speed up
+    @Benchmark
+    public void recover() throws Exception {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final NodeAwareCommandExecutorService survivor : survivors) {
+            futures.add(executorService.submit(new Runnable() {
+                public void run() {
+                    survivor.claimAndRunFailedNodeCommands(FAILED_NODE_ID, liveNodeIds,
+                            claimBatchSize);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+}
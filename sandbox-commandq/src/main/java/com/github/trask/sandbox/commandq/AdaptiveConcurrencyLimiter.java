@@ -0,0 +1,182 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Limits the number of commands of each class that execute at the same time, adapting each limit
+ * to the class's execution latency with additive increase, multiplicative decrease.
+ * 
+ * @author Trask Stalnaker
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    private static final int DEFAULT_INITIAL_LIMIT = 10;
+    private static final int DEFAULT_MIN_LIMIT = 1;
+    private static final int DEFAULT_MAX_LIMIT = 200;
+    private static final long DEFAULT_MAX_WAIT_MILLIS = 1000;
+
+    // the limit is cut when an execution takes more than this many times the baseline latency
+    private static final double LATENCY_TOLERANCE = 2;
+    private static final double BACKOFF_RATIO = 0.9;
+    // weight of each execution in the baseline latency, which is low so that the limit is cut
+    // back while latency is climbing, before the baseline settles on a new normal
+    private static final double BASELINE_ALPHA = 0.01;
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long maxWaitMillis;
+
+    private final ConcurrentMap<Class<?>, Limit> limits = new ConcurrentHashMap<Class<?>, Limit>();
+
+    public AdaptiveConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT,
+                DEFAULT_MAX_WAIT_MILLIS);
+    }
+
+    // maxWaitMillis bounds how long tryAcquire() waits for an execution to complete when the
+    // limit is reached, 0 means it fails right away
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit,
+            long maxWaitMillis) {
+
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    // waits up to the max wait for the command class to be under its limit, and returns false if
+    // it is still at its limit, in which case the caller should back off
+    public boolean tryAcquire(Class<?> commandClass) {
+        try {
+            return limitFor(commandClass).tryAcquire(maxWaitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // blocks while the command class is at its limit
+    public void acquire(Class<?> commandClass) {
+        limitFor(commandClass).acquire();
+    }
+
+    // latencyNanos is the time the execution took
+    public void release(Class<?> commandClass, long latencyNanos) {
+        limitFor(commandClass).release(latencyNanos);
+    }
+
+    // for when nothing was executed under the acquired permit
+    public void releaseUnused(Class<?> commandClass) {
+        limitFor(commandClass).release(-1);
+    }
+
+    public int getLimit(Class<?> commandClass) {
+        return limitFor(commandClass).getLimit();
+    }
+
+    public int getInFlight(Class<?> commandClass) {
+        return limitFor(commandClass).getInFlight();
+    }
+
+    private Limit limitFor(Class<?> commandClass) {
+        Limit limit = limits.get(commandClass);
+        if (limit == null) {
+            limit = new Limit();
+            Limit existing = limits.putIfAbsent(commandClass, limit);
+            if (existing != null) {
+                limit = existing;
+            }
+        }
+        return limit;
+    }
+
+    private class Limit {
+        // all guarded by this
+        private double limit = initialLimit;
+        private int inFlight;
+        // 0 until the first execution
+        private double baselineLatencyNanos;
+        // the limit is cut at most once per limit's worth of executions, since the executions
+        // that were already in flight when it was cut are slow for the same reason, only counted
+        // up to the limit, which is all that matters
+        private int executionsSinceBackoff = Integer.MAX_VALUE;
+        private synchronized boolean tryAcquire(long timeoutMillis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (inFlight >= (int) limit) {
+                long remainingMillis = deadline - System.currentTimeMillis();
+                if (remainingMillis <= 0) {
+                    return false;
+                }
+                wait(remainingMillis);
+            }
+            inFlight++;
+            return true;
+        }
+        private synchronized void acquire() {
+            boolean interrupted = false;
+            while (inFlight >= (int) limit) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            inFlight++;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // latencyNanos is -1 if the permit was not used
+        private synchronized void release(long latencyNanos) {
+            inFlight--;
+            if (latencyNanos != -1) {
+                adjustLimit(latencyNanos);
+            }
+            notifyAll();
+        }
+        private void adjustLimit(long latencyNanos) {
+            if (baselineLatencyNanos == 0) {
+                baselineLatencyNanos = latencyNanos;
+            } else {
+                baselineLatencyNanos += (latencyNanos - baselineLatencyNanos) * BASELINE_ALPHA;
+            }
+            if (executionsSinceBackoff < limit) {
+                executionsSinceBackoff++;
+            }
+            if (latencyNanos > baselineLatencyNanos * LATENCY_TOLERANCE) {
+                if (executionsSinceBackoff >= limit) {
+                    limit = Math.max(limit * BACKOFF_RATIO, minLimit);
+                    executionsSinceBackoff = 0;
+                }
+            } else if ((inFlight + 1) * 2 >= limit) {
+                // only grows while at least half of the limit is in use, otherwise the limit
+                // would grow without bound under light load and then not protect against a
+                // burst, inFlight + 1 counts the execution that just completed
+                limit = Math.min(limit + 1 / limit, maxLimit);
+            }
+        }
+        private synchronized int getLimit() {
+            return (int) limit;
+        }
+        private synchronized int getInFlight() {
+            return inFlight;
+        }
+    }
+}
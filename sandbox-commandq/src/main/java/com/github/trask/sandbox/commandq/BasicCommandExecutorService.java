@@ -15,11 +15,22 @@
  */
 package com.github.trask.sandbox.commandq;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.trask.sandbox.commandq.BatchableCommand.BatchItemFailedException;
 import com.github.trask.sandbox.commandq.QueuedCommandDao.CouldNotLockForExecutionException;
+import com.github.trask.sandbox.executors.Backoff;
+import com.github.trask.sandbox.executors.RetryBudget;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Injector;
 
 /**
@@ -29,17 +40,153 @@ public class BasicCommandExecutorService {
 
     private static final Logger logger = LoggerFactory.getLogger(BasicCommandExecutorService.class);
 
+    private static final CommandQueueMetrics NO_METRICS = new NoMetrics();
+
     private final QueuedCommandDao queuedCommandDao;
     private final Injector injector;
+    // null means inserts and deletes are written synchronously
+    private final WriteBehindQueuedCommandWriter writeBehindWriter;
+    // null unless deferred persistence is enabled
+    private final ScheduledExecutorService scheduledExecutorService;
+    // 0 means commands are always inserted before they are executed
+    private final long deferredPersistGraceMillis;
+    // null means commands are dropped once they have failed more times than their retry policy
+    // allows
+    private final DeadLetterDao deadLetterDao;
+    // NO_METRICS unless metrics were given
+    private final CommandQueueMetrics metrics;
+    // null means retries are not limited
+    private final RetryBudget retryBudget;
+
+    private final List<RescheduleListener> rescheduleListeners =
+            new CopyOnWriteArrayList<RescheduleListener>();
 
     public BasicCommandExecutorService(QueuedCommandDao queuedCommandDao, Injector injector) {
+        this(queuedCommandDao, injector, null);
+    }
+
+    public BasicCommandExecutorService(QueuedCommandDao queuedCommandDao, Injector injector,
+            WriteBehindQueuedCommandWriter writeBehindWriter) {
+
+        this(queuedCommandDao, injector, writeBehindWriter, null, 0);
+    }
+
+    // when deferredPersistGraceMillis is greater than 0, queueAndRunCommand() starts executing
+    // the command right away and only inserts it if it is still executing after the grace
+    // period, or if it fails, trading durability of the command during the grace period (a node
+    // failure during that time loses the command) for skipping both writes on the happy path
+    public BasicCommandExecutorService(QueuedCommandDao queuedCommandDao, Injector injector,
+            WriteBehindQueuedCommandWriter writeBehindWriter,
+            ScheduledExecutorService scheduledExecutorService, long deferredPersistGraceMillis) {
+
+        this(queuedCommandDao, injector, writeBehindWriter, scheduledExecutorService,
+                deferredPersistGraceMillis, null);
+    }
+
+    public BasicCommandExecutorService(QueuedCommandDao queuedCommandDao, Injector injector,
+            WriteBehindQueuedCommandWriter writeBehindWriter,
+            ScheduledExecutorService scheduledExecutorService, long deferredPersistGraceMillis,
+            DeadLetterDao deadLetterDao) {
+
+        this(queuedCommandDao, injector, writeBehindWriter, scheduledExecutorService,
+                deferredPersistGraceMillis, deadLetterDao, null);
+    }
+
+    public BasicCommandExecutorService(QueuedCommandDao queuedCommandDao, Injector injector,
+            WriteBehindQueuedCommandWriter writeBehindWriter,
+            ScheduledExecutorService scheduledExecutorService, long deferredPersistGraceMillis,
+            DeadLetterDao deadLetterDao, CommandQueueMetrics metrics) {
+
+        this(queuedCommandDao, injector, writeBehindWriter, scheduledExecutorService,
+                deferredPersistGraceMillis, deadLetterDao, metrics, null);
+    }
+
+    // when a retry budget is given, retries beyond the budget are held back, i.e. rescheduled
+    // near their retry policy's max backoff instead of at their normal backoff (see
+    // RetryBudget), which caps the extra load that retries put on a failing dependency
+    public BasicCommandExecutorService(QueuedCommandDao queuedCommandDao, Injector injector,
+            WriteBehindQueuedCommandWriter writeBehindWriter,
+            ScheduledExecutorService scheduledExecutorService, long deferredPersistGraceMillis,
+            DeadLetterDao deadLetterDao, CommandQueueMetrics metrics, RetryBudget retryBudget) {
+
         this.queuedCommandDao = queuedCommandDao;
         this.injector = injector;
+        this.writeBehindWriter = writeBehindWriter;
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.deferredPersistGraceMillis = deferredPersistGraceMillis;
+        this.deadLetterDao = deadLetterDao;
+        if (metrics == null) {
+            this.metrics = NO_METRICS;
+        } else {
+            this.metrics = metrics;
+        }
+        this.retryBudget = retryBudget;
+    }
+
+    // returns null if there are no metrics
+    public CommandQueueMetrics getMetrics() {
+        return metrics == NO_METRICS ? null : metrics;
+    }
+
+    public void addRescheduleListener(RescheduleListener rescheduleListener) {
+        rescheduleListeners.add(rescheduleListener);
     }
 
     public void queueAndRunCommand(Command command) {
         logger.debug("queueAndRunCommand(): command={}", command);
-        ObjectId id = queuedCommandDao.lockAndInsert(command);
+        if (command instanceof KeyedCommand) {
+            long startTime = System.nanoTime();
+            ObjectId id = queuedCommandDao.lockAndInsertOrCoalesce((KeyedCommand) command);
+            metrics.recordEnqueue(System.nanoTime() - startTime);
+            if (id == null) {
+                // left to (or merged into) the pending copy, which the sweeper runs once the
+                // running copy (if any) is done, see complete()
+                notifyRescheduleListeners(0);
+                return;
+            }
+            runCommand(command, id, 0);
+            return;
+        }
+        // recurring commands need to be inserted regardless, see complete()
+        if (deferredPersistGraceMillis > 0 && !(command instanceof RecurringCommand)) {
+            runCommandWithDeferredPersist(command);
+            return;
+        }
+        ObjectId id = lockAndInsert(command);
+        runCommand(command, id, 0);
+    }
+
+    // inserts the command locked by this node without running it, the command should then be
+    // run via runInsertedCommand()
+    public ObjectId queueCommand(Command command) {
+        logger.debug("queueCommand(): command={}", command);
+        return lockAndInsert(command);
+    }
+
+    // inserts the command so that it becomes visible (and is run by whichever node claims it) at
+    // the given time
+    public ObjectId scheduleCommand(Command command, long runAtMillis) {
+        logger.debug("scheduleCommand(): command={}, runAtMillis={}", command, runAtMillis);
+        long startTime = System.nanoTime();
+        ObjectId id = queuedCommandDao.insertScheduled(command, runAtMillis);
+        metrics.recordEnqueue(System.nanoTime() - startTime);
+        notifyRescheduleListeners(runAtMillis - System.currentTimeMillis());
+        return id;
+    }
+
+    // the returned future completes once the insert has been acknowledged, after which the
+    // command should be run via runInsertedCommand()
+    public ListenableFuture<ObjectId> queueCommandAsync(Command command) {
+        logger.debug("queueCommandAsync(): command={}", command);
+        if (writeBehindWriter == null) {
+            throw new IllegalStateException("Asynchronous queueing requires a write behind"
+                    + " writer");
+        }
+        return writeBehindWriter.lockAndInsert(command);
+    }
+
+    public void runInsertedCommand(Command command, ObjectId id) {
+        logger.debug("runInsertedCommand(): command={}", command);
         runCommand(command, id, 0);
     }
 
@@ -50,25 +197,392 @@ public class BasicCommandExecutorService {
             queuedCommandDao.lock(id);
         } catch (CouldNotLockForExecutionException e) {
             // assume another node got to it first
+            metrics.recordLockContentionLosses(1);
             return;
         }
         runCommand(queuedCommand.getCommand(), id, queuedCommand.getNFailures());
     }
 
+    public List<QueuedCommand> claimVisibleCommands(int limit) {
+        logger.trace("claimVisibleCommands(): limit={}", limit);
+        long startTime = System.nanoTime();
+        List<QueuedCommand> claimed = queuedCommandDao.claimVisible(limit);
+        metrics.recordClaim(System.nanoTime() - startTime);
+        long currentTimeMillis = System.currentTimeMillis();
+        for (QueuedCommand queuedCommand : claimed) {
+            // commands that were visible right away have a visibleNextAt of 0
+            if (queuedCommand.getVisibleNextAt() != 0) {
+                metrics.recordClaimDelay(currentTimeMillis - queuedCommand.getVisibleNextAt());
+            }
+        }
+        return claimed;
+    }
+
+    public List<QueuedCommand> claimUpcomingCommands(long horizonMillis, int limit) {
+        logger.trace("claimUpcomingCommands(): horizonMillis={}, limit={}", horizonMillis, limit);
+        long startTime = System.nanoTime();
+        List<QueuedCommand> claimed = queuedCommandDao.claimUpcoming(horizonMillis, limit);
+        metrics.recordClaim(System.nanoTime() - startTime);
+        return claimed;
+    }
+
+    public List<QueuedCommand> claimExpiredLeaseCommands(int limit) {
+        logger.trace("claimExpiredLeaseCommands(): limit={}", limit);
+        long startTime = System.nanoTime();
+        List<QueuedCommand> claimed = queuedCommandDao.claimExpiredLeases(limit);
+        metrics.recordClaim(System.nanoTime() - startTime);
+        return claimed;
+    }
+
+    public String getNodeId() {
+        return queuedCommandDao.getNodeId();
+    }
+
+    // re-inserts the dead letters matching the filter as new commands (not locked, so that they
+    // are spread across the nodes by the sweepers) in batches of up to batchSize, pacing the
+    // batches so that no more than maxCommandsPerSecond are re-inserted on average, and returns
+    // the number of dead letters that were replayed
+    public int replayDeadLetters(DeadLetterFilter filter, int batchSize,
+            int maxCommandsPerSecond) throws InterruptedException {
+
+        logger.debug("replayDeadLetters(): batchSize={}, maxCommandsPerSecond={}", batchSize,
+                maxCommandsPerSecond);
+        if (deadLetterDao == null) {
+            throw new IllegalStateException("Replaying dead letters requires a dead letter dao");
+        }
+        long startTime = System.currentTimeMillis();
+        int count = 0;
+        ObjectId afterId = null;
+        while (true) {
+            List<DeadLetter> deadLetters =
+                    deadLetterDao.readDeadLetters(filter, afterId, batchSize);
+            if (deadLetters.isEmpty()) {
+                break;
+            }
+            List<Command> commands = new ArrayList<Command>(deadLetters.size());
+            List<ObjectId> deadLetterIds = new ArrayList<ObjectId>(deadLetters.size());
+            for (DeadLetter deadLetter : deadLetters) {
+                commands.add(deadLetter.getCommand());
+                deadLetterIds.add(deadLetter.getId());
+            }
+            afterId = deadLetterIds.get(deadLetterIds.size() - 1);
+            // a failure between these two leaves the dead letters to be replayed again, which
+            // is the same at least once guarantee as for any other command
+            queuedCommandDao.insertAll(commands);
+            deadLetterDao.markReplayed(deadLetterIds);
+            notifyRescheduleListeners(0);
+            count += commands.size();
+            // paced against the start time rather than per batch, so that time spent on the
+            // reads and writes counts toward the rate
+            long aheadMillis = count * 1000L / maxCommandsPerSecond
+                    - (System.currentTimeMillis() - startTime);
+            if (aheadMillis > 0) {
+                Thread.sleep(aheadMillis);
+            }
+        }
+        return count;
+    }
+
+    public List<ObjectId> readFailedNodeCommandIds(String failedNodeId, ObjectId afterId,
+            int limit) {
+
+        logger.trace("readFailedNodeCommandIds(): failedNodeId={}", failedNodeId);
+        return queuedCommandDao.readIdsFromFailedNodeQueue(failedNodeId, afterId, limit);
+    }
+
+    public List<QueuedCommand> claimFailedNodeCommands(String failedNodeId, List<ObjectId> ids) {
+        logger.trace("claimFailedNodeCommands(): failedNodeId={}", failedNodeId);
+        long startTime = System.nanoTime();
+        List<QueuedCommand> claimed = queuedCommandDao.claimFromFailedNode(failedNodeId, ids);
+        metrics.recordClaim(System.nanoTime() - startTime);
+        return claimed;
+    }
+
+    // the queued command must already be locked by this node (e.g. via claimVisibleCommands)
+    public void runClaimedCommand(QueuedCommand queuedCommand) {
+        logger.debug("runClaimedCommand(): queuedCommand={}", queuedCommand);
+        runCommand(queuedCommand.getCommand(), queuedCommand.getId(),
+                queuedCommand.getNFailures());
+    }
+
+    // the queued commands must already be locked by this node, and their commands must all be
+    // of the same class (see BatchableCommand)
+    public void runClaimedCommandBatch(List<QueuedCommand> queuedCommands) {
+        logger.debug("runClaimedCommandBatch(): size={}", queuedCommands.size());
+        List<BatchableCommand> commands = new ArrayList<BatchableCommand>(queuedCommands.size());
+        for (QueuedCommand queuedCommand : queuedCommands) {
+            commands.add((BatchableCommand) queuedCommand.getCommand());
+        }
+        boolean[] succeeded;
+        // the failure of every command that did not succeed
+        Throwable batchFailure = null;
+        try {
+            for (BatchableCommand command : commands) {
+                injector.injectMembers(command);
+            }
+            long startTime = System.nanoTime();
+            succeeded = commands.get(0).executeBatch(commands);
+            metrics.recordExecute(System.nanoTime() - startTime);
+            if (succeeded.length != commands.size()) {
+                logger.error("runClaimedCommandBatch(): {} results for {} commands",
+                        succeeded.length, commands.size());
+                batchFailure = new BatchItemFailedException("executeBatch() returned "
+                        + succeeded.length + " results for " + commands.size() + " commands");
+                succeeded = new boolean[commands.size()];
+            }
+        } catch (Throwable t) {
+            logger.debug(t.getMessage(), t);
+            succeeded = new boolean[commands.size()];
+            batchFailure = t;
+        }
+        // the successful commands are deleted together
+        List<ObjectId> deleteIds = new ArrayList<ObjectId>();
+        for (int i = 0; i < commands.size(); i++) {
+            BatchableCommand command = commands.get(i);
+            QueuedCommand queuedCommand = queuedCommands.get(i);
+            depositIfFirstAttempt(queuedCommand.getNFailures());
+            if (!succeeded[i]) {
+                Throwable failure = batchFailure;
+                if (failure == null) {
+                    failure = new BatchItemFailedException("executeBatch() reported command "
+                            + (i + 1) + " of " + commands.size() + " as failed");
+                }
+                onFailure(command, queuedCommand.getId(), queuedCommand.getNFailures(),
+                        failure);
+            } else if (command instanceof RecurringCommand || command instanceof KeyedCommand) {
+                complete(command, queuedCommand.getId());
+            } else {
+                deleteIds.add(queuedCommand.getId());
+            }
+        }
+        deleteAll(deleteIds);
+    }
+
     private void runCommand(Command command, ObjectId id, int nFailures) {
+        depositIfFirstAttempt(nFailures);
+        try {
+            injector.injectMembers(command);
+            long startTime = System.nanoTime();
+            command.execute();
+            metrics.recordExecute(System.nanoTime() - startTime);
+            complete(command, id);
+        } catch (Throwable t) {
+            onFailure(command, id, nFailures, t);
+        }
+    }
+
+    // nFailures is the number of failures prior to this one
+    private void onFailure(Command command, ObjectId id, int nFailures, Throwable t) {
+        RetryPolicy retryPolicy = command.retryPolicy();
+        if (nFailures >= retryPolicy.getMaxRetries()) {
+            metrics.recordExhaustion();
+            // a recurring command is not dead lettered, it just skips to its next run
+            if (!(command instanceof RecurringCommand)) {
+                deadLetter(command, nFailures + 1, t);
+            }
+            complete(command, id);
+        } else {
+            rescheduleOnFailure(id, getRetryDelayMillis(retryPolicy, nFailures));
+            notifyIfKeyed(command);
+        }
+    }
+
+    private void runCommandWithDeferredPersist(Command command) {
+        depositIfFirstAttempt(0);
+        DeferredPersist deferredPersist = new DeferredPersist(command);
+        ScheduledFuture<?> deferredPersistFuture = scheduledExecutorService.schedule(
+                deferredPersist, deferredPersistGraceMillis, TimeUnit.MILLISECONDS);
+        long startTime = System.nanoTime();
         try {
             injector.injectMembers(command);
             command.execute();
-            queuedCommandDao.delete(id);
         } catch (Throwable t) {
+            deferredPersistFuture.cancel(false);
+            ObjectId id = deferredPersist.complete();
             RetryPolicy retryPolicy = command.retryPolicy();
-            if (nFailures >= retryPolicy.getMaxRetries()) {
-                queuedCommandDao.delete(id);
+            if (id == null) {
+                if (retryPolicy.getMaxRetries() > 0) {
+                    // first (and only) write for this command
+                    long delayMillis = getRetryDelayMillis(retryPolicy, 0);
+                    queuedCommandDao.insertForRetry(command, delayMillis);
+                    metrics.recordRetry();
+                    notifyRescheduleListeners(delayMillis);
+                } else {
+                    metrics.recordExhaustion();
+                    deadLetter(command, 1, t);
+                }
+            } else if (retryPolicy.getMaxRetries() > 0) {
+                rescheduleOnFailure(id, getRetryDelayMillis(retryPolicy, 0));
             } else {
-                double delayInSeconds = retryPolicy.getMinBackoffSeconds() * Math.pow(2, nFailures);
-                delayInSeconds = Math.min(delayInSeconds, retryPolicy.getMinBackoffSeconds());
-                queuedCommandDao.rescheduleOnFailure(id, (long) delayInSeconds);
+                metrics.recordExhaustion();
+                deadLetter(command, 1, t);
+                delete(id);
+            }
+            return;
+        }
+        // this includes injecting the command, unlike the other paths
+        metrics.recordExecute(System.nanoTime() - startTime);
+        deferredPersistFuture.cancel(false);
+        ObjectId id = deferredPersist.complete();
+        if (id != null) {
+            delete(id);
+        }
+    }
+
+    // recurring commands are kept and rescheduled for their next run, rather than deleted
+    private void complete(Command command, ObjectId id) {
+        if (command instanceof RecurringCommand) {
+            long nextRunAt = ((RecurringCommand) command).schedule()
+                    .nextRunAfter(System.currentTimeMillis());
+            if (nextRunAt != -1) {
+                queuedCommandDao.scheduleNextRun(id, nextRunAt);
+                notifyRescheduleListeners(nextRunAt - System.currentTimeMillis());
+                notifyIfKeyed(command);
+                return;
+            }
+        }
+        if (command instanceof KeyedCommand) {
+            // not write behind, so that the key is no longer running by the time the sweeper
+            // wakes up to claim the pending copy
+            deleteNow(id);
+            notifyIfKeyed(command);
+            return;
+        }
+        delete(id);
+    }
+
+    // the pending copy of a keyed command (if there is one) can't be claimed while the running
+    // copy is locked, so the sweeper is woken up once the running copy is deleted or unlocked
+    private void notifyIfKeyed(Command command) {
+        if (command instanceof KeyedCommand) {
+            notifyRescheduleListeners(0);
+        }
+    }
+
+    // the dead letter is inserted before the queued command is deleted, so a node failure in
+    // between can only leave a duplicate dead letter, never lose the command
+    private void deadLetter(Command command, int nFailures, Throwable lastFailure) {
+        if (deadLetterDao == null) {
+            logger.warn("deadLetter(): dropping command after {} failures: {}", nFailures,
+                    command);
+            return;
+        }
+        try {
+            deadLetterDao.insert(command, nFailures, lastFailure);
+        } catch (RuntimeException e) {
+            // still better to drop the command than to retry it forever
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private ObjectId lockAndInsert(Command command) {
+        long startTime = System.nanoTime();
+        ObjectId id = queuedCommandDao.lockAndInsert(command);
+        metrics.recordEnqueue(System.nanoTime() - startTime);
+        return id;
+    }
+
+    private void rescheduleOnFailure(ObjectId id, long delayMillis) {
+        queuedCommandDao.rescheduleOnFailure(id, delayMillis);
+        metrics.recordRetry();
+        notifyRescheduleListeners(delayMillis);
+    }
+
+    private void notifyRescheduleListeners(long delayMillis) {
+        for (RescheduleListener rescheduleListener : rescheduleListeners) {
+            rescheduleListener.onReschedule(delayMillis);
+        }
+    }
+
+    // a retry that is held back by the retry budget is still rescheduled (the command can't just
+    // be dropped), but near the max backoff so that it doesn't add to the load on whatever is
+    // failing until the budget recovers
+    private long getRetryDelayMillis(RetryPolicy retryPolicy, int nFailures) {
+        Backoff backoff = retryPolicy.getBackoff();
+        if (retryBudget != null && !retryBudget.tryWithdraw()) {
+            logger.debug("getRetryDelayMillis(): retry budget exhausted, holding back retry");
+            return backoff.getHeldBackDelayMillis();
+        }
+        return backoff.getDelayMillis(nFailures);
+    }
+
+    // the retry budget is replenished by first attempts, see RetryBudget
+    private void depositIfFirstAttempt(int nFailures) {
+        if (retryBudget != null && nFailures == 0) {
+            retryBudget.deposit();
+        }
+    }
+
+    // only synchronous deletes are timed, the write behind writer's deletes complete later
+    private void delete(ObjectId id) {
+        if (writeBehindWriter == null) {
+            deleteNow(id);
+        } else {
+            writeBehindWriter.delete(id);
+        }
+    }
+
+    private void deleteNow(ObjectId id) {
+        long startTime = System.nanoTime();
+        queuedCommandDao.delete(id);
+        metrics.recordDelete(System.nanoTime() - startTime);
+    }
+
+    private void deleteAll(List<ObjectId> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        if (writeBehindWriter == null) {
+            long startTime = System.nanoTime();
+            queuedCommandDao.deleteAll(ids);
+            metrics.recordDelete(System.nanoTime() - startTime);
+        } else {
+            // the write behind writer batches the deletes anyway
+            for (ObjectId id : ids) {
+                writeBehindWriter.delete(id);
             }
         }
     }
-}
\ No newline at end of file
+
+    // inserts the command (locked by this node) if it is still executing once the grace period
+    // expires, note the command is serialized while it is executing, so commands should not
+    // modify their persistent fields from execute()
+    private class DeferredPersist implements Runnable {
+        private final Command command;
+        // both guarded by this
+        private boolean complete;
+        private ObjectId id;
+        private DeferredPersist(Command command) {
+            this.command = command;
+        }
+        public synchronized void run() {
+            if (complete) {
+                return;
+            }
+            logger.debug("DeferredPersist.run(): command={}", command);
+            try {
+                id = lockAndInsert(command);
+            } catch (RuntimeException e) {
+                // the command will still be inserted if it fails
+                logger.error(e.getMessage(), e);
+            }
+        }
+        // returns the id if the command was inserted, this blocks if the insert is in progress
+        private synchronized ObjectId complete() {
+            complete = true;
+            return id;
+        }
+    }
+
+    private static class NoMetrics implements CommandQueueMetrics {
+        public void recordEnqueue(long nanos) {}
+        public void recordClaim(long nanos) {}
+        public void recordClaimDelay(long millis) {}
+        public void recordExecute(long nanos) {}
+        public void recordDelete(long nanos) {}
+        public void recordLockContentionLosses(int count) {}
+        public void recordRetry() {}
+        public void recordExhaustion() {}
+        public void recordVisibleBacklog(long count) {}
+    }
+}
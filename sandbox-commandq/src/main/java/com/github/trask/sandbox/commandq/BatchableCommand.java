@@ -0,0 +1,48 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.List;
+
+/**
+ * Optional extension of {@link Command} for commands that can be executed together with other
+ * commands of the same class, e.g. to replace one remote write per command with one bulk write.
+ * 
+ * @author Trask Stalnaker
+ */
+public interface BatchableCommand extends Command {
+
+    // claimed commands of the same class are gathered until there are maxBatchSize() of them, or
+    // until maxBatchDelayMillis() has passed since the first one arrived (only when batching is
+    // enabled, see NodeAwareCommandExecutorService, and never for CommandQueueService.add())
+    int maxBatchSize();
+
+    long maxBatchDelayMillis();
+
+    // the batch includes this command, and all commands in it are of the same class and have had
+    // their members injected, returns whether each command (in the same order) succeeded, and
+    // throwing means that every command in the batch failed
+    boolean[] executeBatch(List<BatchableCommand> batch) throws Exception;
+
+    // the failure recorded (e.g. in its dead letter) for a command that executeBatch() reported as
+    // failed without throwing
+    @SuppressWarnings("serial")
+    public static class BatchItemFailedException extends Exception {
+        public BatchItemFailedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands a claiming task off to the claim executor service, and runs it again afterwards (instead
+ * of alongside) when it is triggered while it is already running.
+ * 
+ * @author Trask Stalnaker
+ */
+class ClaimTask implements Runnable {
+
+    private final Runnable task;
+    private final ExecutorService claimExecutorService;
+    // both guarded by this
+    private boolean running;
+    private boolean runAgain;
+
+    ClaimTask(Runnable task, ExecutorService claimExecutorService) {
+        this.task = task;
+        this.claimExecutorService = claimExecutorService;
+    }
+
+    public void run() {
+        if (claimExecutorService.isShutdown()) {
+            return;
+        }
+        synchronized (this) {
+            if (running) {
+                runAgain = true;
+                return;
+            }
+            running = true;
+        }
+        try {
+            claimExecutorService.execute(new Runnable() {
+                public void run() {
+                    while (true) {
+                        task.run();
+                        synchronized (ClaimTask.this) {
+                            if (!runAgain || claimExecutorService.isShutdown()) {
+                                running = false;
+                                return;
+                            }
+                            runAgain = false;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the claim executor service was shut down in the meantime
+            synchronized (this) {
+                running = false;
+            }
+        }
+    }
+}
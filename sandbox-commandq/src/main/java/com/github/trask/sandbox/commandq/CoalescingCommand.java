@@ -0,0 +1,30 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+/**
+ * Optional extension of {@link KeyedCommand} for commands that carry a payload which must not be
+ * lost when copies are deduplicated, e.g. "reindex these documents of user 42".
+ * 
+ * @author Trask Stalnaker
+ */
+public interface CoalescingCommand extends KeyedCommand {
+
+    // returns the command that replaces the pending copy, combining the payloads of this command
+    // and the pending copy (which has the same key), this may be called more than once for the
+    // same copy if the pending copy changes concurrently
+    CoalescingCommand coalesce(CoalescingCommand pending);
+}
@@ -29,24 +29,7 @@ public interface Command {
     // and other nodes may pick them up and execute them
     // long lockDurationForExecution();
 
-    // TODO how to reduce failover time to other nodes
-    // with larger node failure timeout seconds
-    // (e.g. 60 seconds)
-    //
-    // every 20 seconds while command is executing
-    // update the QueuedCommand visibleNextAt to extend
-    // the lock the node has on the QueuedCommand
-    // **this can be done in batch on all currently executing
-    // commands for that node (add nodeId to QueuedCommand)**
-    //
-    // this shouldn't be overly aggressive since
-    // most executions will run very quickly and will never
-    // need this. problem though is to guarantee update
-    // to visibleNextAt will be timely, but this should be
-    // manageable via ScheduledExecutorService delegating
-    // to Cached ExecutorService
-    //
-    // also need to make sweeper smart and when it sees upcoming
+    // TODO make sweeper smart and when it sees upcoming
     // expirations it should check for them right after expiration
     // so there is little delay for another node to take over
     //
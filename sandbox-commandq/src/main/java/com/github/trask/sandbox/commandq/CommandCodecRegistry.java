@@ -0,0 +1,121 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Maps command classes to type ids and codecs. Commands whose class has no registered codec are
+ * still stored as embedded documents.
+ * 
+ * @author Trask Stalnaker
+ */
+public class CommandCodecRegistry {
+
+    private final ConcurrentMap<Class<?>, Registration<?>> registrationsByClass =
+            new ConcurrentHashMap<Class<?>, Registration<?>>();
+    private final ConcurrentMap<Integer, Registration<?>> registrationsByTypeId =
+            new ConcurrentHashMap<Integer, Registration<?>>();
+
+    // type ids are persisted, so they must never be reused for a different command class
+    public <T extends Command> void register(int typeId, Class<T> commandClass,
+            CommandCodec<T> codec) {
+
+        if (typeId < 0) {
+            throw new IllegalArgumentException("Type id must not be negative: " + typeId);
+        }
+        Registration<T> registration = new Registration<T>(typeId, commandClass, codec);
+        Registration<?> existing = registrationsByTypeId.putIfAbsent(typeId, registration);
+        if (existing != null) {
+            throw new IllegalStateException("Type id " + typeId + " is already registered for "
+                    + existing.commandClass.getName());
+        }
+        registrationsByClass.put(commandClass, registration);
+    }
+
+    // returns null if there is no codec registered for the command's class
+    byte[] encode(Command command) {
+        Registration<?> registration = registrationsByClass.get(command.getClass());
+        if (registration == null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeVarInt(registration.typeId, out);
+            registration.encode(command, out);
+            out.flush();
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw IOException, so this is from the codec
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    Command decode(byte[] bytes) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            int typeId = readVarInt(in);
+            Registration<?> registration = registrationsByTypeId.get(typeId);
+            if (registration == null) {
+                throw new IllegalStateException("No codec registered for type id " + typeId);
+            }
+            return registration.codec.decode(in);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeVarInt(int value, DataOutputStream out) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed type id");
+    }
+
+    private static class Registration<T extends Command> {
+        private final int typeId;
+        private final Class<T> commandClass;
+        private final CommandCodec<T> codec;
+        private Registration(int typeId, Class<T> commandClass, CommandCodec<T> codec) {
+            this.typeId = typeId;
+            this.commandClass = commandClass;
+            this.codec = codec;
+        }
+        private void encode(Command command, DataOutputStream out) throws IOException {
+            codec.encode(commandClass.cast(command), out);
+        }
+    }
+}
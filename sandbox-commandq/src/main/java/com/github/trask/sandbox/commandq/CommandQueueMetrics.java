@@ -0,0 +1,51 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+/**
+ * Receives the command queue's instrumentation. Implementations are called on the commands'
+ * critical path, so they must be thread safe and should not block.
+ * 
+ * @author Trask Stalnaker
+ */
+public interface CommandQueueMetrics {
+
+    // time taken to insert a new command (including deduplicating it, see KeyedCommand)
+    void recordEnqueue(long nanos);
+
+    // time taken by a single claim of up to a batch of commands
+    void recordClaim(long nanos);
+
+    // time between a command becoming visible and being claimed
+    void recordClaimDelay(long millis);
+
+    // time taken by a command's execute(), or by a batch's executeBatch()
+    void recordExecute(long nanos);
+
+    // time taken to delete a completed command, or a batch of completed commands
+    void recordDelete(long nanos);
+
+    // commands (or claim candidates) that another node locked first
+    void recordLockContentionLosses(int count);
+
+    void recordRetry();
+
+    // commands that failed more times than their retry policy allows
+    void recordExhaustion();
+
+    // sampled periodically by CommandQueueService
+    void recordVisibleBacklog(long count);
+}
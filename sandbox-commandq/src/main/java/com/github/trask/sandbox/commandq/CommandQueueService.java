@@ -15,13 +15,20 @@
  */
 package com.github.trask.sandbox.commandq;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.trask.sandbox.executors.DaemonExecutors;
+import com.google.common.util.concurrent.ListenableFuture;
+
 /**
  * @author Trask Stalnaker
  */
@@ -31,96 +38,315 @@ public class CommandQueueService {
 
     private static final int NUM_SECONDS_IN_HOUR = 3600;
 
+    public static final int DEFAULT_CLAIM_BATCH_SIZE = 100;
+
+    // when the executor service has a timing wheel, scheduled commands that are due within this
+    // horizon are held in memory (locked by this node) and run with millisecond precision, while
+    // commands further out are only stored (with visibleNextAt) until they come within it
+    private static final long SCHEDULE_HORIZON_MILLIS = 10000;
+
+    private static final int FAILED_NODE_TIMEOUT_SECONDS = 60;
+    // the mongo heartbeats are much less frequent when they are only a fallback to a membership
+    private static final int FALLBACK_HEARTBEAT_INTERVAL_SECONDS = 60;
+    private static final int FALLBACK_FAILED_NODE_TIMEOUT_SECONDS = 300;
+
+    // counting the visible commands is a full count query, so it is only sampled
+    private static final int VISIBLE_BACKLOG_SAMPLE_INTERVAL_SECONDS = 10;
+
     private final QueuedCommandDao queuedCommandDao;
     private final QueueNodeDao queueNodeDao;
     private final NodeAwareCommandExecutorService commandExecutorService;
+    private final int claimBatchSize;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final int failedNodeTimeoutSeconds;
+    // null means live nodes are read from the mongo heartbeats
+    private final Membership membership;
+
+    // claiming runs the claimed commands inline when the executor service has no worker pool,
+    // and can still run them inline (or block on them) when the worker pool or the concurrency
+    // limiter is saturated, so claiming is never done on the scheduled executor service's threads
+    private final ExecutorService claimExecutorService;
+    // the lease renewer and the heartbeats get their own thread so that they are never held up
+    // behind anything else, since this node's commands are taken over (and run a second time)
+    // if they fall behind
+    private final ScheduledExecutorService livenessExecutorService;
+    private volatile boolean shutdown;
 
     public CommandQueueService(QueuedCommandDao queuedCommandDao, QueueNodeDao queueNodeDao,
             NodeAwareCommandExecutorService commandExecutorService,
             ScheduledExecutorService scheduledExecutorService) {
 
+        this(queuedCommandDao, queueNodeDao, commandExecutorService, scheduledExecutorService,
+                DEFAULT_CLAIM_BATCH_SIZE);
+    }
+
+    public CommandQueueService(QueuedCommandDao queuedCommandDao, QueueNodeDao queueNodeDao,
+            NodeAwareCommandExecutorService commandExecutorService,
+            ScheduledExecutorService scheduledExecutorService, int claimBatchSize) {
+
+        this(queuedCommandDao, queueNodeDao, commandExecutorService, scheduledExecutorService,
+                claimBatchSize, null);
+    }
+
+    // when a membership is given, failed nodes are taken over as soon as the membership detects
+    // them (and their leases expire), and the mongo heartbeats and failed node polling are only
+    // kept (at a much lower rate) as a fallback for failures the membership can't see, e.g. a
+    // node that can't send udp
+    public CommandQueueService(QueuedCommandDao queuedCommandDao, QueueNodeDao queueNodeDao,
+            NodeAwareCommandExecutorService commandExecutorService,
+            ScheduledExecutorService scheduledExecutorService, int claimBatchSize,
+            Membership membership) {
+
         this.queuedCommandDao = queuedCommandDao;
         this.queueNodeDao = queueNodeDao;
         this.commandExecutorService = commandExecutorService;
+        this.claimBatchSize = claimBatchSize;
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.membership = membership;
+        claimExecutorService = DaemonExecutors.newCachedThreadPool("CommandQueueClaimer");
+        livenessExecutorService = DaemonExecutors
+                .newSingleThreadScheduledExecutor("CommandQueueLiveness");
 
-        scheduledExecutorService.scheduleAtFixedRate(new FailedCommandMonitor(), 0, 30,
-                TimeUnit.SECONDS);
-        scheduledExecutorService.scheduleAtFixedRate(new NodeWithLocksHeartbeat(), 10, 10,
-                TimeUnit.SECONDS);
-        scheduledExecutorService.scheduleAtFixedRate(new FailedNodeWithLocksMonitor(), 0, 10,
-                TimeUnit.SECONDS);
-        scheduledExecutorService.scheduleAtFixedRate(new NodeWithNoLocksHeartbeat(), 0,
+        VisibleCommandSweeper visibleCommandSweeper = new VisibleCommandSweeper(queuedCommandDao,
+                commandExecutorService, scheduledExecutorService, claimExecutorService,
+                claimBatchSize, SCHEDULE_HORIZON_MILLIS);
+        commandExecutorService.addRescheduleListener(visibleCommandSweeper);
+        visibleCommandSweeper.wakeUpIn(0);
+        FailedNodeWithLocksMonitor failedNodeWithLocksMonitor = new FailedNodeWithLocksMonitor();
+        if (membership == null) {
+            failedNodeTimeoutSeconds = FAILED_NODE_TIMEOUT_SECONDS;
+            livenessExecutorService.scheduleAtFixedRate(new NodeWithLocksHeartbeat(), 10, 10,
+                    TimeUnit.SECONDS);
+            scheduledExecutorService.scheduleAtFixedRate(
+                    new ClaimTask(failedNodeWithLocksMonitor, claimExecutorService), 0, 10,
+                    TimeUnit.SECONDS);
+        } else {
+            membership.addMembershipListener(failedNodeWithLocksMonitor);
+            failedNodeTimeoutSeconds = FALLBACK_FAILED_NODE_TIMEOUT_SECONDS;
+            livenessExecutorService.scheduleAtFixedRate(new NodeWithLocksHeartbeat(),
+                    FALLBACK_HEARTBEAT_INTERVAL_SECONDS, FALLBACK_HEARTBEAT_INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+            scheduledExecutorService.scheduleAtFixedRate(
+                    new ClaimTask(failedNodeWithLocksMonitor, claimExecutorService), 0,
+                    FALLBACK_HEARTBEAT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        // leases are renewed a few times per lease duration so that a single slow renewal doesn't
+        // cause a lease to expire, and expired leases are checked for often enough that orphaned
+        // commands are taken over shortly after their leases expire
+        long leaseDurationMillis = queuedCommandDao.getLeaseDurationMillis();
+        livenessExecutorService.scheduleAtFixedRate(new LeaseRenewer(), leaseDurationMillis / 3,
+                leaseDurationMillis / 3, TimeUnit.MILLISECONDS);
+        scheduledExecutorService.scheduleAtFixedRate(
+                new ClaimTask(new ExpiredLeaseMonitor(), claimExecutorService), 0,
+                Math.max(leaseDurationMillis / 6, 1000), TimeUnit.MILLISECONDS);
+        CommandQueueMetrics metrics = commandExecutorService.getMetrics();
+        if (metrics != null) {
+            scheduledExecutorService.scheduleAtFixedRate(new VisibleBacklogSampler(metrics),
+                    0, VISIBLE_BACKLOG_SAMPLE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        }
+        livenessExecutorService.scheduleAtFixedRate(new NodeWithNoLocksHeartbeat(), 0,
+                NUM_SECONDS_IN_HOUR, TimeUnit.SECONDS);
+        scheduledExecutorService.scheduleAtFixedRate(new FailedNodeReaper(), 0,
                 NUM_SECONDS_IN_HOUR, TimeUnit.SECONDS);
-        scheduledExecutorService.scheduleAtFixedRate(new FailedNodeWithNoLocksMonitor(), 0,
-                NUM_SECONDS_IN_HOUR * 12, TimeUnit.SECONDS);
 
     }
 
+    // stops this node's sweeping, claiming, lease renewal and heartbeats, commands that are
+    // already running are left to finish, the given executor service, membership and command
+    // executor service are not shut down since they are owned by the caller
+    public void shutdown() {
+        logger.debug("shutdown()");
+        shutdown = true;
+        livenessExecutorService.shutdownNow();
+        claimExecutorService.shutdown();
+    }
+
+    // throws RejectedExecutionException if the executor service has a concurrency limiter and
+    // the command's class is saturated on this node (see AdaptiveConcurrencyLimiter), in which
+    // case the command has not been queued and the caller should back off
     public void add(Command command) {
         logger.debug("add(): command={}", command);
         commandExecutorService.queueAndRunCommand(command);
     }
 
-    private void runQueuedCommands(QueuedCommandBatchReader getNext) {
-        List<QueuedCommand> next = getNext.nextBatch();
-        while (!next.isEmpty()) {
-            for (QueuedCommand queuedCommand : next) {
-                commandExecutorService.runQueuedCommand(queuedCommand);
-            }
-            next = getNext.nextBatch();
+    // returns without waiting for the command to be inserted or executed, the returned future
+    // completes once the command has been durably inserted (at which point it will be executed
+    // even if this node fails), the command itself is then executed asynchronously, this
+    // throws RejectedExecutionException the same as add()
+    public ListenableFuture<ObjectId> addAsync(Command command) {
+        logger.debug("addAsync(): command={}", command);
+        return commandExecutorService.queueAndRunCommandAsync(command);
+    }
+
+    // runs the command at (or shortly after) the given time, on whichever node is first to claim
+    // it, or on this node if it is due within the schedule horizon
+    public void schedule(Command command, long runAtMillis) {
+        logger.debug("schedule(): command={}, runAtMillis={}", command, runAtMillis);
+        long delayMillis = runAtMillis - System.currentTimeMillis();
+        if (delayMillis <= 0) {
+            add(command);
+        } else if (commandExecutorService.hasTimingWheel()
+                && delayMillis <= SCHEDULE_HORIZON_MILLIS) {
+            commandExecutorService.queueAndScheduleCommand(command, runAtMillis);
+        } else {
+            commandExecutorService.scheduleCommand(command, runAtMillis);
         }
     }
 
-    private interface QueuedCommandBatchReader {
-        List<QueuedCommand> nextBatch();
+    // runs the command at each time in its schedule (see RecurringCommand), starting with the
+    // first one after now
+    public void schedule(RecurringCommand command) {
+        long runAtMillis = command.schedule().nextRunAfter(System.currentTimeMillis());
+        if (runAtMillis == -1) {
+            logger.warn("schedule(): schedule has no runs, command={}", command);
+            return;
+        }
+        schedule(command, runAtMillis);
     }
 
-    private class FailedCommandMonitor implements Runnable {
+    // re-enqueues the dead letters matching the filter (see DeadLetter) in batches, at no more
+    // than maxCommandsPerSecond so that a replay after an outage does not itself cause one, and
+    // returns the number of dead letters replayed, this blocks until the replay is done
+    public int replayDeadLetters(DeadLetterFilter filter, int batchSize,
+            int maxCommandsPerSecond) throws InterruptedException {
+
+        logger.debug("replayDeadLetters(): batchSize={}", batchSize);
+        return commandExecutorService.replayDeadLetters(filter, batchSize, maxCommandsPerSecond);
+    }
+
+    private class NodeWithLocksHeartbeat implements Runnable {
         public void run() {
-            logger.trace("FailedCommandMonitor.run()");
-            runQueuedCommands(new QueuedCommandBatchReader() {
-                public List<QueuedCommand> nextBatch() {
-                    return queuedCommandDao.readVisible(2);
+            logger.trace("NodeWithLocksHeartbeat.run()");
+            try {
+                if (commandExecutorService.getLockCount() > 0) {
+                    queueNodeDao.updateAliveAt();
                 }
-            });
+            } catch (Throwable t) {
+                // otherwise the scheduled executor service would stop the heartbeat, and this
+                // node's commands would be taken over while it is still running them
+                logger.error(t.getMessage(), t);
+            }
         }
     }
 
-    private class NodeWithLocksHeartbeat implements Runnable {
+    private class LeaseRenewer implements Runnable {
         public void run() {
-            logger.trace("NodeWithLocksHeartbeat.run()");
-            if (commandExecutorService.getLockCount() > 0) {
-                queueNodeDao.updateAliveAt();
+            logger.trace("LeaseRenewer.run()");
+            try {
+                if (commandExecutorService.getLockCount() > 0) {
+                    queuedCommandDao.renewLeases();
+                }
+            } catch (Throwable t) {
+                // otherwise the scheduled executor service would stop renewing, and this node's
+                // leases would all expire while it is still running their commands
+                logger.error(t.getMessage(), t);
             }
         }
     }
 
-    private class FailedNodeWithLocksMonitor implements Runnable {
+    private class VisibleBacklogSampler implements Runnable {
+        private final CommandQueueMetrics metrics;
+        private VisibleBacklogSampler(CommandQueueMetrics metrics) {
+            this.metrics = metrics;
+        }
+        public void run() {
+            logger.trace("VisibleBacklogSampler.run()");
+            try {
+                metrics.recordVisibleBacklog(queuedCommandDao.countVisible());
+            } catch (RuntimeException e) {
+                // otherwise the scheduled executor service would stop sampling
+                logger.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    private class ExpiredLeaseMonitor implements Runnable {
+        public void run() {
+            logger.trace("ExpiredLeaseMonitor.run()");
+            try {
+                commandExecutorService.claimAndRunExpiredLeaseCommands(claimBatchSize);
+            } catch (Throwable t) {
+                // otherwise the scheduled executor service would stop taking over expired leases
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    // all survivors must see (roughly) the same live nodes for each failed node's commands to be
+    // split between them without gaps or overlap
+    private Set<String> readLiveNodeIds() {
+        if (membership != null) {
+            return membership.getLiveNodeIds();
+        }
+        return new HashSet<String>(queueNodeDao.readLiveNodeIds(failedNodeTimeoutSeconds,
+                NUM_SECONDS_IN_HOUR * 2));
+    }
+
+    // failed nodes come either from polling the mongo heartbeats or from the membership
+    private class FailedNodeWithLocksMonitor implements Runnable, MembershipListener {
         public void run() {
             logger.trace("FailedNodeWithLocksMonitor.run()");
-            List<QueueNode> failedNodes = queueNodeDao
-                    .readFailedNodesThatHaveLockedCommands(60, 10);
-            for (final QueueNode failedNode : failedNodes) {
-                runQueuedCommands(new QueuedCommandBatchReader() {
-                    public List<QueuedCommand> nextBatch() {
-                        return queuedCommandDao.readFromFailedNodeQueue(failedNode.getNodeId(), 10);
-                    }
-                });
+            try {
+                List<QueueNode> failedNodes = queueNodeDao
+                        .readFailedNodesThatHaveLockedCommands(failedNodeTimeoutSeconds, 10);
+                if (failedNodes.isEmpty()) {
+                    return;
+                }
+                Set<String> liveNodeIds = readLiveNodeIds();
+                for (QueueNode failedNode : failedNodes) {
+                    commandExecutorService.claimAndRunFailedNodeCommands(failedNode.getNodeId(),
+                            liveNodeIds, claimBatchSize);
+                }
+            } catch (Throwable t) {
+                // otherwise the scheduled executor service would stop taking over failed nodes
+                logger.error(t.getMessage(), t);
             }
         }
+        public void onNodeFailed(final String nodeId) {
+            logger.debug("FailedNodeWithLocksMonitor.onNodeFailed(): nodeId={}", nodeId);
+            if (shutdown) {
+                return;
+            }
+            // the failed node's commands are only claimed once their leases have expired, which
+            // (if the node really has failed) is within one lease duration of it being detected,
+            // and the membership's thread must not be held up while the commands run
+            scheduledExecutorService.schedule(new ClaimTask(new Runnable() {
+                public void run() {
+                    try {
+                        commandExecutorService.claimAndRunFailedNodeCommands(nodeId,
+                                readLiveNodeIds(), claimBatchSize);
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+            }, claimExecutorService), queuedCommandDao.getLeaseDurationMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
     }
 
     private class NodeWithNoLocksHeartbeat implements Runnable {
         public void run() {
             logger.trace("NodeWithNoLocksHeartbeat.run()");
-            queueNodeDao.updateAliveAt();
+            try {
+                queueNodeDao.updateAliveAt();
+            } catch (Throwable t) {
+                // otherwise the scheduled executor service would stop the heartbeat
+                logger.error(t.getMessage(), t);
+            }
         }
     }
 
-    private class FailedNodeWithNoLocksMonitor implements Runnable {
+    // failed nodes are deleted once they have been gone long enough that there is nothing left
+    // to take over from them, so that they don't pile up as nodes come and go
+    private class FailedNodeReaper implements Runnable {
         public void run() {
-            logger.trace("FailedNodeWithNoLocksMonitor.run()");
-            queueNodeDao.readFailedNodesThatHaveNoLockedCommands(NUM_SECONDS_IN_HOUR * 2);
+            logger.trace("FailedNodeReaper.run()");
+            try {
+                queueNodeDao.deleteFailedNodes(NUM_SECONDS_IN_HOUR * 2);
+            } catch (Throwable t) {
+                // otherwise the scheduled executor service would stop reaping failed nodes
+                logger.error(t.getMessage(), t);
+            }
         }
     }
 }
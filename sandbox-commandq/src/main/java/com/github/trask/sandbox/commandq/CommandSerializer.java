@@ -0,0 +1,99 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.List;
+
+import org.bson.BSON;
+import org.bson.BSONObject;
+
+import com.google.code.morphia.Morphia;
+import com.google.code.morphia.mapping.Mapper;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Serializes commands using their registered {@link CommandCodec}, falling back to bson using the
+ * same morphia mapping as {@link MongoQueuedCommandDao}, so that commands don't need to implement
+ * anything beyond what they already do for mongo.
+ * 
+ * @author Trask Stalnaker
+ */
+class CommandSerializer {
+
+    // first byte of the serialized form
+    private static final byte BSON_FORMAT = 0;
+    private static final byte CODEC_FORMAT = 1;
+
+    private final CommandCodecRegistry commandCodecRegistry;
+    private final Mapper mapper;
+
+    CommandSerializer(CommandCodecRegistry commandCodecRegistry) {
+        this.commandCodecRegistry = commandCodecRegistry;
+        Morphia morphia = new Morphia();
+        morphia.map(QueuedCommand.class);
+        mapper = morphia.getMapper();
+    }
+
+    byte[] serialize(Command command) {
+        byte[] commandBytes = commandCodecRegistry.encode(command);
+        byte format = CODEC_FORMAT;
+        if (commandBytes == null) {
+            // the command is wrapped so that morphia records its class name
+            QueuedCommand queuedCommand = new QueuedCommand();
+            queuedCommand.setCommand(command);
+            commandBytes = BSON.encode(mapper.toDBObject(queuedCommand));
+            format = BSON_FORMAT;
+        }
+        byte[] bytes = new byte[commandBytes.length + 1];
+        bytes[0] = format;
+        System.arraycopy(commandBytes, 0, bytes, 1, commandBytes.length);
+        return bytes;
+    }
+
+    Command deserialize(byte[] bytes) {
+        byte[] commandBytes = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 1, commandBytes, 0, commandBytes.length);
+        if (bytes[0] == CODEC_FORMAT) {
+            return commandCodecRegistry.decode(commandBytes);
+        }
+        DBObject dbObject = (DBObject) toDBObjects(BSON.decode(commandBytes));
+        QueuedCommand queuedCommand = (QueuedCommand) mapper.fromDBObject(QueuedCommand.class,
+                dbObject, mapper.createEntityCache());
+        return queuedCommand.getCommand();
+    }
+
+    // BSON.decode() returns plain bson objects, but morphia expects nested DBObjects
+    private static Object toDBObjects(Object value) {
+        if (value instanceof List<?>) {
+            BasicDBList dbList = new BasicDBList();
+            for (Object item : (List<?>) value) {
+                dbList.add(toDBObjects(item));
+            }
+            return dbList;
+        } else if (value instanceof BSONObject) {
+            BSONObject bsonObject = (BSONObject) value;
+            BasicDBObject dbObject = new BasicDBObject();
+            for (String key : bsonObject.keySet()) {
+                dbObject.put(key, toDBObjects(bsonObject.get(key)));
+            }
+            return dbObject;
+        } else {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.trask.sandbox.executors.DaemonExecutors;
+
+/**
+ * Bounded pool of worker threads that claimed commands are dispatched to, with optional limits on
+ * the number of commands of a given class that execute at the same time.
+ * 
+ * @author Trask Stalnaker
+ */
+public class CommandWorkerPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(CommandWorkerPool.class);
+
+    private final ExecutorService executorService;
+    private final Map<Class<? extends Command>, Semaphore> commandClassPermits =
+            new HashMap<Class<? extends Command>, Semaphore>();
+
+    public CommandWorkerPool(int nThreads, int queueCapacity) {
+        this(nThreads, queueCapacity, Collections.<Class<? extends Command>, Integer> emptyMap());
+    }
+
+    public CommandWorkerPool(int nThreads, int queueCapacity,
+            Map<Class<? extends Command>, Integer> maxConcurrencyPerCommandClass) {
+
+        // when all workers are busy and the queue is full, commands run on the dispatching thread,
+        // so the monitors that claim work slow down instead of claiming more than can be run
+        executorService = DaemonExecutors.newBoundedThreadPool(nThreads, queueCapacity,
+                "CommandWorker");
+        for (Entry<Class<? extends Command>, Integer> entry : maxConcurrencyPerCommandClass
+                .entrySet()) {
+            commandClassPermits.put(entry.getKey(), new Semaphore(entry.getValue()));
+        }
+    }
+
+    // blocks while the command's class is at its concurrency limit
+    public void execute(Command command, final Runnable task) {
+        logger.trace("execute(): command={}", command);
+        final Semaphore permits = commandClassPermits.get(command.getClass());
+        if (permits != null) {
+            permits.acquireUninterruptibly();
+        }
+        try {
+            executorService.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        if (permits != null) {
+                            permits.release();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (permits != null) {
+                permits.release();
+            }
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        executorService.shutdown();
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import com.google.code.morphia.annotations.Embedded;
+
+/**
+ * Runs once a day at the given local time in the given time zone.
+ * 
+ * @author Trask Stalnaker
+ */
+@Embedded
+public class DailySchedule implements Schedule {
+
+    private int hourOfDay;
+    private int minute;
+    private String timeZoneId;
+
+    // default constructor needed by morphia
+    public DailySchedule() {}
+
+    public DailySchedule(int hourOfDay, int minute, String timeZoneId) {
+        if (hourOfDay < 0 || hourOfDay > 23) {
+            throw new IllegalArgumentException("Invalid hourOfDay " + hourOfDay);
+        }
+        if (minute < 0 || minute > 59) {
+            throw new IllegalArgumentException("Invalid minute " + minute);
+        }
+        this.hourOfDay = hourOfDay;
+        this.minute = minute;
+        this.timeZoneId = timeZoneId;
+    }
+
+    // when the local time doesn't exist (daylight saving time gap), runs at the equivalent time
+    // after the gap, the same as lenient Calendar
+    public long nextRunAfter(long timeMillis) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone(timeZoneId));
+        calendar.setTimeInMillis(timeMillis);
+        calendar.set(Calendar.HOUR_OF_DAY, hourOfDay);
+        calendar.set(Calendar.MINUTE, minute);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        if (calendar.getTimeInMillis() <= timeMillis) {
+            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            // re-apply the time of day in case adding a day crossed a daylight saving time change
+            calendar.set(Calendar.HOUR_OF_DAY, hourOfDay);
+            calendar.set(Calendar.MINUTE, minute);
+        }
+        return calendar.getTimeInMillis();
+    }
+
+    public int getHourOfDay() {
+        return hourOfDay;
+    }
+
+    public int getMinute() {
+        return minute;
+    }
+
+    public String getTimeZoneId() {
+        return timeZoneId;
+    }
+}
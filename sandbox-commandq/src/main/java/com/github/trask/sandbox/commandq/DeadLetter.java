@@ -0,0 +1,171 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.bson.types.ObjectId;
+
+import com.google.code.morphia.annotations.CappedAt;
+import com.google.code.morphia.annotations.Entity;
+import com.google.code.morphia.annotations.Id;
+import com.google.code.morphia.annotations.Index;
+import com.google.code.morphia.annotations.Indexes;
+import com.google.code.morphia.annotations.Transient;
+
+/**
+ * A command that failed more times than its retry policy allows.
+ * 
+ * @author Trask Stalnaker
+ */
+@Entity(noClassnameStored = true, cap = @CappedAt(value = 100 * 1024 * 1024, count = 100000))
+@Indexes(@Index("appId, deadAt"))
+public class DeadLetter {
+
+    // keeps a dead letter well within the average size that the collection is capped at
+    private static final int MAX_STACK_TRACE_LENGTH = 4000;
+
+    @Id
+    private ObjectId id;
+    private String appId;
+    // only one of command and commandBytes is stored, see QueuedCommand
+    private Command command;
+    private byte[] commandBytes;
+    // set by the dao after reading, needed to decode commandBytes
+    @Transient
+    private CommandCodecRegistry commandCodecRegistry;
+    private String commandClassName;
+    private int nFailures;
+    // null if the command failed as part of a batch without throwing (see BatchableCommand)
+    private String lastExceptionClassName;
+    private String lastExceptionMessage;
+    private String lastExceptionStackTrace;
+    private long deadAt;
+    // 0 until replayed, this is always set (rather than only once replayed) so that marking a
+    // dead letter as replayed never grows it, which a capped collection does not allow
+    private long replayedAt;
+
+    public ObjectId getId() {
+        return id;
+    }
+
+    public void setId(ObjectId id) {
+        this.id = id;
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    public void setAppId(String appId) {
+        this.appId = appId;
+    }
+
+    public Command getCommand() {
+        if (command == null && commandBytes != null) {
+            command = commandCodecRegistry.decode(commandBytes);
+        }
+        return command;
+    }
+
+    public void setCommand(Command command) {
+        this.command = command;
+    }
+
+    public byte[] getCommandBytes() {
+        return commandBytes;
+    }
+
+    public void setCommandBytes(byte[] commandBytes) {
+        this.commandBytes = commandBytes;
+    }
+
+    void setCommandCodecRegistry(CommandCodecRegistry commandCodecRegistry) {
+        this.commandCodecRegistry = commandCodecRegistry;
+    }
+
+    public String getCommandClassName() {
+        return commandClassName;
+    }
+
+    public void setCommandClassName(String commandClassName) {
+        this.commandClassName = commandClassName;
+    }
+
+    public int getNFailures() {
+        return nFailures;
+    }
+
+    public void setNFailures(int nFailures) {
+        this.nFailures = nFailures;
+    }
+
+    public String getLastExceptionClassName() {
+        return lastExceptionClassName;
+    }
+
+    public void setLastExceptionClassName(String lastExceptionClassName) {
+        this.lastExceptionClassName = lastExceptionClassName;
+    }
+
+    public String getLastExceptionMessage() {
+        return lastExceptionMessage;
+    }
+
+    public void setLastExceptionMessage(String lastExceptionMessage) {
+        this.lastExceptionMessage = lastExceptionMessage;
+    }
+
+    public String getLastExceptionStackTrace() {
+        return lastExceptionStackTrace;
+    }
+
+    public void setLastExceptionStackTrace(String lastExceptionStackTrace) {
+        this.lastExceptionStackTrace = lastExceptionStackTrace;
+    }
+
+    void setLastFailure(Throwable lastFailure) {
+        if (lastFailure == null) {
+            return;
+        }
+        lastExceptionClassName = lastFailure.getClass().getName();
+        lastExceptionMessage = lastFailure.getMessage();
+        StringWriter stackTrace = new StringWriter();
+        lastFailure.printStackTrace(new PrintWriter(stackTrace));
+        if (stackTrace.getBuffer().length() > MAX_STACK_TRACE_LENGTH) {
+            lastExceptionStackTrace = stackTrace.getBuffer().substring(0, MAX_STACK_TRACE_LENGTH);
+        } else {
+            lastExceptionStackTrace = stackTrace.toString();
+        }
+    }
+
+    public long getDeadAt() {
+        return deadAt;
+    }
+
+    public void setDeadAt(long deadAt) {
+        this.deadAt = deadAt;
+    }
+
+    public long getReplayedAt() {
+        return replayedAt;
+    }
+
+    public void setReplayedAt(long replayedAt) {
+        this.replayedAt = replayedAt;
+    }
+}
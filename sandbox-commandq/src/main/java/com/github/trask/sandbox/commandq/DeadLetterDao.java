@@ -0,0 +1,42 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Storage for dead letters (see {@link DeadLetter}), scoped to a single app id.
+ * 
+ * @author Trask Stalnaker
+ */
+public interface DeadLetterDao {
+
+    // lastFailure is a BatchableCommand.BatchItemFailedException if the command failed as part of
+    // a batch without throwing
+    void insert(Command command, int nFailures, Throwable lastFailure);
+
+    // returns dead letters matching the filter in id order, after afterId unless it is null
+    List<DeadLetter> readDeadLetters(DeadLetterFilter filter, ObjectId afterId, int limit);
+
+    // dead letters are kept in a capped collection, which discards the oldest ones once it is
+    // full and doesn't allow deletes or resizing updates, so replayed ones are only marked
+    void markReplayed(List<ObjectId> ids);
+
+    // number of commands that have died since the given time, e.g. for alerting on failure spikes
+    long countSince(long timeMillis);
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+/**
+ * Selects dead letters for replay (see {@link DeadLetterDao#readDeadLetters}), dead letters that
+ * have already been replayed are never selected.
+ * 
+ * @author Trask Stalnaker
+ */
+public class DeadLetterFilter {
+
+    // null means any command class
+    private final String commandClassName;
+    // inclusive, 0 means no lower bound
+    private final long deadFromMillis;
+    // exclusive, 0 means no upper bound
+    private final long deadUntilMillis;
+
+    // selects all dead letters
+    public DeadLetterFilter() {
+        this(null, 0, 0);
+    }
+
+    public DeadLetterFilter(String commandClassName) {
+        this(commandClassName, 0, 0);
+    }
+
+    public DeadLetterFilter(String commandClassName, long deadFromMillis,
+            long deadUntilMillis) {
+
+        this.commandClassName = commandClassName;
+        this.deadFromMillis = deadFromMillis;
+        this.deadUntilMillis = deadUntilMillis;
+    }
+
+    public String getCommandClassName() {
+        return commandClassName;
+    }
+
+    public long getDeadFromMillis() {
+        return deadFromMillis;
+    }
+
+    public long getDeadUntilMillis() {
+        return deadUntilMillis;
+    }
+
+    boolean matches(DeadLetter deadLetter) {
+        if (deadLetter.getReplayedAt() != 0) {
+            return false;
+        }
+        if (commandClassName != null
+                && !commandClassName.equals(deadLetter.getCommandClassName())) {
+            return false;
+        }
+        if (deadLetter.getDeadAt() < deadFromMillis) {
+            return false;
+        }
+        return deadUntilMillis == 0 || deadLetter.getDeadAt() < deadUntilMillis;
+    }
+}
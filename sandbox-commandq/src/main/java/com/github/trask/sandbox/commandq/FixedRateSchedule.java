@@ -0,0 +1,58 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import com.google.code.morphia.annotations.Embedded;
+
+/**
+ * Runs every periodMillis, at startMillis + n * periodMillis.
+ * 
+ * @author Trask Stalnaker
+ */
+@Embedded
+public class FixedRateSchedule implements Schedule {
+
+    private long startMillis;
+    private long periodMillis;
+
+    // default constructor needed by morphia
+    public FixedRateSchedule() {}
+
+    public FixedRateSchedule(long startMillis, long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("periodMillis must be positive");
+        }
+        this.startMillis = startMillis;
+        this.periodMillis = periodMillis;
+    }
+
+    // anchored to startMillis so runs don't drift, and missed runs (e.g. while no node was
+    // running) are skipped rather than run back to back
+    public long nextRunAfter(long timeMillis) {
+        if (timeMillis < startMillis) {
+            return startMillis;
+        }
+        return startMillis + ((timeMillis - startMillis) / periodMillis + 1) * periodMillis;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+}
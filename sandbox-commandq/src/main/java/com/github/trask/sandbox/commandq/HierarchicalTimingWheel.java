@@ -0,0 +1,250 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.trask.sandbox.executors.DaemonExecutors;
+
+/**
+ * Runs tasks at given times with millisecond precision, without a thread (or poll) per task. Due
+ * tasks are handed to the given executor.
+ * 
+ * @author Trask Stalnaker
+ */
+public class HierarchicalTimingWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(HierarchicalTimingWheel.class);
+
+    public static final long DEFAULT_TICK_MILLIS = 1;
+    public static final int DEFAULT_WHEEL_SIZE = 64;
+
+    // the reaper wakes up at least this often so that it notices shutdown
+    private static final long MAX_REAPER_SLEEP_MILLIS = 200;
+
+    private final Executor executor;
+    private final int wheelSize;
+    // only non-empty buckets are queued, so the reaper sleeps until the next bucket expires
+    // instead of ticking through empty ones
+    private final DelayQueue<Bucket> delayQueue = new DelayQueue<Bucket>();
+    // guarded by this
+    private final Wheel wheel;
+    // guarded by this
+    private int size;
+
+    private final ExecutorService reaperExecutorService;
+    private volatile boolean shutdown;
+
+    public HierarchicalTimingWheel(Executor executor) {
+        this(executor, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    public HierarchicalTimingWheel(Executor executor, long tickMillis, int wheelSize) {
+        this.executor = executor;
+        this.wheelSize = wheelSize;
+        wheel = new Wheel(tickMillis, System.currentTimeMillis());
+        reaperExecutorService = DaemonExecutors.newSingleThreadExecutor("TimingWheelReaper");
+        reaperExecutorService.execute(new Reaper());
+    }
+
+    // tasks that have not run yet are discarded
+    public void shutdown() {
+        shutdown = true;
+        reaperExecutorService.shutdown();
+    }
+
+    // runs the task at (or as soon as possible after) runAtMillis
+    public void schedule(Runnable task, long runAtMillis) {
+        Entry entry = new Entry(task, runAtMillis);
+        if (runAtMillis <= System.currentTimeMillis()) {
+            // already due (e.g. claimed after it became visible), so the wheel's lock is skipped
+            execute(entry);
+            return;
+        }
+        boolean added;
+        synchronized (this) {
+            added = wheel.add(entry);
+            if (added) {
+                size++;
+            }
+        }
+        if (!added) {
+            // already due
+            execute(entry);
+        }
+    }
+
+    // number of tasks that are waiting in the wheel
+    public synchronized int size() {
+        return size;
+    }
+
+    private void execute(Entry entry) {
+        try {
+            executor.execute(entry.task);
+        } catch (RejectedExecutionException e) {
+            logger.error("execute(): executor rejected task {}", entry.task);
+        }
+    }
+
+    private class Reaper implements Runnable {
+        public void run() {
+            while (!shutdown) {
+                Bucket bucket;
+                try {
+                    bucket = delayQueue.poll(MAX_REAPER_SLEEP_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (bucket == null) {
+                    continue;
+                }
+                List<Entry> due = new ArrayList<Entry>();
+                synchronized (HierarchicalTimingWheel.this) {
+                    // drain every bucket that has expired so far in one go
+                    while (bucket != null) {
+                        wheel.advanceClock(bucket.getExpiration());
+                        for (Entry entry : bucket.flush()) {
+                            // entries from overflow buckets cascade down into the finer wheels
+                            if (!wheel.add(entry)) {
+                                due.add(entry);
+                                size--;
+                            }
+                        }
+                        bucket = delayQueue.poll();
+                    }
+                }
+                for (Entry entry : due) {
+                    execute(entry);
+                }
+            }
+        }
+    }
+
+    // all access is guarded by HierarchicalTimingWheel.this
+    private class Wheel {
+        private final long tickMillis;
+        private final long intervalMillis;
+        private final Bucket[] buckets;
+        // always a multiple of tickMillis
+        private long currentTime;
+        // created lazily, its buckets are as wide as this whole wheel, and its entries cascade
+        // down into this wheel when their bucket expires
+        private Wheel overflowWheel;
+
+        private Wheel(long tickMillis, long startMillis) {
+            this.tickMillis = tickMillis;
+            intervalMillis = tickMillis * wheelSize;
+            buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++) {
+                buckets[i] = new Bucket();
+            }
+            currentTime = startMillis - startMillis % tickMillis;
+        }
+
+        // returns false if the entry is already due
+        private boolean add(Entry entry) {
+            if (entry.runAtMillis < currentTime + tickMillis) {
+                return false;
+            } else if (entry.runAtMillis < currentTime + intervalMillis) {
+                long virtualId = entry.runAtMillis / tickMillis;
+                Bucket bucket = buckets[(int) (virtualId % wheelSize)];
+                bucket.add(entry);
+                // the bucket is only (re)queued when it is first used for a given expiration
+                if (bucket.setExpiration(virtualId * tickMillis)) {
+                    delayQueue.offer(bucket);
+                }
+                return true;
+            } else {
+                if (overflowWheel == null) {
+                    overflowWheel = new Wheel(intervalMillis, currentTime);
+                }
+                return overflowWheel.add(entry);
+            }
+        }
+
+        private void advanceClock(long time) {
+            if (time >= currentTime + tickMillis) {
+                currentTime = time - time % tickMillis;
+                if (overflowWheel != null) {
+                    overflowWheel.advanceClock(currentTime);
+                }
+            }
+        }
+    }
+
+    private static class Bucket implements Delayed {
+        // guarded by HierarchicalTimingWheel.this
+        private final List<Entry> entries = new ArrayList<Entry>();
+        // volatile since the delay queue reads it without holding HierarchicalTimingWheel.this
+        private volatile long expiration = -1;
+
+        private void add(Entry entry) {
+            entries.add(entry);
+        }
+
+        // returns true if the expiration changed
+        private boolean setExpiration(long expiration) {
+            if (this.expiration == expiration) {
+                return false;
+            }
+            this.expiration = expiration;
+            return true;
+        }
+
+        private long getExpiration() {
+            return expiration;
+        }
+
+        private List<Entry> flush() {
+            List<Entry> flushed = new ArrayList<Entry>(entries);
+            entries.clear();
+            expiration = -1;
+            return flushed;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(expiration - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            long otherExpiration = ((Bucket) other).expiration;
+            if (expiration != otherExpiration) {
+                return expiration < otherExpiration ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    private static class Entry {
+        private final Runnable task;
+        private final long runAtMillis;
+        private Entry(Runnable task, long runAtMillis) {
+            this.task = task;
+            this.runAtMillis = runAtMillis;
+        }
+    }
+}
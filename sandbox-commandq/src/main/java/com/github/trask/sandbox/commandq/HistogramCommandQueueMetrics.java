@@ -0,0 +1,179 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Default {@link CommandQueueMetrics}, keeps latencies in {@link LatencyHistogram}s (in
+ * microseconds) and can expose them as a standard mbean.
+ * 
+ * @author Trask Stalnaker
+ */
+public class HistogramCommandQueueMetrics implements CommandQueueMetrics,
+        HistogramCommandQueueMetricsMBean {
+
+    private final LatencyHistogram enqueueMicros = new LatencyHistogram();
+    private final LatencyHistogram claimMicros = new LatencyHistogram();
+    private final LatencyHistogram claimDelayMicros = new LatencyHistogram();
+    private final LatencyHistogram executeMicros = new LatencyHistogram();
+    private final LatencyHistogram deleteMicros = new LatencyHistogram();
+    private final AtomicLong lockContentionLosses = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong exhaustions = new AtomicLong();
+    private volatile long visibleBacklog;
+
+    // registers this with the platform mbean server, under an object name that includes the app
+    // id so that each app's queue is reported separately
+    public ObjectName registerMBean(String appId) throws JMException {
+        ObjectName objectName = new ObjectName("com.github.trask.sandbox.commandq:"
+                + "type=CommandQueueMetrics,appId=" + ObjectName.quote(appId));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public void recordEnqueue(long nanos) {
+        enqueueMicros.record(nanos / 1000);
+    }
+
+    public void recordClaim(long nanos) {
+        claimMicros.record(nanos / 1000);
+    }
+
+    public void recordClaimDelay(long millis) {
+        claimDelayMicros.record(millis * 1000);
+    }
+
+    public void recordExecute(long nanos) {
+        executeMicros.record(nanos / 1000);
+    }
+
+    public void recordDelete(long nanos) {
+        deleteMicros.record(nanos / 1000);
+    }
+
+    public void recordLockContentionLosses(int count) {
+        lockContentionLosses.addAndGet(count);
+    }
+
+    public void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    public void recordExhaustion() {
+        exhaustions.incrementAndGet();
+    }
+
+    public void recordVisibleBacklog(long count) {
+        visibleBacklog = count;
+    }
+
+    public long getEnqueueCount() {
+        return enqueueMicros.getCount();
+    }
+
+    public long getEnqueueP50Micros() {
+        return enqueueMicros.getValueAtPercentile(50);
+    }
+
+    public long getEnqueueP99Micros() {
+        return enqueueMicros.getValueAtPercentile(99);
+    }
+
+    public long getEnqueueMaxMicros() {
+        return enqueueMicros.getMax();
+    }
+
+    public long getClaimCount() {
+        return claimMicros.getCount();
+    }
+
+    public long getClaimP50Micros() {
+        return claimMicros.getValueAtPercentile(50);
+    }
+
+    public long getClaimP99Micros() {
+        return claimMicros.getValueAtPercentile(99);
+    }
+
+    public long getClaimMaxMicros() {
+        return claimMicros.getMax();
+    }
+
+    public long getClaimDelayP50Micros() {
+        return claimDelayMicros.getValueAtPercentile(50);
+    }
+
+    public long getClaimDelayP99Micros() {
+        return claimDelayMicros.getValueAtPercentile(99);
+    }
+
+    public long getClaimDelayMaxMicros() {
+        return claimDelayMicros.getMax();
+    }
+
+    public long getExecuteCount() {
+        return executeMicros.getCount();
+    }
+
+    public long getExecuteP50Micros() {
+        return executeMicros.getValueAtPercentile(50);
+    }
+
+    public long getExecuteP99Micros() {
+        return executeMicros.getValueAtPercentile(99);
+    }
+
+    public long getExecuteMaxMicros() {
+        return executeMicros.getMax();
+    }
+
+    public long getDeleteCount() {
+        return deleteMicros.getCount();
+    }
+
+    public long getDeleteP50Micros() {
+        return deleteMicros.getValueAtPercentile(50);
+    }
+
+    public long getDeleteP99Micros() {
+        return deleteMicros.getValueAtPercentile(99);
+    }
+
+    public long getDeleteMaxMicros() {
+        return deleteMicros.getMax();
+    }
+
+    public long getLockContentionLosses() {
+        return lockContentionLosses.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getExhaustions() {
+        return exhaustions.get();
+    }
+
+    public long getVisibleBacklog() {
+        return visibleBacklog;
+    }
+}
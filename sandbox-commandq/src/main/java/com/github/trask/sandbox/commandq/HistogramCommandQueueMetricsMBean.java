@@ -0,0 +1,53 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+/**
+ * Latencies are in microseconds and cover everything recorded since startup.
+ * 
+ * @author Trask Stalnaker
+ */
+public interface HistogramCommandQueueMetricsMBean {
+
+    long getEnqueueCount();
+    long getEnqueueP50Micros();
+    long getEnqueueP99Micros();
+    long getEnqueueMaxMicros();
+
+    long getClaimCount();
+    long getClaimP50Micros();
+    long getClaimP99Micros();
+    long getClaimMaxMicros();
+
+    long getClaimDelayP50Micros();
+    long getClaimDelayP99Micros();
+    long getClaimDelayMaxMicros();
+
+    long getExecuteCount();
+    long getExecuteP50Micros();
+    long getExecuteP99Micros();
+    long getExecuteMaxMicros();
+
+    long getDeleteCount();
+    long getDeleteP50Micros();
+    long getDeleteP99Micros();
+    long getDeleteMaxMicros();
+
+    long getLockContentionLosses();
+    long getRetries();
+    long getExhaustions();
+    long getVisibleBacklog();
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.trask.sandbox.clock.Clock;
+
+/**
+ * Companion to {@link InMemoryQueuedCommandDao} (and {@link JournaledQueuedCommandDao}), keeps
+ * up to a maximum number of dead letters, discarding the oldest ones the same as a capped mongo
+ * collection.
+ * 
+ * @author Trask Stalnaker
+ */
+public class InMemoryDeadLetterDao implements DeadLetterDao {
+
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryDeadLetterDao.class);
+
+    private static final int DEFAULT_MAX_DEAD_LETTERS = 10000;
+
+    private final String appId;
+    private final Clock clock;
+    // in insertion (and so id) order, guarded by this
+    private final Map<ObjectId, DeadLetter> deadLetters;
+
+    public InMemoryDeadLetterDao(String appId, Clock clock) {
+        this(appId, clock, DEFAULT_MAX_DEAD_LETTERS);
+    }
+
+    public InMemoryDeadLetterDao(String appId, Clock clock, final int maxDeadLetters) {
+        this.appId = appId;
+        this.clock = clock;
+        deadLetters = new LinkedHashMap<ObjectId, DeadLetter>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ObjectId, DeadLetter> eldest) {
+                return size() > maxDeadLetters;
+            }
+        };
+    }
+
+    public synchronized void insert(Command command, int nFailures, Throwable lastFailure) {
+        logger.trace("insert(): command={}", command);
+        DeadLetter deadLetter = new DeadLetter();
+        deadLetter.setId(new ObjectId());
+        deadLetter.setAppId(appId);
+        deadLetter.setCommand(command);
+        deadLetter.setCommandClassName(command.getClass().getName());
+        deadLetter.setNFailures(nFailures);
+        deadLetter.setLastFailure(lastFailure);
+        deadLetter.setDeadAt(clock.currentTimeMillis());
+        deadLetters.put(deadLetter.getId(), deadLetter);
+    }
+
+    public synchronized List<DeadLetter> readDeadLetters(DeadLetterFilter filter,
+            ObjectId afterId, int limit) {
+
+        logger.trace("readDeadLetters(): afterId={}", afterId);
+        List<DeadLetter> matching = new ArrayList<DeadLetter>();
+        for (DeadLetter deadLetter : deadLetters.values()) {
+            if (matching.size() == limit) {
+                break;
+            }
+            if (afterId != null && deadLetter.getId().compareTo(afterId) <= 0) {
+                continue;
+            }
+            if (filter.matches(deadLetter)) {
+                matching.add(deadLetter);
+            }
+        }
+        return matching;
+    }
+
+    public synchronized void markReplayed(List<ObjectId> ids) {
+        logger.trace("markReplayed(): ids={}", ids);
+        long replayedAt = clock.currentTimeMillis();
+        for (ObjectId id : ids) {
+            DeadLetter deadLetter = deadLetters.get(id);
+            if (deadLetter == null) {
+                logger.warn("markReplayed(): could not find id {}", id);
+            } else {
+                deadLetter.setReplayedAt(replayedAt);
+            }
+        }
+    }
+
+    public synchronized long countSince(long timeMillis) {
+        long count = 0;
+        for (DeadLetter deadLetter : deadLetters.values()) {
+            if (deadLetter.getDeadAt() >= timeMillis) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
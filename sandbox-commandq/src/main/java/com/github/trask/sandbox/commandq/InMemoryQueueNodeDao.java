@@ -0,0 +1,172 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.trask.sandbox.clock.Clock;
+
+/**
+ * Companion to {@link InMemoryQueuedCommandDao}, nodes in the same JVM that share a queued
+ * command store should also share the same map of queue nodes.
+ * 
+ * @author Trask Stalnaker
+ */
+public class InMemoryQueueNodeDao implements QueueNodeDao {
+
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryQueueNodeDao.class);
+
+    private final String nodeId;
+    private final String appId;
+    private final Clock clock;
+    // queue nodes are replaced rather than modified so that readers never see partial updates
+    private final ConcurrentMap<String, QueueNode> queueNodes;
+
+    public InMemoryQueueNodeDao(String nodeId, String appId, Clock clock) {
+        this(nodeId, appId, clock, new ConcurrentHashMap<String, QueueNode>());
+    }
+
+    public InMemoryQueueNodeDao(String nodeId, String appId, Clock clock,
+            ConcurrentMap<String, QueueNode> queueNodes) {
+
+        this.nodeId = nodeId;
+        this.appId = appId;
+        this.clock = clock;
+        this.queueNodes = queueNodes;
+        queueNodes.put(nodeId, newQueueNode(nodeId, false, clock.currentTimeMillis()));
+    }
+
+    public void updateAliveAtAndLockedCommands(boolean lockedCommands) {
+        logger.trace("updateAliveAtAndLockedCommands(): lockedCommands={}", lockedCommands);
+        QueueNode node = newQueueNode(nodeId, lockedCommands, clock.currentTimeMillis());
+        if (queueNodes.replace(nodeId, node) == null) {
+            reinsert(node);
+        }
+    }
+
+    public void updateAliveAt() {
+        logger.trace("updateAliveAt()");
+        QueueNode existing = queueNodes.get(nodeId);
+        if (existing == null) {
+            // see MongoQueueNodeDao.updateAliveAt()
+            reinsert(newQueueNode(nodeId, false, clock.currentTimeMillis()));
+            return;
+        }
+        queueNodes.replace(nodeId, existing, newQueueNode(nodeId, existing.isLockedCommands(),
+                clock.currentTimeMillis()));
+    }
+
+    public List<QueueNode> readFailedNodesThatHaveLockedCommands(int timeoutSeconds, int limit) {
+        logger.trace("readFailedNodesThatHaveLockedCommands(): timeoutSeconds={}", timeoutSeconds);
+        logger.trace("readFailedNodesThatHaveLockedCommands(): limit={}", limit);
+        return readFailedNodes(true, clock.currentTimeMillis() - timeoutSeconds * 1000L, limit);
+    }
+
+    public List<QueueNode> readFailedNodesThatHaveNoLockedCommands(long seconds) {
+        logger.trace("readFailedNodesThatHaveNoLockedCommands(): seconds={}", seconds);
+        return readFailedNodes(false, clock.currentTimeMillis() - seconds * 1000,
+                Integer.MAX_VALUE);
+    }
+
+    public List<String> readLiveNodeIds(int lockedCommandsTimeoutSeconds,
+            long noLockedCommandsTimeoutSeconds) {
+
+        logger.trace("readLiveNodeIds()");
+        long currentTimeMillis = clock.currentTimeMillis();
+        List<String> liveNodeIds = new ArrayList<String>();
+        for (QueueNode node : queueNodes.values()) {
+            long timeoutSeconds = node.isLockedCommands() ? lockedCommandsTimeoutSeconds
+                    : noLockedCommandsTimeoutSeconds;
+            if (node.getAppId().equals(appId)
+                    && node.getAliveAt() >= currentTimeMillis - timeoutSeconds * 1000) {
+                liveNodeIds.add(node.getNodeId());
+            }
+        }
+        return liveNodeIds;
+    }
+
+    public void deleteFailedNode(String nodeId) {
+        logger.info("deleteFailedNode(): nodeId={}", nodeId);
+        queueNodes.remove(nodeId);
+    }
+
+    public int deleteFailedNodes(long seconds) {
+        logger.trace("deleteFailedNodes(): seconds={}", seconds);
+        long aliveBefore = clock.currentTimeMillis() - seconds * 1000;
+        int count = 0;
+        for (QueueNode node : queueNodes.values()) {
+            // only removed if it hasn't been replaced (e.g. by a heartbeat) since it was read
+            if (node.getAppId().equals(appId) && node.getAliveAt() < aliveBefore
+                    && queueNodes.remove(node.getNodeId(), node)) {
+                count++;
+            }
+        }
+        if (count > 0) {
+            logger.info("deleteFailedNodes(): deleted {} nodes", count);
+        }
+        return count;
+    }
+
+    private List<QueueNode> readFailedNodes(boolean lockedCommands, long aliveBefore,
+            int limit) {
+
+        List<QueueNode> failedNodes = new ArrayList<QueueNode>();
+        for (QueueNode node : queueNodes.values()) {
+            if (node.getAppId().equals(appId) && node.isLockedCommands() == lockedCommands
+                    && node.getAliveAt() < aliveBefore) {
+                failedNodes.add(node);
+            }
+        }
+        // most recently failed first, see MongoQueueNodeDao
+        Collections.sort(failedNodes, new AliveAtDescendingComparator());
+        if (failedNodes.size() > limit) {
+            return new ArrayList<QueueNode>(failedNodes.subList(0, limit));
+        }
+        return failedNodes;
+    }
+
+    // see MongoQueueNodeDao.reinsert()
+    private void reinsert(QueueNode node) {
+        logger.warn("reinsert(): queue node was deleted as failed, re-inserting, id={}", nodeId);
+        queueNodes.put(nodeId, node);
+    }
+
+    private QueueNode newQueueNode(String nodeId, boolean lockedCommands, long aliveAt) {
+        QueueNode node = new QueueNode();
+        node.setNodeId(nodeId);
+        node.setAppId(appId);
+        node.setLockedCommands(lockedCommands);
+        node.setAliveAt(aliveAt);
+        return node;
+    }
+
+    private static class AliveAtDescendingComparator implements Comparator<QueueNode> {
+        public int compare(QueueNode node1, QueueNode node2) {
+            if (node1.getAliveAt() == node2.getAliveAt()) {
+                return 0;
+            }
+            return node1.getAliveAt() > node2.getAliveAt() ? -1 : 1;
+        }
+    }
+}
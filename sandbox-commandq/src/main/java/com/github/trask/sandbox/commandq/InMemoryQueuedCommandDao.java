@@ -0,0 +1,203 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.trask.sandbox.clock.Clock;
+
+/**
+ * Keeps queued commands in memory, for single node deployments and for tests. Nodes in the same JVM
+ * that share an {@link InMemoryQueuedCommandStore} behave the same as nodes sharing a mongo
+ * collection.
+ * 
+ * @author Trask Stalnaker
+ */
+public class InMemoryQueuedCommandDao implements QueuedCommandDao {
+
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryQueuedCommandDao.class);
+
+    private final String nodeId;
+    private final String appId;
+    private final Clock clock;
+    private final long leaseDurationMillis;
+    private final InMemoryQueuedCommandStore store;
+    private final PriorityLaneScheduler priorityLaneScheduler = new PriorityLaneScheduler();
+
+    public InMemoryQueuedCommandDao(String nodeId, String appId, Clock clock) {
+        this(nodeId, appId, clock, DEFAULT_LEASE_DURATION_MILLIS,
+                new InMemoryQueuedCommandStore());
+    }
+
+    public InMemoryQueuedCommandDao(String nodeId, String appId, Clock clock,
+            long leaseDurationMillis, InMemoryQueuedCommandStore store) {
+
+        this.nodeId = nodeId;
+        this.appId = appId;
+        this.clock = clock;
+        this.leaseDurationMillis = leaseDurationMillis;
+        this.store = store;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getLeaseDurationMillis() {
+        return leaseDurationMillis;
+    }
+
+    public ObjectId lockAndInsert(Command command) {
+        ObjectId id = new ObjectId();
+        store.insertLocked(id, command, appId, nodeId,
+                clock.currentTimeMillis() + leaseDurationMillis);
+        return id;
+    }
+
+    public ObjectId lockAndInsertOrCoalesce(KeyedCommand command) {
+        ObjectId id = new ObjectId();
+        long currentTimeMillis = clock.currentTimeMillis();
+        QueuedCommand queuedCommand = store.lockAndInsertOrCoalesce(id, command, appId, nodeId,
+                currentTimeMillis, currentTimeMillis + leaseDurationMillis);
+        if (queuedCommand == null || !nodeId.equals(queuedCommand.getLockedByNodeId())) {
+            return null;
+        }
+        return id;
+    }
+
+    public ObjectId insertScheduled(Command command, long runAtMillis) {
+        ObjectId id = new ObjectId();
+        store.insertVisible(id, command, appId, 0, runAtMillis);
+        return id;
+    }
+
+    public ObjectId insertForRetry(Command command, long delayMillis) {
+        ObjectId id = new ObjectId();
+        store.insertVisible(id, command, appId, 1,
+                clock.currentTimeMillis() + delayMillis);
+        return id;
+    }
+
+    public List<ObjectId> lockAndInsertAll(List<Command> commands) {
+        List<ObjectId> ids = new ArrayList<ObjectId>(commands.size());
+        long leaseExpiresAt = clock.currentTimeMillis() + leaseDurationMillis;
+        for (Command command : commands) {
+            ObjectId id = new ObjectId();
+            store.insertLocked(id, command, appId, nodeId, leaseExpiresAt);
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    public List<ObjectId> insertAll(List<Command> commands) {
+        List<ObjectId> ids = new ArrayList<ObjectId>(commands.size());
+        long visibleNextAt = clock.currentTimeMillis();
+        for (Command command : commands) {
+            ObjectId id = new ObjectId();
+            store.insertVisible(id, command, appId, 0, visibleNextAt);
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    public void delete(ObjectId id) {
+        if (!store.delete(id, nodeId)) {
+            logger.warn("delete(): lost the lease on id {}", id);
+        }
+    }
+
+    public void deleteAll(List<ObjectId> ids) {
+        for (ObjectId id : ids) {
+            delete(id);
+        }
+    }
+
+    public void rescheduleOnFailure(ObjectId id, long delayMillis) {
+        if (!store.reschedule(id, nodeId, clock.currentTimeMillis() + delayMillis)) {
+            logger.warn("rescheduleOnFailure(): lost the lease on id {}", id);
+        }
+    }
+
+    public void scheduleNextRun(ObjectId id, long runAtMillis) {
+        if (!store.scheduleNextRun(id, nodeId, runAtMillis)) {
+            logger.warn("scheduleNextRun(): lost the lease on id {}", id);
+        }
+    }
+
+    public List<QueuedCommand> readVisible(int limit) {
+        return store.readVisible(priorityLaneScheduler.allocate(limit), limit,
+                clock.currentTimeMillis());
+    }
+
+    public long readMillisUntilNextVisible() {
+        return store.millisUntilNextVisible(clock.currentTimeMillis());
+    }
+
+    public long countVisible() {
+        return store.countVisible(clock.currentTimeMillis());
+    }
+
+    public List<QueuedCommand> claimVisible(int limit) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        return store.claimVisible(priorityLaneScheduler.allocate(limit), limit, nodeId,
+                currentTimeMillis, currentTimeMillis + leaseDurationMillis);
+    }
+
+    public List<QueuedCommand> claimUpcoming(long horizonMillis, int limit) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        return store.claimVisible(priorityLaneScheduler.allocate(limit), limit, nodeId,
+                currentTimeMillis + horizonMillis, currentTimeMillis + leaseDurationMillis);
+    }
+
+    public List<QueuedCommand> claimExpiredLeases(int limit) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        return store.claimExpiredLeases(limit, nodeId, currentTimeMillis,
+                currentTimeMillis + leaseDurationMillis);
+    }
+
+    public List<ObjectId> readIdsFromFailedNodeQueue(String failedNodeId, ObjectId afterId,
+            int limit) {
+
+        return store.readIdsLockedBy(failedNodeId, afterId, limit);
+    }
+
+    public List<QueuedCommand> claimFromFailedNode(String failedNodeId, List<ObjectId> ids) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        return store.claimLockedBy(failedNodeId, ids, nodeId, currentTimeMillis,
+                currentTimeMillis + leaseDurationMillis);
+    }
+
+    public void renewLeases() {
+        logger.trace("renewLeases()");
+        store.renewLeases(nodeId, clock.currentTimeMillis() + leaseDurationMillis);
+    }
+
+    public List<QueuedCommand> readFromFailedNodeQueue(String failedNodeId, int limit) {
+        return store.readLockedBy(failedNodeId, limit);
+    }
+
+    public void lock(ObjectId id) throws CouldNotLockForExecutionException {
+        long currentTimeMillis = clock.currentTimeMillis();
+        if (!store.lock(id, nodeId, currentTimeMillis, currentTimeMillis + leaseDurationMillis)) {
+            throw new CouldNotLockForExecutionException();
+        }
+    }
+}
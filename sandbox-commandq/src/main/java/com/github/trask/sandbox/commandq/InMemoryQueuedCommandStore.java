@@ -0,0 +1,645 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Queued command state shared by the {@link InMemoryQueuedCommandDao}s of all nodes (in the same
+ * JVM) for a single app id.
+ * 
+ * @author Trask Stalnaker
+ */
+public class InMemoryQueuedCommandStore {
+
+    private static final Priority[] LANES = Priority.values();
+
+    private final Lock lock = new ReentrantLock();
+
+    // all guarded by lock
+    private final Map<ObjectId, Entry> entries = new HashMap<ObjectId, Entry>();
+    // unlocked commands by visibleNextAt and locked commands by lease expiration, so claiming is
+    // O(log n) per command, slots are invalidated lazily (e.g. when a command is locked by id or
+    // its lease is renewed) and are discarded once they reach the head of their heap
+    private final List<PriorityQueue<Slot>> visibleLanes = new ArrayList<PriorityQueue<Slot>>();
+    private final PriorityQueue<Slot> leases = new PriorityQueue<Slot>(11, new SlotComparator());
+    private final Map<String, Set<Entry>> lockedByNode = new HashMap<String, Set<Entry>>();
+    // keyed commands (see KeyedCommand), by appId + "/" + key
+    private final Map<String, Entry> pendingByKey = new HashMap<String, Entry>();
+    private final Map<String, Entry> runningByKey = new HashMap<String, Entry>();
+    // keyed commands that are visible but blocked by their key's running copy are parked here
+    // (out of the visible heaps) until that copy is deleted or unlocked, otherwise they would
+    // fill every claim (and keep the sweeper awake) while hiding the commands behind them
+    private final Map<String, List<Entry>> parkedByKey = new HashMap<String, List<Entry>>();
+    // breaks ties between slots with the same time so that commands are served in fifo order
+    private long nextSlotSequence;
+
+    public InMemoryQueuedCommandStore() {
+        for (int i = 0; i < LANES.length; i++) {
+            visibleLanes.add(new PriorityQueue<Slot>(11, new SlotComparator()));
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    QueuedCommand get(ObjectId id) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(id);
+            return entry == null ? null : entry.toQueuedCommand();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void insertLocked(ObjectId id, Command command, String appId, String nodeId,
+            long leaseExpiresAt) {
+
+        Entry entry = new Entry(id, command, appId, getPriority(command));
+        lock.lock();
+        try {
+            entries.put(entry.id, entry);
+            lockEntry(entry, nodeId, leaseExpiresAt);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void insertVisible(ObjectId id, Command command, String appId, int nFailures,
+            long visibleNextAt) {
+
+        Entry entry = new Entry(id, command, appId, getPriority(command));
+        entry.nFailures = nFailures;
+        lock.lock();
+        try {
+            entries.put(entry.id, entry);
+            makeVisible(entry, visibleNextAt);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    List<QueuedCommand> readAll() {
+        lock.lock();
+        try {
+            List<QueuedCommand> queuedCommands = new ArrayList<QueuedCommand>(entries.size());
+            for (Entry entry : entries.values()) {
+                queuedCommands.add(entry.toQueuedCommand());
+            }
+            return queuedCommands;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // see QueuedCommandDao.lockAndInsertOrCoalesce(), returns the copy that the command was
+    // inserted as (locked, or pending if a copy with the same key is locked) or coalesced into,
+    // or null if the command was dropped in favor of the pending copy
+    QueuedCommand lockAndInsertOrCoalesce(ObjectId id, KeyedCommand command, String appId,
+            String nodeId, long currentTimeMillis, long leaseExpiresAt) {
+
+        Entry entry = new Entry(id, command, appId, getPriority(command));
+        lock.lock();
+        try {
+            Entry pending = pendingByKey.get(entry.key);
+            if (pending != null) {
+                if (!(command instanceof CoalescingCommand)) {
+                    return null;
+                }
+                pending.command = ((CoalescingCommand) command)
+                        .coalesce((CoalescingCommand) pending.command);
+                return pending.toQueuedCommand();
+            }
+            entries.put(entry.id, entry);
+            if (runningByKey.containsKey(entry.key)) {
+                // parked until the running copy is done, see makeVisible()
+                entry.pending = true;
+                pendingByKey.put(entry.key, entry);
+                makeVisible(entry, currentTimeMillis);
+            } else {
+                markRunning(entry);
+                lockEntry(entry, nodeId, leaseExpiresAt);
+            }
+            return entry.toQueuedCommand();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // returns false if the entry is no longer locked by the given node, i.e. its lease was lost
+    // (and the entry may have since been taken over by another node), the same as for
+    // reschedule() and scheduleNextRun()
+    boolean delete(ObjectId id, String nodeId) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(id);
+            if (entry == null || !nodeId.equals(entry.lockedByNodeId)) {
+                return false;
+            }
+            entries.remove(id);
+            unlockEntry(entry);
+            unmarkRunning(entry);
+            if (entry.pending) {
+                pendingByKey.remove(entry.key);
+            }
+            // invalidate any visible slot
+            entry.visibleSlot = null;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean reschedule(ObjectId id, String nodeId, long visibleNextAt) {
+        return reschedule(id, nodeId, visibleNextAt, true);
+    }
+
+    // unlike reschedule(), the number of failures is reset
+    boolean scheduleNextRun(ObjectId id, String nodeId, long visibleNextAt) {
+        return reschedule(id, nodeId, visibleNextAt, false);
+    }
+
+    boolean lock(ObjectId id, String nodeId, long currentTimeMillis, long leaseExpiresAt) {
+        lock.lock();
+        try {
+            Entry entry = entries.get(id);
+            if (entry == null || entry.lockedByNodeId != null
+                    || entry.visibleNextAt > currentTimeMillis || isBlocked(entry)) {
+                return false;
+            }
+            // the visible slot is discarded lazily
+            entry.visibleSlot = null;
+            entry.visibleNextAt = 0;
+            markRunning(entry);
+            lockEntry(entry, nodeId, leaseExpiresAt);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // quotas are indexed by Priority.ordinal(), slots that a lane cannot fill are given to the
+    // other lanes in priority order
+    List<QueuedCommand> readVisible(int[] quotas, int limit, long currentTimeMillis) {
+        lock.lock();
+        try {
+            List<Slot> slots = pollVisible(quotas, limit, currentTimeMillis);
+            List<QueuedCommand> visible = new ArrayList<QueuedCommand>(slots.size());
+            for (Slot slot : slots) {
+                visible.add(slot.entry.toQueuedCommand());
+                // put it back since it is only being read
+                visibleLanes.get(slot.entry.priority.ordinal()).add(slot);
+            }
+            return visible;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // keyed commands whose key has a running copy are parked instead of claimed, the same as in
+    // MongoQueuedCommandDao where they lose the claim to the running copy's runningKey
+    List<QueuedCommand> claimVisible(int[] quotas, int limit, String nodeId,
+            long currentTimeMillis, long leaseExpiresAt) {
+
+        lock.lock();
+        try {
+            List<QueuedCommand> claimed = new ArrayList<QueuedCommand>();
+            List<Slot> slots = pollVisible(quotas, limit, currentTimeMillis);
+            while (!slots.isEmpty()) {
+                boolean parked = false;
+                for (Slot slot : slots) {
+                    if (isBlocked(slot.entry)) {
+                        park(slot.entry);
+                        parked = true;
+                        continue;
+                    }
+                    slot.entry.visibleSlot = null;
+                    markRunning(slot.entry);
+                    lockEntry(slot.entry, nodeId, leaseExpiresAt);
+                    claimed.add(slot.entry.toQueuedCommand());
+                }
+                if (!parked || claimed.size() == limit) {
+                    break;
+                }
+                // the slots taken up by the parked commands are filled from the commands behind
+                // them, in lane priority order
+                slots = pollVisible(new int[LANES.length], limit - claimed.size(),
+                        currentTimeMillis);
+            }
+            return claimed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    List<QueuedCommand> claimExpiredLeases(int limit, String nodeId, long currentTimeMillis,
+            long leaseExpiresAt) {
+
+        lock.lock();
+        try {
+            List<Entry> expired = new ArrayList<Entry>();
+            while (expired.size() < limit && !leases.isEmpty()
+                    && leases.peek().time < currentTimeMillis) {
+                Slot slot = leases.poll();
+                if (slot.entry.leaseSlot == slot) {
+                    expired.add(slot.entry);
+                }
+            }
+            List<QueuedCommand> claimed = new ArrayList<QueuedCommand>(expired.size());
+            for (Entry entry : expired) {
+                // the entry stays the running copy for its key (if it is one), under a new owner
+                unlockEntry(entry);
+                lockEntry(entry, nodeId, leaseExpiresAt);
+                claimed.add(entry.toQueuedCommand());
+            }
+            return claimed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    List<ObjectId> readIdsLockedBy(String failedNodeId, ObjectId afterId, int limit) {
+        lock.lock();
+        try {
+            List<ObjectId> ids = new ArrayList<ObjectId>();
+            Set<Entry> locked = lockedByNode.get(failedNodeId);
+            if (locked == null) {
+                return ids;
+            }
+            for (Entry entry : locked) {
+                if (afterId == null || entry.id.compareTo(afterId) > 0) {
+                    ids.add(entry.id);
+                }
+            }
+            Collections.sort(ids);
+            return ids.subList(0, Math.min(limit, ids.size()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the same as MongoQueuedCommandDao, entries whose leases are still being renewed are left
+    List<QueuedCommand> claimLockedBy(String failedNodeId, List<ObjectId> ids, String nodeId,
+            long currentTimeMillis, long leaseExpiresAt) {
+
+        lock.lock();
+        try {
+            List<QueuedCommand> claimed = new ArrayList<QueuedCommand>();
+            for (ObjectId id : ids) {
+                Entry entry = entries.get(id);
+                if (entry != null && failedNodeId.equals(entry.lockedByNodeId)
+                        && entry.leaseExpiresAt < currentTimeMillis) {
+                    unlockEntry(entry);
+                    lockEntry(entry, nodeId, leaseExpiresAt);
+                    claimed.add(entry.toQueuedCommand());
+                }
+            }
+            return claimed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void renewLeases(String nodeId, long leaseExpiresAt) {
+        lock.lock();
+        try {
+            Set<Entry> locked = lockedByNode.get(nodeId);
+            if (locked == null) {
+                return;
+            }
+            for (Entry entry : locked) {
+                entry.leaseExpiresAt = leaseExpiresAt;
+                // the previous lease slot is discarded lazily
+                entry.leaseSlot = newSlot(entry, leaseExpiresAt);
+                leases.add(entry.leaseSlot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    List<QueuedCommand> readLockedBy(String nodeId, int limit) {
+        lock.lock();
+        try {
+            List<QueuedCommand> queuedCommands = new ArrayList<QueuedCommand>();
+            Set<Entry> locked = lockedByNode.get(nodeId);
+            if (locked == null) {
+                return queuedCommands;
+            }
+            for (Entry entry : locked) {
+                if (queuedCommands.size() == limit) {
+                    break;
+                }
+                queuedCommands.add(entry.toQueuedCommand());
+            }
+            return queuedCommands;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // returns -1 if there are no unlocked commands
+    long millisUntilNextVisible(long currentTimeMillis) {
+        lock.lock();
+        try {
+            long nextVisibleAt = Long.MAX_VALUE;
+            for (PriorityQueue<Slot> visibleLane : visibleLanes) {
+                Slot head = peekValid(visibleLane);
+                if (head != null) {
+                    nextVisibleAt = Math.min(nextVisibleAt, head.time);
+                }
+            }
+            if (nextVisibleAt == Long.MAX_VALUE) {
+                return -1;
+            }
+            return Math.max(nextVisibleAt - currentTimeMillis, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // this scans the whole heap of each lane, so it is only meant to be sampled occasionally
+    int countVisible(long currentTimeMillis) {
+        lock.lock();
+        try {
+            int count = 0;
+            for (PriorityQueue<Slot> visibleLane : visibleLanes) {
+                for (Slot slot : visibleLane) {
+                    // stale slots are left in the heap until they reach the head
+                    if (slot.entry.visibleSlot == slot && slot.time <= currentTimeMillis) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called while holding lock
+    private List<Slot> pollVisible(int[] quotas, int limit, long currentTimeMillis) {
+        List<Slot> slots = new ArrayList<Slot>();
+        for (Priority lane : LANES) {
+            pollVisible(lane, quotas[lane.ordinal()], currentTimeMillis, slots);
+        }
+        for (Priority lane : LANES) {
+            if (slots.size() == limit) {
+                break;
+            }
+            pollVisible(lane, limit - slots.size(), currentTimeMillis, slots);
+        }
+        return slots;
+    }
+
+    // must be called while holding lock
+    private void pollVisible(Priority lane, int max, long currentTimeMillis, List<Slot> slots) {
+        PriorityQueue<Slot> visibleLane = visibleLanes.get(lane.ordinal());
+        for (int i = 0; i < max; i++) {
+            Slot head = peekValid(visibleLane);
+            if (head == null || head.time > currentTimeMillis) {
+                return;
+            }
+            slots.add(visibleLane.poll());
+        }
+    }
+
+    // must be called while holding lock
+    private Slot peekValid(PriorityQueue<Slot> visibleLane) {
+        Slot head = visibleLane.peek();
+        while (head != null && head.entry.visibleSlot != head) {
+            visibleLane.poll();
+            head = visibleLane.peek();
+        }
+        return head;
+    }
+
+    // must be called while holding lock
+    private void lockEntry(Entry entry, String nodeId, long leaseExpiresAt) {
+        // visibleNextAt is kept so that a command that is claimed before it is due (see
+        // QueuedCommandDao.claimUpcoming()) is still not run early by a node that takes it over
+        entry.lockedByNodeId = nodeId;
+        if (entry.pending) {
+            entry.pending = false;
+            pendingByKey.remove(entry.key);
+        }
+        entry.leaseExpiresAt = leaseExpiresAt;
+        entry.leaseSlot = newSlot(entry, leaseExpiresAt);
+        leases.add(entry.leaseSlot);
+        Set<Entry> locked = lockedByNode.get(nodeId);
+        if (locked == null) {
+            locked = new HashSet<Entry>();
+            lockedByNode.put(nodeId, locked);
+        }
+        locked.add(entry);
+    }
+
+    private boolean reschedule(ObjectId id, String nodeId, long visibleNextAt,
+            boolean failure) {
+
+        lock.lock();
+        try {
+            Entry entry = entries.get(id);
+            if (entry == null || !nodeId.equals(entry.lockedByNodeId)) {
+                return false;
+            }
+            unlockEntry(entry);
+            unmarkRunning(entry);
+            if (failure) {
+                entry.nFailures++;
+            } else {
+                entry.nFailures = 0;
+            }
+            makeVisible(entry, visibleNextAt);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called while holding lock
+    private void unlockEntry(Entry entry) {
+        if (entry.lockedByNodeId == null) {
+            return;
+        }
+        Set<Entry> locked = lockedByNode.get(entry.lockedByNodeId);
+        locked.remove(entry);
+        if (locked.isEmpty()) {
+            lockedByNode.remove(entry.lockedByNodeId);
+        }
+        entry.lockedByNodeId = null;
+        entry.leaseExpiresAt = 0;
+        // the lease slot is discarded lazily
+        entry.leaseSlot = null;
+    }
+
+    // must be called while holding lock, returns true if the entry is a keyed command that can't
+    // run yet because another copy with the same key is running
+    private boolean isBlocked(Entry entry) {
+        if (entry.key == null) {
+            return false;
+        }
+        Entry running = runningByKey.get(entry.key);
+        return running != null && running != entry;
+    }
+
+    // must be called while holding lock, and only after checking isBlocked()
+    private void markRunning(Entry entry) {
+        if (entry.key != null) {
+            runningByKey.put(entry.key, entry);
+        }
+    }
+
+    // must be called while holding lock, the copies parked behind the entry are made visible
+    // again to compete for the key
+    private void unmarkRunning(Entry entry) {
+        if (entry.key != null && runningByKey.get(entry.key) == entry) {
+            runningByKey.remove(entry.key);
+            List<Entry> parked = parkedByKey.remove(entry.key);
+            if (parked != null) {
+                for (Entry parkedEntry : parked) {
+                    makeVisible(parkedEntry, parkedEntry.visibleNextAt);
+                }
+            }
+        }
+    }
+
+    // must be called while holding lock
+    private void makeVisible(Entry entry, long visibleNextAt) {
+        entry.visibleNextAt = visibleNextAt;
+        if (isBlocked(entry)) {
+            park(entry);
+            return;
+        }
+        entry.visibleSlot = newSlot(entry, visibleNextAt);
+        visibleLanes.get(entry.priority.ordinal()).add(entry.visibleSlot);
+    }
+
+    // must be called while holding lock, visibleNextAt is kept so that the entry becomes visible
+    // at the same time once it is unparked (and so that compaction sees the right value)
+    private void park(Entry entry) {
+        entry.visibleSlot = null;
+        List<Entry> parked = parkedByKey.get(entry.key);
+        if (parked == null) {
+            parked = new ArrayList<Entry>();
+            parkedByKey.put(entry.key, parked);
+        }
+        parked.add(entry);
+    }
+
+    // must be called while holding lock
+    private Slot newSlot(Entry entry, long time) {
+        return new Slot(entry, time, nextSlotSequence++);
+    }
+
+    private static Priority getPriority(Command command) {
+        if (command instanceof PrioritizedCommand) {
+            return ((PrioritizedCommand) command).priority();
+        } else {
+            return Priority.Normal;
+        }
+    }
+
+    private static class Entry {
+        private final ObjectId id;
+        // replaced when another copy is coalesced into this one
+        private Command command;
+        private final String appId;
+        private final Priority priority;
+        // appId + "/" + key, null unless the command is a KeyedCommand
+        private final String key;
+        // true while this is the pending copy for its key
+        private boolean pending;
+        private String lockedByNodeId;
+        private int nFailures;
+        private long visibleNextAt;
+        private long leaseExpiresAt;
+        // the slots that are currently valid for this entry, null if none
+        private Slot visibleSlot;
+        private Slot leaseSlot;
+        private Entry(ObjectId id, Command command, String appId, Priority priority) {
+            this.id = id;
+            this.command = command;
+            this.appId = appId;
+            this.priority = priority;
+            if (command instanceof KeyedCommand) {
+                key = appId + "/" + ((KeyedCommand) command).key();
+            } else {
+                key = null;
+            }
+        }
+        private QueuedCommand toQueuedCommand() {
+            QueuedCommand queuedCommand = new QueuedCommand();
+            queuedCommand.setId(id);
+            queuedCommand.setCommand(command);
+            queuedCommand.setAppId(appId);
+            queuedCommand.setLockedByNodeId(lockedByNodeId);
+            queuedCommand.setNFailures(nFailures);
+            queuedCommand.setPriority(priority.getValue());
+            queuedCommand.setVisibleNextAt(visibleNextAt);
+            queuedCommand.setLeaseExpiresAt(leaseExpiresAt);
+            if (key != null) {
+                queuedCommand.setKey(((KeyedCommand) command).key());
+                if (pending) {
+                    queuedCommand.setPendingKey(key);
+                }
+            }
+            return queuedCommand;
+        }
+    }
+
+    private static class Slot {
+        private final Entry entry;
+        private final long time;
+        private final long sequence;
+        private Slot(Entry entry, long time, long sequence) {
+            this.entry = entry;
+            this.time = time;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class SlotComparator implements Comparator<Slot> {
+        public int compare(Slot slot1, Slot slot2) {
+            if (slot1.time != slot2.time) {
+                return slot1.time < slot2.time ? -1 : 1;
+            }
+            if (slot1.sequence != slot2.sequence) {
+                return slot1.sequence < slot2.sequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
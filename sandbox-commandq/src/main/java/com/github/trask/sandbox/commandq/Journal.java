@@ -0,0 +1,288 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Segmented, memory-mapped, append-only log of opaque records. Appends are made durable separately
+ * via {@link #awaitDurable(long)}.
+ * 
+ * @author Trask Stalnaker
+ */
+class Journal {
+
+    private static final Logger logger = LoggerFactory.getLogger(Journal.class);
+
+    private static final String SEGMENT_FILE_PREFIX = "journal-";
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+    // record length and crc32, segments are preallocated (and so zero filled) so a zero length
+    // marks the end of a segment, and a crc mismatch marks a record torn by a crash
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File directory;
+    private final int segmentSize;
+
+    // all guarded by this
+    // oldest first, only the last one is appended to
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private MappedByteBuffer activeBuffer;
+    private long nextSegmentNumber;
+
+    // all guarded by flushLock
+    private final Object flushLock = new Object();
+    private long durablePosition;
+    private boolean flushing;
+    // waiters compare this before and after waiting to know if a flush failed in the meantime
+    private long failedFlushCount;
+    private Throwable lastFlushFailure;
+
+    Journal(File directory, int segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IllegalStateException("Journal directory does not exist: " + directory);
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                long number = Long.parseLong(name.substring(SEGMENT_FILE_PREFIX.length(),
+                        name.length() - SEGMENT_FILE_SUFFIX.length()));
+                segments.add(new Segment(number, file));
+                nextSegmentNumber = Math.max(nextSegmentNumber, number + 1);
+            }
+        }
+        Collections.sort(segments, new SegmentComparator());
+    }
+
+    // replays the records of the segments that existed when this journal was opened
+    synchronized void replay(RecordHandler recordHandler) throws IOException {
+        for (Segment segment : segments) {
+            RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+            try {
+                MappedByteBuffer buffer = file.getChannel().map(MapMode.READ_ONLY, 0,
+                        file.length());
+                replay(segment, buffer, recordHandler);
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    // returns the position to pass to awaitDurable()
+    synchronized long append(byte[] record) throws IOException {
+        int size = RECORD_HEADER_SIZE + record.length;
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("Record of " + record.length
+                    + " bytes does not fit in a journal segment of " + segmentSize + " bytes");
+        }
+        if (activeBuffer == null || activeBuffer.remaining() < size) {
+            roll();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        activeBuffer.putInt(record.length);
+        activeBuffer.putInt((int) crc.getValue());
+        activeBuffer.put(record);
+        return getPosition();
+    }
+
+    // blocks until the record at the given position (and every record before it) has been forced
+    // to disk, using group commit: the first waiter forces the segment for every record appended
+    // so far, and waiters that arrive during the force wait for the next one
+    void awaitDurable(long position) {
+        synchronized (flushLock) {
+            long initialFailedFlushCount = failedFlushCount;
+            while (durablePosition < position) {
+                if (failedFlushCount != initialFailedFlushCount) {
+                    throw new IllegalStateException("Journal flush failed", lastFlushFailure);
+                }
+                if (!flushing) {
+                    flushing = true;
+                    break;
+                }
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for journal"
+                            + " flush", e);
+                }
+            }
+            if (durablePosition >= position) {
+                return;
+            }
+        }
+        // this thread is the flush leader
+        long flushPosition;
+        try {
+            MappedByteBuffer buffer;
+            synchronized (this) {
+                // older segments were forced when they were rolled
+                buffer = activeBuffer;
+                flushPosition = getPosition();
+            }
+            force(buffer);
+        } catch (RuntimeException e) {
+            flushFailed(e);
+            throw e;
+        } catch (Error e) {
+            flushFailed(e);
+            throw e;
+        }
+        synchronized (flushLock) {
+            durablePosition = Math.max(durablePosition, flushPosition);
+            flushing = false;
+            flushLock.notifyAll();
+        }
+    }
+
+    // overridden in tests
+    void force(MappedByteBuffer buffer) {
+        buffer.force();
+    }
+
+    // replaces all existing segments with new segments containing only the given records, the
+    // existing segments are deleted only after the new ones are durable, so a crash in between
+    // replays both (the caller's records must be idempotent for this)
+    synchronized void rewrite(List<byte[]> records) throws IOException {
+        List<Segment> oldSegments = new ArrayList<Segment>(segments);
+        roll();
+        for (byte[] record : records) {
+            append(record);
+        }
+        activeBuffer.force();
+        for (Segment segment : oldSegments) {
+            if (!segment.file.delete()) {
+                logger.error("rewrite(): could not delete journal segment {}", segment.file);
+            }
+        }
+        segments.removeAll(oldSegments);
+        long position = getPosition();
+        synchronized (flushLock) {
+            durablePosition = Math.max(durablePosition, position);
+        }
+    }
+
+    synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    synchronized void close() {
+        if (activeBuffer != null) {
+            activeBuffer.force();
+            activeBuffer = null;
+        }
+    }
+
+    // fails every waiter whose record is not yet durable, instead of having each of them retry
+    // the force that just failed
+    private void flushFailed(Throwable t) {
+        synchronized (flushLock) {
+            failedFlushCount++;
+            lastFlushFailure = t;
+            flushing = false;
+            flushLock.notifyAll();
+        }
+    }
+
+    // must be called while holding this
+    private void roll() throws IOException {
+        if (activeBuffer != null) {
+            activeBuffer.force();
+        }
+        long number = nextSegmentNumber++;
+        File file = new File(directory, SEGMENT_FILE_PREFIX + number + SEGMENT_FILE_SUFFIX);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            // the mapping remains valid after the file is closed
+            activeBuffer = channel.map(MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            randomAccessFile.close();
+        }
+        segments.add(new Segment(number, file));
+    }
+
+    // positions increase monotonically across segments
+    // must be called while holding this
+    private long getPosition() {
+        return (segments.get(segments.size() - 1).number << 32) | activeBuffer.position();
+    }
+
+    private static void replay(Segment segment, ByteBuffer buffer, RecordHandler recordHandler) {
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt();
+            if (length == 0) {
+                // end of segment
+                return;
+            }
+            int checksum = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                logger.warn("replay(): torn record at offset {} of {}", buffer.position()
+                        - RECORD_HEADER_SIZE, segment.file);
+                return;
+            }
+            byte[] record = new byte[length];
+            buffer.get(record);
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) {
+                logger.warn("replay(): torn record at offset {} of {}", buffer.position()
+                        - RECORD_HEADER_SIZE - length, segment.file);
+                return;
+            }
+            recordHandler.handle(record);
+        }
+    }
+
+    interface RecordHandler {
+        void handle(byte[] record);
+    }
+
+    private static class Segment {
+        private final long number;
+        private final File file;
+        private Segment(long number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+    }
+
+    private static class SegmentComparator implements Comparator<Segment> {
+        public int compare(Segment segment1, Segment segment2) {
+            if (segment1.number != segment2.number) {
+                return segment1.number < segment2.number ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
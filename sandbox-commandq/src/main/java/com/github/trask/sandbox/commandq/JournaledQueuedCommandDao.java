@@ -0,0 +1,467 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.trask.sandbox.clock.Clock;
+
+/**
+ * Keeps queued commands in memory, backed by a local memory-mapped journal so that they survive
+ * restarts of the (single) node without needing mongo.
+ * 
+ * @author Trask Stalnaker
+ */
+public class JournaledQueuedCommandDao implements QueuedCommandDao {
+
+    private static final Logger logger = LoggerFactory.getLogger(JournaledQueuedCommandDao.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 4;
+
+    private static final byte INSERT = 1;
+    private static final byte RESCHEDULE = 2;
+    private static final byte DELETE = 3;
+    private static final byte SCHEDULE_NEXT_RUN = 4;
+    // ObjectId is always 12 bytes
+    private static final int ID_SIZE = 12;
+
+    private final String nodeId;
+    private final String appId;
+    private final Clock clock;
+    private final long leaseDurationMillis;
+    private final int maxSegments;
+    private final InMemoryQueuedCommandStore store = new InMemoryQueuedCommandStore();
+    private final PriorityLaneScheduler priorityLaneScheduler = new PriorityLaneScheduler();
+    private final CommandSerializer commandSerializer;
+    private final Journal journal;
+    // the read lock is held while a record is appended and applied to the store, so that
+    // compaction (which holds the write lock) sees a store that matches the journal
+    private final ReadWriteLock compactionLock = new ReentrantReadWriteLock();
+
+    public JournaledQueuedCommandDao(String nodeId, String appId, Clock clock, File directory)
+            throws IOException {
+
+        this(nodeId, appId, clock, directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS,
+                DEFAULT_LEASE_DURATION_MILLIS);
+    }
+
+    public JournaledQueuedCommandDao(String nodeId, String appId, Clock clock, File directory,
+            int segmentSize, int maxSegments, long leaseDurationMillis) throws IOException {
+
+        this(nodeId, appId, clock, directory, segmentSize, maxSegments, leaseDurationMillis,
+                new CommandCodecRegistry());
+    }
+
+    public JournaledQueuedCommandDao(String nodeId, String appId, Clock clock, File directory,
+            int segmentSize, int maxSegments, long leaseDurationMillis,
+            CommandCodecRegistry commandCodecRegistry) throws IOException {
+
+        this.nodeId = nodeId;
+        this.appId = appId;
+        this.clock = clock;
+        this.leaseDurationMillis = leaseDurationMillis;
+        this.maxSegments = maxSegments;
+        commandSerializer = new CommandSerializer(commandCodecRegistry);
+        journal = new Journal(directory, segmentSize);
+        recover();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getLeaseDurationMillis() {
+        return leaseDurationMillis;
+    }
+
+    public ObjectId lockAndInsert(Command command) {
+        ObjectId id = new ObjectId();
+        byte[] record = newInsertRecord(id, command, 0, 0);
+        long position;
+        compactionLock.readLock().lock();
+        try {
+            position = append(record);
+            store.insertLocked(id, command, appId, nodeId,
+                    clock.currentTimeMillis() + leaseDurationMillis);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        journal.awaitDurable(position);
+        compactIfNeeded();
+        return id;
+    }
+
+    // the store decides what happens to the command, and the outcome is then journaled as an
+    // insert (of the new copy, or of the coalesced copy which replaces the original on replay)
+    public ObjectId lockAndInsertOrCoalesce(KeyedCommand command) {
+        ObjectId id = new ObjectId();
+        QueuedCommand queuedCommand;
+        long position;
+        compactionLock.readLock().lock();
+        try {
+            long currentTimeMillis = clock.currentTimeMillis();
+            queuedCommand = store.lockAndInsertOrCoalesce(id, command, appId, nodeId,
+                    currentTimeMillis, currentTimeMillis + leaseDurationMillis);
+            if (queuedCommand == null) {
+                // dropped in favor of the pending copy
+                return null;
+            }
+            position = append(newInsertRecord(queuedCommand.getId(), queuedCommand.getCommand(),
+                    queuedCommand.getNFailures(), queuedCommand.getVisibleNextAt()));
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        journal.awaitDurable(position);
+        compactIfNeeded();
+        if (!nodeId.equals(queuedCommand.getLockedByNodeId())) {
+            return null;
+        }
+        return id;
+    }
+
+    public ObjectId insertScheduled(Command command, long runAtMillis) {
+        ObjectId id = new ObjectId();
+        byte[] record = newInsertRecord(id, command, 0, runAtMillis);
+        long position;
+        compactionLock.readLock().lock();
+        try {
+            position = append(record);
+            store.insertVisible(id, command, appId, 0, runAtMillis);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        journal.awaitDurable(position);
+        compactIfNeeded();
+        return id;
+    }
+
+    public ObjectId insertForRetry(Command command, long delayMillis) {
+        ObjectId id = new ObjectId();
+        long visibleNextAt = clock.currentTimeMillis() + delayMillis;
+        byte[] record = newInsertRecord(id, command, 1, visibleNextAt);
+        long position;
+        compactionLock.readLock().lock();
+        try {
+            position = append(record);
+            store.insertVisible(id, command, appId, 1, visibleNextAt);
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        journal.awaitDurable(position);
+        compactIfNeeded();
+        return id;
+    }
+
+    // the whole batch shares a single force
+    public List<ObjectId> lockAndInsertAll(List<Command> commands) {
+        List<ObjectId> ids = new ArrayList<ObjectId>(commands.size());
+        List<byte[]> records = new ArrayList<byte[]>(commands.size());
+        for (Command command : commands) {
+            ObjectId id = new ObjectId();
+            ids.add(id);
+            records.add(newInsertRecord(id, command, 0, 0));
+        }
+        long position = 0;
+        long leaseExpiresAt = clock.currentTimeMillis() + leaseDurationMillis;
+        compactionLock.readLock().lock();
+        try {
+            for (int i = 0; i < commands.size(); i++) {
+                position = append(records.get(i));
+                store.insertLocked(ids.get(i), commands.get(i), appId, nodeId, leaseExpiresAt);
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        journal.awaitDurable(position);
+        compactIfNeeded();
+        return ids;
+    }
+
+    public List<ObjectId> insertAll(List<Command> commands) {
+        List<ObjectId> ids = new ArrayList<ObjectId>(commands.size());
+        List<byte[]> records = new ArrayList<byte[]>(commands.size());
+        long visibleNextAt = clock.currentTimeMillis();
+        for (Command command : commands) {
+            ObjectId id = new ObjectId();
+            ids.add(id);
+            records.add(newInsertRecord(id, command, 0, visibleNextAt));
+        }
+        long position = 0;
+        compactionLock.readLock().lock();
+        try {
+            for (int i = 0; i < commands.size(); i++) {
+                position = append(records.get(i));
+                store.insertVisible(ids.get(i), commands.get(i), appId, 0, visibleNextAt);
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        // the records are appended in order, so the last one being durable covers them all
+        journal.awaitDurable(position);
+        compactIfNeeded();
+        return ids;
+    }
+
+    // reschedules and deletes don't wait for the journal to be forced, since losing one in a
+    // crash only means the command is retried again, the same as with unacknowledged mongo updates
+    public void delete(ObjectId id) {
+        compactionLock.readLock().lock();
+        try {
+            // only journaled if it is applied, since a lost lease means the command is (or
+            // will be) run again by whichever node takes it over
+            if (store.delete(id, nodeId)) {
+                append(newRecord(DELETE, id, 0).array());
+            } else {
+                logger.warn("delete(): lost the lease on id {}", id);
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        compactIfNeeded();
+    }
+
+    public void deleteAll(List<ObjectId> ids) {
+        for (ObjectId id : ids) {
+            delete(id);
+        }
+    }
+
+    public void rescheduleOnFailure(ObjectId id, long delayMillis) {
+        long visibleNextAt = clock.currentTimeMillis() + delayMillis;
+        ByteBuffer record = newRecord(RESCHEDULE, id, 8);
+        record.putLong(visibleNextAt);
+        compactionLock.readLock().lock();
+        try {
+            if (store.reschedule(id, nodeId, visibleNextAt)) {
+                append(record.array());
+            } else {
+                logger.warn("rescheduleOnFailure(): lost the lease on id {}", id);
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        compactIfNeeded();
+    }
+
+    public void scheduleNextRun(ObjectId id, long runAtMillis) {
+        ByteBuffer record = newRecord(SCHEDULE_NEXT_RUN, id, 8);
+        record.putLong(runAtMillis);
+        compactionLock.readLock().lock();
+        try {
+            if (store.scheduleNextRun(id, nodeId, runAtMillis)) {
+                append(record.array());
+            } else {
+                logger.warn("scheduleNextRun(): lost the lease on id {}", id);
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        compactIfNeeded();
+    }
+
+    public List<QueuedCommand> readVisible(int limit) {
+        return store.readVisible(priorityLaneScheduler.allocate(limit), limit,
+                clock.currentTimeMillis());
+    }
+
+    public long readMillisUntilNextVisible() {
+        return store.millisUntilNextVisible(clock.currentTimeMillis());
+    }
+
+    public long countVisible() {
+        return store.countVisible(clock.currentTimeMillis());
+    }
+
+    public List<QueuedCommand> claimVisible(int limit) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        return store.claimVisible(priorityLaneScheduler.allocate(limit), limit, nodeId,
+                currentTimeMillis, currentTimeMillis + leaseDurationMillis);
+    }
+
+    public List<QueuedCommand> claimUpcoming(long horizonMillis, int limit) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        return store.claimVisible(priorityLaneScheduler.allocate(limit), limit, nodeId,
+                currentTimeMillis + horizonMillis, currentTimeMillis + leaseDurationMillis);
+    }
+
+    public List<QueuedCommand> claimExpiredLeases(int limit) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        return store.claimExpiredLeases(limit, nodeId, currentTimeMillis,
+                currentTimeMillis + leaseDurationMillis);
+    }
+
+    public List<ObjectId> readIdsFromFailedNodeQueue(String failedNodeId, ObjectId afterId,
+            int limit) {
+
+        return store.readIdsLockedBy(failedNodeId, afterId, limit);
+    }
+
+    public List<QueuedCommand> claimFromFailedNode(String failedNodeId, List<ObjectId> ids) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        return store.claimLockedBy(failedNodeId, ids, nodeId, currentTimeMillis,
+                currentTimeMillis + leaseDurationMillis);
+    }
+
+    public void renewLeases() {
+        logger.trace("renewLeases()");
+        store.renewLeases(nodeId, clock.currentTimeMillis() + leaseDurationMillis);
+    }
+
+    public List<QueuedCommand> readFromFailedNodeQueue(String failedNodeId, int limit) {
+        return store.readLockedBy(failedNodeId, limit);
+    }
+
+    public void lock(ObjectId id) throws CouldNotLockForExecutionException {
+        long currentTimeMillis = clock.currentTimeMillis();
+        if (!store.lock(id, nodeId, currentTimeMillis, currentTimeMillis + leaseDurationMillis)) {
+            throw new CouldNotLockForExecutionException();
+        }
+    }
+
+    // rewrites the journal with one insert record per queued command
+    public void compact() {
+        compactionLock.writeLock().lock();
+        try {
+            List<QueuedCommand> queuedCommands = store.readAll();
+            logger.debug("compact(): {} queued commands", queuedCommands.size());
+            List<byte[]> records = new ArrayList<byte[]>(queuedCommands.size());
+            for (QueuedCommand queuedCommand : queuedCommands) {
+                records.add(newInsertRecord(queuedCommand.getId(), queuedCommand.getCommand(),
+                        queuedCommand.getNFailures(), queuedCommand.getVisibleNextAt()));
+            }
+            journal.rewrite(records);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            compactionLock.writeLock().unlock();
+        }
+    }
+
+    public void close() {
+        journal.close();
+    }
+
+    // locks are not journaled, since the only node that can hold them is the one recovering, so
+    // every command is recovered unlocked
+    private void recover() throws IOException {
+        final Map<ObjectId, RecoveredCommand> recoveredCommands =
+                new LinkedHashMap<ObjectId, RecoveredCommand>();
+        journal.replay(new Journal.RecordHandler() {
+            public void handle(byte[] record) {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                byte type = buffer.get();
+                byte[] idBytes = new byte[ID_SIZE];
+                buffer.get(idBytes);
+                ObjectId id = new ObjectId(idBytes);
+                if (type == INSERT) {
+                    // compaction may leave both the original insert and a compacted copy, in
+                    // which case the latter wins
+                    RecoveredCommand recoveredCommand = new RecoveredCommand();
+                    recoveredCommand.nFailures = buffer.getInt();
+                    recoveredCommand.visibleNextAt = buffer.getLong();
+                    recoveredCommand.commandBytes = new byte[buffer.remaining()];
+                    buffer.get(recoveredCommand.commandBytes);
+                    recoveredCommands.put(id, recoveredCommand);
+                } else if (type == RESCHEDULE) {
+                    RecoveredCommand recoveredCommand = recoveredCommands.get(id);
+                    if (recoveredCommand != null) {
+                        recoveredCommand.nFailures++;
+                        recoveredCommand.visibleNextAt = buffer.getLong();
+                    }
+                } else if (type == SCHEDULE_NEXT_RUN) {
+                    RecoveredCommand recoveredCommand = recoveredCommands.get(id);
+                    if (recoveredCommand != null) {
+                        recoveredCommand.nFailures = 0;
+                        recoveredCommand.visibleNextAt = buffer.getLong();
+                    }
+                } else if (type == DELETE) {
+                    recoveredCommands.remove(id);
+                } else {
+                    logger.error("recover(): unexpected record type {}", type);
+                }
+            }
+        });
+        logger.debug("recover(): {} queued commands", recoveredCommands.size());
+        for (Map.Entry<ObjectId, RecoveredCommand> entry : recoveredCommands.entrySet()) {
+            RecoveredCommand recoveredCommand = entry.getValue();
+            Command command = commandSerializer.deserialize(recoveredCommand.commandBytes);
+            // commands that were locked when the node stopped are visible right away (or when
+            // they are due, for scheduled commands that were claimed ahead of time)
+            store.insertVisible(entry.getKey(), command, appId, recoveredCommand.nFailures,
+                    recoveredCommand.visibleNextAt);
+        }
+        compact();
+    }
+
+    private long append(byte[] record) {
+        try {
+            return journal.append(record);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (journal.getSegmentCount() > maxSegments) {
+            compactionLock.writeLock().lock();
+            try {
+                // another thread may have compacted in the meantime
+                if (journal.getSegmentCount() > maxSegments) {
+                    compact();
+                }
+            } finally {
+                compactionLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private byte[] newInsertRecord(ObjectId id, Command command, int nFailures,
+            long visibleNextAt) {
+
+        byte[] commandBytes = commandSerializer.serialize(command);
+        ByteBuffer record = newRecord(INSERT, id, 12 + commandBytes.length);
+        record.putInt(nFailures);
+        record.putLong(visibleNextAt);
+        record.put(commandBytes);
+        return record.array();
+    }
+
+    private static ByteBuffer newRecord(byte type, ObjectId id, int bodySize) {
+        ByteBuffer record = ByteBuffer.allocate(1 + ID_SIZE + bodySize);
+        record.put(type);
+        record.put(id.toByteArray());
+        return record;
+    }
+
+    private static class RecoveredCommand {
+        private int nFailures;
+        private long visibleNextAt;
+        private byte[] commandBytes;
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+/**
+ * Optional extension of {@link Command} for commands that only need to run once for any number of
+ * copies that are added before the command gets to run, e.g. "reindex user 42".
+ * 
+ * @author Trask Stalnaker
+ */
+public interface KeyedCommand extends Command {
+
+    // copies with the same key (and the same app id) are considered duplicates
+    //
+    // at most one copy per key is pending (inserted but not yet running), a copy added while
+    // another is pending is dropped (or merged into it, see CoalescingCommand), and a copy added
+    // while another is running becomes the pending copy, which isn't claimed until the running
+    // copy is deleted or unlocked
+    //
+    // at most one copy per key runs at a time, which is enforced by the datastore (a unique index
+    // in mongo) so it also holds across nodes, except for copies added asynchronously (see
+    // CommandQueueService.addAsync()) which are inserted already locked
+    String key();
+}
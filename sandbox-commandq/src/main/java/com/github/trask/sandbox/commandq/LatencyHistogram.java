@@ -0,0 +1,100 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of non-negative values with a fixed relative precision of 1/64, using the
+ * same log-linear bucketing as HdrHistogram.
+ * 
+ * @author Trask Stalnaker
+ */
+public class LatencyHistogram {
+
+    // values below 128 each get their own bucket
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 64 buckets for each power of two from 2^7 up to 2^62, which covers up to Long.MAX_VALUE
+    private static final int N_BUCKETS = LINEAR_BUCKETS + (63 - 7) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(N_BUCKETS);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    // negative values are recorded as 0
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(bucketIndex(value));
+        totalCount.incrementAndGet();
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // returns the highest value that is equivalent (within the precision) to the value at the
+    // given percentile (0 to 100), or 0 if nothing has been recorded
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+        long cumulative = 0;
+        for (int i = 0; i < N_BUCKETS; i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) {
+                // the bucket's upper bound can overshoot the actual max
+                return Math.min(highestEquivalentValue(i), max.get());
+            }
+        }
+        // counts recorded after totalCount was read
+        return max.get();
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        // the top SUB_BUCKET_BITS + 1 bits of the value, the first of which is always set
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return Math.min(LINEAR_BUCKETS + (exponent - 7) * SUB_BUCKETS + subBucket,
+                N_BUCKETS - 1);
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 7;
+        int subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowestValue = (long) (SUB_BUCKETS + subBucket) << shift;
+        return lowestValue + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.Set;
+
+/**
+ * Tracks which nodes (for a single app id) are alive, independently of the queue node heartbeats
+ * that are written to mongo.
+ * 
+ * @author Trask Stalnaker
+ */
+public interface Membership {
+
+    void addMembershipListener(MembershipListener membershipListener);
+
+    // includes this node
+    Set<String> getLiveNodeIds();
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.trask.sandbox.clock.Clock;
+import com.github.trask.sandbox.mongodb.BasicDao;
+import com.google.code.morphia.AdvancedDatastore;
+import com.google.code.morphia.DatastoreImpl;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateResults;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class MongoDeadLetterDao extends BasicDao implements DeadLetterDao {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoDeadLetterDao.class);
+
+    private final String appId;
+    private final Clock clock;
+    private final CommandCodecRegistry commandCodecRegistry;
+
+    public MongoDeadLetterDao(String appId, AdvancedDatastore datastore, Clock clock) {
+        this(appId, datastore, clock, new CommandCodecRegistry());
+    }
+
+    public MongoDeadLetterDao(String appId, AdvancedDatastore datastore, Clock clock,
+            CommandCodecRegistry commandCodecRegistry) {
+
+        super(datastore, DeadLetter.class);
+        this.appId = appId;
+        this.clock = clock;
+        this.commandCodecRegistry = commandCodecRegistry;
+        ((DatastoreImpl) getDatastore()).getMapper().addMappedClass(DeadLetter.class);
+        // creates the capped collection if it does not exist yet
+        getDatastore().ensureCaps();
+    }
+
+    public void insert(Command command, int nFailures, Throwable lastFailure) {
+        logger.trace("insert(): command={}", command);
+        DeadLetter deadLetter = new DeadLetter();
+        deadLetter.setAppId(appId);
+        byte[] commandBytes = commandCodecRegistry.encode(command);
+        if (commandBytes == null) {
+            deadLetter.setCommand(command);
+        } else {
+            deadLetter.setCommandBytes(commandBytes);
+        }
+        deadLetter.setCommandClassName(command.getClass().getName());
+        deadLetter.setNFailures(nFailures);
+        deadLetter.setLastFailure(lastFailure);
+        deadLetter.setDeadAt(clock.currentTimeMillis());
+        getDatastore().insert(deadLetter);
+    }
+
+    public List<DeadLetter> readDeadLetters(DeadLetterFilter filter, ObjectId afterId,
+            int limit) {
+
+        logger.trace("readDeadLetters(): afterId={}", afterId);
+        Query<DeadLetter> query = getDatastore().createQuery(DeadLetter.class)
+                .filter("appId =", appId)
+                .filter("replayedAt =", 0L);
+        if (filter.getCommandClassName() != null) {
+            query.filter("commandClassName =", filter.getCommandClassName());
+        }
+        if (filter.getDeadFromMillis() != 0) {
+            query.filter("deadAt >=", filter.getDeadFromMillis());
+        }
+        if (filter.getDeadUntilMillis() != 0) {
+            query.filter("deadAt <", filter.getDeadUntilMillis());
+        }
+        if (afterId != null) {
+            query.filter("id >", afterId);
+        }
+        List<DeadLetter> deadLetters = query.order("id").limit(limit).asList();
+        for (DeadLetter deadLetter : deadLetters) {
+            deadLetter.setCommandCodecRegistry(commandCodecRegistry);
+        }
+        return deadLetters;
+    }
+
+    public void markReplayed(List<ObjectId> ids) {
+        logger.trace("markReplayed(): ids={}", ids);
+        Query<DeadLetter> updateQuery = getDatastore().createQuery(DeadLetter.class)
+                .filter("id in", ids);
+        UpdateOperations<DeadLetter> updateOperations =
+                getDatastore().createUpdateOperations(DeadLetter.class)
+                        .set("replayedAt", clock.currentTimeMillis());
+        UpdateResults<DeadLetter> result = getDatastore().update(updateQuery, updateOperations);
+        if (result.getUpdatedCount() != ids.size()) {
+            // the collection is capped, so dead letters can be discarded while being replayed
+            logger.warn("markReplayed(): could only find {} of {} ids",
+                    result.getUpdatedCount(), ids.size());
+        }
+    }
+
+    public long countSince(long timeMillis) {
+        return getDatastore().createQuery(DeadLetter.class)
+                .filter("appId =", appId)
+                .filter("deadAt >=", timeMillis)
+                .countAll();
+    }
+}
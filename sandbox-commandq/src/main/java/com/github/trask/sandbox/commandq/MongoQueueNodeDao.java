@@ -0,0 +1,166 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.trask.sandbox.clock.Clock;
+import com.github.trask.sandbox.mongodb.BasicDao;
+import com.google.code.morphia.AdvancedDatastore;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateResults;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class MongoQueueNodeDao extends BasicDao implements QueueNodeDao {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoQueueNodeDao.class);
+
+    private final String nodeId;
+    private final String appId;
+    private final Clock clock;
+
+    public MongoQueueNodeDao(String nodeId, String appId, AdvancedDatastore datastore,
+            Clock clock) {
+
+        super(datastore, QueueNode.class);
+        this.nodeId = nodeId;
+        this.appId = appId;
+        this.clock = clock;
+        getDatastore().insert(newQueueNode(false));
+    }
+
+    public void updateAliveAtAndLockedCommands(boolean lockedCommands) {
+        logger.trace("updateAliveAtAndLockedCommands(): lockedCommands={}", lockedCommands);
+        Query<QueueNode> updateQuery = getDatastore().createQuery(QueueNode.class)
+                .filter("nodeId =", nodeId);
+        UpdateOperations<QueueNode> updateOperations =
+                getDatastore().createUpdateOperations(QueueNode.class)
+                        .set("aliveAt", clock.currentTimeMillis())
+                        .set("lockedCommands", lockedCommands);
+        UpdateResults<QueueNode> result =
+                getDatastore().updateFirst(updateQuery, updateOperations);
+        if (result.getUpdatedCount() != 1) {
+            reinsert(lockedCommands);
+        }
+    }
+
+    public void updateAliveAt() {
+        logger.trace("updateAliveAt()");
+        Query<QueueNode> updateQuery = getDatastore().createQuery(QueueNode.class)
+                .filter("nodeId =", nodeId);
+        UpdateOperations<QueueNode> updateOperations =
+                getDatastore().createUpdateOperations(QueueNode.class)
+                        .set("aliveAt", clock.currentTimeMillis());
+        UpdateResults<QueueNode> result =
+                getDatastore().updateFirst(updateQuery, updateOperations);
+        if (result.getUpdatedCount() != 1) {
+            // this node's commands were all taken over (as expired leases) before it could have
+            // been deleted, and any commands it has locked since then went through
+            // updateAliveAtAndLockedCommands() which would have re-inserted it
+            reinsert(false);
+        }
+    }
+
+    public List<QueueNode> readFailedNodesThatHaveLockedCommands(int timeoutSeconds, int limit) {
+        logger.trace("readFailedNodesThatHaveLockedCommands(): timeoutSeconds={}", timeoutSeconds);
+        logger.trace("readFailedNodesThatHaveLockedCommands(): limit={}", limit);
+        // most recently failed first, so that failed nodes which have already been taken over
+        // (but not yet deleted) can't crowd out new failures
+        return createFailedNodesQuery(true, timeoutSeconds).order("-aliveAt").limit(limit)
+                .asList();
+    }
+
+    public List<QueueNode> readFailedNodesThatHaveNoLockedCommands(long seconds) {
+        logger.trace("readFailedNodesThatHaveNoLockedCommands(): seconds={}", seconds);
+        return createFailedNodesQuery(false, seconds).asList();
+    }
+
+    // nodes with and without locked commands are read separately so that each query is bounded
+    // by the index on all three fields, and only the live nodes' index entries are scanned
+    public List<String> readLiveNodeIds(int lockedCommandsTimeoutSeconds,
+            long noLockedCommandsTimeoutSeconds) {
+
+        logger.trace("readLiveNodeIds()");
+        List<String> liveNodeIds = new ArrayList<String>();
+        for (QueueNode node : createLiveNodesQuery(true, lockedCommandsTimeoutSeconds)
+                .asList()) {
+            liveNodeIds.add(node.getNodeId());
+        }
+        for (QueueNode node : createLiveNodesQuery(false, noLockedCommandsTimeoutSeconds)
+                .asList()) {
+            liveNodeIds.add(node.getNodeId());
+        }
+        return liveNodeIds;
+    }
+
+    public void deleteFailedNode(String nodeId) {
+        logger.info("deleteFailedNode(): nodeId={}", nodeId);
+        getDatastore().delete(QueueNode.class, nodeId);
+    }
+
+    // the filter is re-evaluated atomically for each node as it is deleted, so a node that
+    // heartbeats in the meantime is not deleted
+    public int deleteFailedNodes(long seconds) {
+        logger.trace("deleteFailedNodes(): seconds={}", seconds);
+        // one delete per value of lockedCommands so that each is bounded by the index
+        int count = getDatastore().delete(createFailedNodesQuery(true, seconds)).getN()
+                + getDatastore().delete(createFailedNodesQuery(false, seconds)).getN();
+        if (count > 0) {
+            logger.info("deleteFailedNodes(): deleted {} nodes", count);
+        }
+        return count;
+    }
+
+    // package private so that the query plan can be verified in tests
+    Query<QueueNode> createFailedNodesQuery(boolean lockedCommands, long timeoutSeconds) {
+        return getDatastore().createQuery(QueueNode.class)
+                .filter("appId =", appId)
+                .filter("lockedCommands =", lockedCommands)
+                .filter("aliveAt <", clock.currentTimeMillis() - timeoutSeconds * 1000);
+    }
+
+    // package private so that the query plan can be verified in tests
+    Query<QueueNode> createLiveNodesQuery(boolean lockedCommands, long timeoutSeconds) {
+        return getDatastore().createQuery(QueueNode.class)
+                .filter("appId =", appId)
+                .filter("lockedCommands =", lockedCommands)
+                .filter("aliveAt >=", clock.currentTimeMillis() - timeoutSeconds * 1000)
+                .retrievedFields(true, "nodeId");
+    }
+
+    // this node was deleted as failed while it was still alive, e.g. after a long gc pause or a
+    // network partition, save() is an upsert so concurrent re-inserts don't collide
+    private void reinsert(boolean lockedCommands) {
+        logger.warn("reinsert(): queue node was deleted as failed, re-inserting, id={}", nodeId);
+        getDatastore().save(newQueueNode(lockedCommands));
+    }
+
+    private QueueNode newQueueNode(boolean lockedCommands) {
+        QueueNode node = new QueueNode();
+        node.setNodeId(nodeId);
+        node.setAppId(appId);
+        node.setLockedCommands(lockedCommands);
+        node.setAliveAt(clock.currentTimeMillis());
+        return node;
+    }
+}
@@ -0,0 +1,770 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.trask.sandbox.clock.Clock;
+import com.github.trask.sandbox.mongodb.BasicDao;
+import com.google.code.morphia.AdvancedDatastore;
+import com.google.code.morphia.DatastoreImpl;
+import com.google.code.morphia.Key;
+import com.google.code.morphia.query.Query;
+import com.google.code.morphia.query.UpdateOperations;
+import com.google.code.morphia.query.UpdateResults;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class MongoQueuedCommandDao extends BasicDao implements QueuedCommandDao {
+
+    private static final Logger logger = LoggerFactory.getLogger(MongoQueuedCommandDao.class);
+
+    // after this many lost races for the pending copy, the command is inserted (visible) without
+    // being deduplicated, so contention can only cost an extra run, never a lost command (and
+    // still never a second running copy, see claimKeyed())
+    private static final int MAX_COALESCE_ATTEMPTS = 10;
+
+    // the visibleNextAt of keyed commands that are parked behind their key's running copy, see
+    // park()
+    private static final long PARKED = Long.MAX_VALUE;
+
+    private final String nodeId;
+    private final String appId;
+    private final Clock clock;
+    private final long leaseDurationMillis;
+    private final CommandCodecRegistry commandCodecRegistry;
+    // null means claim contention is not counted
+    private final CommandQueueMetrics metrics;
+    private final PriorityLaneScheduler priorityLaneScheduler = new PriorityLaneScheduler();
+
+    public MongoQueuedCommandDao(String nodeId, String appId, AdvancedDatastore datastore,
+            Clock clock) {
+
+        this(nodeId, appId, datastore, clock, DEFAULT_LEASE_DURATION_MILLIS);
+    }
+
+    public MongoQueuedCommandDao(String nodeId, String appId, AdvancedDatastore datastore,
+            Clock clock, long leaseDurationMillis) {
+
+        this(nodeId, appId, datastore, clock, leaseDurationMillis, new CommandCodecRegistry());
+    }
+
+    public MongoQueuedCommandDao(String nodeId, String appId, AdvancedDatastore datastore,
+            Clock clock, long leaseDurationMillis, CommandCodecRegistry commandCodecRegistry) {
+
+        this(nodeId, appId, datastore, clock, leaseDurationMillis, commandCodecRegistry, null);
+    }
+
+    // the metrics receive the number of claim candidates lost to other nodes, the rest of the
+    // metrics are recorded by BasicCommandExecutorService
+    public MongoQueuedCommandDao(String nodeId, String appId, AdvancedDatastore datastore,
+            Clock clock, long leaseDurationMillis, CommandCodecRegistry commandCodecRegistry,
+            CommandQueueMetrics metrics) {
+
+        super(datastore, QueuedCommand.class);
+        this.nodeId = nodeId;
+        this.appId = appId;
+        this.clock = clock;
+        this.leaseDurationMillis = leaseDurationMillis;
+        this.commandCodecRegistry = commandCodecRegistry;
+        this.metrics = metrics;
+        ((DatastoreImpl) getDatastore()).getMapper().addMappedClass(QueuedCommand.class);
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getLeaseDurationMillis() {
+        return leaseDurationMillis;
+    }
+
+    public ObjectId lockAndInsert(Command command) {
+        QueuedCommand queuedCommand = newQueuedCommand(command);
+        queuedCommand.setLockedByNodeId(nodeId);
+        queuedCommand.setLeaseExpiresAt(clock.currentTimeMillis() + leaseDurationMillis);
+        Key<QueuedCommand> key = getDatastore().insert(queuedCommand);
+        return (ObjectId) key.getId();
+    }
+
+    // the running copy is inserted with runningKey set, so the insert itself fails if another
+    // copy with the same key is already running, in which case the command becomes (or is
+    // coalesced into) the pending copy instead
+    public ObjectId lockAndInsertOrCoalesce(KeyedCommand command) {
+        String pendingKey = getQualifiedKey(command.key());
+        for (int i = 0; i < MAX_COALESCE_ATTEMPTS; i++) {
+            QueuedCommand pending = getDatastore().createQuery(QueuedCommand.class)
+                    .filter("pendingKey =", pendingKey)
+                    .get();
+            if (pending != null) {
+                if (!(command instanceof CoalescingCommand)) {
+                    // the pending copy will do
+                    return null;
+                }
+                if (coalesce((CoalescingCommand) command, pending)) {
+                    return null;
+                }
+                // the pending copy was claimed or coalesced concurrently
+                continue;
+            }
+            QueuedCommand running = newQueuedCommand(command);
+            running.setLockedByNodeId(nodeId);
+            running.setLeaseExpiresAt(clock.currentTimeMillis() + leaseDurationMillis);
+            running.setRunningKey(pendingKey);
+            try {
+                Key<QueuedCommand> key = getDatastore().insert(running, WriteConcern.SAFE);
+                return (ObjectId) key.getId();
+            } catch (MongoException.DuplicateKey e) {
+                // another copy with the same key is running
+                logger.debug("lockAndInsertOrCoalesce(): key {} is running", pendingKey);
+            }
+            // visible, but parked once it loses a claim to the running copy, see claimKeyed()
+            QueuedCommand queuedCommand = newQueuedCommand(command);
+            queuedCommand.setPendingKey(pendingKey);
+            queuedCommand.setVisibleNextAt(clock.currentTimeMillis());
+            try {
+                getDatastore().insert(queuedCommand, WriteConcern.SAFE);
+                return null;
+            } catch (MongoException.DuplicateKey e) {
+                // another copy became the pending copy concurrently
+                logger.debug("lockAndInsertOrCoalesce(): lost race for pendingKey {}",
+                        pendingKey);
+            }
+        }
+        logger.warn("lockAndInsertOrCoalesce(): giving up on coalescing pendingKey {}",
+                pendingKey);
+        insertScheduled(command, clock.currentTimeMillis());
+        return null;
+    }
+
+    public ObjectId insertScheduled(Command command, long runAtMillis) {
+        QueuedCommand queuedCommand = newQueuedCommand(command);
+        queuedCommand.setVisibleNextAt(runAtMillis);
+        Key<QueuedCommand> key = getDatastore().insert(queuedCommand);
+        return (ObjectId) key.getId();
+    }
+
+    public ObjectId insertForRetry(Command command, long delayMillis) {
+        QueuedCommand queuedCommand = newQueuedCommand(command);
+        queuedCommand.setNFailures(1);
+        queuedCommand.setVisibleNextAt(clock.currentTimeMillis() + delayMillis);
+        Key<QueuedCommand> key = getDatastore().insert(queuedCommand);
+        return (ObjectId) key.getId();
+    }
+
+    // ids are assigned up front so that the whole batch is written with a single acknowledged
+    // insert, and the returned ids are in the same order as the given commands
+    public List<ObjectId> lockAndInsertAll(List<Command> commands) {
+        List<QueuedCommand> queuedCommands = new ArrayList<QueuedCommand>(commands.size());
+        List<ObjectId> ids = new ArrayList<ObjectId>(commands.size());
+        long leaseExpiresAt = clock.currentTimeMillis() + leaseDurationMillis;
+        for (Command command : commands) {
+            QueuedCommand queuedCommand = newQueuedCommand(command);
+            queuedCommand.setId(new ObjectId());
+            queuedCommand.setLockedByNodeId(nodeId);
+            queuedCommand.setLeaseExpiresAt(leaseExpiresAt);
+            queuedCommands.add(queuedCommand);
+            ids.add(queuedCommand.getId());
+        }
+        getDatastore().insert(queuedCommands, WriteConcern.SAFE);
+        return ids;
+    }
+
+    public List<ObjectId> insertAll(List<Command> commands) {
+        List<QueuedCommand> queuedCommands = new ArrayList<QueuedCommand>(commands.size());
+        List<ObjectId> ids = new ArrayList<ObjectId>(commands.size());
+        long visibleNextAt = clock.currentTimeMillis();
+        for (Command command : commands) {
+            QueuedCommand queuedCommand = newQueuedCommand(command);
+            queuedCommand.setId(new ObjectId());
+            queuedCommand.setVisibleNextAt(visibleNextAt);
+            queuedCommands.add(queuedCommand);
+            ids.add(queuedCommand.getId());
+        }
+        getDatastore().insert(queuedCommands, WriteConcern.SAFE);
+        return ids;
+    }
+
+    // the delete and the updates below only apply while this node still holds the command's
+    // lease, otherwise the command has been (or is about to be) taken over by another node
+    //
+    // the key is read back as part of the delete (or update), so that the copies parked behind a
+    // keyed command can be unparked once it is no longer running, see park()
+    public void delete(final ObjectId id) {
+        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id =", id)
+                .filter("lockedByNodeId =", nodeId)
+                .retrievedFields(true, "key");
+        QueuedCommand deleted = getDatastore().findAndDelete(updateQuery);
+        if (deleted == null) {
+            logger.warn("delete(): lost the lease on id {}", id);
+        } else if (deleted.getKey() != null) {
+            unpark(deleted.getKey());
+        }
+    }
+
+    public void deleteAll(List<ObjectId> ids) {
+        List<QueuedCommand> keyed = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id in", ids)
+                .filter("lockedByNodeId =", nodeId)
+                .filter("key !=", null)
+                .retrievedFields(true, "key")
+                .asList();
+        Query<QueuedCommand> deleteQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id in", ids)
+                .filter("lockedByNodeId =", nodeId);
+        WriteResult result = getDatastore().delete(deleteQuery);
+        String error = result.getError();
+        if (!StringUtils.isEmpty(error)) {
+            logger.error("deleteAll(): delete error: {}", error);
+        }
+        if (result.getN() != ids.size()) {
+            logger.warn("deleteAll(): lost the leases on {} of {} ids", ids.size() - result.getN(),
+                    ids.size());
+        }
+        for (QueuedCommand queuedCommand : keyed) {
+            unpark(queuedCommand.getKey());
+        }
+    }
+
+    public void rescheduleOnFailure(final ObjectId id, long delayMillis) {
+        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id =", id)
+                .filter("lockedByNodeId =", nodeId);
+        UpdateOperations<QueuedCommand> updateOperations =
+                getDatastore().createUpdateOperations(QueuedCommand.class)
+                        .unset("lockedByNodeId")
+                        .unset("leaseExpiresAt")
+                        .unset("runningKey")
+                        .inc("nFailures")
+                        .set("visibleNextAt", clock.currentTimeMillis() + delayMillis);
+        QueuedCommand updated = getDatastore().findAndModify(
+                updateQuery.retrievedFields(true, "key"), updateOperations);
+        if (updated == null) {
+            logger.warn("rescheduleOnFailure(): lost the lease on id {}", id);
+        } else if (updated.getKey() != null) {
+            unpark(updated.getKey());
+        }
+    }
+
+    public void scheduleNextRun(ObjectId id, long runAtMillis) {
+        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id =", id)
+                .filter("lockedByNodeId =", nodeId);
+        UpdateOperations<QueuedCommand> updateOperations =
+                getDatastore().createUpdateOperations(QueuedCommand.class)
+                        .unset("lockedByNodeId")
+                        .unset("leaseExpiresAt")
+                        .unset("runningKey")
+                        .set("nFailures", 0)
+                        .set("visibleNextAt", runAtMillis);
+        QueuedCommand updated = getDatastore().findAndModify(
+                updateQuery.retrievedFields(true, "key"), updateOperations);
+        if (updated == null) {
+            logger.warn("scheduleNextRun(): lost the lease on id {}", id);
+        } else if (updated.getKey() != null) {
+            unpark(updated.getKey());
+        }
+    }
+
+    public List<QueuedCommand> readVisible(int limit) {
+        return readVisible(limit, clock.currentTimeMillis());
+    }
+
+    public long readMillisUntilNextVisible() {
+        long currentTimeMillis = clock.currentTimeMillis();
+        QueuedCommand next = getDatastore().createQuery(QueuedCommand.class)
+                .filter("appId =", appId)
+                .filter("lockedByNodeId =", null)
+                .filter("visibleNextAt <", PARKED)
+                .order("visibleNextAt")
+                .retrievedFields(true, "visibleNextAt")
+                .limit(1)
+                .get();
+        if (next == null) {
+            return -1;
+        }
+        return Math.max(next.getVisibleNextAt() - currentTimeMillis, 0);
+    }
+
+    // claims up to limit visible commands for this node using a fixed number of round trips
+    // (read candidates, lock them all with a single multi-update, and only if some were lost to
+    // another node, read back which ones this node actually won)
+    public List<QueuedCommand> claimVisible(int limit) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        return claimVisibleAt(limit, currentTimeMillis, currentTimeMillis);
+    }
+
+    public List<QueuedCommand> claimUpcoming(long horizonMillis, int limit) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        return claimVisibleAt(limit, currentTimeMillis + horizonMillis, currentTimeMillis);
+    }
+
+    public List<QueuedCommand> claimExpiredLeases(int limit) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        List<QueuedCommand> candidates = getDatastore().createQuery(QueuedCommand.class)
+                .filter("appId =", appId)
+                .filter("leaseExpiresAt >", 0)
+                .filter("leaseExpiresAt <", currentTimeMillis)
+                .limit(limit)
+                .asList();
+        if (candidates.isEmpty()) {
+            return candidates;
+        }
+        setCommandCodecRegistry(candidates);
+        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id in", getIds(candidates))
+                .filter("leaseExpiresAt >", 0)
+                .filter("leaseExpiresAt <", currentTimeMillis);
+        return claim(candidates, updateQuery, currentTimeMillis);
+    }
+
+    public List<ObjectId> readIdsFromFailedNodeQueue(String failedNodeId, ObjectId afterId,
+            int limit) {
+
+        Query<QueuedCommand> query = getDatastore().createQuery(QueuedCommand.class)
+                .filter("lockedByNodeId =", failedNodeId);
+        if (afterId != null) {
+            query.filter("id >", afterId);
+        }
+        List<QueuedCommand> queuedCommands = query.order("id")
+                .retrievedFields(true, "id")
+                .limit(limit)
+                .asList();
+        return getIds(queuedCommands);
+    }
+
+    public List<QueuedCommand> claimFromFailedNode(String failedNodeId, List<ObjectId> ids) {
+        long currentTimeMillis = clock.currentTimeMillis();
+        List<QueuedCommand> candidates = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id in", ids)
+                .filter("lockedByNodeId =", failedNodeId)
+                .filter("leaseExpiresAt <", currentTimeMillis)
+                .asList();
+        if (candidates.isEmpty()) {
+            return candidates;
+        }
+        setCommandCodecRegistry(candidates);
+        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id in", getIds(candidates))
+                .filter("lockedByNodeId =", failedNodeId)
+                .filter("leaseExpiresAt <", currentTimeMillis);
+        return claim(candidates, updateQuery, currentTimeMillis);
+    }
+
+    // a single update regardless of the number of commands locked by this node
+    public void renewLeases() {
+        logger.trace("renewLeases()");
+        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("lockedByNodeId =", nodeId);
+        UpdateOperations<QueuedCommand> updateOperations =
+                getDatastore().createUpdateOperations(QueuedCommand.class)
+                        .set("leaseExpiresAt", clock.currentTimeMillis() + leaseDurationMillis);
+        UpdateResults<QueuedCommand> result = getDatastore().update(updateQuery, updateOperations);
+        if (result.getHadError()) {
+            logger.error("renewLeases(): update error: {}", result.getError());
+        }
+    }
+
+    public List<QueuedCommand> readFromFailedNodeQueue(String failedNodeId, int limit) {
+        Query<QueuedCommand> query = getDatastore().createQuery(QueuedCommand.class)
+                .filter("lockedByNodeId =", failedNodeId)
+                .limit(limit);
+        return setCommandCodecRegistry(query.asList());
+    }
+
+    public void lock(ObjectId id) throws CouldNotLockForExecutionException {
+        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id =", id)
+                .filter("key =", null)
+                .filter("lockedByNodeId =", null)
+                .filter("visibleNextAt <=", clock.currentTimeMillis());
+        UpdateOperations<QueuedCommand> updateOperations =
+                getDatastore().createUpdateOperations(QueuedCommand.class)
+                        .set("lockedByNodeId", nodeId)
+                        .set("leaseExpiresAt", clock.currentTimeMillis() + leaseDurationMillis)
+                        .unset("visibleNextAt");
+        UpdateResults<QueuedCommand> result = getDatastore().update(updateQuery, updateOperations);
+        if (result.getHadError()) {
+            logger.error("lockQueuedCommand(): update error: {}", result.getError());
+            throw new CouldNotLockForExecutionException();
+        }
+        if (result.getUpdatedCount() == 1) {
+            return;
+        }
+        // keyed commands need their key in order to take the runningKey
+        QueuedCommand keyed = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id =", id)
+                .filter("key !=", null)
+                .retrievedFields(true, "id", "key")
+                .get();
+        if (keyed == null) {
+            throw new CouldNotLockForExecutionException();
+        }
+        long currentTimeMillis = clock.currentTimeMillis();
+        if (!claimKeyed(keyed, currentTimeMillis, currentTimeMillis,
+                new ArrayList<QueuedCommand>())) {
+            throw new CouldNotLockForExecutionException();
+        }
+    }
+
+    // replaces the pending copy's command, unless it has been claimed or coalesced since it was
+    // read
+    private boolean coalesce(CoalescingCommand command, QueuedCommand pending) {
+        pending.setCommandCodecRegistry(commandCodecRegistry);
+        CoalescingCommand coalesced = command.coalesce((CoalescingCommand) pending.getCommand());
+        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id =", pending.getId())
+                .filter("pendingKey =", pending.getPendingKey())
+                .filter("nCoalesced =", pending.getNCoalesced());
+        UpdateOperations<QueuedCommand> updateOperations =
+                getDatastore().createUpdateOperations(QueuedCommand.class).inc("nCoalesced");
+        byte[] commandBytes = commandCodecRegistry.encode(coalesced);
+        if (commandBytes == null) {
+            updateOperations.set("command", coalesced);
+        } else {
+            updateOperations.set("commandBytes", commandBytes);
+        }
+        UpdateResults<QueuedCommand> result = getDatastore().update(updateQuery, updateOperations);
+        if (result.getHadError()) {
+            logger.error("coalesce(): update error: {}", result.getError());
+            return false;
+        }
+        return result.getUpdatedCount() == 1;
+    }
+
+    private QueuedCommand newQueuedCommand(Command command) {
+        QueuedCommand queuedCommand = new QueuedCommand();
+        queuedCommand.setAppId(appId);
+        byte[] commandBytes = commandCodecRegistry.encode(command);
+        if (commandBytes == null) {
+            queuedCommand.setCommand(command);
+        } else {
+            queuedCommand.setCommandBytes(commandBytes);
+        }
+        if (command instanceof PrioritizedCommand) {
+            queuedCommand.setPriority(((PrioritizedCommand) command).priority().getValue());
+        } else {
+            queuedCommand.setPriority(Priority.Normal.getValue());
+        }
+        if (command instanceof KeyedCommand) {
+            queuedCommand.setKey(((KeyedCommand) command).key());
+        }
+        return queuedCommand;
+    }
+
+    private List<QueuedCommand> readVisible(int limit, long currentTimeMillis) {
+        Priority[] lanes = Priority.values();
+        int[] quotas = priorityLaneScheduler.allocate(limit);
+        List<List<QueuedCommand>> laneCommands = new ArrayList<List<QueuedCommand>>();
+        int total = 0;
+        for (Priority lane : lanes) {
+            List<QueuedCommand> commands;
+            if (quotas[lane.ordinal()] == 0) {
+                commands = new ArrayList<QueuedCommand>();
+            } else {
+                commands = readVisibleInLane(lane, quotas[lane.ordinal()], currentTimeMillis);
+            }
+            laneCommands.add(commands);
+            total += commands.size();
+        }
+        // lanes that could not fill their quota give their slots to the other lanes
+        for (Priority lane : lanes) {
+            if (total == limit) {
+                break;
+            }
+            List<QueuedCommand> commands = laneCommands.get(lane.ordinal());
+            if (commands.size() < quotas[lane.ordinal()]) {
+                // this lane has no more visible commands
+                continue;
+            }
+            // lanes are read in visibleNextAt order, so this re-read is a superset of the first
+            List<QueuedCommand> moreCommands = readVisibleInLane(lane,
+                    commands.size() + limit - total, currentTimeMillis);
+            total += moreCommands.size() - commands.size();
+            laneCommands.set(lane.ordinal(), moreCommands);
+        }
+        List<QueuedCommand> visible = new ArrayList<QueuedCommand>(total);
+        for (List<QueuedCommand> commands : laneCommands) {
+            visible.addAll(commands);
+        }
+        return visible;
+    }
+
+    // claims commands that are visible as of visibleAtMillis
+    private List<QueuedCommand> claimVisibleAt(int limit, long visibleAtMillis,
+            long currentTimeMillis) {
+
+        List<QueuedCommand> claimed = new ArrayList<QueuedCommand>();
+        List<QueuedCommand> candidates = readVisible(limit, visibleAtMillis);
+        while (!candidates.isEmpty()) {
+            int nParked = claimCandidates(candidates, visibleAtMillis, currentTimeMillis, claimed);
+            if (nParked == 0 || claimed.size() == limit) {
+                break;
+            }
+            // the slots taken up by the parked commands are filled from the commands behind them
+            candidates = readVisible(limit - claimed.size(), visibleAtMillis);
+        }
+        return claimed;
+    }
+
+    // adds the claimed candidates (in the order they were read, i.e. by lane) to claimed, and
+    // returns the number of candidates that were parked
+    private int claimCandidates(List<QueuedCommand> candidates, long visibleAtMillis,
+            long currentTimeMillis, List<QueuedCommand> claimed) {
+
+        List<QueuedCommand> unkeyedCandidates = new ArrayList<QueuedCommand>();
+        List<QueuedCommand> keyedCandidates = new ArrayList<QueuedCommand>();
+        for (QueuedCommand candidate : candidates) {
+            if (candidate.getKey() == null) {
+                unkeyedCandidates.add(candidate);
+            } else {
+                keyedCandidates.add(candidate);
+            }
+        }
+        Set<ObjectId> claimedIds = new HashSet<ObjectId>();
+        if (!unkeyedCandidates.isEmpty()) {
+            Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                    .filter("id in", getIds(unkeyedCandidates))
+                    .filter("lockedByNodeId =", null)
+                    .filter("visibleNextAt <=", visibleAtMillis);
+            claimedIds.addAll(getIds(claim(unkeyedCandidates, updateQuery, currentTimeMillis)));
+        }
+        List<QueuedCommand> parked = new ArrayList<QueuedCommand>();
+        for (QueuedCommand candidate : keyedCandidates) {
+            if (claimKeyed(candidate, visibleAtMillis, currentTimeMillis, parked)) {
+                claimedIds.add(candidate.getId());
+            }
+        }
+        for (QueuedCommand candidate : candidates) {
+            if (claimedIds.contains(candidate.getId())) {
+                claimed.add(candidate);
+            }
+        }
+        return parked.size();
+    }
+
+    // keyed commands are claimed one at a time, since each one sets its own runningKey, and the
+    // unique index on runningKey rejects the claim if another copy with the same key is running
+    // (in which case the command is parked until that copy is done, and added to parked)
+    private boolean claimKeyed(QueuedCommand candidate, long visibleAtMillis,
+            long currentTimeMillis, List<QueuedCommand> parked) {
+
+        long leaseExpiresAt = currentTimeMillis + leaseDurationMillis;
+        String runningKey = getQualifiedKey(candidate.getKey());
+        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id =", candidate.getId())
+                .filter("lockedByNodeId =", null)
+                .filter("visibleNextAt <=", visibleAtMillis);
+        UpdateOperations<QueuedCommand> updateOperations =
+                getDatastore().createUpdateOperations(QueuedCommand.class)
+                        .set("lockedByNodeId", nodeId)
+                        .set("leaseExpiresAt", leaseExpiresAt)
+                        .set("runningKey", runningKey)
+                        .unset("pendingKey");
+        try {
+            UpdateResults<QueuedCommand> result = getDatastore().update(updateQuery,
+                    updateOperations, false, WriteConcern.SAFE);
+            if (result.getUpdatedCount() == 0) {
+                if (metrics != null) {
+                    metrics.recordLockContentionLosses(1);
+                }
+                return false;
+            }
+        } catch (MongoException.DuplicateKey e) {
+            logger.debug("claimKeyed(): key {} is running", runningKey);
+            if (park(candidate, runningKey, currentTimeMillis)) {
+                parked.add(candidate);
+            }
+            return false;
+        }
+        candidate.setLockedByNodeId(nodeId);
+        candidate.setLeaseExpiresAt(leaseExpiresAt);
+        candidate.setRunningKey(runningKey);
+        candidate.setPendingKey(null);
+        return true;
+    }
+
+    // parks a keyed command that is blocked by its key's running copy, so that it no longer fills
+    // claims (hiding the commands behind it) until that copy is deleted or unlocked, only
+    // commands that are already due are parked since unpark() makes them visible right away,
+    // returns false if the command was not parked
+    private boolean park(QueuedCommand candidate, String runningKey, long currentTimeMillis) {
+        if (candidate.getVisibleNextAt() > currentTimeMillis) {
+            return false;
+        }
+        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id =", candidate.getId())
+                .filter("lockedByNodeId =", null)
+                .filter("visibleNextAt =", candidate.getVisibleNextAt());
+        UpdateOperations<QueuedCommand> updateOperations =
+                getDatastore().createUpdateOperations(QueuedCommand.class)
+                        .set("visibleNextAt", PARKED);
+        UpdateResults<QueuedCommand> result = getDatastore().update(updateQuery, updateOperations);
+        if (result.getHadError()) {
+            logger.error("park(): update error: {}", result.getError());
+            return false;
+        }
+        if (result.getUpdatedCount() == 0) {
+            return false;
+        }
+        // the running copy may have been deleted (or unlocked) after the claim failed, and
+        // before the command was parked, in which case nothing else would unpark it
+        long nRunning = getDatastore().createQuery(QueuedCommand.class)
+                .filter("runningKey =", runningKey)
+                .countAll();
+        if (nRunning == 0) {
+            unpark(candidate.getKey());
+        }
+        return true;
+    }
+
+    // makes the commands parked behind the given key visible again to compete for it
+    private void unpark(String key) {
+        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
+                .filter("appId =", appId)
+                .filter("visibleNextAt =", PARKED)
+                .filter("key =", key)
+                .filter("lockedByNodeId =", null);
+        UpdateOperations<QueuedCommand> updateOperations =
+                getDatastore().createUpdateOperations(QueuedCommand.class)
+                        .set("visibleNextAt", clock.currentTimeMillis());
+        UpdateResults<QueuedCommand> result = getDatastore().update(updateQuery, updateOperations);
+        if (result.getHadError()) {
+            logger.error("unpark(): update error: {}", result.getError());
+        }
+    }
+
+    public long countVisible() {
+        return getDatastore().createQuery(QueuedCommand.class)
+                .filter("appId =", appId)
+                .filter("lockedByNodeId =", null)
+                .filter("visibleNextAt <=", clock.currentTimeMillis())
+                .countAll();
+    }
+
+    private List<QueuedCommand> readVisibleInLane(Priority lane, int limit,
+            long currentTimeMillis) {
+
+        Query<QueuedCommand> query = getDatastore().createQuery(QueuedCommand.class)
+                .filter("appId =", appId);
+        if (lane == Priority.Normal) {
+            // commands queued before priorities were introduced don't have a priority field
+            query.filter("priority in", Arrays.asList(lane.getValue(), null));
+        } else {
+            query.filter("priority =", lane.getValue());
+        }
+        List<QueuedCommand> queuedCommands = query.filter("lockedByNodeId =", null)
+                .filter("visibleNextAt <=", currentTimeMillis)
+                .order("visibleNextAt")
+                .limit(limit)
+                .asList();
+        return setCommandCodecRegistry(queuedCommands);
+    }
+
+    // locks the candidates that still match the update query, visibleNextAt is kept so that a
+    // command that is claimed before it is due (see claimUpcoming()) is still not run early by a
+    // node that takes it over, and the claimed commands are returned with the visibleNextAt they
+    // were read with
+    private List<QueuedCommand> claim(List<QueuedCommand> candidates,
+            Query<QueuedCommand> updateQuery, long currentTimeMillis) {
+
+        long leaseExpiresAt = currentTimeMillis + leaseDurationMillis;
+        UpdateOperations<QueuedCommand> updateOperations =
+                getDatastore().createUpdateOperations(QueuedCommand.class)
+                        .set("lockedByNodeId", nodeId)
+                        .set("leaseExpiresAt", leaseExpiresAt)
+                        .unset("pendingKey");
+        UpdateResults<QueuedCommand> result = getDatastore().update(updateQuery, updateOperations);
+        if (result.getHadError()) {
+            logger.error("claim(): update error: {}", result.getError());
+            return new ArrayList<QueuedCommand>();
+        }
+        List<QueuedCommand> claimed;
+        if (result.getUpdatedCount() == candidates.size()) {
+            claimed = candidates;
+        } else {
+            int lost = candidates.size() - result.getUpdatedCount();
+            logger.debug("claim(): lost {} of {} candidates to other nodes", lost,
+                    candidates.size());
+            if (metrics != null) {
+                metrics.recordLockContentionLosses(lost);
+            }
+            claimed = filterLockedByThisNode(candidates, getIds(candidates));
+        }
+        for (QueuedCommand queuedCommand : claimed) {
+            queuedCommand.setLockedByNodeId(nodeId);
+            queuedCommand.setLeaseExpiresAt(leaseExpiresAt);
+            queuedCommand.setPendingKey(null);
+        }
+        return claimed;
+    }
+
+    private List<QueuedCommand> filterLockedByThisNode(List<QueuedCommand> candidates,
+            List<ObjectId> candidateIds) {
+
+        List<QueuedCommand> lockedByThisNode = getDatastore().createQuery(QueuedCommand.class)
+                .filter("id in", candidateIds)
+                .filter("lockedByNodeId =", nodeId)
+                .retrievedFields(true, "id")
+                .asList();
+        Set<ObjectId> lockedIds = new HashSet<ObjectId>();
+        for (QueuedCommand queuedCommand : lockedByThisNode) {
+            lockedIds.add(queuedCommand.getId());
+        }
+        List<QueuedCommand> claimed = new ArrayList<QueuedCommand>(lockedIds.size());
+        for (QueuedCommand candidate : candidates) {
+            if (lockedIds.contains(candidate.getId())) {
+                claimed.add(candidate);
+            }
+        }
+        return claimed;
+    }
+
+    private List<QueuedCommand> setCommandCodecRegistry(List<QueuedCommand> queuedCommands) {
+        for (QueuedCommand queuedCommand : queuedCommands) {
+            queuedCommand.setCommandCodecRegistry(commandCodecRegistry);
+        }
+        return queuedCommands;
+    }
+
+    // the pendingKey and runningKey are qualified by the app id, since their unique indexes span
+    // all app ids
+    private String getQualifiedKey(String key) {
+        return appId + "/" + key;
+    }
+
+    private static List<ObjectId> getIds(List<QueuedCommand> queuedCommands) {
+        List<ObjectId> ids = new ArrayList<ObjectId>(queuedCommands.size());
+        for (QueuedCommand queuedCommand : queuedCommands) {
+            ids.add(queuedCommand.getId());
+        }
+        return ids;
+    }
+}
@@ -15,11 +15,28 @@
  */
 package com.github.trask.sandbox.commandq;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.trask.sandbox.executors.DaemonExecutors;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
 /**
  * @author Trask Stalnaker
  */
@@ -30,32 +47,204 @@ public class NodeAwareCommandExecutorService {
 
     private final BasicCommandExecutorService commandExecutorService;
     private final QueueNodeDao queueNodeDao;
+    // null means commands are executed on the thread that claimed (or inserted) them
+    private final CommandWorkerPool workerPool;
+    // null means commands that are claimed before they are due are run right away
+    private final HierarchicalTimingWheel timingWheel;
+    // null means batchable commands are executed on their own
+    private final CommandBatcher commandBatcher;
+    // null means the number of commands executing at the same time is not limited (other than
+    // by the worker pool)
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    // commands inserted by queueAndRunCommandAsync() are handed off to this executor so that
+    // they never run (or block) on the write behind writer's flush thread, which would hold up
+    // every other pending insert
+    private final ExecutorService insertedCommandExecutorService =
+            DaemonExecutors.newCachedThreadPool("InsertedCommandRunner");
 
-    private final AtomicInteger lockCount = new AtomicInteger();
+    // the number of commands locked by this node, including ones that are about to be claimed
+    private final StripedCounter lockCount = new StripedCounter();
+    private final NodeStatePublisher nodeStatePublisher = new NodeStatePublisher();
 
     public NodeAwareCommandExecutorService(BasicCommandExecutorService commandExecutorService,
             QueueNodeDao queueNodeDao) {
 
+        this(commandExecutorService, queueNodeDao, null);
+    }
+
+    public NodeAwareCommandExecutorService(BasicCommandExecutorService commandExecutorService,
+            QueueNodeDao queueNodeDao, CommandWorkerPool workerPool) {
+
+        this(commandExecutorService, queueNodeDao, workerPool, null);
+    }
+
+    // the timing wheel holds scheduled commands that have been claimed (or inserted) ahead of
+    // time until they are due, each of them holding its lease (and this node's lock count) in
+    // the meantime, when there is no worker pool the commands are run on the timing wheel's
+    // executor
+    public NodeAwareCommandExecutorService(BasicCommandExecutorService commandExecutorService,
+            QueueNodeDao queueNodeDao, CommandWorkerPool workerPool,
+            HierarchicalTimingWheel timingWheel) {
+
+        this(commandExecutorService, queueNodeDao, workerPool, timingWheel, null);
+    }
+
+    // the batch scheduled executor service times out partial batches of batchable commands (see
+    // BatchableCommand), when there is no worker pool the timed out batches are executed on its
+    // threads
+    public NodeAwareCommandExecutorService(BasicCommandExecutorService commandExecutorService,
+            QueueNodeDao queueNodeDao, CommandWorkerPool workerPool,
+            HierarchicalTimingWheel timingWheel,
+            ScheduledExecutorService batchScheduledExecutorService) {
+
+        this(commandExecutorService, queueNodeDao, workerPool, timingWheel,
+                batchScheduledExecutorService, null);
+    }
+
+    // the concurrency limiter is applied per command class around command execution, new
+    // commands (see queueAndRunCommand()) are rejected when their class is still at its limit
+    // after the limiter's max wait, while claimed commands block the thread that dispatches them
+    // so that the claiming slows down instead, the same as for a full worker pool
+    public NodeAwareCommandExecutorService(BasicCommandExecutorService commandExecutorService,
+            QueueNodeDao queueNodeDao, CommandWorkerPool workerPool,
+            HierarchicalTimingWheel timingWheel,
+            ScheduledExecutorService batchScheduledExecutorService,
+            AdaptiveConcurrencyLimiter concurrencyLimiter) {
+
         this.commandExecutorService = commandExecutorService;
         this.queueNodeDao = queueNodeDao;
+        this.workerPool = workerPool;
+        this.timingWheel = timingWheel;
+        if (batchScheduledExecutorService == null) {
+            commandBatcher = null;
+        } else {
+            commandBatcher = new CommandBatcher(batchScheduledExecutorService);
+        }
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    // stops publishing this node's state, the worker pool, timing wheel and batch executor service
+    // are not shut down since they are owned by the caller
+    public void shutdown() {
+        logger.debug("shutdown()");
+        insertedCommandExecutorService.shutdown();
+        nodeStatePublisher.shutdown();
+    }
+
+    public void addRescheduleListener(RescheduleListener rescheduleListener) {
+        commandExecutorService.addRescheduleListener(rescheduleListener);
+    }
+
+    // returns null if there are no metrics
+    public CommandQueueMetrics getMetrics() {
+        return commandExecutorService.getMetrics();
+    }
+
+    public boolean hasTimingWheel() {
+        return timingWheel != null;
     }
 
     public int getLockCount() {
-        int count = lockCount.intValue();
+        int count = (int) lockCount.sum();
         logger.trace("getLockCount(): count={}", count);
         return count;
     }
 
+    // throws RejectedExecutionException (without inserting the command) if the command's class
+    // is at its concurrency limit
     public void queueAndRunCommand(Command command) {
         logger.debug("queueAndRunCommand(): command={}", command);
+        acquireOrReject(command);
+        long startTime = System.nanoTime();
         incrementLockCount();
         try {
             commandExecutorService.queueAndRunCommand(command);
         } finally {
             decrementLockCount();
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.release(command.getClass(), System.nanoTime() - startTime);
+            }
         }
     }
 
+    // throws RejectedExecutionException (without inserting the command) if the command's class
+    // is at its concurrency limit
+    public ListenableFuture<ObjectId> queueAndRunCommandAsync(final Command command) {
+        logger.debug("queueAndRunCommandAsync(): command={}", command);
+        acquireOrReject(command);
+        // the command is locked by this node as soon as it is inserted
+        incrementLockCount();
+        final ListenableFuture<ObjectId> future;
+        try {
+            future = commandExecutorService.queueCommandAsync(command);
+        } catch (RuntimeException e) {
+            decrementLockCount();
+            releaseUnused(command);
+            throw e;
+        }
+        // the listener runs on the flush thread (or on this thread if the insert is already
+        // done), so it only hands the command off
+        future.addListener(new Runnable() {
+            public void run() {
+                final ObjectId id;
+                try {
+                    id = future.get();
+                } catch (InterruptedException e) {
+                    // the future is already done so this can't happen
+                    decrementLockCount();
+                    releaseUnused(command);
+                    return;
+                } catch (ExecutionException e) {
+                    // the insert failed, and the caller is notified via the same future
+                    decrementLockCount();
+                    releaseUnused(command);
+                    return;
+                }
+                try {
+                    insertedCommandExecutorService.execute(new Runnable() {
+                        public void run() {
+                            runInsertedCommand(command, id);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    releaseUnused(command);
+                    // this node has been shutdown, the lock count is intentionally not
+                    // decremented, the same as when the worker pool rejects a command
+                    logger.error("queueAndRunCommandAsync(): rejected command={}", command);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    // inserts the command locked by this node and holds it in the timing wheel until it is due
+    public void queueAndScheduleCommand(Command command, long runAtMillis) {
+        logger.debug("queueAndScheduleCommand(): command={}, runAtMillis={}", command,
+                runAtMillis);
+        incrementLockCount();
+        ObjectId id;
+        try {
+            id = commandExecutorService.queueCommand(command);
+        } catch (RuntimeException e) {
+            decrementLockCount();
+            throw e;
+        }
+        runWhenDue(newInsertedQueuedCommand(command, id), runAtMillis);
+    }
+
+    // inserts the command unlocked, it is run by whichever node claims it once it is due (or
+    // shortly before, see claimAndScheduleUpcomingCommands())
+    public ObjectId scheduleCommand(Command command, long runAtMillis) {
+        logger.debug("scheduleCommand(): command={}, runAtMillis={}", command, runAtMillis);
+        return commandExecutorService.scheduleCommand(command, runAtMillis);
+    }
+
+    public int replayDeadLetters(DeadLetterFilter filter, int batchSize,
+            int maxCommandsPerSecond) throws InterruptedException {
+
+        return commandExecutorService.replayDeadLetters(filter, batchSize, maxCommandsPerSecond);
+    }
+
     public void runQueuedCommand(QueuedCommand queuedCommand) {
         logger.debug("runQueuedCommand(): queuedCommand={}", queuedCommand);
         incrementLockCount();
@@ -66,20 +255,356 @@ public class NodeAwareCommandExecutorService {
         }
     }
 
-    private void incrementLockCount() {
-        synchronized (lockCount) {
-            if (lockCount.intValue() == 0) {
-                queueNodeDao.updateAliveAtAndLockedCommands(true);
+    public void claimAndRunVisibleCommands(final int batchSize) {
+        logger.trace("claimAndRunVisibleCommands(): batchSize={}", batchSize);
+        claimAndRunCommands(new QueuedCommandClaimer() {
+            public List<QueuedCommand> claim() {
+                return commandExecutorService.claimVisibleCommands(batchSize);
+            }
+        });
+    }
+
+    // claims commands that are due within the horizon, and runs each one when it is due
+    public void claimAndScheduleUpcomingCommands(final long horizonMillis, final int batchSize) {
+        logger.trace("claimAndScheduleUpcomingCommands(): horizonMillis={}, batchSize={}",
+                horizonMillis, batchSize);
+        claimAndRunCommands(new QueuedCommandClaimer() {
+            public List<QueuedCommand> claim() {
+                return commandExecutorService.claimUpcomingCommands(horizonMillis, batchSize);
+            }
+        });
+    }
+
+    public void claimAndRunExpiredLeaseCommands(final int batchSize) {
+        logger.trace("claimAndRunExpiredLeaseCommands(): batchSize={}", batchSize);
+        claimAndRunCommands(new QueuedCommandClaimer() {
+            public List<QueuedCommand> claim() {
+                return commandExecutorService.claimExpiredLeaseCommands(batchSize);
+            }
+        });
+    }
+
+    // each of the failed node's commands is assigned to one of the live nodes by rendezvous
+    // hashing of its id, and this node only claims the commands assigned to it, so survivors
+    // recover a failed node in parallel instead of racing for the same commands
+    //
+    // commands assigned to a node that fails (or that doesn't learn of the failure) before
+    // claiming them are still recovered by whichever node first sees their leases expire
+    public void claimAndRunFailedNodeCommands(String failedNodeId, Set<String> liveNodeIds,
+            int batchSize) {
+
+        logger.debug("claimAndRunFailedNodeCommands(): failedNodeId={}", failedNodeId);
+        Set<String> ownerNodeIds = new HashSet<String>(liveNodeIds);
+        ownerNodeIds.remove(failedNodeId);
+        ownerNodeIds.add(commandExecutorService.getNodeId());
+        claimAndRunCommands(new OwnedFailedNodeCommandClaimer(failedNodeId, ownerNodeIds,
+                batchSize));
+    }
+
+    private void claimAndRunCommands(QueuedCommandClaimer claimer) {
+        // the lock count is held across the claim so that the lease renewer sees this node as
+        // having locked commands from the moment they are claimed, and so that marking this node
+        // as having locked commands (see NodeStatePublisher) gets a head start on the claim
+        incrementLockCount();
+        try {
+            List<QueuedCommand> claimed = claimer.claim();
+            while (!claimed.isEmpty()) {
+                for (QueuedCommand queuedCommand : claimed) {
+                    runClaimedCommand(queuedCommand);
+                }
+                claimed = claimer.claim();
+            }
+        } finally {
+            decrementLockCount();
+        }
+    }
+
+    // commands taken over from other nodes may have been claimed by them ahead of time, in which
+    // case they are not due yet either
+    private void runClaimedCommand(QueuedCommand queuedCommand) {
+        incrementLockCount();
+        runWhenDue(queuedCommand, queuedCommand.getVisibleNextAt());
+    }
+
+    // the lock count must already be incremented, and the concurrency limiter permit acquired,
+    // for the command
+    private void runInsertedCommand(Command command, ObjectId id) {
+        runDueCommand(newInsertedQueuedCommand(command, id), true);
+    }
+
+    // the lock count must already be incremented for the command
+    private void runWhenDue(final QueuedCommand queuedCommand, long runAtMillis) {
+        if (timingWheel == null || runAtMillis <= System.currentTimeMillis()) {
+            runDueCommand(queuedCommand, false);
+            return;
+        }
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+                runDueCommand(queuedCommand, false);
+            }
+        }, runAtMillis);
+    }
+
+    // the lock count must already be incremented for the command
+    private void runDueCommand(final QueuedCommand queuedCommand, boolean permitAcquired) {
+        Command command = queuedCommand.getCommand();
+        if (commandBatcher != null && command instanceof BatchableCommand) {
+            if (permitAcquired) {
+                // the batch acquires its own permit once it is dispatched
+                releaseUnused(command);
             }
-            lockCount.incrementAndGet();
+            commandBatcher.add(queuedCommand);
+            return;
         }
+        dispatch(command, new Runnable() {
+            public void run() {
+                commandExecutorService.runClaimedCommand(queuedCommand);
+            }
+        }, 1, permitAcquired);
+    }
+
+    // the lock count must already be incremented for each command in the batch
+    private void dispatchBatch(final List<QueuedCommand> batch) {
+        dispatch(batch.get(0).getCommand(), new Runnable() {
+            public void run() {
+                commandExecutorService.runClaimedCommandBatch(batch);
+            }
+        }, batch.size(), false);
+    }
+
+    // decrements the lock count (once for each of the task's commands) once the task completes,
+    // a batch counts as a single execution for the concurrency limiter
+    private void dispatch(final Command command, final Runnable task, final int nCommands,
+            boolean permitAcquired) {
+
+        if (concurrencyLimiter != null && !permitAcquired) {
+            concurrencyLimiter.acquire(command.getClass());
+        }
+        Runnable limitedTask = new Runnable() {
+            public void run() {
+                long startTime = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    decrementLockCount(nCommands);
+                    if (concurrencyLimiter != null) {
+                        concurrencyLimiter.release(command.getClass(),
+                                System.nanoTime() - startTime);
+                    }
+                }
+            }
+        };
+        if (workerPool == null) {
+            limitedTask.run();
+            return;
+        }
+        try {
+            workerPool.execute(command, limitedTask);
+        } catch (RejectedExecutionException e) {
+            releaseUnused(command);
+            // the worker pool has been shutdown, the lock count is intentionally not decremented
+            // so that this node continues to be marked as having locked commands, and the
+            // command will be recovered by another node once this node stops heartbeating
+            logger.error("dispatch(): worker pool rejected command={}", command);
+        }
+    }
+
+    private void acquireOrReject(Command command) {
+        if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire(command.getClass())) {
+            throw new RejectedExecutionException("Concurrency limit reached for "
+                    + command.getClass().getName());
+        }
+    }
+
+    private void releaseUnused(Command command) {
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.releaseUnused(command.getClass());
+        }
+    }
+
+    private void incrementLockCount() {
+        lockCount.add(1);
+        nodeStatePublisher.signal();
     }
 
     private void decrementLockCount() {
-        synchronized (lockCount) {
-            lockCount.decrementAndGet();
-            if (lockCount.intValue() == 0) {
-                queueNodeDao.updateAliveAtAndLockedCommands(false);
+        decrementLockCount(1);
+    }
+
+    private void decrementLockCount(int delta) {
+        lockCount.add(-delta);
+        nodeStatePublisher.signal();
+    }
+
+    // inserted commands are run the same as claimed commands
+    private static QueuedCommand newInsertedQueuedCommand(Command command, ObjectId id) {
+        QueuedCommand queuedCommand = new QueuedCommand();
+        queuedCommand.setId(id);
+        queuedCommand.setCommand(command);
+        return queuedCommand;
+    }
+
+    // publishes whether this node has locked commands (see QueueNode) off of the commands'
+    // critical path, a signal only queues a publish if one isn't already queued, and the publish
+    // writes whatever the state is by the time it runs, and only if it has changed since the last
+    // publish, so bursts of commands coalesce into at most one write per transition
+    //
+    // the published state can lag behind, so a node that fails right after claiming commands may
+    // still be marked as having no locked commands, in which case its commands are recovered by
+    // the expired lease monitor instead of the failed node monitor
+    private class NodeStatePublisher implements Runnable {
+        private static final long RETRY_DELAY_MILLIS = 1000;
+        private final ScheduledExecutorService executorService =
+                DaemonExecutors.newSingleThreadScheduledExecutor("NodeStatePublisher");
+        private final AtomicBoolean publishQueued = new AtomicBoolean();
+        // only accessed from the publisher thread, null until the first publish
+        private Boolean publishedLockedCommands;
+        private void signal() {
+            // the plain read keeps the common case (a publish is already queued) off of the
+            // cache line's exclusive state
+            if (!publishQueued.get() && publishQueued.compareAndSet(false, true)) {
+                try {
+                    executorService.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // shut down, commands that are still running must not fail because of it
+                    logger.debug(e.getMessage(), e);
+                }
+            }
+        }
+        // a publish that is already queued still runs
+        private void shutdown() {
+            executorService.shutdown();
+        }
+        public void run() {
+            // cleared before reading the lock count, so that a change after the read always
+            // queues another publish
+            publishQueued.set(false);
+            boolean lockedCommands = lockCount.sum() > 0;
+            if (publishedLockedCommands != null
+                    && publishedLockedCommands.booleanValue() == lockedCommands) {
+                return;
+            }
+            logger.trace("NodeStatePublisher.run(): lockedCommands={}", lockedCommands);
+            try {
+                queueNodeDao.updateAliveAtAndLockedCommands(lockedCommands);
+                publishedLockedCommands = lockedCommands;
+            } catch (RuntimeException e) {
+                logger.error(e.getMessage(), e);
+                if (publishQueued.compareAndSet(false, true) && !executorService.isShutdown()) {
+                    executorService.schedule(this, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private interface QueuedCommandClaimer {
+        List<QueuedCommand> claim();
+    }
+
+    // pages through the failed node's command ids, claiming the ones owned by this node
+    private class OwnedFailedNodeCommandClaimer implements QueuedCommandClaimer {
+        private final String failedNodeId;
+        private final Set<String> ownerNodeIds;
+        private final int batchSize;
+        private ObjectId afterId;
+        private OwnedFailedNodeCommandClaimer(String failedNodeId, Set<String> ownerNodeIds,
+                int batchSize) {
+            this.failedNodeId = failedNodeId;
+            this.ownerNodeIds = ownerNodeIds;
+            this.batchSize = batchSize;
+        }
+        public List<QueuedCommand> claim() {
+            String nodeId = commandExecutorService.getNodeId();
+            while (true) {
+                List<ObjectId> ids = commandExecutorService.readFailedNodeCommandIds(
+                        failedNodeId, afterId, batchSize);
+                if (ids.isEmpty()) {
+                    return new ArrayList<QueuedCommand>();
+                }
+                afterId = ids.get(ids.size() - 1);
+                List<ObjectId> ownedIds = new ArrayList<ObjectId>();
+                for (ObjectId id : ids) {
+                    if (nodeId.equals(RendezvousHashing.getOwner(ownerNodeIds,
+                            id.toByteArray()))) {
+                        ownedIds.add(id);
+                    }
+                }
+                if (!ownedIds.isEmpty()) {
+                    // some may have already been claimed (e.g. after their leases expired),
+                    // and commands whose leases are still being renewed are not claimed at all
+                    List<QueuedCommand> claimed = commandExecutorService
+                            .claimFailedNodeCommands(failedNodeId, ownedIds);
+                    if (!claimed.isEmpty()) {
+                        return claimed;
+                    }
+                }
+            }
+        }
+    }
+
+    // gathers batchable commands into a batch per command class, each batch is dispatched once
+    // it is full or once the first command in it has waited for the command's max batch delay
+    private class CommandBatcher {
+        private final ScheduledExecutorService scheduledExecutorService;
+        // guarded by this
+        private final Map<Class<?>, Batch> batches = new HashMap<Class<?>, Batch>();
+        private CommandBatcher(ScheduledExecutorService scheduledExecutorService) {
+            this.scheduledExecutorService = scheduledExecutorService;
+        }
+        private void add(QueuedCommand queuedCommand) {
+            BatchableCommand command = (BatchableCommand) queuedCommand.getCommand();
+            Batch fullBatch = null;
+            synchronized (this) {
+                Batch batch = batches.get(command.getClass());
+                if (batch == null) {
+                    batch = new Batch(command.getClass());
+                    try {
+                        batch.timeout = scheduledExecutorService.schedule(batch,
+                                command.maxBatchDelayMillis(), TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // the batch scheduled executor service has been shutdown, the lock
+                        // count is intentionally not decremented, the same as in dispatch()
+                        logger.error("add(): batch scheduled executor service rejected"
+                                + " command={}", command);
+                        return;
+                    }
+                    batches.put(command.getClass(), batch);
+                }
+                batch.queuedCommands.add(queuedCommand);
+                if (batch.queuedCommands.size() >= command.maxBatchSize()) {
+                    batches.remove(command.getClass());
+                    batch.timeout.cancel(false);
+                    fullBatch = batch;
+                }
+            }
+            if (fullBatch != null) {
+                dispatchBatch(fullBatch.queuedCommands);
+            }
+        }
+        // runs when the batch times out
+        private class Batch implements Runnable {
+            private final Class<?> commandClass;
+            // both guarded by CommandBatcher.this until the batch is removed from batches
+            private final List<QueuedCommand> queuedCommands = new ArrayList<QueuedCommand>();
+            private ScheduledFuture<?> timeout;
+            private Batch(Class<?> commandClass) {
+                this.commandClass = commandClass;
+            }
+            public void run() {
+                synchronized (CommandBatcher.this) {
+                    if (batches.get(commandClass) != this) {
+                        // already dispatched when it filled up
+                        return;
+                    }
+                    batches.remove(commandClass);
+                }
+                logger.trace("Batch.run(): commandClass={}, size={}", commandClass,
+                        queuedCommands.size());
+                try {
+                    dispatchBatch(queuedCommands);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
             }
         }
     }
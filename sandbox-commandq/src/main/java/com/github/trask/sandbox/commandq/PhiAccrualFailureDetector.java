@@ -0,0 +1,90 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al.) for a single monitored node.
+ * 
+ * @author Trask Stalnaker
+ */
+public class PhiAccrualFailureDetector {
+
+    private final long minStdDeviationMillis;
+
+    // all guarded by this
+    private final long[] intervals;
+    private int intervalCount;
+    private int nextIntervalIndex;
+    private double intervalSum;
+    private double intervalSumOfSquares;
+    private long lastHeartbeatAt = -1;
+
+    // the window is seeded with the expected interval so that a node that fails right after its
+    // first heartbeat is still detected
+    public PhiAccrualFailureDetector(int windowSize, long expectedIntervalMillis,
+            long minStdDeviationMillis) {
+
+        this.minStdDeviationMillis = minStdDeviationMillis;
+        intervals = new long[windowSize];
+        addInterval(expectedIntervalMillis);
+    }
+
+    public synchronized void heartbeat(long currentTimeMillis) {
+        if (lastHeartbeatAt != -1) {
+            addInterval(currentTimeMillis - lastHeartbeatAt);
+        }
+        lastHeartbeatAt = currentTimeMillis;
+    }
+
+    public synchronized long getLastHeartbeatAt() {
+        return lastHeartbeatAt;
+    }
+
+    // returns 0 before the first heartbeat, otherwise -log10 of the probability that a heartbeat
+    // would arrive even later than now given the observed intervals
+    public synchronized double phi(long currentTimeMillis) {
+        if (lastHeartbeatAt == -1) {
+            return 0;
+        }
+        double mean = intervalSum / intervalCount;
+        double variance = intervalSumOfSquares / intervalCount - mean * mean;
+        double stdDeviation = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDeviationMillis);
+        long timeSinceLastHeartbeat = currentTimeMillis - lastHeartbeatAt;
+        double y = (timeSinceLastHeartbeat - mean) / stdDeviation;
+        // logistic approximation of the normal cdf
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (timeSinceLastHeartbeat > mean) {
+            return -Math.log10(e / (1 + e));
+        } else {
+            return -Math.log10(1 - 1 / (1 + e));
+        }
+    }
+
+    // must be called while holding this
+    private void addInterval(long interval) {
+        if (intervalCount == intervals.length) {
+            long oldest = intervals[nextIntervalIndex];
+            intervalSum -= oldest;
+            intervalSumOfSquares -= (double) oldest * oldest;
+        } else {
+            intervalCount++;
+        }
+        intervals[nextIntervalIndex] = interval;
+        nextIntervalIndex = (nextIntervalIndex + 1) % intervals.length;
+        intervalSum += interval;
+        intervalSumOfSquares += (double) interval * interval;
+    }
+}
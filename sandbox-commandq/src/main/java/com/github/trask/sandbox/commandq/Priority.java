@@ -0,0 +1,46 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+/**
+ * Priority lanes for queued commands. Visible commands are claimed from the lanes in proportion
+ * to their weights, so higher priority commands are claimed first without starving the lower
+ * priority lanes.
+ * 
+ * @author Trask Stalnaker
+ */
+public enum Priority {
+
+    // declared in priority order
+    High(1, 6), Normal(0, 3), Low(-1, 1);
+
+    // stored in QueuedCommand.priority
+    private final int value;
+    private final int weight;
+
+    private Priority(int value, int weight) {
+        this.value = value;
+        this.weight = weight;
+    }
+
+    public int getValue() {
+        return value;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+/**
+ * Splits claim slots across the priority lanes using smooth weighted round robin, carrying state
+ * across calls so that each lane gets its weighted share even when only a few slots are allocated.
+ * 
+ * @author Trask Stalnaker
+ */
+class PriorityLaneScheduler {
+
+    private static final Priority[] LANES = Priority.values();
+
+    private final int totalWeight;
+    // guarded by this
+    private final int[] currentWeights = new int[LANES.length];
+
+    PriorityLaneScheduler() {
+        int total = 0;
+        for (Priority lane : LANES) {
+            total += lane.getWeight();
+        }
+        totalWeight = total;
+    }
+
+    // returns the number of slots for each lane, indexed by Priority.ordinal()
+    synchronized int[] allocate(int slots) {
+        int[] quotas = new int[LANES.length];
+        for (int slot = 0; slot < slots; slot++) {
+            int selected = 0;
+            for (int i = 0; i < LANES.length; i++) {
+                currentWeights[i] += LANES[i].getWeight();
+                if (currentWeights[i] > currentWeights[selected]) {
+                    selected = i;
+                }
+            }
+            currentWeights[selected] -= totalWeight;
+            quotas[selected]++;
+        }
+        return quotas;
+    }
+}
@@ -24,7 +24,9 @@ import com.google.code.morphia.annotations.Indexes;
  * @author Trask Stalnaker
  */
 @Entity(noClassnameStored = true)
-@Indexes(@Index("appId, working, aliveAt"))
+// the failed node queries (and the bulk delete of failed nodes) filter on equality of appId and
+// lockedCommands and a range of aliveAt, so they only touch the index entries of failed nodes
+@Indexes(@Index("appId, lockedCommands, aliveAt"))
 public class QueueNode {
 
     @Id
@@ -17,92 +17,33 @@ package com.github.trask.sandbox.commandq;
 
 import java.util.List;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.github.trask.sandbox.clock.Clock;
-import com.github.trask.sandbox.mongodb.BasicDao;
-import com.google.code.morphia.AdvancedDatastore;
-import com.google.code.morphia.query.Query;
-import com.google.code.morphia.query.UpdateOperations;
-import com.google.code.morphia.query.UpdateResults;
-
 /**
+ * Storage for the liveness of the nodes that execute queued commands, scoped to a single node and
+ * app id.
+ * 
  * @author Trask Stalnaker
  */
-public class QueueNodeDao extends BasicDao {
-
-    private static final Logger logger = LoggerFactory.getLogger(QueueNodeDao.class);
-
-    private final String nodeId;
-    private final String appId;
-    private final Clock clock;
+public interface QueueNodeDao {
 
-    public QueueNodeDao(String nodeId, String appId, AdvancedDatastore datastore, Clock clock) {
+    void updateAliveAtAndLockedCommands(boolean lockedCommands);
 
-        super(datastore, QueueNode.class);
-        this.nodeId = nodeId;
-        this.appId = appId;
-        this.clock = clock;
-        QueueNode node = new QueueNode();
-        node.setNodeId(nodeId);
-        node.setAppId(appId);
-        node.setLockedCommands(false);
-        node.setAliveAt(System.currentTimeMillis());
-        getDatastore().insert(node);
-    }
+    void updateAliveAt();
 
-    public void updateAliveAtAndLockedCommands(boolean lockedCommands) {
-        logger.trace("updateAliveAtAndLockedCommands(): lockedCommands={}", lockedCommands);
-        Query<QueueNode> updateQuery = getDatastore().createQuery(QueueNode.class)
-                .filter("nodeId =", nodeId);
-        UpdateOperations<QueueNode> updateOperations =
-                getDatastore().createUpdateOperations(QueueNode.class)
-                        .set("aliveAt", clock.currentTimeMillis())
-                        .set("lockedCommands", lockedCommands);
-        UpdateResults<QueueNode> result =
-                getDatastore().updateFirst(updateQuery, updateOperations);
-        if (result.getUpdatedCount() != 1) {
-            logger.error("update(): could not update queue node with id={}", nodeId);
-        }
-    }
+    List<QueueNode> readFailedNodesThatHaveLockedCommands(int timeoutSeconds, int limit);
 
-    public void updateAliveAt() {
-        logger.trace("updateAliveAt()");
-        Query<QueueNode> updateQuery = getDatastore().createQuery(QueueNode.class)
-                .filter("nodeId =", nodeId);
-        UpdateOperations<QueueNode> updateOperations =
-                getDatastore().createUpdateOperations(QueueNode.class)
-                        .set("aliveAt", clock.currentTimeMillis());
-        UpdateResults<QueueNode> result =
-                getDatastore().updateFirst(updateQuery, updateOperations);
-        if (result.getUpdatedCount() != 1) {
-            logger.error("update(): could not update queue node with id={}", nodeId);
-        }
-    }
+    List<QueueNode> readFailedNodesThatHaveNoLockedCommands(long seconds);
 
-    public List<QueueNode> readFailedNodesThatHaveLockedCommands(int timeoutSeconds, int limit) {
-        logger.trace("readFailedNodesThatHaveLockedCommands(): timeoutSeconds={}", timeoutSeconds);
-        logger.trace("readFailedNodesThatHaveLockedCommands(): limit={}", limit);
-        Query<QueueNode> query = getDatastore().createQuery(QueueNode.class)
-                .filter("appId =", appId)
-                .filter("lockedCommands =", true)
-                .filter("aliveAt <", clock.currentTimeMillis() - timeoutSeconds * 1000L)
-                .limit(limit);
-        return query.asList();
-    }
+    // nodes with locked commands heartbeat more often than nodes without, so they have separate
+    // timeouts
+    List<String> readLiveNodeIds(int lockedCommandsTimeoutSeconds,
+            long noLockedCommandsTimeoutSeconds);
 
-    public List<QueueNode> readFailedNodesThatHaveNoLockedCommands(long seconds) {
-        logger.trace("readFailedNodesThatHaveNoLockedCommands(): seconds={}", seconds);
-        Query<QueueNode> query = getDatastore().createQuery(QueueNode.class)
-                .filter("appId =", appId)
-                .filter("lockedCommands =", false)
-                .filter("aliveAt <", clock.currentTimeMillis() - seconds * 1000);
-        return query.asList();
-    }
+    void deleteFailedNode(String nodeId);
 
-    public void deleteFailedNode(String nodeId) {
-        logger.info("deleteFailedNode(): nodeId={}", nodeId);
-        getDatastore().delete(QueueNode.class, nodeId);
-    }
+    // deletes (in bulk) the nodes that have not been alive for the given number of seconds, and
+    // returns the number deleted
+    //
+    // this should be much longer than the lease duration, so that any commands still locked by
+    // the deleted nodes have long since had their leases expire and been taken over
+    int deleteFailedNodes(long seconds);
 }
@@ -22,22 +22,49 @@ import com.google.code.morphia.annotations.Id;
 import com.google.code.morphia.annotations.Index;
 import com.google.code.morphia.annotations.Indexed;
 import com.google.code.morphia.annotations.Indexes;
+import com.google.code.morphia.annotations.Transient;
 
 /**
  * @author Trask Stalnaker
  */
 @Entity(noClassnameStored = true)
-@Indexes(@Index("appId, visibleNextAt"))
+@Indexes({ @Index("appId, visibleNextAt"), @Index("appId, priority, visibleNextAt"),
+        @Index("appId, leaseExpiresAt") })
 public class QueuedCommand {
 
     @Id
     private ObjectId id;
+    // only one of command and commandBytes is stored, commandBytes is used when the command's
+    // class has a codec registered in the CommandCodecRegistry
     private Command command;
+    private byte[] commandBytes;
+    // set by the dao after reading, needed to decode commandBytes
+    @Transient
+    private CommandCodecRegistry commandCodecRegistry;
     private String appId;
     @Indexed
     private String lockedByNodeId;
     private int nFailures;
+    // see Priority.getValue()
+    private int priority;
+    // Long.MAX_VALUE while a keyed command is parked behind its key's running copy, see
+    // MongoQueuedCommandDao.park()
     private long visibleNextAt;
+    // only set while locked, the lock is considered abandoned once the lease expires
+    private long leaseExpiresAt;
+    // see KeyedCommand
+    private String key;
+    // appId + "/" + key, only set on the pending copy of a keyed command (and unset once it is
+    // locked), which is what limits each key to one pending copy
+    @Indexed(unique = true, sparse = true)
+    private String pendingKey;
+    // appId + "/" + key, only set on the running copy of a keyed command (from when it is locked
+    // until it is deleted or unlocked), which is what limits each key to one running copy
+    @Indexed(unique = true, sparse = true)
+    private String runningKey;
+    // number of copies that have been coalesced into this (pending) copy, which guards against
+    // concurrent coalescing losing a payload
+    private int nCoalesced;
 
     public ObjectId getId() {
         return id;
@@ -47,7 +74,12 @@ public class QueuedCommand {
         this.id = id;
     }
 
+    // commandBytes is decoded lazily, so that commands which are read but never run (e.g. those
+    // lost to another node while claiming) are never decoded
     public Command getCommand() {
+        if (command == null && commandBytes != null) {
+            command = commandCodecRegistry.decode(commandBytes);
+        }
         return command;
     }
 
@@ -55,6 +87,18 @@ public class QueuedCommand {
         this.command = command;
     }
 
+    public byte[] getCommandBytes() {
+        return commandBytes;
+    }
+
+    public void setCommandBytes(byte[] commandBytes) {
+        this.commandBytes = commandBytes;
+    }
+
+    void setCommandCodecRegistry(CommandCodecRegistry commandCodecRegistry) {
+        this.commandCodecRegistry = commandCodecRegistry;
+    }
+
     public String getAppId() {
         return appId;
     }
@@ -79,6 +123,14 @@ public class QueuedCommand {
         this.nFailures = nFailures;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     public long getVisibleNextAt() {
         return visibleNextAt;
     }
@@ -86,4 +138,44 @@ public class QueuedCommand {
     public void setVisibleNextAt(long visibleNextAt) {
         this.visibleNextAt = visibleNextAt;
     }
+
+    public long getLeaseExpiresAt() {
+        return leaseExpiresAt;
+    }
+
+    public void setLeaseExpiresAt(long leaseExpiresAt) {
+        this.leaseExpiresAt = leaseExpiresAt;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public String getPendingKey() {
+        return pendingKey;
+    }
+
+    public void setPendingKey(String pendingKey) {
+        this.pendingKey = pendingKey;
+    }
+
+    public String getRunningKey() {
+        return runningKey;
+    }
+
+    public void setRunningKey(String runningKey) {
+        this.runningKey = runningKey;
+    }
+
+    public int getNCoalesced() {
+        return nCoalesced;
+    }
+
+    public void setNCoalesced(int nCoalesced) {
+        this.nCoalesced = nCoalesced;
+    }
 }
@@ -17,114 +17,100 @@ package com.github.trask.sandbox.commandq;
 
 import java.util.List;
 
-import org.apache.commons.lang.StringUtils;
 import org.bson.types.ObjectId;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import com.github.trask.sandbox.clock.Clock;
-import com.github.trask.sandbox.mongodb.BasicDao;
-import com.google.code.morphia.AdvancedDatastore;
-import com.google.code.morphia.DatastoreImpl;
-import com.google.code.morphia.Key;
-import com.google.code.morphia.query.Query;
-import com.google.code.morphia.query.UpdateOperations;
-import com.google.code.morphia.query.UpdateResults;
-import com.mongodb.WriteResult;
 
 /**
+ * Storage for queued commands, scoped to a single node and app id.
+ * 
  * @author Trask Stalnaker
  */
-public class QueuedCommandDao extends BasicDao {
-
-    private static final Logger logger = LoggerFactory.getLogger(QueuedCommandDao.class);
-
-    private final String nodeId;
-    private final String appId;
-    private final Clock clock;
-
-    public QueuedCommandDao(String nodeId, String appId, AdvancedDatastore datastore, Clock clock) {
-
-        super(datastore, QueuedCommand.class);
-        this.nodeId = nodeId;
-        this.appId = appId;
-        this.clock = clock;
-        ((DatastoreImpl) getDatastore()).getMapper().addMappedClass(QueuedCommand.class);
-    }
-
-    public ObjectId lockAndInsert(Command command) {
-        QueuedCommand queuedCommand = new QueuedCommand();
-        queuedCommand.setAppId(appId);
-        queuedCommand.setLockedByNodeId(nodeId);
-        queuedCommand.setCommand(command);
-        Key<QueuedCommand> key = getDatastore().insert(queuedCommand);
-        return (ObjectId) key.getId();
-    }
-
-    public void delete(final ObjectId id) {
-        Query<QueuedCommand> updateQuery =
-                getDatastore().createQuery(QueuedCommand.class).filter("id =", id);
-        WriteResult result = getDatastore().delete(updateQuery);
-        // hopefully morphia WriteResult will introduce getHadError() like for UpdateResult
-        String error = result.getError();
-        if (!StringUtils.isEmpty(error)) {
-            logger.error("deleteQueuedCommandOnSuccess(): delete error: {}", result.getError());
-            // TODO what's the best fallback, if anything?
-        }
-        if (result.getN() == 0) {
-            logger.error("deleteQueuedCommandOnSuccess(): could not find id {} for deletion",
-                    id);
-        }
-    }
-
-    public void rescheduleOnFailure(final ObjectId id, long delayInSeconds) {
-        Query<QueuedCommand> updateQuery =
-                getDatastore().createQuery(QueuedCommand.class).filter("id =", id);
-        UpdateOperations<QueuedCommand> updateOperations =
-                getDatastore().createUpdateOperations(QueuedCommand.class)
-                        .unset("lockedByNodeId")
-                        .inc("nFailures")
-                        .set("visibleNextAt", clock.currentTimeMillis() + delayInSeconds * 1000);
-        UpdateResults<QueuedCommand> result = getDatastore().update(updateQuery, updateOperations);
-        if (result.getHadError()) {
-            logger.error("rescheduledQueuedCommandOnFailure(): update error: {}", result.getError());
-        }
-    }
-
-    public List<QueuedCommand> readVisible(int limit) {
-        Query<QueuedCommand> query = getDatastore().createQuery(QueuedCommand.class)
-                .filter("appId =", appId)
-                .filter("lockedByNodeId =", null)
-                .filter("visibleNextAt <=", clock.currentTimeMillis())
-                .limit(limit);
-        return query.asList();
-    }
-
-    public List<QueuedCommand> readFromFailedNodeQueue(String failedNodeId, int limit) {
-        Query<QueuedCommand> query = getDatastore().createQuery(QueuedCommand.class)
-                .filter("nodeId =", failedNodeId)
-                .limit(limit);
-        return query.asList();
-    }
-
-    public void lock(ObjectId id) throws CouldNotLockForExecutionException {
-        Query<QueuedCommand> updateQuery = getDatastore().createQuery(QueuedCommand.class)
-                .filter("id =", id)
-                .filter("lockedByNodeId =", null)
-                .filter("visibleNextAt <=", clock.currentTimeMillis());
-        UpdateOperations<QueuedCommand> updateOperations =
-                getDatastore().createUpdateOperations(QueuedCommand.class)
-                        .set("lockedByNodeId", nodeId)
-                        .unset("visibleNextAt");
-        UpdateResults<QueuedCommand> result = getDatastore().update(updateQuery, updateOperations);
-        if (result.getHadError()) {
-            logger.error("lockQueuedCommand(): update error: {}", result.getError());
-            throw new CouldNotLockForExecutionException();
-        }
-        if (result.getUpdatedCount() == 0) {
-            throw new CouldNotLockForExecutionException();
-        }
-    }
+public interface QueuedCommandDao {
+
+    long DEFAULT_LEASE_DURATION_MILLIS = 30000;
+
+    String getNodeId();
+
+    // commands locked by this node are leased for this long, and must have their leases renewed
+    // (see renewLeases()) while executing, otherwise other nodes take them over once the leases
+    // expire
+    long getLeaseDurationMillis();
+
+    ObjectId lockAndInsert(Command command);
+
+    // deduplicates the command against other copies with the same key (see KeyedCommand), and
+    // returns null if the command was dropped, coalesced into the pending copy or inserted as
+    // the pending copy (in which case it is run by whichever node claims the pending copy),
+    // otherwise it is inserted locked by this node the same as lockAndInsert()
+    ObjectId lockAndInsertOrCoalesce(KeyedCommand command);
+
+    // inserts a command that is not locked and becomes visible at the given time
+    ObjectId insertScheduled(Command command, long runAtMillis);
+
+    // inserts a command that has already failed once without having been inserted, the command
+    // is not locked and becomes visible after the given delay
+    ObjectId insertForRetry(Command command, long delayMillis);
+
+    // returns the ids in the same order as the given commands
+    List<ObjectId> lockAndInsertAll(List<Command> commands);
+
+    // inserts commands that are not locked and are visible right away, so that they are spread
+    // across the nodes by the sweepers, returns the ids in the same order as the given commands
+    List<ObjectId> insertAll(List<Command> commands);
+
+    // delete(), deleteAll(), rescheduleOnFailure() and scheduleNextRun() only apply to commands
+    // that are still locked by this node, a command whose lease has been lost (and which may
+    // have been taken over by another node) is left alone
+    void delete(ObjectId id);
+
+    void deleteAll(List<ObjectId> ids);
+
+    void rescheduleOnFailure(ObjectId id, long delayMillis);
+
+    // unlocks a recurring command that has completed and resets its number of failures, so that
+    // it runs again at the given time
+    void scheduleNextRun(ObjectId id, long runAtMillis);
+
+    // visible commands are read from the priority lanes in proportion to the lane weights, and
+    // slots that a lane cannot fill are given to the other lanes in priority order
+    List<QueuedCommand> readVisible(int limit);
+
+    // returns 0 if there are commands that are already visible, and -1 if there are no commands
+    // that will become visible (keyed commands that are blocked by their key's running copy are
+    // not visible until that copy is done)
+    long readMillisUntilNextVisible();
+
+    // the number of commands that are visible now, i.e. the backlog waiting to be claimed
+    long countVisible();
+
+    // locks up to limit visible commands for this node
+    List<QueuedCommand> claimVisible(int limit);
+
+    // locks up to limit commands for this node that are visible now or will become visible within
+    // the given horizon, the returned commands keep their visibleNextAt so that the caller can
+    // run each one when it is due (while holding its lease)
+    List<QueuedCommand> claimUpcoming(long horizonMillis, int limit);
+
+    // locks up to limit commands for this node that are locked by other nodes whose leases have
+    // expired, which means the node that locked them has either failed or is no longer renewing
+    // its leases
+    List<QueuedCommand> claimExpiredLeases(int limit);
+
+    // returns ids (in id order, after afterId unless it is null) of commands locked by the given
+    // (failed) node, so that survivors can page through them and pick out the ones they own
+    List<ObjectId> readIdsFromFailedNodeQueue(String failedNodeId, ObjectId afterId, int limit);
+
+    // locks those of the given commands for this node that are still locked by the given (failed)
+    // node and whose leases have expired, a node that is only thought to have failed (e.g. it is
+    // partitioned from the membership, or its heartbeat is late) may still be running commands
+    // whose leases it is renewing
+    List<QueuedCommand> claimFromFailedNode(String failedNodeId, List<ObjectId> ids);
+
+    // extends the leases of all commands locked by this node
+    void renewLeases();
+
+    List<QueuedCommand> readFromFailedNodeQueue(String failedNodeId, int limit);
+
+    void lock(ObjectId id) throws CouldNotLockForExecutionException;
 
     @SuppressWarnings("serial")
     public static class CouldNotLockForExecutionException extends Exception {}
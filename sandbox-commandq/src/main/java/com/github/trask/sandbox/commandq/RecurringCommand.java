@@ -0,0 +1,29 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+/**
+ * Optional extension of {@link Command} for commands that run repeatedly on a {@link Schedule}.
+ * 
+ * @author Trask Stalnaker
+ */
+public interface RecurringCommand extends Command {
+
+    // the queued command is stored once, and is unlocked and made visible again at the next run
+    // time after each run completes (once its retries are exhausted if it fails), instead of
+    // being deleted, so a node failure can never fork or lose the series
+    Schedule schedule();
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.Collection;
+
+/**
+ * Rendezvous (highest random weight) hashing: each key is owned by the node with the highest hash
+ * of (node id, key), so nodes that agree on the set of nodes agree on every owner.
+ * 
+ * @author Trask Stalnaker
+ */
+final class RendezvousHashing {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private RendezvousHashing() {}
+
+    // returns null if there are no node ids
+    static String getOwner(Collection<String> nodeIds, byte[] key) {
+        long keyHash = hash(FNV_OFFSET_BASIS, key);
+        String owner = null;
+        long ownerWeight = 0;
+        for (String nodeId : nodeIds) {
+            long weight = getWeight(nodeId, keyHash);
+            // ties (practically impossible) are broken by node id so that every node agrees
+            if (owner == null || weight > ownerWeight
+                    || (weight == ownerWeight && nodeId.compareTo(owner) > 0)) {
+                owner = nodeId;
+                ownerWeight = weight;
+            }
+        }
+        return owner;
+    }
+
+    private static long getWeight(String nodeId, long keyHash) {
+        long hash = keyHash;
+        for (int i = 0; i < nodeId.length(); i++) {
+            hash ^= nodeId.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        // fnv alone doesn't mix the last characters well enough, so finish with the murmur3
+        // 64-bit finalizer
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long hash(long hash, byte[] bytes) {
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
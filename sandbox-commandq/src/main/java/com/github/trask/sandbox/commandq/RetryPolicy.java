@@ -15,7 +15,13 @@
  */
 package com.github.trask.sandbox.commandq;
 
+import com.github.trask.sandbox.executors.Backoff;
+import com.github.trask.sandbox.executors.Backoff.Jitter;
+
 /**
+ * The backoff doubles from minBackoffSeconds up to maxBackoffSeconds, with full jitter unless
+ * otherwise specified (see {@link Jitter}).
+ * 
  * @author Trask Stalnaker
  */
 public class RetryPolicy {
@@ -23,11 +29,19 @@ public class RetryPolicy {
     private final int minBackoffSeconds;
     private final int maxBackoffSeconds;
     private final int maxRetries;
+    private final Backoff backoff;
 
     public RetryPolicy(int minBackoffSeconds, int maxBackoffSeconds, int maxRetries) {
+        this(minBackoffSeconds, maxBackoffSeconds, maxRetries, Jitter.FULL);
+    }
+
+    public RetryPolicy(int minBackoffSeconds, int maxBackoffSeconds, int maxRetries,
+            Jitter jitter) {
+
         this.minBackoffSeconds = minBackoffSeconds;
         this.maxBackoffSeconds = maxBackoffSeconds;
         this.maxRetries = maxRetries;
+        backoff = new Backoff(minBackoffSeconds * 1000L, maxBackoffSeconds * 1000L, jitter);
     }
 
     public int getMinBackoffSeconds() {
@@ -41,4 +55,8 @@ public class RetryPolicy {
     public int getMaxRetries() {
         return maxRetries;
     }
+
+    public Backoff getBackoff() {
+        return backoff;
+    }
 }
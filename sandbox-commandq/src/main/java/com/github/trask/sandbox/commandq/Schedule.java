@@ -0,0 +1,29 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+/**
+ * When a {@link RecurringCommand} runs. Implementations are stored along with the command, so they
+ * must be mappable by morphia.
+ * 
+ * @author Trask Stalnaker
+ */
+public interface Schedule {
+
+    // returns the first run time that is strictly after the given time, or -1 if there are no
+    // more runs
+    long nextRunAfter(long timeMillis);
+}
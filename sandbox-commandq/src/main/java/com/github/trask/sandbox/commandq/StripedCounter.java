@@ -0,0 +1,68 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter that spreads its updates over several stripes so that concurrent updates don't contend,
+ * for counters that are updated much more often than they are read.
+ * 
+ * @author Trask Stalnaker
+ */
+public class StripedCounter {
+
+    // each stripe is padded out to its own 64 byte cache line
+    private static final int PADDING = 8;
+
+    // a decrement can happen on a different thread (and so stripe) than the matching increment,
+    // so individual stripes can go negative, only the sum is meaningful
+    private final AtomicLongArray stripes;
+    private final int mask;
+
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    // the number of stripes is rounded up to a power of two
+    public StripedCounter(int minStripes) {
+        int nStripes = 1;
+        while (nStripes < minStripes) {
+            nStripes <<= 1;
+        }
+        stripes = new AtomicLongArray(nStripes * PADDING);
+        mask = nStripes - 1;
+    }
+
+    public void add(long delta) {
+        stripes.addAndGet(stripeIndex(), delta);
+    }
+
+    // not an atomic snapshot, updates that happen during the sum may or may not be included
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < stripes.length(); i += PADDING) {
+            sum += stripes.get(i);
+        }
+        return sum;
+    }
+
+    // thread ids are mostly handed out sequentially, so consecutive threads land on consecutive
+    // stripes
+    private int stripeIndex() {
+        return ((int) Thread.currentThread().getId() & mask) * PADDING;
+    }
+}
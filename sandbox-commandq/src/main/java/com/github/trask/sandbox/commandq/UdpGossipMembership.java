@@ -0,0 +1,325 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.trask.sandbox.executors.DaemonExecutors;
+
+/**
+ * Heartbeat gossip over udp, with a {@link PhiAccrualFailureDetector} per node.
+ * 
+ * @author Trask Stalnaker
+ */
+public class UdpGossipMembership implements Membership {
+
+    private static final Logger logger = LoggerFactory.getLogger(UdpGossipMembership.class);
+
+    public static final long DEFAULT_GOSSIP_INTERVAL_MILLIS = 1000;
+    public static final double DEFAULT_PHI_THRESHOLD = 8;
+
+    // each node sends its counters to this many random nodes per interval, so the number of
+    // packets per node is constant regardless of cluster size, and a node's counter increasing
+    // (whether received directly or relayed) counts as a heartbeat from that node
+    private static final int FANOUT = 3;
+    private static final int DETECTOR_WINDOW_SIZE = 100;
+    private static final int MAX_PACKET_SIZE = 65507;
+    // failed nodes are remembered for a while so that a delayed relay of an old heartbeat counter
+    // doesn't bring them back to life
+    private static final long FAILED_NODE_RETENTION_MILLIS = 3600000;
+
+    private final String nodeId;
+    private final String appId;
+    private final InetSocketAddress bindAddress;
+    private final List<InetSocketAddress> seeds;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final long gossipIntervalMillis;
+    private final double phiThreshold;
+
+    private final ConcurrentMap<String, Member> members = new ConcurrentHashMap<String, Member>();
+    private final List<MembershipListener> membershipListeners =
+            new CopyOnWriteArrayList<MembershipListener>();
+    // starts from the current time rather than 0 so that a node restarted with the same node id
+    // isn't ignored until its counter catches up with the one from before the restart
+    private final AtomicLong heartbeat = new AtomicLong(System.currentTimeMillis());
+
+    private volatile DatagramSocket socket;
+    private volatile ExecutorService receiverExecutor;
+    private volatile ScheduledFuture<?> gossipFuture;
+
+    public UdpGossipMembership(String nodeId, String appId, InetSocketAddress bindAddress,
+            List<InetSocketAddress> seeds, ScheduledExecutorService scheduledExecutorService) {
+
+        this(nodeId, appId, bindAddress, seeds, scheduledExecutorService,
+                DEFAULT_GOSSIP_INTERVAL_MILLIS, DEFAULT_PHI_THRESHOLD);
+    }
+
+    public UdpGossipMembership(String nodeId, String appId, InetSocketAddress bindAddress,
+            List<InetSocketAddress> seeds, ScheduledExecutorService scheduledExecutorService,
+            long gossipIntervalMillis, double phiThreshold) {
+
+        this.nodeId = nodeId;
+        this.appId = appId;
+        this.bindAddress = bindAddress;
+        this.seeds = new ArrayList<InetSocketAddress>(seeds);
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.gossipIntervalMillis = gossipIntervalMillis;
+        this.phiThreshold = phiThreshold;
+    }
+
+    public void start() throws SocketException {
+        logger.debug("start(): bindAddress={}", bindAddress);
+        socket = new DatagramSocket(bindAddress);
+        receiverExecutor = DaemonExecutors.newSingleThreadExecutor("UdpGossipMembership");
+        receiverExecutor.execute(new Receiver());
+        gossipFuture = scheduledExecutorService.scheduleWithFixedDelay(new Gossiper(), 0,
+                gossipIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        logger.debug("shutdown()");
+        gossipFuture.cancel(false);
+        // closing the socket unblocks the receiver
+        socket.close();
+        receiverExecutor.shutdown();
+    }
+
+    public void addMembershipListener(MembershipListener membershipListener) {
+        membershipListeners.add(membershipListener);
+    }
+
+    public Set<String> getLiveNodeIds() {
+        Set<String> liveNodeIds = new HashSet<String>();
+        liveNodeIds.add(nodeId);
+        for (Member member : members.values()) {
+            if (member.isAlive()) {
+                liveNodeIds.add(member.nodeId);
+            }
+        }
+        return liveNodeIds;
+    }
+
+    // returns the port that the socket is bound to, useful when binding to port 0
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    private void onHeartbeat(String memberNodeId, long memberHeartbeat,
+            InetSocketAddress address) {
+
+        if (memberNodeId.equals(nodeId)) {
+            return;
+        }
+        long currentTimeMillis = System.currentTimeMillis();
+        Member member = members.get(memberNodeId);
+        if (member == null) {
+            member = new Member(memberNodeId, address, new PhiAccrualFailureDetector(
+                    DETECTOR_WINDOW_SIZE, gossipIntervalMillis, gossipIntervalMillis / 4));
+            Member existing = members.putIfAbsent(memberNodeId, member);
+            if (existing == null) {
+                logger.debug("onHeartbeat(): discovered nodeId={}", memberNodeId);
+            } else {
+                member = existing;
+            }
+        }
+        member.onHeartbeat(memberHeartbeat, address, currentTimeMillis);
+    }
+
+    private byte[] createGossipPacket() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(appId);
+        out.writeUTF(nodeId);
+        out.writeLong(heartbeat.incrementAndGet());
+        List<Member> liveMembers = new ArrayList<Member>();
+        for (Member member : members.values()) {
+            if (member.isAlive()) {
+                liveMembers.add(member);
+            }
+        }
+        out.writeInt(liveMembers.size());
+        for (Member member : liveMembers) {
+            out.writeUTF(member.nodeId);
+            out.writeLong(member.getHeartbeat());
+            InetSocketAddress address = member.getAddress();
+            out.writeUTF(address.getAddress().getHostAddress());
+            out.writeInt(address.getPort());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void readGossipPacket(DatagramPacket packet) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(),
+                packet.getOffset(), packet.getLength()));
+        if (!in.readUTF().equals(appId)) {
+            return;
+        }
+        // the sender's own address is taken from the packet since it may be bound to a wildcard
+        // address
+        onHeartbeat(in.readUTF(), in.readLong(), (InetSocketAddress) packet.getSocketAddress());
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String memberNodeId = in.readUTF();
+            long memberHeartbeat = in.readLong();
+            String host = in.readUTF();
+            int port = in.readInt();
+            onHeartbeat(memberNodeId, memberHeartbeat, new InetSocketAddress(host, port));
+        }
+    }
+
+    private void detectFailures() {
+        long currentTimeMillis = System.currentTimeMillis();
+        for (Member member : members.values()) {
+            if (member.isAlive()) {
+                double phi = member.detector.phi(currentTimeMillis);
+                if (phi > phiThreshold && member.markFailed()) {
+                    logger.info("detectFailures(): nodeId={} failed, phi={}", member.nodeId,
+                            phi);
+                    for (MembershipListener membershipListener : membershipListeners) {
+                        membershipListener.onNodeFailed(member.nodeId);
+                    }
+                }
+            } else if (currentTimeMillis - member.detector.getLastHeartbeatAt()
+                    > FAILED_NODE_RETENTION_MILLIS) {
+                members.remove(member.nodeId);
+            }
+        }
+    }
+
+    private List<SocketAddress> chooseTargets() {
+        List<SocketAddress> candidates = new ArrayList<SocketAddress>(seeds);
+        for (Member member : members.values()) {
+            if (member.isAlive() && !seeds.contains(member.getAddress())) {
+                candidates.add(member.getAddress());
+            }
+        }
+        Collections.shuffle(candidates);
+        return candidates.subList(0, Math.min(FANOUT, candidates.size()));
+    }
+
+    private class Gossiper implements Runnable {
+        public void run() {
+            logger.trace("Gossiper.run()");
+            try {
+                detectFailures();
+                byte[] gossipPacket = createGossipPacket();
+                if (gossipPacket.length > MAX_PACKET_SIZE) {
+                    logger.error("Gossiper.run(): gossip packet is too large, {} bytes",
+                            gossipPacket.length);
+                    return;
+                }
+                for (SocketAddress target : chooseTargets()) {
+                    socket.send(new DatagramPacket(gossipPacket, gossipPacket.length, target));
+                }
+            } catch (Throwable t) {
+                // the next round must still run
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    private class Receiver implements Runnable {
+        public void run() {
+            byte[] buffer = new byte[MAX_PACKET_SIZE];
+            while (!socket.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                    readGossipPacket(packet);
+                } catch (IOException e) {
+                    if (!socket.isClosed()) {
+                        logger.error(e.getMessage(), e);
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. a malformed packet
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private static class Member {
+        private final String nodeId;
+        private final PhiAccrualFailureDetector detector;
+        // all guarded by this
+        private InetSocketAddress address;
+        private long heartbeat;
+        private boolean alive = true;
+        private Member(String nodeId, InetSocketAddress address,
+                PhiAccrualFailureDetector detector) {
+            this.nodeId = nodeId;
+            this.address = address;
+            this.detector = detector;
+        }
+        private synchronized void onHeartbeat(long heartbeat, InetSocketAddress address,
+                long currentTimeMillis) {
+            if (heartbeat <= this.heartbeat) {
+                // already seen, possibly via a slower relay
+                return;
+            }
+            this.heartbeat = heartbeat;
+            this.address = address;
+            detector.heartbeat(currentTimeMillis);
+            if (!alive) {
+                logger.info("onHeartbeat(): nodeId={} is alive again", nodeId);
+                alive = true;
+            }
+        }
+        // returns false if already marked as failed
+        private synchronized boolean markFailed() {
+            if (!alive) {
+                return false;
+            }
+            alive = false;
+            return true;
+        }
+        private synchronized boolean isAlive() {
+            return alive;
+        }
+        private synchronized long getHeartbeat() {
+            return heartbeat;
+        }
+        private synchronized InetSocketAddress getAddress() {
+            return address;
+        }
+    }
+}
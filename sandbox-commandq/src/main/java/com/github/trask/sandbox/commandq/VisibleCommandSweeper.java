@@ -0,0 +1,117 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs visible commands and then sleeps until the next command becomes visible, which it learns
+ * from a min query after each run, and from this node's own reschedules in between.
+ * 
+ * @author Trask Stalnaker
+ */
+class VisibleCommandSweeper implements Runnable, RescheduleListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(VisibleCommandSweeper.class);
+
+    // upper bound on the sleep, needed for commands rescheduled by other nodes (which only wake up
+    // their own sweeper) that have since failed, this is the same as the old fixed rate poll
+    static final long MAX_SWEEP_INTERVAL_MILLIS = 30000;
+    // lower bound so that a burst of near term reschedules doesn't turn into a busy loop
+    static final long MIN_SWEEP_INTERVAL_MILLIS = 100;
+
+    private final QueuedCommandDao queuedCommandDao;
+    private final NodeAwareCommandExecutorService commandExecutorService;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final int claimBatchSize;
+    // when the executor service has a timing wheel, the sweeper instead claims commands that
+    // become visible within the horizon and hands them to the wheel, and then sleeps until the
+    // next command comes within the horizon
+    private final long scheduleHorizonMillis;
+    private final ClaimTask claimTask;
+
+    // both guarded by this
+    private ScheduledFuture<?> nextRun;
+    private long nextRunAt;
+
+    VisibleCommandSweeper(QueuedCommandDao queuedCommandDao,
+            NodeAwareCommandExecutorService commandExecutorService,
+            ScheduledExecutorService scheduledExecutorService,
+            ExecutorService claimExecutorService, int claimBatchSize, long scheduleHorizonMillis) {
+
+        this.queuedCommandDao = queuedCommandDao;
+        this.commandExecutorService = commandExecutorService;
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.claimBatchSize = claimBatchSize;
+        this.scheduleHorizonMillis = scheduleHorizonMillis;
+        claimTask = new ClaimTask(this, claimExecutorService);
+    }
+
+    public void run() {
+        logger.trace("run()");
+        synchronized (this) {
+            // this run is no longer pending
+            nextRun = null;
+        }
+        long delayMillis = MAX_SWEEP_INTERVAL_MILLIS;
+        try {
+            if (commandExecutorService.hasTimingWheel()) {
+                commandExecutorService.claimAndScheduleUpcomingCommands(scheduleHorizonMillis,
+                        claimBatchSize);
+            } else {
+                commandExecutorService.claimAndRunVisibleCommands(claimBatchSize);
+            }
+            long millisUntilNextVisible = queuedCommandDao.readMillisUntilNextVisible();
+            if (millisUntilNextVisible >= 0) {
+                delayMillis = Math.min(Math.max(millisUntilNextVisible - getHorizonMillis(),
+                        MIN_SWEEP_INTERVAL_MILLIS), MAX_SWEEP_INTERVAL_MILLIS);
+            }
+        } catch (Throwable t) {
+            // the next run must still be scheduled
+            logger.error(t.getMessage(), t);
+        }
+        wakeUpIn(delayMillis);
+    }
+
+    public void onReschedule(long delayMillis) {
+        logger.trace("onReschedule(): delayMillis={}", delayMillis);
+        wakeUpIn(Math.max(delayMillis - getHorizonMillis(), MIN_SWEEP_INTERVAL_MILLIS));
+    }
+
+    // only moves the next run earlier, never later
+    synchronized void wakeUpIn(long delayMillis) {
+        long runAt = System.currentTimeMillis() + delayMillis;
+        if (nextRun != null) {
+            if (runAt >= nextRunAt) {
+                return;
+            }
+            nextRun.cancel(false);
+        }
+        nextRunAt = runAt;
+        nextRun = scheduledExecutorService.schedule(claimTask, delayMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private long getHorizonMillis() {
+        return commandExecutorService.hasTimingWheel() ? scheduleHorizonMillis : 0;
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.trask.sandbox.executors.DaemonExecutors;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Groups queued command inserts and deletes from many threads into bulk writes of up to
+ * maxBatchSize operations, waiting at most maxDelayMillis for a batch to fill up.
+ * 
+ * @author Trask Stalnaker
+ */
+public class WriteBehindQueuedCommandWriter {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(WriteBehindQueuedCommandWriter.class);
+
+    private final QueuedCommandDao queuedCommandDao;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+
+    // contains PendingInsert and ObjectId (pending delete) elements
+    private final BlockingQueue<Object> pendingOperations = new LinkedBlockingQueue<Object>();
+    private final ExecutorService flushExecutorService;
+
+    // the read lock is held while checking shutdown and adding a pending operation, so that
+    // shutdown (which sets it under the write lock) never misses an operation in its final drain
+    private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+    private volatile boolean shutdown;
+
+    public WriteBehindQueuedCommandWriter(QueuedCommandDao queuedCommandDao, int maxBatchSize,
+            long maxDelayMillis) {
+
+        this.queuedCommandDao = queuedCommandDao;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        flushExecutorService = DaemonExecutors.newSingleThreadExecutor("CommandWriteBehind");
+        flushExecutorService.execute(new FlushLoop());
+    }
+
+    // the future completes once the insert has been acknowledged by the datastore, from which
+    // point on the command survives the failure of this node
+    public ListenableFuture<ObjectId> lockAndInsert(Command command) {
+        logger.trace("lockAndInsert(): command={}", command);
+        PendingInsert pendingInsert = new PendingInsert(command);
+        if (!addPendingOperation(pendingInsert)) {
+            pendingInsert.future.setException(new IllegalStateException(
+                    "Write behind writer already shutdown"));
+        }
+        return pendingInsert.future;
+    }
+
+    public void delete(ObjectId id) {
+        logger.trace("delete(): id={}", id);
+        if (!addPendingOperation(id)) {
+            queuedCommandDao.delete(id);
+        }
+    }
+
+    // writes any pending operations before returning
+    public void shutdown() {
+        shutdownLock.writeLock().lock();
+        try {
+            shutdown = true;
+        } finally {
+            shutdownLock.writeLock().unlock();
+        }
+        flushExecutorService.shutdownNow();
+        try {
+            flushExecutorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // returns false if already shutdown
+    private boolean addPendingOperation(Object operation) {
+        shutdownLock.readLock().lock();
+        try {
+            if (shutdown) {
+                return false;
+            }
+            pendingOperations.add(operation);
+            return true;
+        } finally {
+            shutdownLock.readLock().unlock();
+        }
+    }
+
+    private void flush(List<Object> batch) {
+        List<PendingInsert> pendingInserts = new ArrayList<PendingInsert>();
+        List<ObjectId> pendingDeletes = new ArrayList<ObjectId>();
+        for (Object operation : batch) {
+            if (operation instanceof PendingInsert) {
+                pendingInserts.add((PendingInsert) operation);
+            } else {
+                pendingDeletes.add((ObjectId) operation);
+            }
+        }
+        if (!pendingInserts.isEmpty()) {
+            flushInserts(pendingInserts);
+        }
+        if (!pendingDeletes.isEmpty()) {
+            flushDeletes(pendingDeletes);
+        }
+    }
+
+    private void flushInserts(List<PendingInsert> pendingInserts) {
+        logger.debug("flushInserts(): size={}", pendingInserts.size());
+        List<Command> commands = new ArrayList<Command>(pendingInserts.size());
+        for (PendingInsert pendingInsert : pendingInserts) {
+            commands.add(pendingInsert.command);
+        }
+        List<ObjectId> ids;
+        try {
+            ids = queuedCommandDao.lockAndInsertAll(commands);
+        } catch (RuntimeException e) {
+            logger.error(e.getMessage(), e);
+            for (PendingInsert pendingInsert : pendingInserts) {
+                pendingInsert.future.setException(e);
+            }
+            return;
+        }
+        for (int i = 0; i < pendingInserts.size(); i++) {
+            pendingInserts.get(i).future.set(ids.get(i));
+        }
+    }
+
+    private void flushDeletes(List<ObjectId> pendingDeletes) {
+        logger.debug("flushDeletes(): size={}", pendingDeletes.size());
+        try {
+            queuedCommandDao.deleteAll(pendingDeletes);
+        } catch (RuntimeException e) {
+            // the commands have already run successfully, worst case is that they will be picked
+            // up and run again once they are detected as orphaned
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private class FlushLoop implements Runnable {
+        public void run() {
+            List<Object> batch = new ArrayList<Object>(maxBatchSize);
+            while (!shutdown) {
+                try {
+                    batch.add(pendingOperations.take());
+                    long deadline = System.currentTimeMillis() + maxDelayMillis;
+                    while (batch.size() < maxBatchSize) {
+                        long remainingMillis = deadline - System.currentTimeMillis();
+                        if (remainingMillis <= 0) {
+                            break;
+                        }
+                        Object operation =
+                                pendingOperations.poll(remainingMillis, TimeUnit.MILLISECONDS);
+                        if (operation == null) {
+                            break;
+                        }
+                        batch.add(operation);
+                    }
+                } catch (InterruptedException e) {
+                    // shutdown, fall through to flush whatever has been collected so far
+                }
+                flush(batch);
+                batch.clear();
+            }
+            // flush operations that were added while shutting down
+            pendingOperations.drainTo(batch);
+            while (!batch.isEmpty()) {
+                int size = Math.min(batch.size(), maxBatchSize);
+                flush(new ArrayList<Object>(batch.subList(0, size)));
+                batch.subList(0, size).clear();
+            }
+        }
+    }
+
+    private static class PendingInsert {
+        private final Command command;
+        private final SettableFuture<ObjectId> future = SettableFuture.create();
+        private PendingInsert(Command command) {
+            this.command = command;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class AdaptiveConcurrencyLimiterTest {
+
+    @Test
+    public void shouldRejectAtLimit() {
+        // given
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10, 0);
+        limiter.tryAcquire(MockCommand.class);
+        limiter.tryAcquire(MockCommand.class);
+        // when
+        boolean acquired = limiter.tryAcquire(MockCommand.class);
+        // then
+        assertThat(acquired, is(false));
+        assertThat(limiter.getInFlight(MockCommand.class), is(2));
+    }
+
+    @Test
+    public void shouldLimitEachCommandClassSeparately() {
+        // given
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 10, 0);
+        limiter.tryAcquire(MockCommand.class);
+        // when
+        boolean acquired = limiter.tryAcquire(MockBatchableCommand.class);
+        // then
+        assertThat(acquired, is(true));
+    }
+
+    @Test
+    public void shouldAcquireOnceReleased() {
+        // given
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 1, 10, 0);
+        limiter.tryAcquire(MockCommand.class);
+        limiter.releaseUnused(MockCommand.class);
+        // when
+        boolean acquired = limiter.tryAcquire(MockCommand.class);
+        // then
+        assertThat(acquired, is(true));
+    }
+
+    @Test
+    public void shouldIncreaseLimitWhileLatencyIsSteady() {
+        // given
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 1, 10, 0);
+        // when
+        for (int i = 0; i < 20; i++) {
+            limiter.tryAcquire(MockCommand.class);
+            limiter.tryAcquire(MockCommand.class);
+            limiter.release(MockCommand.class, 1000000);
+            limiter.release(MockCommand.class, 1000000);
+        }
+        // then
+        assertThat(limiter.getLimit(MockCommand.class) > 2, is(true));
+    }
+
+    @Test
+    public void shouldNotIncreaseLimitWhileMostOfItIsUnused() {
+        // given
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100, 0);
+        // when
+        for (int i = 0; i < 100; i++) {
+            limiter.tryAcquire(MockCommand.class);
+            limiter.release(MockCommand.class, 1000000);
+        }
+        // then
+        assertThat(limiter.getLimit(MockCommand.class), is(10));
+    }
+
+    @Test
+    public void shouldDecreaseLimitWhenLatencyClimbs() {
+        // given
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100, 0);
+        limiter.tryAcquire(MockCommand.class);
+        limiter.release(MockCommand.class, 1000000);
+        // when
+        limiter.tryAcquire(MockCommand.class);
+        limiter.release(MockCommand.class, 10000000);
+        // then
+        assertThat(limiter.getLimit(MockCommand.class), is(9));
+    }
+
+    @Test
+    public void shouldDecreaseLimitAtMostOncePerLimitOfExecutions() {
+        // given
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(10, 1, 100, 0);
+        limiter.tryAcquire(MockCommand.class);
+        limiter.release(MockCommand.class, 1000000);
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire(MockCommand.class);
+        }
+        // when
+        for (int i = 0; i < 9; i++) {
+            limiter.release(MockCommand.class, 10000000);
+        }
+        // then
+        assertThat(limiter.getLimit(MockCommand.class), is(9));
+        limiter.release(MockCommand.class, 10000000);
+        assertThat(limiter.getLimit(MockCommand.class), is(8));
+    }
+
+    @Test
+    public void shouldNotDecreaseLimitBelowMin() {
+        // given
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 2, 100, 0);
+        limiter.tryAcquire(MockCommand.class);
+        limiter.release(MockCommand.class, 1000000);
+        // when
+        for (int i = 0; i < 10; i++) {
+            limiter.tryAcquire(MockCommand.class);
+            limiter.release(MockCommand.class, 10000000);
+        }
+        // then
+        assertThat(limiter.getLimit(MockCommand.class), is(2));
+    }
+}
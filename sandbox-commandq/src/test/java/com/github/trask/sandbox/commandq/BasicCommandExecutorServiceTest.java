@@ -18,15 +18,37 @@ package com.github.trask.sandbox.commandq;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.bson.types.ObjectId;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InOrder;
 
+import com.github.trask.sandbox.clock.MockClock;
+import com.github.trask.sandbox.commandq.BatchableCommand.BatchItemFailedException;
+import com.github.trask.sandbox.executors.Backoff.Jitter;
+import com.github.trask.sandbox.executors.RetryBudget;
+import com.google.common.base.Ticker;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
@@ -38,13 +60,14 @@ public class BasicCommandExecutorServiceTest {
 
     private QueuedCommandDao queuedCommandDao;
     private MockCommandService mockCommandService;
+    private Injector injector;
     private BasicCommandExecutorService commandExecutorService;
 
     @Before
     public void before() {
         queuedCommandDao = mock(QueuedCommandDao.class);
         mockCommandService = new MockCommandService();
-        Injector injector = Guice.createInjector(new AbstractModule() {
+        injector = Guice.createInjector(new AbstractModule() {
             @Override
             protected void configure() {
                 bind(MockCommandService.class).toInstance(mockCommandService);
@@ -86,6 +109,24 @@ public class BasicCommandExecutorServiceTest {
         inOrder.verify(queuedCommandDao).delete(eq(id));
     }
 
+    @Test
+    public void shouldExecuteThenDeleteWithoutLockingOnClaimedRun() throws Exception {
+        // given
+        ObjectId id = new ObjectId();
+        Command command = mock(Command.class);
+        QueuedCommand queuedCommand = new QueuedCommand();
+        queuedCommand.setId(id);
+        queuedCommand.setCommand(command);
+        queuedCommand.setNFailures(1);
+        // when
+        commandExecutorService.runClaimedCommand(queuedCommand);
+        // then
+        verify(queuedCommandDao, never()).lock(id);
+        InOrder inOrder = inOrder(queuedCommandDao, command);
+        inOrder.verify(command).execute();
+        inOrder.verify(queuedCommandDao).delete(eq(id));
+    }
+
     @Test
     public void shouldInjectCommandOnInitialRun() {
         // given
@@ -112,4 +153,211 @@ public class BasicCommandExecutorServiceTest {
         // then
         assertThat(command.getCommandService(), is(mockCommandService));
     }
+
+    @Test
+    public void shouldNotWriteWhenCommandCompletesWithinDeferredPersistGracePeriod()
+            throws Exception {
+
+        // given
+        BasicCommandExecutorService commandExecutorService = newDeferredPersistService();
+        Command command = mock(Command.class);
+        // when
+        commandExecutorService.queueAndRunCommand(command);
+        // then
+        verify(command).execute();
+        verifyZeroInteractions(queuedCommandDao);
+    }
+
+    @Test
+    public void shouldInsertForRetryWhenCommandFailsWithinDeferredPersistGracePeriod()
+            throws Exception {
+
+        // given
+        BasicCommandExecutorService commandExecutorService = newDeferredPersistService();
+        Command command = mock(Command.class);
+        doThrow(new Exception()).when(command).execute();
+        given(command.retryPolicy()).willReturn(new RetryPolicy(10, 100, 5));
+        // when
+        commandExecutorService.queueAndRunCommand(command);
+        // then
+        verify(queuedCommandDao).insertForRetry(eq(command), anyLong());
+        verify(queuedCommandDao, never()).lockAndInsert(command);
+    }
+
+    @Test
+    public void shouldDeleteSucceededAndRescheduleFailedCommandsOfBatch() {
+        // given
+        List<QueuedCommand> batch = new ArrayList<QueuedCommand>();
+        ObjectId id1 = new ObjectId();
+        ObjectId id2 = new ObjectId();
+        ObjectId id3 = new ObjectId();
+        batch.add(newQueuedCommand(id1, new MockBatchableCommand(true)));
+        batch.add(newQueuedCommand(id2, new MockBatchableCommand(false)));
+        batch.add(newQueuedCommand(id3, new MockBatchableCommand(true)));
+        // when
+        commandExecutorService.runClaimedCommandBatch(batch);
+        // then
+        verify(queuedCommandDao).deleteAll(eq(Arrays.asList(id1, id3)));
+        verify(queuedCommandDao).rescheduleOnFailure(eq(id2), anyLong());
+        verify(queuedCommandDao, never()).delete(any(ObjectId.class));
+    }
+
+    @Test
+    public void shouldDeadLetterThenDeleteOnceRetriesAreExhausted() throws Exception {
+        // given
+        DeadLetterDao deadLetterDao = mock(DeadLetterDao.class);
+        BasicCommandExecutorService commandExecutorService = new BasicCommandExecutorService(
+                queuedCommandDao, injector, null, null, 0, deadLetterDao);
+        ObjectId id = new ObjectId();
+        Command command = mock(Command.class);
+        Exception exception = new Exception();
+        doThrow(exception).when(command).execute();
+        given(command.retryPolicy()).willReturn(new RetryPolicy(10, 100, 5));
+        QueuedCommand queuedCommand = newQueuedCommand(id, command);
+        queuedCommand.setNFailures(5);
+        // when
+        commandExecutorService.runClaimedCommand(queuedCommand);
+        // then
+        InOrder inOrder = inOrder(deadLetterDao, queuedCommandDao);
+        inOrder.verify(deadLetterDao).insert(command, 6, exception);
+        inOrder.verify(queuedCommandDao).delete(eq(id));
+        verify(queuedCommandDao, never()).rescheduleOnFailure(any(ObjectId.class), anyLong());
+    }
+
+    @Test
+    public void shouldDeadLetterFailedCommandOfBatchWithItsFailure() {
+        // given
+        DeadLetterDao deadLetterDao = mock(DeadLetterDao.class);
+        BasicCommandExecutorService commandExecutorService = new BasicCommandExecutorService(
+                queuedCommandDao, injector, null, null, 0, deadLetterDao);
+        ObjectId id = new ObjectId();
+        MockBatchableCommand command = new MockBatchableCommand(false);
+        QueuedCommand queuedCommand = newQueuedCommand(id, command);
+        queuedCommand.setNFailures(5);
+        // when
+        commandExecutorService.runClaimedCommandBatch(Arrays.asList(queuedCommand));
+        // then
+        verify(deadLetterDao).insert(eq(command), eq(6), isA(BatchItemFailedException.class));
+        verify(queuedCommandDao).delete(eq(id));
+    }
+
+    @Test
+    public void shouldNotDeadLetterBeforeRetriesAreExhausted() throws Exception {
+        // given
+        DeadLetterDao deadLetterDao = mock(DeadLetterDao.class);
+        BasicCommandExecutorService commandExecutorService = new BasicCommandExecutorService(
+                queuedCommandDao, injector, null, null, 0, deadLetterDao);
+        ObjectId id = new ObjectId();
+        Command command = mock(Command.class);
+        doThrow(new Exception()).when(command).execute();
+        given(command.retryPolicy()).willReturn(new RetryPolicy(10, 100, 5));
+        QueuedCommand queuedCommand = newQueuedCommand(id, command);
+        queuedCommand.setNFailures(4);
+        // when
+        commandExecutorService.runClaimedCommand(queuedCommand);
+        // then
+        verify(queuedCommandDao).rescheduleOnFailure(eq(id), anyLong());
+        verifyZeroInteractions(deadLetterDao);
+    }
+
+    @Test
+    public void shouldRecordRetriesAndExhaustions() throws Exception {
+        // given
+        CommandQueueMetrics metrics = mock(CommandQueueMetrics.class);
+        BasicCommandExecutorService commandExecutorService = new BasicCommandExecutorService(
+                queuedCommandDao, injector, null, null, 0, null, metrics);
+        Command command = mock(Command.class);
+        doThrow(new Exception()).when(command).execute();
+        given(command.retryPolicy()).willReturn(new RetryPolicy(10, 100, 1));
+        QueuedCommand queuedCommand = newQueuedCommand(new ObjectId(), command);
+        // when
+        commandExecutorService.runClaimedCommand(queuedCommand);
+        queuedCommand.setNFailures(1);
+        commandExecutorService.runClaimedCommand(queuedCommand);
+        // then
+        verify(metrics).recordRetry();
+        verify(metrics).recordExhaustion();
+        verify(metrics, never()).recordExecute(anyLong());
+    }
+
+    @Test
+    public void shouldBackOffExponentiallyUpToMaxBackoff() throws Exception {
+        // given
+        ObjectId id = new ObjectId();
+        Command command = mock(Command.class);
+        doThrow(new Exception()).when(command).execute();
+        given(command.retryPolicy()).willReturn(new RetryPolicy(10, 100, 10, Jitter.NONE));
+        QueuedCommand queuedCommand = newQueuedCommand(id, command);
+        // when
+        queuedCommand.setNFailures(3);
+        commandExecutorService.runClaimedCommand(queuedCommand);
+        queuedCommand.setNFailures(4);
+        commandExecutorService.runClaimedCommand(queuedCommand);
+        // then
+        InOrder inOrder = inOrder(queuedCommandDao);
+        inOrder.verify(queuedCommandDao).rescheduleOnFailure(id, 80000);
+        inOrder.verify(queuedCommandDao).rescheduleOnFailure(id, 100000);
+    }
+
+    @Test
+    public void shouldHoldBackRetriesBeyondRetryBudget() throws Exception {
+        // given
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return 0;
+            }
+        };
+        // one retry per first attempt, with no minimum rate
+        RetryBudget retryBudget = new RetryBudget(1, 0, 1, ticker);
+        BasicCommandExecutorService commandExecutorService = new BasicCommandExecutorService(
+                queuedCommandDao, injector, null, null, 0, null, null, retryBudget);
+        ObjectId id = new ObjectId();
+        Command command = mock(Command.class);
+        doThrow(new Exception()).when(command).execute();
+        given(command.retryPolicy()).willReturn(new RetryPolicy(10, 100, 5, Jitter.NONE));
+        QueuedCommand queuedCommand = newQueuedCommand(id, command);
+        // when
+        commandExecutorService.runClaimedCommand(queuedCommand);
+        queuedCommand.setNFailures(1);
+        commandExecutorService.runClaimedCommand(queuedCommand);
+        // then
+        InOrder inOrder = inOrder(queuedCommandDao);
+        inOrder.verify(queuedCommandDao).rescheduleOnFailure(id, 10000);
+        inOrder.verify(queuedCommandDao).rescheduleOnFailure(id, 100000);
+    }
+
+    @Test
+    public void shouldReplayDeadLettersInBatches() throws Exception {
+        // given
+        DeadLetterDao deadLetterDao = new InMemoryDeadLetterDao("unittest/1.0", new MockClock());
+        BasicCommandExecutorService commandExecutorService = new BasicCommandExecutorService(
+                queuedCommandDao, injector, null, null, 0, deadLetterDao);
+        for (int i = 0; i < 5; i++) {
+            deadLetterDao.insert(new MockCommand(i, "test"), 6, new Exception());
+        }
+        // when
+        int count = commandExecutorService.replayDeadLetters(new DeadLetterFilter(), 2, 1000);
+        // then
+        assertThat(count, is(5));
+        verify(queuedCommandDao, times(3)).insertAll(anyListOf(Command.class));
+        assertThat(deadLetterDao.readDeadLetters(new DeadLetterFilter(), null, 10).size(),
+                is(0));
+    }
+
+    private static QueuedCommand newQueuedCommand(ObjectId id, Command command) {
+        QueuedCommand queuedCommand = new QueuedCommand();
+        queuedCommand.setId(id);
+        queuedCommand.setCommand(command);
+        return queuedCommand;
+    }
+
+    private BasicCommandExecutorService newDeferredPersistService() {
+        ScheduledExecutorService scheduledExecutorService = mock(ScheduledExecutorService.class);
+        // the grace period never expires during these tests
+        doReturn(mock(ScheduledFuture.class)).when(scheduledExecutorService).schedule(
+                any(Runnable.class), anyLong(), any(TimeUnit.class));
+        return new BasicCommandExecutorService(queuedCommandDao, injector, null,
+                scheduledExecutorService, 1000);
+    }
 }
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class CommandCodecRegistryTest {
+
+    private CommandCodecRegistry commandCodecRegistry;
+
+    @Before
+    public void before() {
+        commandCodecRegistry = new CommandCodecRegistry();
+        commandCodecRegistry.register(300, MockCommand.class, new MockCommandCodec());
+    }
+
+    @Test
+    public void shouldEncodeAndDecode() {
+        // given
+        byte[] bytes = commandCodecRegistry.encode(new MockCommand(1, "test"));
+        // when
+        MockCommand command = (MockCommand) commandCodecRegistry.decode(bytes);
+        // then
+        assertThat(command.getAbc(), is(1));
+        assertThat(command.getXyz(), is("test"));
+        // two byte type id, four byte int, two byte length and four byte string
+        assertThat(bytes.length, is(12));
+    }
+
+    @Test
+    public void shouldNotEncodeUnregisteredCommand() {
+        // when
+        byte[] bytes = commandCodecRegistry.encode(new MockPrioritizedCommand(Priority.High));
+        // then
+        assertThat(bytes, is(nullValue()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotRegisterTypeIdTwice() {
+        // when
+        commandCodecRegistry.register(300, MockPrioritizedCommand.class,
+                new CommandCodec<MockPrioritizedCommand>() {
+                    public void encode(MockPrioritizedCommand command, DataOutput out) {}
+                    public MockPrioritizedCommand decode(DataInput in) {
+                        return null;
+                    }
+                });
+    }
+
+    @Test
+    public void shouldDecodeLazily() {
+        // given
+        QueuedCommand queuedCommand = new QueuedCommand();
+        queuedCommand.setCommandBytes(commandCodecRegistry.encode(new MockCommand(1, "test")));
+        queuedCommand.setCommandCodecRegistry(commandCodecRegistry);
+        // when
+        MockCommand command = (MockCommand) queuedCommand.getCommand();
+        // then
+        assertThat(command.getXyz(), is("test"));
+        assertThat(queuedCommand.getCommand() == command, is(true));
+    }
+}
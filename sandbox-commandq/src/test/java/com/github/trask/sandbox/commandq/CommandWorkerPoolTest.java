@@ -0,0 +1,170 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.github.trask.sandbox.clock.MockClock;
+import com.google.inject.Guice;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class CommandWorkerPoolTest {
+
+    private static final String APP_ID = "unittest/1.0";
+    private static final String NODE_ID = "unittest/" + System.currentTimeMillis();
+
+    private CommandWorkerPool workerPool;
+    private final CountDownLatch releaseLatch = new CountDownLatch(1);
+
+    @After
+    public void after() {
+        releaseLatch.countDown();
+        workerPool.shutdown();
+    }
+
+    @Test
+    public void shouldBlockCommandOfLimitedClassAtItsLimit() throws Exception {
+        // given
+        workerPool = new CommandWorkerPool(4, 10,
+                Collections.<Class<? extends Command>, Integer> singletonMap(MockCommand.class,
+                        2));
+        workerPool.execute(new MockCommand(1, "test"), new BlockingTask());
+        workerPool.execute(new MockCommand(2, "test"), new BlockingTask());
+        final CountDownLatch executedLatch = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                workerPool.execute(new MockCommand(3, "test"), new BlockingTask());
+                executedLatch.countDown();
+            }
+        };
+        // when
+        thread.start();
+        // then
+        assertThat(executedLatch.await(100, TimeUnit.MILLISECONDS), is(false));
+        // other command classes are not limited
+        workerPool.execute(new MockPrioritizedCommand(Priority.High), new BlockingTask());
+        releaseLatch.countDown();
+        assertThat(executedLatch.await(1, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void shouldRunOnCallerWhenSaturated() throws Exception {
+        // given
+        workerPool = new CommandWorkerPool(1, 1);
+        workerPool.execute(new MockCommand(1, "test"), new BlockingTask());
+        workerPool.execute(new MockCommand(2, "test"), new BlockingTask());
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        // when
+        workerPool.execute(new MockCommand(3, "test"), new Runnable() {
+            public void run() {
+                thread.set(Thread.currentThread());
+            }
+        });
+        // then
+        assertThat(thread.get(), is(Thread.currentThread()));
+    }
+
+    @Test
+    public void shouldRejectAfterShutdown() {
+        // given
+        workerPool = new CommandWorkerPool(1, 1,
+                Collections.<Class<? extends Command>, Integer> singletonMap(MockCommand.class,
+                        1));
+        workerPool.shutdown();
+        final AtomicBoolean ran = new AtomicBoolean();
+        Runnable task = new Runnable() {
+            public void run() {
+                ran.set(true);
+            }
+        };
+        int nRejected = 0;
+        // when
+        for (int i = 0; i < 2; i++) {
+            // the second attempt would block if the first one did not release its permit
+            try {
+                workerPool.execute(new MockCommand(1, "test"), task);
+                fail();
+            } catch (RejectedExecutionException e) {
+                nRejected++;
+            }
+        }
+        // then
+        assertThat(nRejected, is(2));
+        assertThat(ran.get(), is(false));
+    }
+
+    @Test
+    public void shouldDispatchClaimedCommandsToPool() throws Exception {
+        // given
+        workerPool = new CommandWorkerPool(2, 10);
+        MockClock clock = new MockClock();
+        clock.updateTime();
+        QueuedCommandDao queuedCommandDao = new InMemoryQueuedCommandDao(NODE_ID, APP_ID, clock);
+        NodeAwareCommandExecutorService commandExecutorService =
+                new NodeAwareCommandExecutorService(new BasicCommandExecutorService(
+                        queuedCommandDao, Guice.createInjector()),
+                        new InMemoryQueueNodeDao(NODE_ID, APP_ID, clock), workerPool);
+        ThreadRecordingCommand command = new ThreadRecordingCommand();
+        queuedCommandDao.insertAll(Arrays.<Command> asList(command));
+        // when
+        commandExecutorService.claimAndRunVisibleCommands(10);
+        // then
+        assertThat(command.executedLatch.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(command.thread.getName().startsWith("CommandWorker"), is(true));
+        commandExecutorService.shutdown();
+    }
+
+    private class BlockingTask implements Runnable {
+        public void run() {
+            try {
+                releaseLatch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class ThreadRecordingCommand implements Command {
+
+        private final CountDownLatch executedLatch = new CountDownLatch(1);
+        private volatile Thread thread;
+
+        public void execute() {
+            thread = Thread.currentThread();
+            executedLatch.countDown();
+        }
+
+        public RetryPolicy retryPolicy() {
+            return new RetryPolicy(10, 100, 5);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class DailyScheduleTest {
+
+    private static final String TIME_ZONE_ID = "America/Los_Angeles";
+
+    @Test
+    public void shouldRunLaterToday() {
+        // given
+        Schedule schedule = new DailySchedule(14, 30, TIME_ZONE_ID);
+        // when
+        long nextRunAt = schedule.nextRunAfter(getTimeMillis(2011, Calendar.MARCH, 1, 9, 0));
+        // then
+        assertThat(nextRunAt, is(getTimeMillis(2011, Calendar.MARCH, 1, 14, 30)));
+    }
+
+    @Test
+    public void shouldRunTomorrowWhenAlreadyPassed() {
+        // given
+        Schedule schedule = new DailySchedule(14, 30, TIME_ZONE_ID);
+        // when
+        long nextRunAt = schedule.nextRunAfter(getTimeMillis(2011, Calendar.MARCH, 1, 14, 30));
+        // then
+        assertThat(nextRunAt, is(getTimeMillis(2011, Calendar.MARCH, 2, 14, 30)));
+    }
+
+    @Test
+    public void shouldKeepLocalTimeAcrossDaylightSavingTime() {
+        // given
+        Schedule schedule = new DailySchedule(9, 0, TIME_ZONE_ID);
+        // when (daylight saving time started on march 13th 2011)
+        long nextRunAt = schedule.nextRunAfter(getTimeMillis(2011, Calendar.MARCH, 12, 10, 0));
+        // then
+        assertThat(nextRunAt, is(getTimeMillis(2011, Calendar.MARCH, 13, 9, 0)));
+    }
+
+    private static long getTimeMillis(int year, int month, int day, int hourOfDay, int minute) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone(TIME_ZONE_ID));
+        calendar.clear();
+        calendar.set(year, month, day, hourOfDay, minute);
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class FixedRateScheduleTest {
+
+    @Test
+    public void shouldRunAtStartFirst() {
+        // given
+        Schedule schedule = new FixedRateSchedule(1000, 100);
+        // when
+        long nextRunAt = schedule.nextRunAfter(500);
+        // then
+        assertThat(nextRunAt, is(1000L));
+    }
+
+    @Test
+    public void shouldRunStrictlyAfterGivenTime() {
+        // given
+        Schedule schedule = new FixedRateSchedule(1000, 100);
+        // when
+        long nextRunAt = schedule.nextRunAfter(1100);
+        // then
+        assertThat(nextRunAt, is(1200L));
+    }
+
+    @Test
+    public void shouldSkipMissedRuns() {
+        // given
+        Schedule schedule = new FixedRateSchedule(1000, 100);
+        // when
+        long nextRunAt = schedule.nextRunAfter(1555);
+        // then
+        assertThat(nextRunAt, is(1600L));
+    }
+}
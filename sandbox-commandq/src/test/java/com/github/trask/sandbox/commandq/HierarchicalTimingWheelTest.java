@@ -0,0 +1,137 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class HierarchicalTimingWheelTest {
+
+    private HierarchicalTimingWheel timingWheel;
+
+    @Before
+    public void before() {
+        timingWheel = new HierarchicalTimingWheel(new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+    }
+
+    @After
+    public void after() {
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void shouldRunInOrder() throws InterruptedException {
+        // given
+        final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch latch = new CountDownLatch(3);
+        long currentTimeMillis = System.currentTimeMillis();
+        // when
+        timingWheel.schedule(new Recorder(3, order, latch), currentTimeMillis + 90);
+        timingWheel.schedule(new Recorder(1, order, latch), currentTimeMillis + 30);
+        timingWheel.schedule(new Recorder(2, order, latch), currentTimeMillis + 60);
+        // then
+        assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(order.get(0), is(1));
+        assertThat(order.get(1), is(2));
+        assertThat(order.get(2), is(3));
+        assertThat(timingWheel.size(), is(0));
+    }
+
+    @Test
+    public void shouldNotRunEarly() throws InterruptedException {
+        // given
+        final long runAtMillis = System.currentTimeMillis() + 200;
+        final long[] ranAtMillis = new long[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        // when
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+                ranAtMillis[0] = System.currentTimeMillis();
+                latch.countDown();
+            }
+        }, runAtMillis);
+        // then
+        assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(ranAtMillis[0] >= runAtMillis, is(true));
+    }
+
+    // beyond the first wheel, so it cascades down from an overflow wheel
+    @Test
+    public void shouldRunBeyondFirstWheel() throws InterruptedException {
+        // given
+        final long runAtMillis = System.currentTimeMillis()
+                + HierarchicalTimingWheel.DEFAULT_WHEEL_SIZE * 5;
+        final long[] ranAtMillis = new long[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        // when
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+                ranAtMillis[0] = System.currentTimeMillis();
+                latch.countDown();
+            }
+        }, runAtMillis);
+        // then
+        assertThat(timingWheel.size(), is(1));
+        assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(ranAtMillis[0] >= runAtMillis, is(true));
+    }
+
+    @Test
+    public void shouldRunDueTaskRightAway() {
+        // given
+        final boolean[] ran = new boolean[1];
+        // when
+        timingWheel.schedule(new Runnable() {
+            public void run() {
+                ran[0] = true;
+            }
+        }, System.currentTimeMillis() - 1);
+        // then
+        assertThat(ran[0], is(true));
+    }
+
+    private static class Recorder implements Runnable {
+        private final int number;
+        private final List<Integer> order;
+        private final CountDownLatch latch;
+        private Recorder(int number, List<Integer> order, CountDownLatch latch) {
+            this.number = number;
+            this.order = order;
+            this.latch = latch;
+        }
+        public void run() {
+            order.add(number);
+            latch.countDown();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.clock.MockClock;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class InMemoryDeadLetterDaoTest {
+
+    private static final String APP_ID = "unittest/1.0";
+
+    private MockClock clock;
+    private DeadLetterDao deadLetterDao;
+
+    @Before
+    public void before() {
+        clock = new MockClock();
+        deadLetterDao = new InMemoryDeadLetterDao(APP_ID, clock, 3);
+    }
+
+    @Test
+    public void shouldInsertWithLastFailure() {
+        // given
+        long mockTimeMillis = clock.updateTime();
+        MockCommand command = new MockCommand(1, "test");
+        // when
+        deadLetterDao.insert(command, 6, new IllegalStateException("xyz"));
+        // then
+        List<DeadLetter> deadLetters =
+                deadLetterDao.readDeadLetters(new DeadLetterFilter(), null, 10);
+        assertThat(deadLetters.size(), is(1));
+        DeadLetter deadLetter = deadLetters.get(0);
+        assertThat(deadLetter.getCommand() == command, is(true));
+        assertThat(deadLetter.getAppId(), is(APP_ID));
+        assertThat(deadLetter.getCommandClassName(), is(MockCommand.class.getName()));
+        assertThat(deadLetter.getNFailures(), is(6));
+        assertThat(deadLetter.getLastExceptionClassName(),
+                is(IllegalStateException.class.getName()));
+        assertThat(deadLetter.getLastExceptionMessage(), is("xyz"));
+        assertThat(deadLetter.getDeadAt(), is(mockTimeMillis));
+        assertThat(deadLetter.getReplayedAt(), is(0L));
+    }
+
+    @Test
+    public void shouldDiscardOldestOnceFull() {
+        // given
+        for (int i = 0; i < 4; i++) {
+            deadLetterDao.insert(new MockCommand(i, "test"), 1, null);
+        }
+        // when
+        List<DeadLetter> deadLetters =
+                deadLetterDao.readDeadLetters(new DeadLetterFilter(), null, 10);
+        // then
+        assertThat(deadLetters.size(), is(3));
+        assertThat(((MockCommand) deadLetters.get(0).getCommand()).getAbc(), is(1));
+    }
+
+    @Test
+    public void shouldFilterByCommandClassAndDeadAt() {
+        // given
+        long mockTimeMillis = clock.updateTime();
+        deadLetterDao.insert(new MockCommand(1, "test"), 1, null);
+        clock.forwardTime(1000);
+        deadLetterDao.insert(new MockCommand(2, "test"), 1, null);
+        deadLetterDao.insert(new MockBatchableCommand(true), 1, null);
+        // when
+        List<DeadLetter> deadLetters = deadLetterDao.readDeadLetters(
+                new DeadLetterFilter(MockCommand.class.getName(), mockTimeMillis + 1000, 0),
+                null, 10);
+        // then
+        assertThat(deadLetters.size(), is(1));
+        assertThat(((MockCommand) deadLetters.get(0).getCommand()).getAbc(), is(2));
+    }
+
+    @Test
+    public void shouldNotReadReplayed() {
+        // given
+        clock.updateTime();
+        deadLetterDao.insert(new MockCommand(1, "test"), 1, null);
+        deadLetterDao.insert(new MockCommand(2, "test"), 1, null);
+        DeadLetter first = deadLetterDao.readDeadLetters(new DeadLetterFilter(), null, 1).get(0);
+        // when
+        deadLetterDao.markReplayed(Arrays.asList(first.getId()));
+        // then
+        List<DeadLetter> deadLetters =
+                deadLetterDao.readDeadLetters(new DeadLetterFilter(), null, 10);
+        assertThat(deadLetters.size(), is(1));
+        assertThat(((MockCommand) deadLetters.get(0).getCommand()).getAbc(), is(2));
+    }
+
+    @Test
+    public void shouldCountSince() {
+        // given
+        long mockTimeMillis = clock.updateTime();
+        deadLetterDao.insert(new MockCommand(1, "test"), 1, null);
+        clock.forwardTime(1000);
+        deadLetterDao.insert(new MockCommand(2, "test"), 1, null);
+        // when
+        long count = deadLetterDao.countSince(mockTimeMillis + 1000);
+        // then
+        assertThat(count, is(1L));
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.clock.MockClock;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class InMemoryQueueNodeDaoTest {
+
+    private static final String APP_ID = "unittest/1.0";
+
+    private MockClock clock;
+    private ConcurrentMap<String, QueueNode> queueNodes;
+
+    @Before
+    public void before() {
+        clock = new MockClock();
+        clock.updateTime();
+        queueNodes = new ConcurrentHashMap<String, QueueNode>();
+    }
+
+    @Test
+    public void shouldDeleteFailedNodes() {
+        // given
+        QueueNodeDao failedNodeDao = newQueueNodeDao("failed");
+        QueueNodeDao failedWithLocksNodeDao = newQueueNodeDao("failedWithLocks");
+        failedWithLocksNodeDao.updateAliveAtAndLockedCommands(true);
+        clock.forwardTime(3600000);
+        QueueNodeDao liveNodeDao = newQueueNodeDao("live");
+        // when
+        int count = liveNodeDao.deleteFailedNodes(1800);
+        // then
+        assertThat(count, is(2));
+        assertThat(queueNodes.size(), is(1));
+        assertThat(queueNodes.containsKey("live"), is(true));
+    }
+
+    @Test
+    public void shouldNotDeleteFailedNodesOfOtherApps() {
+        // given
+        new InMemoryQueueNodeDao("other", "other/1.0", clock, queueNodes);
+        clock.forwardTime(3600000);
+        QueueNodeDao liveNodeDao = newQueueNodeDao("live");
+        // when
+        int count = liveNodeDao.deleteFailedNodes(1800);
+        // then
+        assertThat(count, is(0));
+        assertThat(queueNodes.size(), is(2));
+    }
+
+    @Test
+    public void shouldReinsertDeletedNodeOnHeartbeat() {
+        // given
+        QueueNodeDao pausedNodeDao = newQueueNodeDao("paused");
+        clock.forwardTime(3600000);
+        newQueueNodeDao("live").deleteFailedNodes(1800);
+        // when
+        pausedNodeDao.updateAliveAtAndLockedCommands(true);
+        // then
+        assertThat(queueNodes.get("paused").isLockedCommands(), is(true));
+        assertThat(queueNodes.get("paused").getAliveAt(), is(clock.currentTimeMillis()));
+    }
+
+    @Test
+    public void shouldReadMostRecentlyFailedNodesFirst() {
+        // given
+        for (int i = 0; i < 5; i++) {
+            newQueueNodeDao("failed" + i).updateAliveAtAndLockedCommands(true);
+            clock.forwardTime(1000);
+        }
+        clock.forwardTime(60000);
+        // when
+        List<QueueNode> failedNodes =
+                newQueueNodeDao("live").readFailedNodesThatHaveLockedCommands(30, 2);
+        // then
+        assertThat(failedNodes.size(), is(2));
+        assertThat(failedNodes.get(0).getNodeId(), is("failed4"));
+        assertThat(failedNodes.get(1).getNodeId(), is("failed3"));
+    }
+
+    private QueueNodeDao newQueueNodeDao(String nodeId) {
+        return new InMemoryQueueNodeDao(nodeId, APP_ID, clock, queueNodes);
+    }
+}
@@ -0,0 +1,590 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.clock.MockClock;
+import com.github.trask.sandbox.commandq.QueuedCommandDao.CouldNotLockForExecutionException;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class InMemoryQueuedCommandDaoTest {
+
+    private static final String APP_ID = "unittest/1.0";
+    private static final String NODE_ID = "unittest/" + System.currentTimeMillis();
+
+    private MockClock clock;
+    private InMemoryQueuedCommandStore store;
+    private QueuedCommandDao queuedCommandDao;
+
+    @Before
+    public void before() {
+        clock = new MockClock();
+        store = new InMemoryQueuedCommandStore();
+        queuedCommandDao = newQueuedCommandDao(NODE_ID);
+    }
+
+    @Test
+    public void shouldLockAndInsert() {
+        // given
+        MockCommand command = new MockCommand(1, "test");
+        // when
+        ObjectId commandId = queuedCommandDao.lockAndInsert(command);
+        // then
+        QueuedCommand queuedCommand = store.get(commandId);
+        assertThat(queuedCommand.getCommand() == command, is(true));
+        assertThat(queuedCommand.getAppId(), is(APP_ID));
+        assertThat(queuedCommand.getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommand.getNFailures(), is(0));
+        assertThat(queuedCommand.getVisibleNextAt(), is(0L));
+    }
+
+    @Test
+    public void shouldDelete() {
+        // given
+        ObjectId commandId = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        // when
+        queuedCommandDao.delete(commandId);
+        // then
+        assertThat(store.size(), is(0));
+    }
+
+    @Test
+    public void shouldRescheduleForFailure() {
+        // given
+        long mockTimeMillis = clock.updateTime();
+        ObjectId commandId = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        // when
+        int delayMillis = 60000;
+        queuedCommandDao.rescheduleOnFailure(commandId, delayMillis);
+        // then
+        QueuedCommand queuedCommand = store.get(commandId);
+        assertThat(queuedCommand.getVisibleNextAt(), is(mockTimeMillis + delayMillis));
+        assertThat(queuedCommand.getLockedByNodeId(), is(nullValue()));
+        assertThat(queuedCommand.getNFailures(), is(1));
+    }
+
+    @Test
+    public void shouldNotReadBeforeVisible() {
+        // given
+        clock.updateTime();
+        ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        int delayMillis = 60000;
+        queuedCommandDao.rescheduleOnFailure(id, delayMillis);
+        clock.forwardTime(delayMillis - 1);
+        // when
+        List<QueuedCommand> visibleQueuedCommands = queuedCommandDao.readVisible(10);
+        // then
+        assertThat(visibleQueuedCommands.size(), is(0));
+    }
+
+    @Test
+    public void shouldReadVisibleWithoutClaiming() {
+        // given
+        clock.updateTime();
+        for (int i = 0; i < 11; i++) {
+            ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+            queuedCommandDao.rescheduleOnFailure(id, 60000);
+        }
+        clock.forwardTime(60000);
+        // when
+        List<QueuedCommand> visibleQueuedCommands = queuedCommandDao.readVisible(10);
+        // then
+        assertThat(visibleQueuedCommands.size(), is(10));
+        assertThat(queuedCommandDao.readVisible(20).size(), is(11));
+    }
+
+    @Test
+    public void shouldLock() throws CouldNotLockForExecutionException {
+        // given
+        clock.updateTime();
+        ObjectId commandId = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(commandId, 60000);
+        clock.forwardTime(60000);
+        // when
+        queuedCommandDao.lock(commandId);
+        // then
+        QueuedCommand queuedCommand = store.get(commandId);
+        assertThat(queuedCommand.getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommand.getVisibleNextAt(), is(0L));
+        assertThat(queuedCommandDao.readVisible(10).size(), is(0));
+    }
+
+    @Test(expected = CouldNotLockForExecutionException.class)
+    public void shouldNotLockTwice() throws CouldNotLockForExecutionException {
+        // given
+        clock.updateTime();
+        ObjectId commandId = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(commandId, 0);
+        newQueuedCommandDao("other" + NODE_ID).lock(commandId);
+        // when
+        queuedCommandDao.lock(commandId);
+    }
+
+    @Test
+    public void shouldClaimVisibleInOrder() {
+        // given
+        clock.updateTime();
+        ObjectId id1 = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(id1, 60000);
+        ObjectId id2 = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(id2, 30000);
+        clock.forwardTime(60000);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(2));
+        assertThat(claimedQueuedCommands.get(0).getId(), is(id2));
+        assertThat(claimedQueuedCommands.get(1).getId(), is(id1));
+        assertThat(store.get(id1).getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommandDao.claimVisible(10).size(), is(0));
+    }
+
+    @Test
+    public void shouldClaimVisibleHighPriorityFirst() {
+        // given
+        clock.updateTime();
+        ObjectId normalId = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(normalId, 0);
+        ObjectId highId = queuedCommandDao.lockAndInsert(new MockPrioritizedCommand(Priority.High));
+        queuedCommandDao.rescheduleOnFailure(highId, 0);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(1);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(1));
+        assertThat(claimedQueuedCommands.get(0).getId(), is(highId));
+    }
+
+    @Test
+    public void shouldGiveUnusedLaneSlotsToOtherLanes() {
+        // given
+        clock.updateTime();
+        for (int i = 0; i < 10; i++) {
+            ObjectId id = queuedCommandDao.lockAndInsert(new MockPrioritizedCommand(Priority.Low));
+            queuedCommandDao.rescheduleOnFailure(id, 0);
+        }
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(10));
+    }
+
+    @Test
+    public void shouldClaimExpiredLeases() {
+        // given
+        clock.updateTime();
+        QueuedCommandDao otherNodeQueuedCommandDao = newQueuedCommandDao("other" + NODE_ID);
+        ObjectId id = otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() + 1);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimExpiredLeases(10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(1));
+        QueuedCommand queuedCommand = store.get(id);
+        assertThat(queuedCommand.getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommand.getLeaseExpiresAt(),
+                is(clock.currentTimeMillis() + queuedCommandDao.getLeaseDurationMillis()));
+        assertThat(otherNodeQueuedCommandDao.readFromFailedNodeQueue("other" + NODE_ID, 10)
+                .size(), is(0));
+    }
+
+    @Test
+    public void shouldNotDeleteAfterLeaseIsLost() {
+        // given
+        clock.updateTime();
+        QueuedCommandDao otherNodeQueuedCommandDao = newQueuedCommandDao("other" + NODE_ID);
+        ObjectId id = otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() + 1);
+        queuedCommandDao.claimExpiredLeases(10);
+        // when
+        otherNodeQueuedCommandDao.delete(id);
+        // then
+        assertThat(store.get(id).getLockedByNodeId(), is(NODE_ID));
+    }
+
+    @Test
+    public void shouldNotRescheduleAfterLeaseIsLost() {
+        // given
+        clock.updateTime();
+        QueuedCommandDao otherNodeQueuedCommandDao = newQueuedCommandDao("other" + NODE_ID);
+        ObjectId id = otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() + 1);
+        queuedCommandDao.claimExpiredLeases(10);
+        // when
+        otherNodeQueuedCommandDao.rescheduleOnFailure(id, 0);
+        otherNodeQueuedCommandDao.scheduleNextRun(id, clock.currentTimeMillis());
+        // then
+        QueuedCommand queuedCommand = store.get(id);
+        assertThat(queuedCommand.getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommand.getNFailures(), is(0));
+        assertThat(queuedCommandDao.readVisible(10).size(), is(0));
+    }
+
+    @Test
+    public void shouldNotClaimRenewedLeases() {
+        // given
+        clock.updateTime();
+        QueuedCommandDao otherNodeQueuedCommandDao = newQueuedCommandDao("other" + NODE_ID);
+        otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() - 1);
+        otherNodeQueuedCommandDao.renewLeases();
+        clock.forwardTime(2);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimExpiredLeases(10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(0));
+    }
+
+    @Test
+    public void shouldClaimFromFailedNode() {
+        // given
+        QueuedCommandDao otherNodeQueuedCommandDao = newQueuedCommandDao("other" + NODE_ID);
+        ObjectId id = otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() + 1);
+        List<ObjectId> ids =
+                queuedCommandDao.readIdsFromFailedNodeQueue("other" + NODE_ID, null, 10);
+        // when
+        List<QueuedCommand> claimedQueuedCommands =
+                queuedCommandDao.claimFromFailedNode("other" + NODE_ID, ids);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(2));
+        assertThat(store.get(id).getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommandDao.readIdsFromFailedNodeQueue("other" + NODE_ID, null, 10)
+                .size(), is(0));
+        assertThat(queuedCommandDao.claimFromFailedNode("other" + NODE_ID, ids).size(), is(0));
+    }
+
+    @Test
+    public void shouldNotClaimFromFailedNodeWhileLeaseIsRenewed() {
+        // given
+        clock.updateTime();
+        QueuedCommandDao otherNodeQueuedCommandDao = newQueuedCommandDao("other" + NODE_ID);
+        ObjectId id = otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        // e.g. the other node is partitioned from the membership but can still reach the store
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() - 1);
+        otherNodeQueuedCommandDao.renewLeases();
+        clock.forwardTime(2);
+        List<ObjectId> ids =
+                queuedCommandDao.readIdsFromFailedNodeQueue("other" + NODE_ID, null, 10);
+        // when
+        List<QueuedCommand> claimedQueuedCommands =
+                queuedCommandDao.claimFromFailedNode("other" + NODE_ID, ids);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(0));
+        assertThat(store.get(id).getLockedByNodeId(), is("other" + NODE_ID));
+    }
+
+    @Test
+    public void shouldReadMillisUntilNextVisible() {
+        // given
+        clock.updateTime();
+        ObjectId id1 = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(id1, 60000);
+        ObjectId id2 = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(id2, 30000);
+        clock.forwardTime(1000);
+        // when
+        long millisUntilNextVisible = queuedCommandDao.readMillisUntilNextVisible();
+        // then
+        assertThat(millisUntilNextVisible, is(29000L));
+    }
+
+    @Test
+    public void shouldReadNoNextVisible() {
+        // given
+        queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        // when
+        long millisUntilNextVisible = queuedCommandDao.readMillisUntilNextVisible();
+        // then
+        assertThat(millisUntilNextVisible, is(-1L));
+    }
+
+    @Test
+    public void shouldInsertScheduled() {
+        // given
+        clock.updateTime();
+        long runAtMillis = clock.currentTimeMillis() + 60000;
+        // when
+        ObjectId id = queuedCommandDao.insertScheduled(new MockCommand(1, "test"), runAtMillis);
+        // then
+        QueuedCommand queuedCommand = store.get(id);
+        assertThat(queuedCommand.getLockedByNodeId(), is(nullValue()));
+        assertThat(queuedCommand.getNFailures(), is(0));
+        assertThat(queuedCommand.getVisibleNextAt(), is(runAtMillis));
+        assertThat(queuedCommandDao.readVisible(10).size(), is(0));
+        assertThat(queuedCommandDao.readMillisUntilNextVisible(), is(60000L));
+    }
+
+    @Test
+    public void shouldInsertAllUnlockedAndVisible() {
+        // given
+        clock.updateTime();
+        List<Command> commands = Arrays.<Command> asList(new MockCommand(1, "test"),
+                new MockCommand(2, "test"));
+        // when
+        List<ObjectId> ids = queuedCommandDao.insertAll(commands);
+        // then
+        assertThat(ids.size(), is(2));
+        assertThat(store.get(ids.get(0)).getCommand() == commands.get(0), is(true));
+        assertThat(store.get(ids.get(1)).getCommand() == commands.get(1), is(true));
+        assertThat(store.get(ids.get(0)).getLockedByNodeId(), is(nullValue()));
+        assertThat(queuedCommandDao.readVisible(10).size(), is(2));
+    }
+
+    @Test
+    public void shouldCountVisible() {
+        // given
+        clock.updateTime();
+        queuedCommandDao.insertAll(Arrays.<Command> asList(new MockCommand(1, "test"),
+                new MockCommand(2, "test")));
+        queuedCommandDao.insertScheduled(new MockCommand(3, "test"),
+                clock.currentTimeMillis() + 60000);
+        queuedCommandDao.lockAndInsert(new MockCommand(4, "test"));
+        queuedCommandDao.claimVisible(1);
+        // when
+        long count = queuedCommandDao.countVisible();
+        // then
+        assertThat(count, is(1L));
+    }
+
+    @Test
+    public void shouldClaimUpcomingWithinHorizon() {
+        // given
+        clock.updateTime();
+        long currentTimeMillis = clock.currentTimeMillis();
+        ObjectId id = queuedCommandDao.insertScheduled(new MockCommand(1, "test"),
+                currentTimeMillis + 5000);
+        queuedCommandDao.insertScheduled(new MockCommand(1, "test"), currentTimeMillis + 20000);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimUpcoming(10000, 10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(1));
+        assertThat(claimedQueuedCommands.get(0).getId(), is(id));
+        assertThat(claimedQueuedCommands.get(0).getVisibleNextAt(), is(currentTimeMillis + 5000));
+        assertThat(store.get(id).getLockedByNodeId(), is(NODE_ID));
+    }
+
+    @Test
+    public void shouldKeepVisibleNextAtWhenTakingOverUpcoming() {
+        // given
+        clock.updateTime();
+        long runAtMillis = clock.currentTimeMillis() + 5000;
+        QueuedCommandDao otherNodeQueuedCommandDao = newQueuedCommandDao("other" + NODE_ID);
+        otherNodeQueuedCommandDao.insertScheduled(new MockCommand(1, "test"), runAtMillis);
+        otherNodeQueuedCommandDao.claimUpcoming(10000, 10);
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() + 1);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimExpiredLeases(10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(1));
+        assertThat(claimedQueuedCommands.get(0).getVisibleNextAt(), is(runAtMillis));
+    }
+
+    @Test
+    public void shouldScheduleNextRun() throws CouldNotLockForExecutionException {
+        // given
+        clock.updateTime();
+        ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(id, 0);
+        queuedCommandDao.lock(id);
+        long runAtMillis = clock.currentTimeMillis() + 60000;
+        // when
+        queuedCommandDao.scheduleNextRun(id, runAtMillis);
+        // then
+        QueuedCommand queuedCommand = store.get(id);
+        assertThat(queuedCommand.getLockedByNodeId(), is(nullValue()));
+        assertThat(queuedCommand.getNFailures(), is(0));
+        assertThat(queuedCommand.getVisibleNextAt(), is(runAtMillis));
+    }
+
+    @Test
+    public void shouldLockAndInsertKeyedWhenNoOtherCopy() {
+        // given
+        MockCoalescingCommand command =
+                new MockCoalescingCommand("user42", Arrays.asList("doc1"));
+        // when
+        ObjectId id = queuedCommandDao.lockAndInsertOrCoalesce(command);
+        // then
+        assertThat(id == null, is(false));
+        assertThat(store.get(id).getLockedByNodeId(), is(NODE_ID));
+    }
+
+    @Test
+    public void shouldNotClaimPendingCopyWhileKeyIsRunning() {
+        // given
+        queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc1")));
+        // when
+        ObjectId id = queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc2")));
+        // then
+        assertThat(id == null, is(true));
+        assertThat(store.size(), is(2));
+        assertThat(queuedCommandDao.readVisible(10).size(), is(0));
+        assertThat(queuedCommandDao.readMillisUntilNextVisible(), is(-1L));
+        assertThat(queuedCommandDao.claimVisible(10).size(), is(0));
+        assertThat(newQueuedCommandDao("other").claimVisible(10).size(), is(0));
+    }
+
+    @Test
+    public void shouldClaimUnkeyedCommandsBehindBlockedPendingCopies() {
+        // given
+        clock.updateTime();
+        List<ObjectId> runningIds = new ArrayList<ObjectId>();
+        for (int i = 0; i < 3; i++) {
+            runningIds.add(queuedCommandDao.lockAndInsertOrCoalesce(
+                    new MockCoalescingCommand("user" + i, Arrays.asList("doc1"))));
+            queuedCommandDao.lockAndInsertOrCoalesce(
+                    new MockCoalescingCommand("user" + i, Arrays.asList("doc2")));
+        }
+        clock.forwardTime(1);
+        queuedCommandDao.insertAll(Arrays.<Command> asList(new MockCommand(1, "test"),
+                new MockCommand(2, "test")));
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(2);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(2));
+        assertThat(claimedQueuedCommands.get(0).getKey(), is(nullValue()));
+        assertThat(claimedQueuedCommands.get(1).getKey(), is(nullValue()));
+        assertThat(queuedCommandDao.readMillisUntilNextVisible(), is(-1L));
+        // the pending copy is released once its running copy is done
+        queuedCommandDao.delete(runningIds.get(0));
+        claimedQueuedCommands = queuedCommandDao.claimVisible(2);
+        assertThat(claimedQueuedCommands.size(), is(1));
+        assertThat(claimedQueuedCommands.get(0).getKey(), is("user0"));
+    }
+
+    @Test
+    public void shouldParkCopiesThatBecomeBlockedWhileVisible() {
+        // given
+        clock.updateTime();
+        for (int i = 0; i < 3; i++) {
+            ObjectId runningId = queuedCommandDao.lockAndInsertOrCoalesce(
+                    new MockCoalescingCommand("user" + i, Arrays.asList("doc1")));
+            queuedCommandDao.lockAndInsertOrCoalesce(
+                    new MockCoalescingCommand("user" + i, Arrays.asList("doc2")));
+            // the rescheduled copy is visible right away, behind the pending copy which takes
+            // over the key
+            queuedCommandDao.rescheduleOnFailure(runningId, 0);
+            assertThat(queuedCommandDao.claimVisible(1).size(), is(1));
+        }
+        clock.forwardTime(1);
+        queuedCommandDao.insertAll(Arrays.<Command> asList(new MockCommand(1, "test"),
+                new MockCommand(2, "test")));
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(2);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(2));
+        assertThat(claimedQueuedCommands.get(0).getKey(), is(nullValue()));
+        assertThat(claimedQueuedCommands.get(1).getKey(), is(nullValue()));
+        assertThat(queuedCommandDao.readMillisUntilNextVisible(), is(-1L));
+        assertThat(queuedCommandDao.countVisible(), is(0L));
+    }
+
+    @Test
+    public void shouldClaimPendingCopyOnceRunningCopyIsDeleted() {
+        // given
+        ObjectId runningId = queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc1")));
+        queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc2")));
+        // when
+        queuedCommandDao.delete(runningId);
+        // then
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(10);
+        assertThat(claimedQueuedCommands.size(), is(1));
+        MockCoalescingCommand claimed =
+                (MockCoalescingCommand) claimedQueuedCommands.get(0).getCommand();
+        assertThat(claimed.getDocumentIds(), is(Arrays.asList("doc2")));
+    }
+
+    @Test
+    public void shouldClaimPendingCopyOnceRunningCopyIsRescheduled() {
+        // given
+        clock.updateTime();
+        ObjectId runningId = queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc1")));
+        queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc2")));
+        // when
+        queuedCommandDao.rescheduleOnFailure(runningId, 60000);
+        // then
+        assertThat(queuedCommandDao.claimVisible(10).size(), is(1));
+        clock.forwardTime(60000);
+        // the rescheduled copy now waits for the pending copy that is running
+        assertThat(queuedCommandDao.claimVisible(10).size(), is(0));
+    }
+
+    @Test
+    public void shouldCoalesceIntoPendingCopy() {
+        // given
+        ObjectId runningId = queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc1")));
+        queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc2")));
+        // when
+        ObjectId id = queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc3")));
+        // then
+        assertThat(id == null, is(true));
+        queuedCommandDao.delete(runningId);
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(10);
+        assertThat(claimedQueuedCommands.size(), is(1));
+        MockCoalescingCommand pending =
+                (MockCoalescingCommand) claimedQueuedCommands.get(0).getCommand();
+        assertThat(pending.getDocumentIds(), is(Arrays.asList("doc2", "doc3")));
+    }
+
+    @Test
+    public void shouldAllowNewPendingCopyOncePendingCopyIsClaimed() {
+        // given
+        ObjectId runningId = queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc1")));
+        queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc2")));
+        queuedCommandDao.delete(runningId);
+        runningId = queuedCommandDao.claimVisible(10).get(0).getId();
+        // when
+        ObjectId id = queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc3")));
+        // then
+        assertThat(id == null, is(true));
+        queuedCommandDao.delete(runningId);
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(10);
+        assertThat(claimedQueuedCommands.size(), is(1));
+        MockCoalescingCommand pending =
+                (MockCoalescingCommand) claimedQueuedCommands.get(0).getCommand();
+        assertThat(pending.getDocumentIds(), is(Arrays.asList("doc3")));
+    }
+
+    private QueuedCommandDao newQueuedCommandDao(String nodeId) {
+        return new InMemoryQueuedCommandDao(nodeId, APP_ID, clock,
+                QueuedCommandDao.DEFAULT_LEASE_DURATION_MILLIS, store);
+    }
+}
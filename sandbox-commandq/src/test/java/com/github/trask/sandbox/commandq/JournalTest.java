@@ -0,0 +1,244 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class JournalTest {
+
+    private static final int SEGMENT_SIZE = 64;
+
+    private File directory;
+
+    @Before
+    public void before() throws IOException {
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void after() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldReplayAppendedRecords() throws IOException {
+        // given
+        Journal journal = new Journal(directory, SEGMENT_SIZE);
+        long position = 0;
+        for (int i = 0; i < 10; i++) {
+            position = journal.append(new byte[] { (byte) i, 1, 2, 3 });
+        }
+        journal.awaitDurable(position);
+        journal.close();
+        // when
+        List<byte[]> records = replay(new Journal(directory, SEGMENT_SIZE));
+        // then
+        assertThat(records.size(), is(10));
+        assertThat(records.get(9)[0], is((byte) 9));
+        assertThat(directory.listFiles().length > 1, is(true));
+    }
+
+    @Test
+    public void shouldStopReplayAtTornRecord() throws IOException {
+        // given
+        Journal journal = new Journal(directory, SEGMENT_SIZE);
+        journal.append(new byte[] { 1, 2, 3 });
+        journal.awaitDurable(journal.append(new byte[] { 4, 5, 6 }));
+        journal.close();
+        // corrupt the last byte of the second record
+        RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw");
+        file.seek(8 + 3 + 8 + 2);
+        file.write(0);
+        file.close();
+        // when
+        List<byte[]> records = replay(new Journal(directory, SEGMENT_SIZE));
+        // then
+        assertThat(records.size(), is(1));
+    }
+
+    @Test
+    public void shouldRewrite() throws IOException {
+        // given
+        Journal journal = new Journal(directory, SEGMENT_SIZE);
+        for (int i = 0; i < 10; i++) {
+            journal.append(new byte[] { (byte) i, 1, 2, 3 });
+        }
+        // when
+        journal.rewrite(Arrays.asList(new byte[] { 1 }, new byte[] { 2 }));
+        journal.close();
+        // then
+        assertThat(directory.listFiles().length, is(1));
+        List<byte[]> records = replay(new Journal(directory, SEGMENT_SIZE));
+        assertThat(records.size(), is(2));
+        assertThat(records.get(1)[0], is((byte) 2));
+    }
+
+    @Test
+    public void shouldAwaitDurableFromMultipleThreads() throws Exception {
+        // given
+        final Journal journal = new Journal(directory, 1024 * 1024);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        try {
+                            journal.awaitDurable(journal.append(new byte[] { 1, 2, 3 }));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            });
+        }
+        // when
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        journal.close();
+        // then
+        assertThat(replay(new Journal(directory, 1024 * 1024)).size(), is(800));
+    }
+
+    @Test
+    public void shouldNotBeDurableWhenFlushFails() throws IOException {
+        // given
+        final AtomicBoolean failForce = new AtomicBoolean(true);
+        final AtomicInteger forceCount = new AtomicInteger();
+        Journal journal = new Journal(directory, 1024) {
+            @Override
+            void force(MappedByteBuffer buffer) {
+                if (failForce.get()) {
+                    throw new IllegalStateException("disk full");
+                }
+                super.force(buffer);
+                forceCount.incrementAndGet();
+            }
+        };
+        long position = journal.append(new byte[] { 1, 2, 3 });
+        try {
+            journal.awaitDurable(position);
+            fail();
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("disk full"));
+        }
+        // when
+        failForce.set(false);
+        journal.awaitDurable(position);
+        journal.close();
+        // then
+        assertThat(forceCount.get(), is(1));
+    }
+
+    @Test
+    public void shouldFailWaitersWhenFlushFails() throws Exception {
+        // given
+        final CountDownLatch forceStarted = new CountDownLatch(1);
+        final CountDownLatch forceFailing = new CountDownLatch(1);
+        final Journal journal = new Journal(directory, 1024) {
+            @Override
+            void force(MappedByteBuffer buffer) {
+                forceStarted.countDown();
+                try {
+                    forceFailing.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IllegalStateException("disk full");
+            }
+        };
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        Future<?> leader = executorService.submit(new AwaitDurable(journal,
+                journal.append(new byte[] { 1, 2, 3 })));
+        forceStarted.await();
+        Future<?> waiter = executorService.submit(new AwaitDurable(journal,
+                journal.append(new byte[] { 4, 5, 6 })));
+        // give the waiter time to start waiting on the leader's flush
+        Thread.sleep(100);
+        // when
+        forceFailing.countDown();
+        // then
+        try {
+            leader.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage(), is("disk full"));
+        }
+        try {
+            waiter.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage(), is("Journal flush failed"));
+        }
+        executorService.shutdown();
+    }
+
+    private static class AwaitDurable implements Runnable {
+        private final Journal journal;
+        private final long position;
+        private AwaitDurable(Journal journal, long position) {
+            this.journal = journal;
+            this.position = position;
+        }
+        public void run() {
+            journal.awaitDurable(position);
+        }
+    }
+
+    private static List<byte[]> replay(Journal journal) throws IOException {
+        final List<byte[]> records = new ArrayList<byte[]>();
+        journal.replay(new Journal.RecordHandler() {
+            public void handle(byte[] record) {
+                records.add(record);
+            }
+        });
+        return records;
+    }
+}
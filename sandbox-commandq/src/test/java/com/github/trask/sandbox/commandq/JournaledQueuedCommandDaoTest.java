@@ -0,0 +1,129 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.clock.MockClock;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class JournaledQueuedCommandDaoTest {
+
+    private static final String APP_ID = "unittest/1.0";
+    private static final String NODE_ID = "unittest/" + System.currentTimeMillis();
+
+    private MockClock clock;
+    private File directory;
+    private JournaledQueuedCommandDao queuedCommandDao;
+
+    @Before
+    public void before() throws IOException {
+        clock = new MockClock();
+        directory = File.createTempFile("journal", "");
+        directory.delete();
+        directory.mkdir();
+        queuedCommandDao = newQueuedCommandDao();
+    }
+
+    @After
+    public void after() {
+        queuedCommandDao.close();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void shouldRecoverLockedCommandAsVisible() throws IOException {
+        // given
+        clock.updateTime();
+        queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.close();
+        // when
+        queuedCommandDao = newQueuedCommandDao();
+        // then
+        List<QueuedCommand> visibleQueuedCommands = queuedCommandDao.readVisible(10);
+        assertThat(visibleQueuedCommands.size(), is(1));
+        MockCommand command = (MockCommand) visibleQueuedCommands.get(0).getCommand();
+        assertThat(command.getAbc(), is(1));
+        assertThat(command.getXyz(), is("test"));
+    }
+
+    @Test
+    public void shouldRecoverReschedule() throws IOException {
+        // given
+        long mockTimeMillis = clock.updateTime();
+        ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(id, 60000);
+        queuedCommandDao.close();
+        // when
+        queuedCommandDao = newQueuedCommandDao();
+        // then
+        assertThat(queuedCommandDao.readVisible(10).size(), is(0));
+        clock.forwardTime(60000);
+        List<QueuedCommand> visibleQueuedCommands = queuedCommandDao.readVisible(10);
+        assertThat(visibleQueuedCommands.size(), is(1));
+        assertThat(visibleQueuedCommands.get(0).getNFailures(), is(1));
+        assertThat(visibleQueuedCommands.get(0).getVisibleNextAt(), is(mockTimeMillis + 60000));
+    }
+
+    @Test
+    public void shouldNotRecoverDeletedCommand() throws IOException {
+        // given
+        ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.delete(id);
+        queuedCommandDao.close();
+        // when
+        queuedCommandDao = newQueuedCommandDao();
+        // then
+        assertThat(queuedCommandDao.readVisible(10).size(), is(0));
+    }
+
+    @Test
+    public void shouldCompactWhenSegmentsAccumulate() throws IOException {
+        // given
+        ObjectId keepId = queuedCommandDao.lockAndInsert(new MockCommand(1, "keep"));
+        // when
+        for (int i = 0; i < 1000; i++) {
+            queuedCommandDao.delete(queuedCommandDao.lockAndInsert(new MockCommand(i, "test")));
+        }
+        // then
+        assertThat(directory.listFiles().length <= 3, is(true));
+        queuedCommandDao.close();
+        queuedCommandDao = newQueuedCommandDao();
+        List<QueuedCommand> visibleQueuedCommands = queuedCommandDao.readVisible(10);
+        assertThat(visibleQueuedCommands.size(), is(1));
+        assertThat(visibleQueuedCommands.get(0).getId(), is(keepId));
+    }
+
+    private JournaledQueuedCommandDao newQueuedCommandDao() throws IOException {
+        return new JournaledQueuedCommandDao(NODE_ID, APP_ID, clock, directory, 4096, 2,
+                QueuedCommandDao.DEFAULT_LEASE_DURATION_MILLIS);
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void shouldReportSmallValuesExactly() {
+        // given
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        // when
+        long p50 = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        // then
+        assertThat(p50, is(50L));
+        assertThat(p99, is(99L));
+        assertThat(histogram.getCount(), is(100L));
+        assertThat(histogram.getMax(), is(100L));
+    }
+
+    @Test
+    public void shouldReportLargeValuesWithinPrecision() {
+        // given
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000000L);
+        }
+        // when
+        long p50 = histogram.getValueAtPercentile(50);
+        long p999 = histogram.getValueAtPercentile(99.9);
+        // then
+        assertThat(Math.abs(p50 - 500000000L) <= 500000000L / 64, is(true));
+        assertThat(Math.abs(p999 - 999000000L) <= 999000000L / 64, is(true));
+    }
+
+    @Test
+    public void shouldNotReportMoreThanMax() {
+        // given
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000001);
+        // when
+        long p100 = histogram.getValueAtPercentile(100);
+        // then
+        assertThat(p100, is(1000001L));
+    }
+
+    @Test
+    public void shouldRecordExtremeValues() {
+        // given
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-1);
+        // when
+        long p50 = histogram.getValueAtPercentile(50);
+        long p100 = histogram.getValueAtPercentile(100);
+        // then
+        assertThat(p50, is(0L));
+        assertThat(p100, is(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void shouldReportZeroWhenEmpty() {
+        // given
+        LatencyHistogram histogram = new LatencyHistogram();
+        // when
+        long p99 = histogram.getValueAtPercentile(99);
+        // then
+        assertThat(p99, is(0L));
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.List;
+
+import com.google.code.morphia.annotations.Embedded;
+
+/**
+ * @author Trask Stalnaker
+ */
+@Embedded
+public class MockBatchableCommand implements BatchableCommand {
+
+    private boolean succeed;
+
+    // default constructor needed by morphia
+    public MockBatchableCommand() {}
+
+    public MockBatchableCommand(boolean succeed) {
+        this.succeed = succeed;
+    }
+
+    public void execute() throws Exception {
+        if (!succeed) {
+            throw new Exception();
+        }
+    }
+
+    public RetryPolicy retryPolicy() {
+        return new RetryPolicy(10, 100, 5);
+    }
+
+    public int maxBatchSize() {
+        return 10;
+    }
+
+    public long maxBatchDelayMillis() {
+        return 100;
+    }
+
+    public boolean[] executeBatch(List<BatchableCommand> batch) {
+        boolean[] succeeded = new boolean[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            succeeded[i] = ((MockBatchableCommand) batch.get(i)).succeed;
+        }
+        return succeeded;
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.code.morphia.annotations.Embedded;
+
+/**
+ * @author Trask Stalnaker
+ */
+@Embedded
+public class MockCoalescingCommand implements CoalescingCommand {
+
+    private String userId;
+    private List<String> documentIds;
+
+    // default constructor needed by morphia
+    public MockCoalescingCommand() {}
+
+    public MockCoalescingCommand(String userId, List<String> documentIds) {
+        this.userId = userId;
+        this.documentIds = documentIds;
+    }
+
+    public void execute() {}
+
+    public RetryPolicy retryPolicy() {
+        return new RetryPolicy(10, 100, 5);
+    }
+
+    public String key() {
+        return userId;
+    }
+
+    public CoalescingCommand coalesce(CoalescingCommand pending) {
+        List<String> coalescedDocumentIds =
+                new ArrayList<String>(((MockCoalescingCommand) pending).documentIds);
+        coalescedDocumentIds.addAll(documentIds);
+        return new MockCoalescingCommand(userId, coalescedDocumentIds);
+    }
+
+    public List<String> getDocumentIds() {
+        return documentIds;
+    }
+}
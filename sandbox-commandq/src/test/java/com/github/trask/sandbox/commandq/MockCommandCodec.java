@@ -0,0 +1,35 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class MockCommandCodec implements CommandCodec<MockCommand> {
+
+    public void encode(MockCommand command, DataOutput out) throws IOException {
+        out.writeInt(command.getAbc());
+        out.writeUTF(command.getXyz());
+    }
+
+    public MockCommand decode(DataInput in) throws IOException {
+        return new MockCommand(in.readInt(), in.readUTF());
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.clock.MockClock;
+import com.github.trask.sandbox.mongodb.MongoDatastoreProvider;
+import com.google.code.morphia.AdvancedDatastore;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class MongoQueueNodeDaoTest {
+
+    private static final String APP_ID = "unittest/1.0";
+    private static final String INDEX_CURSOR = "BtreeCursor appId_1_lockedCommands_1_aliveAt_1";
+
+    private MockClock clock;
+    private AdvancedDatastore datastore;
+
+    @Before
+    public void before() {
+        clock = new MockClock();
+        clock.updateTime();
+        datastore = new MongoDatastoreProvider("mongodb://localhost", "testdb").get();
+    }
+
+    @After
+    public void after() {
+        datastore.getMongo().dropDatabase("testdb");
+    }
+
+    @Test
+    public void shouldDeleteFailedNodes() {
+        // given
+        newQueueNodeDao("failed");
+        newQueueNodeDao("failedWithLocks").updateAliveAtAndLockedCommands(true);
+        clock.forwardTime(3600000);
+        MongoQueueNodeDao liveNodeDao = newQueueNodeDao("live");
+        // when
+        int count = liveNodeDao.deleteFailedNodes(1800);
+        // then
+        assertThat(count, is(2));
+        assertThat(datastore.getCount(QueueNode.class), is(1L));
+        assertThat(datastore.get(QueueNode.class, "live").getNodeId(), is("live"));
+    }
+
+    @Test
+    public void shouldReinsertDeletedNodeOnHeartbeat() {
+        // given
+        MongoQueueNodeDao pausedNodeDao = newQueueNodeDao("paused");
+        clock.forwardTime(3600000);
+        newQueueNodeDao("live").deleteFailedNodes(1800);
+        // when
+        pausedNodeDao.updateAliveAt();
+        // then
+        QueueNode node = datastore.get(QueueNode.class, "paused");
+        assertThat(node.isLockedCommands(), is(false));
+        assertThat(node.getAliveAt(), is(clock.currentTimeMillis()));
+    }
+
+    @Test
+    public void shouldOnlyScanFailedNodesWhenReadingFailedNodes() {
+        // given
+        for (int i = 0; i < 5; i++) {
+            newQueueNodeDao("failed" + i).updateAliveAtAndLockedCommands(true);
+        }
+        clock.forwardTime(3600000);
+        for (int i = 0; i < 50; i++) {
+            newQueueNodeDao("live" + i).updateAliveAtAndLockedCommands(i % 2 == 0);
+        }
+        // when
+        Map<String, Object> explain =
+                newQueueNodeDao("live").createFailedNodesQuery(true, 60).explain();
+        // then
+        assertThat((String) explain.get("cursor"), is(INDEX_CURSOR));
+        assertThat(((Number) explain.get("nscanned")).intValue(), is(5));
+    }
+
+    @Test
+    public void shouldOnlyScanLiveNodesWhenReadingLiveNodes() {
+        // given
+        for (int i = 0; i < 50; i++) {
+            newQueueNodeDao("failed" + i);
+        }
+        clock.forwardTime(3600000);
+        for (int i = 0; i < 5; i++) {
+            newQueueNodeDao("live" + i);
+        }
+        // when
+        Map<String, Object> explain =
+                newQueueNodeDao("live").createLiveNodesQuery(false, 60).explain();
+        // then
+        assertThat((String) explain.get("cursor"), is(INDEX_CURSOR));
+        // includes the node doing the reading
+        assertThat(((Number) explain.get("nscanned")).intValue(), is(6));
+    }
+
+    private MongoQueueNodeDao newQueueNodeDao(String nodeId) {
+        return new MongoQueueNodeDao(nodeId, APP_ID, datastore, clock);
+    }
+}
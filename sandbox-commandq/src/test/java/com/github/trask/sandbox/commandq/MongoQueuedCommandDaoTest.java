@@ -0,0 +1,549 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.clock.MockClock;
+import com.github.trask.sandbox.commandq.QueuedCommandDao.CouldNotLockForExecutionException;
+import com.github.trask.sandbox.mongodb.MongoDatastoreProvider;
+import com.google.code.morphia.AdvancedDatastore;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class MongoQueuedCommandDaoTest {
+
+    private static final String APP_ID = "unittest/1.0";
+    private static final String NODE_ID = "unittest/" + System.currentTimeMillis();
+
+    private MockClock clock;
+    private AdvancedDatastore datastore;
+    private QueuedCommandDao queuedCommandDao;
+
+    @Before
+    public void before() {
+        clock = new MockClock();
+        datastore = new MongoDatastoreProvider("mongodb://localhost", "testdb").get();
+        queuedCommandDao = new MongoQueuedCommandDao(NODE_ID, APP_ID, datastore, clock);
+    }
+
+    @After
+    public void after() {
+        datastore.getMongo().dropDatabase("testdb");
+    }
+
+    @Test
+    public void shouldLockAndInsert() {
+        // given
+        MockCommand command = new MockCommand(1, "test");
+        // when
+        ObjectId commandId = queuedCommandDao.lockAndInsert(command);
+        // then
+        QueuedCommand queuedCommand = datastore.get(QueuedCommand.class, commandId);
+        command = (MockCommand) queuedCommand.getCommand();
+        assertThat(command.getAbc(), is(1));
+        assertThat(command.getXyz(), is("test"));
+        assertThat(queuedCommand.getAppId(), is(APP_ID));
+        assertThat(queuedCommand.getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommand.getNFailures(), is(0));
+        assertThat(queuedCommand.getVisibleNextAt(), is(0L));
+    }
+
+    @Test
+    public void shouldLockAndInsertWithCodec() {
+        // given
+        CommandCodecRegistry commandCodecRegistry = new CommandCodecRegistry();
+        commandCodecRegistry.register(1, MockCommand.class, new MockCommandCodec());
+        queuedCommandDao = new MongoQueuedCommandDao(NODE_ID, APP_ID, datastore, clock,
+                QueuedCommandDao.DEFAULT_LEASE_DURATION_MILLIS, commandCodecRegistry);
+        // when
+        ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(id, 0);
+        // then
+        QueuedCommand stored = datastore.get(QueuedCommand.class, id);
+        assertThat(stored.getCommandBytes().length, is(11));
+        List<QueuedCommand> visibleQueuedCommands = queuedCommandDao.readVisible(10);
+        assertThat(visibleQueuedCommands.size(), is(1));
+        MockCommand command = (MockCommand) visibleQueuedCommands.get(0).getCommand();
+        assertThat(command.getAbc(), is(1));
+        assertThat(command.getXyz(), is("test"));
+    }
+
+    @Test
+    public void shouldDelete() throws CouldNotLockForExecutionException {
+        // given
+        ObjectId commandId = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        // when
+        queuedCommandDao.delete(commandId);
+        // then
+        assertThat(datastore.getCount(QueuedCommand.class), is(0L));
+    }
+
+    @Test
+    public void shouldNotDeleteOrRescheduleAfterLeaseIsLost() {
+        // given
+        clock.updateTime();
+        QueuedCommandDao otherNodeQueuedCommandDao =
+                new MongoQueuedCommandDao("other" + NODE_ID, APP_ID, datastore, clock);
+        ObjectId id = otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() + 1);
+        queuedCommandDao.claimExpiredLeases(10);
+        // when
+        otherNodeQueuedCommandDao.rescheduleOnFailure(id, 0);
+        otherNodeQueuedCommandDao.deleteAll(Arrays.asList(id));
+        otherNodeQueuedCommandDao.delete(id);
+        // then
+        QueuedCommand queuedCommand = datastore.get(QueuedCommand.class, id);
+        assertThat(queuedCommand.getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommand.getNFailures(), is(0));
+    }
+
+    @Test
+    public void shouldRescheduleForFailure() throws CouldNotLockForExecutionException {
+        // given
+        long mockTimeMillis = clock.updateTime();
+        ObjectId commandId = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        // when
+        int delayMillis = 60000;
+        queuedCommandDao.rescheduleOnFailure(commandId, delayMillis);
+        // then
+        QueuedCommand queuedCommand = datastore.get(QueuedCommand.class, commandId);
+        assertThat(queuedCommand.getVisibleNextAt(), is(mockTimeMillis + delayMillis));
+    }
+
+    @Test
+    public void shouldReadVisible() {
+        // given
+        clock.updateTime();
+        ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        int delayMillis = 60000;
+        queuedCommandDao.rescheduleOnFailure(id, delayMillis);
+        clock.forwardTime(delayMillis);
+        // when
+        List<QueuedCommand> visibleQueuedCommands = queuedCommandDao.readVisible(10);
+        // then
+        assertThat(visibleQueuedCommands.size(), is(1));
+    }
+
+    @Test
+    public void shouldNotReadBeforeVisible() {
+        // given
+        clock.updateTime();
+        ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        int delayMillis = 60000;
+        queuedCommandDao.rescheduleOnFailure(id, delayMillis);
+        clock.forwardTime(delayMillis - 1);
+        // when
+        List<QueuedCommand> visibleQueuedCommands = queuedCommandDao.readVisible(10);
+        // then
+        assertThat(visibleQueuedCommands.size(), is(0));
+    }
+
+    @Test
+    public void shouldReadVisibleWithLimit() {
+        // given
+        clock.updateTime();
+        int delayMillis = 60000;
+        for (int i = 0; i < 11; i++) {
+            ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+            queuedCommandDao.rescheduleOnFailure(id, delayMillis);
+        }
+        clock.forwardTime(delayMillis + 1);
+        // when
+        List<QueuedCommand> visibleQueuedCommands = queuedCommandDao.readVisible(10);
+        // then
+        assertThat(visibleQueuedCommands.size(), is(10));
+    }
+
+    @Test
+    public void shouldLock() throws CouldNotLockForExecutionException {
+        // given
+        clock.updateTime();
+        ObjectId commandId = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        int delayMillis = 60000;
+        queuedCommandDao.rescheduleOnFailure(commandId, delayMillis);
+        clock.forwardTime(delayMillis);
+        // when
+        queuedCommandDao.lock(commandId);
+        // then
+        QueuedCommand queuedCommand = datastore.get(QueuedCommand.class, commandId);
+        assertThat(queuedCommand.getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommand.getVisibleNextAt(), is(0L));
+    }
+
+    @Test
+    public void shouldClaimVisible() {
+        // given
+        clock.updateTime();
+        int delayMillis = 60000;
+        for (int i = 0; i < 3; i++) {
+            ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+            queuedCommandDao.rescheduleOnFailure(id, delayMillis);
+        }
+        clock.forwardTime(delayMillis);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(3));
+        for (QueuedCommand claimedQueuedCommand : claimedQueuedCommands) {
+            QueuedCommand queuedCommand =
+                    datastore.get(QueuedCommand.class, claimedQueuedCommand.getId());
+            assertThat(queuedCommand.getLockedByNodeId(), is(NODE_ID));
+            // kept so that a node taking over the command doesn't run it early
+            assertThat(queuedCommand.getVisibleNextAt(), is(clock.currentTimeMillis()));
+        }
+        assertThat(queuedCommandDao.readVisible(10).size(), is(0));
+    }
+
+    @Test
+    public void shouldClaimVisibleWithLimit() {
+        // given
+        clock.updateTime();
+        int delayMillis = 60000;
+        for (int i = 0; i < 11; i++) {
+            ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+            queuedCommandDao.rescheduleOnFailure(id, delayMillis);
+        }
+        clock.forwardTime(delayMillis);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(10));
+        assertThat(queuedCommandDao.readVisible(10).size(), is(1));
+    }
+
+    @Test
+    public void shouldNotClaimBeforeVisible() {
+        // given
+        clock.updateTime();
+        ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        int delayMillis = 60000;
+        queuedCommandDao.rescheduleOnFailure(id, delayMillis);
+        clock.forwardTime(delayMillis - 1);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(0));
+    }
+
+    @Test
+    public void shouldClaimExpiredLeases() {
+        // given
+        clock.updateTime();
+        QueuedCommandDao otherNodeQueuedCommandDao =
+                new MongoQueuedCommandDao("other" + NODE_ID, APP_ID, datastore, clock);
+        ObjectId id = otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() + 1);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimExpiredLeases(10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(1));
+        QueuedCommand queuedCommand = datastore.get(QueuedCommand.class, id);
+        assertThat(queuedCommand.getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommand.getLeaseExpiresAt(),
+                is(clock.currentTimeMillis() + queuedCommandDao.getLeaseDurationMillis()));
+    }
+
+    @Test
+    public void shouldNotClaimRenewedLeases() {
+        // given
+        clock.updateTime();
+        QueuedCommandDao otherNodeQueuedCommandDao =
+                new MongoQueuedCommandDao("other" + NODE_ID, APP_ID, datastore, clock);
+        otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() - 1);
+        otherNodeQueuedCommandDao.renewLeases();
+        clock.forwardTime(2);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimExpiredLeases(10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(0));
+    }
+
+    @Test
+    public void shouldReadFromFailedNodeQueue() {
+        // given
+        QueuedCommandDao otherNodeQueuedCommandDao =
+                new MongoQueuedCommandDao("other" + NODE_ID, APP_ID, datastore, clock);
+        otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        // when
+        List<QueuedCommand> queuedCommands =
+                queuedCommandDao.readFromFailedNodeQueue("other" + NODE_ID, 10);
+        // then
+        assertThat(queuedCommands.size(), is(1));
+        assertThat(queuedCommands.get(0).getLockedByNodeId(), is("other" + NODE_ID));
+    }
+
+    @Test
+    public void shouldClaimFromFailedNode() {
+        // given
+        QueuedCommandDao otherNodeQueuedCommandDao =
+                new MongoQueuedCommandDao("other" + NODE_ID, APP_ID, datastore, clock);
+        for (int i = 0; i < 3; i++) {
+            otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        }
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() + 1);
+        List<ObjectId> ids =
+                queuedCommandDao.readIdsFromFailedNodeQueue("other" + NODE_ID, null, 2);
+        // when
+        List<QueuedCommand> claimedQueuedCommands =
+                queuedCommandDao.claimFromFailedNode("other" + NODE_ID, ids);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(2));
+        List<ObjectId> remainingIds =
+                queuedCommandDao.readIdsFromFailedNodeQueue("other" + NODE_ID, null, 10);
+        assertThat(remainingIds.size(), is(1));
+        assertThat(remainingIds.get(0).compareTo(ids.get(1)) > 0, is(true));
+    }
+
+    @Test
+    public void shouldNotClaimFromFailedNodeWhileLeaseIsRenewed() {
+        // given
+        clock.updateTime();
+        QueuedCommandDao otherNodeQueuedCommandDao =
+                new MongoQueuedCommandDao("other" + NODE_ID, APP_ID, datastore, clock);
+        ObjectId id = otherNodeQueuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        // e.g. the other node is partitioned from the membership but can still reach the store
+        clock.forwardTime(otherNodeQueuedCommandDao.getLeaseDurationMillis() - 1);
+        otherNodeQueuedCommandDao.renewLeases();
+        clock.forwardTime(2);
+        List<ObjectId> ids =
+                queuedCommandDao.readIdsFromFailedNodeQueue("other" + NODE_ID, null, 10);
+        // when
+        List<QueuedCommand> claimedQueuedCommands =
+                queuedCommandDao.claimFromFailedNode("other" + NODE_ID, ids);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(0));
+        assertThat(datastore.get(QueuedCommand.class, id).getLockedByNodeId(),
+                is("other" + NODE_ID));
+    }
+
+    @Test
+    public void shouldReadMillisUntilNextVisible() {
+        // given
+        clock.updateTime();
+        ObjectId id1 = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(id1, 60000);
+        ObjectId id2 = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(id2, 30000);
+        clock.forwardTime(1000);
+        // when
+        long millisUntilNextVisible = queuedCommandDao.readMillisUntilNextVisible();
+        // then
+        assertThat(millisUntilNextVisible, is(29000L));
+    }
+
+    @Test
+    public void shouldReadNoNextVisible() {
+        // given
+        queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        // when
+        long millisUntilNextVisible = queuedCommandDao.readMillisUntilNextVisible();
+        // then
+        assertThat(millisUntilNextVisible, is(-1L));
+    }
+
+    @Test
+    public void shouldReadVisibleHighPriorityFirst() {
+        // given
+        clock.updateTime();
+        ObjectId normalId = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(normalId, 0);
+        ObjectId highId = queuedCommandDao.lockAndInsert(new MockPrioritizedCommand(Priority.High));
+        queuedCommandDao.rescheduleOnFailure(highId, 0);
+        // when
+        List<QueuedCommand> visibleQueuedCommands = queuedCommandDao.readVisible(1);
+        // then
+        assertThat(visibleQueuedCommands.size(), is(1));
+        assertThat(visibleQueuedCommands.get(0).getId(), is(highId));
+        assertThat(visibleQueuedCommands.get(0).getPriority(), is(Priority.High.getValue()));
+    }
+
+    @Test
+    public void shouldClaimUpcomingWithinHorizon() {
+        // given
+        clock.updateTime();
+        long currentTimeMillis = clock.currentTimeMillis();
+        ObjectId id = queuedCommandDao.insertScheduled(new MockCommand(1, "test"),
+                currentTimeMillis + 5000);
+        queuedCommandDao.insertScheduled(new MockCommand(1, "test"), currentTimeMillis + 20000);
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimUpcoming(10000, 10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(1));
+        assertThat(claimedQueuedCommands.get(0).getId(), is(id));
+        QueuedCommand queuedCommand = datastore.get(QueuedCommand.class, id);
+        assertThat(queuedCommand.getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommand.getVisibleNextAt(), is(currentTimeMillis + 5000));
+    }
+
+    @Test
+    public void shouldInsertAllUnlockedAndVisible() {
+        // given
+        clock.updateTime();
+        List<Command> commands = Arrays.<Command> asList(new MockCommand(1, "test"),
+                new MockCommand(2, "test"));
+        // when
+        List<ObjectId> ids = queuedCommandDao.insertAll(commands);
+        // then
+        assertThat(ids.size(), is(2));
+        QueuedCommand queuedCommand = datastore.get(QueuedCommand.class, ids.get(1));
+        assertThat(((MockCommand) queuedCommand.getCommand()).getAbc(), is(2));
+        assertThat(queuedCommand.getLockedByNodeId() == null, is(true));
+        assertThat(queuedCommandDao.readVisible(10).size(), is(2));
+    }
+
+    @Test
+    public void shouldCountVisible() {
+        // given
+        clock.updateTime();
+        queuedCommandDao.insertAll(Arrays.<Command> asList(new MockCommand(1, "test"),
+                new MockCommand(2, "test")));
+        queuedCommandDao.insertScheduled(new MockCommand(3, "test"),
+                clock.currentTimeMillis() + 60000);
+        queuedCommandDao.lockAndInsert(new MockCommand(4, "test"));
+        queuedCommandDao.claimVisible(1);
+        // when
+        long count = queuedCommandDao.countVisible();
+        // then
+        assertThat(count, is(1L));
+    }
+
+    @Test
+    public void shouldScheduleNextRun() throws CouldNotLockForExecutionException {
+        // given
+        clock.updateTime();
+        ObjectId id = queuedCommandDao.lockAndInsert(new MockCommand(1, "test"));
+        queuedCommandDao.rescheduleOnFailure(id, 0);
+        queuedCommandDao.lock(id);
+        long runAtMillis = clock.currentTimeMillis() + 60000;
+        // when
+        queuedCommandDao.scheduleNextRun(id, runAtMillis);
+        // then
+        QueuedCommand queuedCommand = datastore.get(QueuedCommand.class, id);
+        assertThat(queuedCommand.getLockedByNodeId() == null, is(true));
+        assertThat(queuedCommand.getNFailures(), is(0));
+        assertThat(queuedCommand.getVisibleNextAt(), is(runAtMillis));
+    }
+
+    // the rest of the keyed command behavior is covered by InMemoryQueuedCommandDaoTest, these
+    // only cover the fields and the unique indexes that implement it in mongo
+
+    @Test
+    public void shouldSetRunningKeyOnRunningCopy() {
+        // given
+        MockCoalescingCommand command =
+                new MockCoalescingCommand("user42", Arrays.asList("doc1"));
+        // when
+        ObjectId id = queuedCommandDao.lockAndInsertOrCoalesce(command);
+        // then
+        QueuedCommand queuedCommand = datastore.get(QueuedCommand.class, id);
+        assertThat(queuedCommand.getLockedByNodeId(), is(NODE_ID));
+        assertThat(queuedCommand.getRunningKey(), is(APP_ID + "/user42"));
+        assertThat(queuedCommand.getPendingKey() == null, is(true));
+    }
+
+    @Test
+    public void shouldMovePendingKeyToRunningKeyWhenPendingCopyIsClaimed() {
+        // given
+        ObjectId runningId = queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc1")));
+        queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc2")));
+        ObjectId pendingId = queuedCommandDao.readVisible(10).get(0).getId();
+        assertThat(datastore.get(QueuedCommand.class, pendingId).getPendingKey(),
+                is(APP_ID + "/user42"));
+        queuedCommandDao.delete(runningId);
+        // when
+        queuedCommandDao.claimVisible(10);
+        // then
+        QueuedCommand queuedCommand = datastore.get(QueuedCommand.class, pendingId);
+        assertThat(queuedCommand.getPendingKey() == null, is(true));
+        assertThat(queuedCommand.getRunningKey(), is(APP_ID + "/user42"));
+    }
+
+    @Test
+    public void shouldUnsetRunningKeyOnReschedule() {
+        // given
+        ObjectId id = queuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc1")));
+        // when
+        queuedCommandDao.rescheduleOnFailure(id, 0);
+        // then
+        assertThat(datastore.get(QueuedCommand.class, id).getRunningKey() == null, is(true));
+    }
+
+    @Test
+    public void shouldRejectClaimOfSecondCopyWhileKeyIsRunning() {
+        // given
+        clock.updateTime();
+        // scheduled copies aren't deduplicated, so this one is visible alongside the running copy
+        queuedCommandDao.insertScheduled(
+                new MockCoalescingCommand("user42", Arrays.asList("doc1")),
+                clock.currentTimeMillis());
+        QueuedCommandDao otherNodeQueuedCommandDao =
+                new MongoQueuedCommandDao("other" + NODE_ID, APP_ID, datastore, clock);
+        otherNodeQueuedCommandDao.lockAndInsertOrCoalesce(
+                new MockCoalescingCommand("user42", Arrays.asList("doc2")));
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(10);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(0));
+        // parked until the running copy is done
+        assertThat(queuedCommandDao.readVisible(10).size(), is(0));
+        assertThat(queuedCommandDao.readMillisUntilNextVisible(), is(-1L));
+    }
+
+    @Test
+    public void shouldClaimUnkeyedCommandsBehindBlockedPendingCopies() {
+        // given
+        clock.updateTime();
+        List<ObjectId> runningIds = new ArrayList<ObjectId>();
+        for (int i = 0; i < 3; i++) {
+            runningIds.add(queuedCommandDao.lockAndInsertOrCoalesce(
+                    new MockCoalescingCommand("user" + i, Arrays.asList("doc1"))));
+            queuedCommandDao.lockAndInsertOrCoalesce(
+                    new MockCoalescingCommand("user" + i, Arrays.asList("doc2")));
+        }
+        clock.forwardTime(1);
+        queuedCommandDao.insertAll(Arrays.<Command> asList(new MockCommand(1, "test"),
+                new MockCommand(2, "test")));
+        // when
+        List<QueuedCommand> claimedQueuedCommands = queuedCommandDao.claimVisible(2);
+        // then
+        assertThat(claimedQueuedCommands.size(), is(2));
+        assertThat(claimedQueuedCommands.get(0).getKey() == null, is(true));
+        assertThat(claimedQueuedCommands.get(1).getKey() == null, is(true));
+        assertThat(queuedCommandDao.readMillisUntilNextVisible(), is(-1L));
+        // the pending copy is unparked once its running copy is done
+        queuedCommandDao.delete(runningIds.get(0));
+        claimedQueuedCommands = queuedCommandDao.claimVisible(2);
+        assertThat(claimedQueuedCommands.size(), is(1));
+        assertThat(claimedQueuedCommands.get(0).getKey(), is("user0"));
+    }
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.clock.MockClock;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.Guice;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class NodeAwareCommandExecutorServiceTest {
+
+    private static final String APP_ID = "unittest/1.0";
+    private static final String NODE_ID = "unittest/" + System.currentTimeMillis();
+
+    private MockClock clock;
+    private QueuedCommandDao queuedCommandDao;
+    private WriteBehindQueuedCommandWriter writeBehindWriter;
+    private RecordingScheduledExecutorService batchScheduledExecutorService;
+    private NodeAwareCommandExecutorService commandExecutorService;
+    private List<Integer> batchSizes;
+
+    @Before
+    public void before() {
+        clock = new MockClock();
+        clock.updateTime();
+        queuedCommandDao = new InMemoryQueuedCommandDao(NODE_ID, APP_ID, clock);
+        // batches of one so that each insert is flushed (and its future completed) on its own
+        writeBehindWriter = new WriteBehindQueuedCommandWriter(queuedCommandDao, 1, 1);
+        // batches are only timed out when the test runs their timeout
+        batchScheduledExecutorService = new RecordingScheduledExecutorService();
+        commandExecutorService = new NodeAwareCommandExecutorService(
+                new BasicCommandExecutorService(queuedCommandDao, Guice.createInjector(),
+                        writeBehindWriter),
+                new InMemoryQueueNodeDao(NODE_ID, APP_ID, clock), null, null,
+                batchScheduledExecutorService);
+        batchSizes = new ArrayList<Integer>();
+    }
+
+    @After
+    public void after() {
+        commandExecutorService.shutdown();
+        writeBehindWriter.shutdown();
+        batchScheduledExecutorService.shutdownNow();
+    }
+
+    @Test
+    public void shouldNotDelayOtherAsyncInsertsWhileInsertedCommandRuns() throws Exception {
+        // given
+        BlockingCommand blockingCommand = new BlockingCommand();
+        commandExecutorService.queueAndRunCommandAsync(blockingCommand).get(1, TimeUnit.SECONDS);
+        assertThat(blockingCommand.startedLatch.await(1, TimeUnit.SECONDS), is(true));
+        // when
+        ListenableFuture<ObjectId> future =
+                commandExecutorService.queueAndRunCommandAsync(new MockCommand(1, "test"));
+        // then
+        try {
+            // completes even though the first command is still running
+            future.get(1, TimeUnit.SECONDS);
+        } finally {
+            blockingCommand.releaseLatch.countDown();
+        }
+    }
+
+    @Test
+    public void shouldDispatchBatchWhenFull() {
+        // given
+        insertBatchableCommands(3);
+        // when
+        commandExecutorService.claimAndRunVisibleCommands(10);
+        // then
+        assertThat(batchSizes, is(Arrays.asList(3)));
+        assertThat(batchScheduledExecutorService.futures.get(0).isCancelled(), is(true));
+        assertThat(commandExecutorService.getLockCount(), is(0));
+    }
+
+    @Test
+    public void shouldDispatchPartialBatchOnTimeout() {
+        // given
+        insertBatchableCommands(2);
+        commandExecutorService.claimAndRunVisibleCommands(10);
+        assertThat(batchSizes.isEmpty(), is(true));
+        assertThat(batchScheduledExecutorService.delays, is(Arrays.asList(100L)));
+        // when
+        batchScheduledExecutorService.tasks.get(0).run();
+        // then
+        assertThat(batchSizes, is(Arrays.asList(2)));
+        assertThat(commandExecutorService.getLockCount(), is(0));
+    }
+
+    @Test
+    public void shouldNotDispatchFullBatchAgainWhenItsTimeoutRuns() {
+        // given
+        insertBatchableCommands(3);
+        commandExecutorService.claimAndRunVisibleCommands(10);
+        // when
+        // the timeout may already be running by the time the full batch cancels it
+        batchScheduledExecutorService.tasks.get(0).run();
+        // then
+        assertThat(batchSizes, is(Arrays.asList(3)));
+        assertThat(commandExecutorService.getLockCount(), is(0));
+    }
+
+    @Test
+    public void shouldHoldLockCountForEachCommandUntilItsBatchIsDispatched() {
+        // given
+        insertBatchableCommands(5);
+        // when
+        commandExecutorService.claimAndRunVisibleCommands(10);
+        // then
+        assertThat(batchSizes, is(Arrays.asList(3)));
+        assertThat(commandExecutorService.getLockCount(), is(2));
+        batchScheduledExecutorService.tasks.get(1).run();
+        assertThat(batchSizes, is(Arrays.asList(3, 2)));
+        assertThat(commandExecutorService.getLockCount(), is(0));
+    }
+
+    @Test
+    public void shouldKeepLockCountWhenBatchIsRejected() {
+        // given
+        batchScheduledExecutorService.shutdownNow();
+        insertBatchableCommands(1);
+        // when
+        commandExecutorService.claimAndRunVisibleCommands(10);
+        // then
+        assertThat(batchSizes.isEmpty(), is(true));
+        // so that the command is recovered by another node once this node stops heartbeating
+        assertThat(commandExecutorService.getLockCount(), is(1));
+    }
+
+    private void insertBatchableCommands(int count) {
+        List<Command> commands = new ArrayList<Command>();
+        for (int i = 0; i < count; i++) {
+            commands.add(new RecordingBatchableCommand(batchSizes));
+        }
+        queuedCommandDao.insertAll(commands);
+    }
+
+    // blocks in execute() until released
+    private static class BlockingCommand implements Command {
+
+        private final CountDownLatch startedLatch = new CountDownLatch(1);
+        private final CountDownLatch releaseLatch = new CountDownLatch(1);
+
+        public void execute() throws InterruptedException {
+            startedLatch.countDown();
+            releaseLatch.await();
+        }
+
+        public RetryPolicy retryPolicy() {
+            return new RetryPolicy(10, 100, 5);
+        }
+    }
+
+    private static class RecordingBatchableCommand implements BatchableCommand {
+
+        private final List<Integer> batchSizes;
+
+        private RecordingBatchableCommand(List<Integer> batchSizes) {
+            this.batchSizes = batchSizes;
+        }
+
+        public void execute() {
+            batchSizes.add(1);
+        }
+
+        public RetryPolicy retryPolicy() {
+            return new RetryPolicy(10, 100, 5);
+        }
+
+        public int maxBatchSize() {
+            return 3;
+        }
+
+        public long maxBatchDelayMillis() {
+            return 100;
+        }
+
+        public boolean[] executeBatch(List<BatchableCommand> batch) {
+            batchSizes.add(batch.size());
+            boolean[] succeeded = new boolean[batch.size()];
+            Arrays.fill(succeeded, true);
+            return succeeded;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class PhiAccrualFailureDetectorTest {
+
+    @Test
+    public void shouldNotSuspectRegularHeartbeats() {
+        // given
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(100, 1000, 250);
+        for (int i = 0; i < 10; i++) {
+            detector.heartbeat(i * 1000);
+        }
+        // when
+        double phi = detector.phi(10000);
+        // then
+        assertThat(phi < 1, is(true));
+    }
+
+    @Test
+    public void shouldSuspectMissedHeartbeats() {
+        // given
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(100, 1000, 250);
+        for (int i = 0; i < 10; i++) {
+            detector.heartbeat(i * 1000);
+        }
+        // when
+        double phi = detector.phi(9000 + 5000);
+        // then
+        assertThat(phi > 8, is(true));
+    }
+
+    @Test
+    public void shouldIncreaseWithSilence() {
+        // given
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(100, 1000, 250);
+        detector.heartbeat(0);
+        detector.heartbeat(1000);
+        // when
+        double phi1 = detector.phi(2000);
+        double phi2 = detector.phi(2500);
+        double phi3 = detector.phi(3000);
+        // then
+        assertThat(phi1 < phi2, is(true));
+        assertThat(phi2 < phi3, is(true));
+    }
+
+    @Test
+    public void shouldNotSuspectBeforeFirstHeartbeat() {
+        // given
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(100, 1000, 250);
+        // when
+        double phi = detector.phi(100000);
+        // then
+        assertThat(phi, is(0.0));
+    }
+}
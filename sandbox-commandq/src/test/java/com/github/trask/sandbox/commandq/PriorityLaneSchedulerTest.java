@@ -0,0 +1,52 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class PriorityLaneSchedulerTest {
+
+    @Test
+    public void shouldAllocateSlotsInProportionToWeights() {
+        // given
+        PriorityLaneScheduler priorityLaneScheduler = new PriorityLaneScheduler();
+        // when
+        int[] quotas = priorityLaneScheduler.allocate(20);
+        // then
+        assertThat(quotas[Priority.High.ordinal()], is(12));
+        assertThat(quotas[Priority.Normal.ordinal()], is(6));
+        assertThat(quotas[Priority.Low.ordinal()], is(2));
+    }
+
+    @Test
+    public void shouldNotStarveLowPriorityAcrossSmallAllocations() {
+        // given
+        PriorityLaneScheduler priorityLaneScheduler = new PriorityLaneScheduler();
+        // when
+        int lowPrioritySlots = 0;
+        for (int i = 0; i < 5; i++) {
+            lowPrioritySlots += priorityLaneScheduler.allocate(2)[Priority.Low.ordinal()];
+        }
+        // then
+        assertThat(lowPrioritySlots, is(1));
+    }
+}
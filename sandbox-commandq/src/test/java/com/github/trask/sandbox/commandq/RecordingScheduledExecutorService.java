@@ -0,0 +1,49 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the scheduled tasks and their delays without ever running the tasks, so that they
+ * only run when the test runs them.
+ * 
+ * @author Trask Stalnaker
+ */
+class RecordingScheduledExecutorService extends ScheduledThreadPoolExecutor {
+
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    final List<Long> delays = new ArrayList<Long>();
+    final List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>();
+
+    RecordingScheduledExecutorService() {
+        super(1);
+    }
+
+    @Override
+    public synchronized ScheduledFuture<?> schedule(Runnable command, long delay,
+            TimeUnit unit) {
+        tasks.add(command);
+        delays.add(unit.toMillis(delay));
+        ScheduledFuture<?> future = super.schedule(command, 3600, TimeUnit.SECONDS);
+        futures.add(future);
+        return future;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class RendezvousHashingTest {
+
+    private static final List<String> NODE_IDS = Arrays.asList("node1", "node2", "node3");
+
+    @Test
+    public void shouldSpreadKeysEvenly() {
+        // given
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        // when
+        for (int i = 0; i < 3000; i++) {
+            String owner = RendezvousHashing.getOwner(NODE_IDS, new ObjectId().toByteArray());
+            Integer count = counts.get(owner);
+            counts.put(owner, count == null ? 1 : count + 1);
+        }
+        // then
+        for (String nodeId : NODE_IDS) {
+            assertThat(counts.get(nodeId) > 800, is(true));
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveKeysOwnedByRemovedNode() {
+        // given
+        List<String> remainingNodeIds = Arrays.asList("node1", "node3");
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = new ObjectId().toByteArray();
+            String owner = RendezvousHashing.getOwner(NODE_IDS, key);
+            // when
+            String remainingOwner = RendezvousHashing.getOwner(remainingNodeIds, key);
+            // then
+            if (!owner.equals("node2")) {
+                assertThat(remainingOwner, is(owner));
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class StripedCounterTest {
+
+    @Test
+    public void shouldSumAcrossThreads() throws InterruptedException {
+        // given
+        final StripedCounter counter = new StripedCounter(4);
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        // when
+        for (int i = 0; i < 8; i++) {
+            executorService.execute(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        counter.add(1);
+                    }
+                }
+            });
+        }
+        executorService.shutdown();
+        executorService.awaitTermination(10, TimeUnit.SECONDS);
+        // then
+        assertThat(counter.sum(), is(80000L));
+    }
+
+    @Test
+    public void shouldSumDecrementsFromOtherThreads() throws InterruptedException {
+        // given
+        final StripedCounter counter = new StripedCounter(4);
+        counter.add(3);
+        // when
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                counter.add(-2);
+            }
+        });
+        thread.start();
+        thread.join();
+        // then
+        assertThat(counter.sum(), is(1L));
+    }
+}
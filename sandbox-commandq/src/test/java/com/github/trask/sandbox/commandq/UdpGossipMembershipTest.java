@@ -0,0 +1,93 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.executors.DaemonExecutors;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class UdpGossipMembershipTest {
+
+    private static final String APP_ID = "unittest/1.0";
+    private static final long GOSSIP_INTERVAL_MILLIS = 50;
+
+    private ScheduledExecutorService scheduledExecutorService;
+    private UdpGossipMembership membership1;
+    private UdpGossipMembership membership2;
+
+    @Before
+    public void before() throws SocketException {
+        scheduledExecutorService = DaemonExecutors.newScheduledThreadPool(2, "UnitTest");
+        membership1 = new UdpGossipMembership("node1", APP_ID,
+                new InetSocketAddress("127.0.0.1", 0),
+                Collections.<InetSocketAddress> emptyList(), scheduledExecutorService,
+                GOSSIP_INTERVAL_MILLIS, UdpGossipMembership.DEFAULT_PHI_THRESHOLD);
+        membership1.start();
+        // node1 is the seed
+        membership2 = new UdpGossipMembership("node2", APP_ID,
+                new InetSocketAddress("127.0.0.1", 0),
+                Collections.singletonList(new InetSocketAddress("127.0.0.1",
+                        membership1.getLocalPort())), scheduledExecutorService,
+                GOSSIP_INTERVAL_MILLIS, UdpGossipMembership.DEFAULT_PHI_THRESHOLD);
+        membership2.start();
+    }
+
+    @After
+    public void after() {
+        membership1.shutdown();
+        scheduledExecutorService.shutdownNow();
+    }
+
+    @Test
+    public void shouldDiscoverAndDetectFailure() throws InterruptedException {
+        // given
+        final CountDownLatch failed = new CountDownLatch(1);
+        membership1.addMembershipListener(new MembershipListener() {
+            public void onNodeFailed(String nodeId) {
+                if (nodeId.equals("node2")) {
+                    failed.countDown();
+                }
+            }
+        });
+        // node1 only learns about node2 from node2's gossip
+        long startTime = System.currentTimeMillis();
+        while (!membership1.getLiveNodeIds().contains("node2")
+                && System.currentTimeMillis() - startTime < 5000) {
+            Thread.sleep(10);
+        }
+        assertThat(membership1.getLiveNodeIds().contains("node2"), is(true));
+        // when
+        membership2.shutdown();
+        // then
+        assertThat(failed.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(membership1.getLiveNodeIds().contains("node2"), is(false));
+    }
+}
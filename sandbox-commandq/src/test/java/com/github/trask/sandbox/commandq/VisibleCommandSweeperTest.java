@@ -0,0 +1,141 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.clock.MockClock;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.Guice;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class VisibleCommandSweeperTest {
+
+    private static final String APP_ID = "unittest/1.0";
+    private static final String NODE_ID = "unittest/" + System.currentTimeMillis();
+
+    private MockClock clock;
+    private QueuedCommandDao queuedCommandDao;
+    private NodeAwareCommandExecutorService commandExecutorService;
+    private RecordingScheduledExecutorService scheduledExecutorService;
+    private VisibleCommandSweeper visibleCommandSweeper;
+
+    @Before
+    public void before() {
+        clock = new MockClock();
+        clock.updateTime();
+        queuedCommandDao = new InMemoryQueuedCommandDao(NODE_ID, APP_ID, clock);
+        commandExecutorService = new NodeAwareCommandExecutorService(
+                new BasicCommandExecutorService(queuedCommandDao, Guice.createInjector()),
+                new InMemoryQueueNodeDao(NODE_ID, APP_ID, clock));
+        scheduledExecutorService = new RecordingScheduledExecutorService();
+        visibleCommandSweeper = new VisibleCommandSweeper(queuedCommandDao,
+                commandExecutorService, scheduledExecutorService,
+                MoreExecutors.sameThreadExecutor(), 100, 10000);
+    }
+
+    @After
+    public void after() {
+        commandExecutorService.shutdown();
+        scheduledExecutorService.shutdownNow();
+    }
+
+    @Test
+    public void shouldOnlyMoveWakeUpEarlier() {
+        // given
+        visibleCommandSweeper.wakeUpIn(5000);
+        // when
+        visibleCommandSweeper.wakeUpIn(10000);
+        visibleCommandSweeper.wakeUpIn(1000);
+        // then
+        assertThat(scheduledExecutorService.delays, is(Arrays.asList(5000L, 1000L)));
+        assertThat(scheduledExecutorService.futures.get(0).isCancelled(), is(true));
+        assertThat(scheduledExecutorService.futures.get(1).isCancelled(), is(false));
+    }
+
+    @Test
+    public void shouldWakeUpOnReschedule() {
+        // given
+        // when
+        visibleCommandSweeper.onReschedule(2000);
+        // then
+        assertThat(scheduledExecutorService.delays, is(Arrays.asList(2000L)));
+    }
+
+    @Test
+    public void shouldWakeUpNoSoonerThanMinIntervalOnReschedule() {
+        // given
+        // when
+        visibleCommandSweeper.onReschedule(0);
+        // then
+        assertThat(scheduledExecutorService.delays,
+                is(Arrays.asList(VisibleCommandSweeper.MIN_SWEEP_INTERVAL_MILLIS)));
+    }
+
+    @Test
+    public void shouldSleepUntilNextCommandIsVisible() {
+        // given
+        queuedCommandDao.insertScheduled(new MockCommand(1, "test"),
+                clock.currentTimeMillis() + 5000);
+        // when
+        visibleCommandSweeper.run();
+        // then
+        assertThat(scheduledExecutorService.delays, is(Arrays.asList(5000L)));
+    }
+
+    @Test
+    public void shouldSleepNoLongerThanMaxIntervalWhenNothingIsQueued() {
+        // given
+        // when
+        visibleCommandSweeper.run();
+        // then
+        // no longer than the fixed rate poll that the sweeper replaced
+        assertThat(scheduledExecutorService.delays, is(Arrays.asList(30000L)));
+    }
+
+    @Test
+    public void shouldSleepNoLongerThanMaxInterval() {
+        // given
+        queuedCommandDao.insertScheduled(new MockCommand(1, "test"),
+                clock.currentTimeMillis() + 3600000);
+        // when
+        visibleCommandSweeper.run();
+        // then
+        // no longer than the fixed rate poll that the sweeper replaced
+        assertThat(scheduledExecutorService.delays, is(Arrays.asList(30000L)));
+    }
+
+    @Test
+    public void shouldSleepNoShorterThanMinInterval() {
+        // given
+        queuedCommandDao.insertScheduled(new MockCommand(1, "test"),
+                clock.currentTimeMillis() + 10);
+        // when
+        visibleCommandSweeper.run();
+        // then
+        assertThat(scheduledExecutorService.delays,
+                is(Arrays.asList(VisibleCommandSweeper.MIN_SWEEP_INTERVAL_MILLIS)));
+    }
+}
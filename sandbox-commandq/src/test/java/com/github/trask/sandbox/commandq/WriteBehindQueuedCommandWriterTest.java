@@ -0,0 +1,147 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.commandq;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.clock.MockClock;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class WriteBehindQueuedCommandWriterTest {
+
+    private QueuedCommandDao queuedCommandDao;
+    private WriteBehindQueuedCommandWriter writeBehindWriter;
+
+    @Before
+    public void before() {
+        queuedCommandDao = mock(QueuedCommandDao.class);
+        // long max delay so that batches are only written once they are full (or on shutdown)
+        writeBehindWriter = new WriteBehindQueuedCommandWriter(queuedCommandDao, 3, 60000);
+    }
+
+    @After
+    public void after() {
+        writeBehindWriter.shutdown();
+    }
+
+    @Test
+    public void shouldInsertFullBatchWithSingleWrite() throws Exception {
+        // given
+        MockCommand command1 = new MockCommand(1, "test");
+        MockCommand command2 = new MockCommand(2, "test");
+        MockCommand command3 = new MockCommand(3, "test");
+        List<Command> commands = Arrays.<Command> asList(command1, command2, command3);
+        List<ObjectId> ids = Arrays.asList(new ObjectId(), new ObjectId(), new ObjectId());
+        given(queuedCommandDao.lockAndInsertAll(commands)).willReturn(ids);
+        // when
+        ListenableFuture<ObjectId> future1 = writeBehindWriter.lockAndInsert(command1);
+        ListenableFuture<ObjectId> future2 = writeBehindWriter.lockAndInsert(command2);
+        ListenableFuture<ObjectId> future3 = writeBehindWriter.lockAndInsert(command3);
+        // then
+        assertThat(future1.get(), is(ids.get(0)));
+        assertThat(future2.get(), is(ids.get(1)));
+        assertThat(future3.get(), is(ids.get(2)));
+        verify(queuedCommandDao, times(1)).lockAndInsertAll(commands);
+    }
+
+    @Test
+    public void shouldWritePendingDeletesOnShutdown() {
+        // given
+        ObjectId id1 = new ObjectId();
+        ObjectId id2 = new ObjectId();
+        writeBehindWriter.delete(id1);
+        writeBehindWriter.delete(id2);
+        // when
+        writeBehindWriter.shutdown();
+        // then
+        verify(queuedCommandDao).deleteAll(Arrays.asList(id1, id2));
+    }
+
+    @Test
+    public void shouldFailInsertAfterShutdown() throws Exception {
+        // given
+        writeBehindWriter.shutdown();
+        // when
+        ListenableFuture<ObjectId> future = writeBehindWriter.lockAndInsert(
+                new MockCommand(1, "test"));
+        // then
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+        }
+    }
+
+    @Test
+    public void shouldCompleteEveryInsertAddedDuringShutdown() throws Exception {
+        // given
+        final WriteBehindQueuedCommandWriter writer = new WriteBehindQueuedCommandWriter(
+                new InMemoryQueuedCommandDao("unittest", "unittest/1.0", new MockClock()), 100,
+                1);
+        final List<ListenableFuture<ObjectId>> futures =
+                new CopyOnWriteArrayList<ListenableFuture<ObjectId>>();
+        final AtomicBoolean stop = new AtomicBoolean();
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 4; i++) {
+            executorService.execute(new Runnable() {
+                public void run() {
+                    List<ListenableFuture<ObjectId>> threadFutures =
+                            new ArrayList<ListenableFuture<ObjectId>>();
+                    while (!stop.get()) {
+                        threadFutures.add(writer.lockAndInsert(new MockCommand(1, "test")));
+                    }
+                    futures.addAll(threadFutures);
+                }
+            });
+        }
+        Thread.sleep(10);
+        // when
+        writer.shutdown();
+        stop.set(true);
+        executorService.shutdown();
+        executorService.awaitTermination(10, TimeUnit.SECONDS);
+        // then
+        for (ListenableFuture<ObjectId> future : futures) {
+            assertThat(future.isDone(), is(true));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.executors.benchmarks;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.github.trask.sandbox.executors.HashedWheelTimer;
+import com.github.trask.sandbox.executors.HashedWheelTimer.Timeout;
+
+/**
+ * Throughput of scheduling backoffs with a ScheduledExecutorService versus a HashedWheelTimer, from
+ * several threads at once while a large number of other backoffs are pending.
+ * 
+ * @author Trask Stalnaker
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(RetryBackoffSchedulingBenchmark.N_THREADS)
+public class RetryBackoffSchedulingBenchmark {
+
+    static final int N_THREADS = 8;
+
+    // far enough out that none of the backoffs run during the benchmark
+    private static final long BACKOFF_SECONDS = 3600;
+
+    private static final Runnable NOOP = new Runnable() {
+        public void run() {}
+    };
+
+    @State(Scope.Benchmark)
+    public static class Schedulers {
+
+        @Param("100000")
+        private int nPending;
+
+        private ScheduledThreadPoolExecutor scheduledExecutorService;
+        private HashedWheelTimer timer;
+
+        @Setup
+        public void setUp() {
+            scheduledExecutorService = new ScheduledThreadPoolExecutor(1);
+            // otherwise the cancelled backoffs would pile up in the queue
+            scheduledExecutorService.setRemoveOnCancelPolicy(true);
+            timer = new HashedWheelTimer("RetryBackoffSchedulingBenchmark");
+        }
+
+        @TearDown
+        public void tearDown() {
+            scheduledExecutorService.shutdownNow();
+            timer.shutdown();
+        }
+    }
+
+    // each thread keeps its share of the pending backoffs in a ring, and each operation cancels
+    // the oldest one and schedules a new one, so the number pending stays the same throughout
+    @State(Scope.Thread)
+    public static class ScheduledExecutorServiceBackoffs {
+
+        private ScheduledFuture<?>[] pending;
+        private int next;
+
+        @Setup
+        public void setUp(Schedulers schedulers) {
+            pending = new ScheduledFuture<?>[schedulers.nPending / N_THREADS];
+            for (int i = 0; i < pending.length; i++) {
+                pending[i] = schedulers.scheduledExecutorService.schedule(NOOP,
+                        BACKOFF_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class HashedWheelTimerBackoffs {
+
+        private Timeout[] pending;
+        private int next;
+
+        @Setup
+        public void setUp(Schedulers schedulers) {
+            pending = new Timeout[schedulers.nPending / N_THREADS];
+            for (int i = 0; i < pending.length; i++) {
+                pending[i] = schedulers.timer.schedule(NOOP, BACKOFF_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    @Benchmark
+    public void scheduledExecutorService(Schedulers schedulers,
+            ScheduledExecutorServiceBackoffs backoffs) {
+
+        backoffs.pending[backoffs.next].cancel(false);
+        backoffs.pending[backoffs.next] = schedulers.scheduledExecutorService.schedule(NOOP,
+                BACKOFF_SECONDS, TimeUnit.SECONDS);
+        backoffs.next = (backoffs.next + 1) % backoffs.pending.length;
+    }
+
+    @Benchmark
+    public void hashedWheelTimer(Schedulers schedulers, HashedWheelTimerBackoffs backoffs) {
+        backoffs.pending[backoffs.next].cancel();
+        backoffs.pending[backoffs.next] =
+                schedulers.timer.schedule(NOOP, BACKOFF_SECONDS, TimeUnit.SECONDS);
+        backoffs.next = (backoffs.next + 1) % backoffs.pending.length;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.executors;
+
+import java.util.Random;
+
+import com.google.common.base.Objects;
+
+/**
+ * Exponential backoff, doubling from the base delay up to the cap, with optional jitter so that
+ * callers that fail together don't retry together.
+ * 
+ * @author Trask Stalnaker
+ */
+public class Backoff {
+
+    private static final Random random = new Random();
+
+    public enum Jitter {
+        // exactly base * 2^attempt (capped)
+        NONE,
+        // uniformly random between base and base * 2^(attempt + 1) (capped), i.e. "full jitter"
+        // except that the delay never goes below base, so even the first retry is spread out
+        FULL,
+        // uniformly random between base and 3 times the previous attempt's delay (capped), i.e.
+        // "decorrelated jitter" except that it uses the previous attempt's unjittered delay
+        // instead of its actual delay, so that no state needs to be kept between attempts (which
+        // may not even run on the same node)
+        DECORRELATED;
+    }
+
+    private final long baseMillis;
+    private final long capMillis;
+    private final Jitter jitter;
+
+    public Backoff(long baseMillis, long capMillis) {
+        this(baseMillis, capMillis, Jitter.FULL);
+    }
+
+    public Backoff(long baseMillis, long capMillis, Jitter jitter) {
+        this.baseMillis = baseMillis;
+        // a cap below the base is treated as no backoff at all, i.e. always the base
+        this.capMillis = Math.max(capMillis, baseMillis);
+        this.jitter = jitter;
+    }
+
+    // attempt is the number of failures prior to this one, so 0 for the first retry
+    public long getDelayMillis(int attempt) {
+        return getDelayMillis(attempt, random);
+    }
+
+    // the delay for a retry that has been held back (e.g. by a RetryBudget), this is near the
+    // cap (between half the cap and the cap, unless there is no jitter) regardless of attempt
+    public long getHeldBackDelayMillis() {
+        return getHeldBackDelayMillis(random);
+    }
+
+    public long getBaseMillis() {
+        return baseMillis;
+    }
+
+    public long getCapMillis() {
+        return capMillis;
+    }
+
+    public Jitter getJitter() {
+        return jitter;
+    }
+
+    // package private so that tests can pass a seeded random
+    long getDelayMillis(int attempt, Random random) {
+        switch (jitter) {
+        case FULL:
+            return between(baseMillis, getUnjitteredDelayMillis(attempt + 1), random);
+        case DECORRELATED:
+            long previousMillis = attempt == 0 ? baseMillis
+                    : getUnjitteredDelayMillis(attempt - 1);
+            // min() before multiplying so that it can't overflow
+            return between(baseMillis, Math.min(previousMillis, capMillis) * 3, random);
+        default:
+            return getUnjitteredDelayMillis(attempt);
+        }
+    }
+
+    // package private so that tests can pass a seeded random
+    long getHeldBackDelayMillis(Random random) {
+        if (jitter == Jitter.NONE) {
+            return capMillis;
+        }
+        return between(Math.max(capMillis / 2, baseMillis), capMillis, random);
+    }
+
+    private long getUnjitteredDelayMillis(int attempt) {
+        // calculated as a double so that it can't overflow
+        double delayMillis = baseMillis * Math.pow(2, attempt);
+        return delayMillis >= capMillis ? capMillis : (long) delayMillis;
+    }
+
+    // uniformly random between min and max (inclusive), and never more than the cap
+    private long between(long min, long max, Random random) {
+        return Math.min(min + (long) (random.nextDouble() * (max - min + 1)), capMillis);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("baseMillis", baseMillis)
+                .add("capMillis", capMillis)
+                .add("jitter", jitter)
+                .toString();
+    }
+}
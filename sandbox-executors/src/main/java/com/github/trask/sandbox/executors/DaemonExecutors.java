@@ -16,9 +16,16 @@
 package com.github.trask.sandbox.executors;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.reflect.Method;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,10 +37,34 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  */
 public final class DaemonExecutors {
 
+    private static final Logger logger = LoggerFactory.getLogger(DaemonExecutors.class);
+
     private static final String NAME_COUNTER_SUFFIX = "-%d";
 
+    // null if the jvm doesn't support virtual threads (they require java 21)
+    private static final VirtualThreads virtualThreads = VirtualThreads.create();
+
     private DaemonExecutors() {}
 
+    // starts a new virtual thread for each task, falling back to newCachedThreadPool() if the jvm
+    // doesn't support virtual threads
+    //
+    // virtual threads are cheap enough (a few kilobytes each, instead of a full platform thread
+    // stack) that there is no need to pool them, and so no limit on the number of tasks that
+    // can be blocked at the same time, e.g. waiting on long polling http requests
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+        if (virtualThreads == null) {
+            logger.debug("newVirtualThreadPerTaskExecutor(): virtual threads are not supported"
+                    + " by this jvm, falling back to a cached thread pool");
+            return newCachedThreadPool(name);
+        }
+        return virtualThreads.newThreadPerTaskExecutor(name);
+    }
+
+    public static boolean isVirtualThreadSupported() {
+        return virtualThreads != null;
+    }
+
     public static ExecutorService newCachedThreadPool(String name) {
         return Executors.newCachedThreadPool(new ThreadFactoryBuilder()
                 .setDaemon(true)
@@ -42,6 +73,19 @@ public final class DaemonExecutors {
                 .build());
     }
 
+    // once all threads are busy and the queue is full, tasks are run on the submitting thread
+    // which slows down the submitter instead of letting the queue grow without bound
+    public static ExecutorService newBoundedThreadPool(int nThreads, int queueCapacity,
+            String name) {
+
+        return new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat(name + NAME_COUNTER_SUFFIX)
+                        .setUncaughtExceptionHandler(new ExceptionHandler())
+                        .build(), new CallerRunsUnlessShutdownPolicy());
+    }
+
     public static ExecutorService newSingleThreadExecutor(String name) {
         return Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
                 .setDaemon(true)
@@ -66,6 +110,69 @@ public final class DaemonExecutors {
                 .build());
     }
 
+    // unlike ThreadPoolExecutor.CallerRunsPolicy, this does not silently discard tasks after
+    // shutdown, so that submitters can clean up after tasks that will never run
+    private static class CallerRunsUnlessShutdownPolicy implements RejectedExecutionHandler {
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Executor already shutdown");
+            }
+            task.run();
+        }
+    }
+
+    // virtual threads are only available via reflection since this is compiled for java 5, the
+    // equivalent of Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0)
+    // .uncaughtExceptionHandler(new ExceptionHandler()).factory())
+    private static class VirtualThreads {
+
+        private final Method ofVirtualMethod;
+        private final Method nameMethod;
+        private final Method uncaughtExceptionHandlerMethod;
+        private final Method factoryMethod;
+        private final Method newThreadPerTaskExecutorMethod;
+
+        private VirtualThreads() throws Exception {
+            // the methods are looked up on the public interface, since the builder
+            // implementation class isn't accessible
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+            nameMethod = builderClass.getMethod("name", String.class, long.class);
+            uncaughtExceptionHandlerMethod = builderClass.getMethod("uncaughtExceptionHandler",
+                    UncaughtExceptionHandler.class);
+            factoryMethod = builderClass.getMethod("factory");
+            newThreadPerTaskExecutorMethod = Executors.class.getMethod(
+                    "newThreadPerTaskExecutor", ThreadFactory.class);
+        }
+
+        // returns null if the jvm doesn't support virtual threads
+        private static VirtualThreads create() {
+            try {
+                VirtualThreads virtualThreads = new VirtualThreads();
+                // on java 19 and 20 the methods exist, but throw unless preview features are
+                // enabled
+                virtualThreads.ofVirtualMethod.invoke(null);
+                return virtualThreads;
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        private ExecutorService newThreadPerTaskExecutor(String name) {
+            try {
+                Object builder = ofVirtualMethod.invoke(null);
+                nameMethod.invoke(builder, name + "-", 0L);
+                uncaughtExceptionHandlerMethod.invoke(builder, new ExceptionHandler());
+                ThreadFactory threadFactory = (ThreadFactory) factoryMethod.invoke(builder);
+                return (ExecutorService) newThreadPerTaskExecutorMethod.invoke(null,
+                        threadFactory);
+            } catch (Exception e) {
+                // the methods were all found, so this is not expected
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
     private static class ExceptionHandler implements UncaughtExceptionHandler {
         private static final Logger logger = LoggerFactory.getLogger(ExceptionHandler.class);
         public void uncaughtException(Thread t, Throwable e) {
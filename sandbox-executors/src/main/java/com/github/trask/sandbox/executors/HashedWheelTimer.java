@@ -0,0 +1,277 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.executors;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs short tasks after given delays with a coarse (one tick) resolution, with O(1) schedule and
+ * cancel, for when there are a large number of pending tasks, e.g. backoffs of retrying commands.
+ * 
+ * @author Trask Stalnaker
+ */
+public class HashedWheelTimer {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    // limits the work done in a single tick, so that a flood of new tasks can't delay the tasks
+    // that are due, the rest are moved into the wheel on later ticks
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startNanos;
+
+    // newly scheduled timeouts, linked through Timeout.nextScheduled so that scheduling doesn't
+    // allocate anything besides the timeout itself, many threads add to the tail and only the
+    // worker thread takes from the head
+    private final AtomicReference<Timeout> scheduledTail;
+    // only accessed by the worker thread, this is the last timeout taken, or the initial stub
+    private Timeout scheduledHead;
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final ExecutorService workerExecutorService;
+    private volatile boolean shutdown;
+
+    public HashedWheelTimer(String name) {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, name);
+    }
+
+    // the wheel size is rounded up to a power of 2
+    public HashedWheelTimer(long tickMillis, int wheelSize, String name) {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int powerOf2WheelSize = 1;
+        while (powerOf2WheelSize < wheelSize) {
+            powerOf2WheelSize <<= 1;
+        }
+        wheel = new Bucket[powerOf2WheelSize];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = wheel.length - 1;
+        scheduledHead = new Timeout(null, 0);
+        scheduledTail = new AtomicReference<Timeout>(scheduledHead);
+        startNanos = System.nanoTime();
+        workerExecutorService = DaemonExecutors.newSingleThreadExecutor(name);
+        workerExecutorService.execute(new Worker());
+    }
+
+    // tasks that have not run yet are discarded
+    public void shutdown() {
+        shutdown = true;
+        workerExecutorService.shutdown();
+    }
+
+    // runs the task on the worker thread after (at least) the given delay, and at most about one
+    // tick later, so the task must be short, anything longer should be handed off to an executor
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Timer already shutdown");
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(delay));
+        size.incrementAndGet();
+        Timeout previous = scheduledTail.getAndSet(timeout);
+        // the worker won't see this timeout (or any scheduled after it) until this link is set
+        previous.nextScheduled = timeout;
+        return timeout;
+    }
+
+    // number of tasks that have neither run nor been cancelled
+    public int size() {
+        return size.get();
+    }
+
+    private class Worker implements Runnable {
+
+        // only accessed by the worker thread
+        private long tick;
+
+        public void run() {
+            while (!shutdown) {
+                long deadlineNanos = tickNanos * (tick + 1);
+                try {
+                    sleepUntil(deadlineNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                transferScheduled();
+                wheel[(int) (tick & mask)].expire(deadlineNanos);
+                tick++;
+            }
+        }
+
+        private void sleepUntil(long deadlineNanos) throws InterruptedException {
+            long sleepNanos = deadlineNanos - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                // rounded up so that the worker never wakes up before the deadline
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos + 999999));
+            }
+        }
+
+        private void transferScheduled() {
+            for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+                Timeout timeout = scheduledHead.nextScheduled;
+                if (timeout == null) {
+                    return;
+                }
+                scheduledHead = timeout;
+                if (timeout.state != Timeout.PENDING) {
+                    // cancelled before it was transferred into the wheel
+                    continue;
+                }
+                long deadlineTick = timeout.deadlineNanos / tickNanos;
+                timeout.remainingRounds = (deadlineTick - tick) / wheel.length;
+                // a task whose deadline has already passed goes into the current bucket so that
+                // it runs on this tick
+                long bucketTick = Math.max(deadlineTick, tick);
+                wheel[(int) (bucketTick & mask)].add(timeout);
+            }
+        }
+    }
+
+    public class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadlineNanos;
+
+        // not private, since the field updater (which is created by the outer class) needs
+        // access to it
+        volatile int state = PENDING;
+
+        private volatile Timeout nextScheduled;
+
+        // only accessed by the worker thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        // returns false if the task has already run (or is running) or was already cancelled, a
+        // cancelled timeout is dropped from its bucket when the worker next comes around to it
+        public boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            size.decrementAndGet();
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (!STATE_UPDATER.compareAndSet(this, PENDING, EXPIRED)) {
+                return;
+            }
+            size.decrementAndGet();
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    // the updater has to be declared outside of the (non-static) inner class
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+    // only accessed by the worker thread
+    private static class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = timeout;
+                tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private void expire(long deadlineNanos) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.deadlineNanos <= deadlineNanos) {
+                        timeout.expire();
+                    } else {
+                        // not expected since the bucket was chosen from the deadline
+                        logger.error("expire(): timeout deadline is after the bucket deadline");
+                    }
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                // already removed
+                return;
+            }
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.executors;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+
+/**
+ * Limits retries to a fraction of first attempts, plus a small minimum rate of retries so that
+ * callers with very little traffic can still retry.
+ * 
+ * @author Trask Stalnaker
+ */
+public class RetryBudget {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double retryRatio;
+    private final int minRetriesPerSecond;
+    private final int maxBalance;
+    private final Ticker ticker;
+
+    // guarded by this
+    // each first attempt deposits retryRatio, the minimum rate is deposited over time, and each
+    // retry withdraws 1, capped at maxBalance so a long healthy period doesn't build up a burst
+    private double balance;
+    private long lastRefillNanos;
+
+    // 10% retries, at least 10 retries per second, and at most a burst of 100 retries
+    public RetryBudget() {
+        this(0.1, 10, 100);
+    }
+
+    public RetryBudget(double retryRatio, int minRetriesPerSecond, int maxBalance) {
+        this(retryRatio, minRetriesPerSecond, maxBalance, Ticker.systemTicker());
+    }
+
+    public RetryBudget(double retryRatio, int minRetriesPerSecond, int maxBalance,
+            Ticker ticker) {
+
+        this.retryRatio = retryRatio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        this.maxBalance = maxBalance;
+        this.ticker = ticker;
+        balance = Math.min(minRetriesPerSecond, maxBalance);
+        lastRefillNanos = ticker.read();
+    }
+
+    // should be called once for each first attempt (not for retries)
+    public synchronized void deposit() {
+        refill();
+        balance = Math.min(balance + retryRatio, maxBalance);
+    }
+
+    // should be called before each retry, returns false if the retry should be held back
+    public synchronized boolean tryWithdraw() {
+        refill();
+        if (balance < 1) {
+            return false;
+        }
+        balance--;
+        return true;
+    }
+
+    public synchronized double getBalance() {
+        refill();
+        return balance;
+    }
+
+    // guarded by this
+    private void refill() {
+        long currentNanos = ticker.read();
+        long elapsedNanos = currentNanos - lastRefillNanos;
+        lastRefillNanos = currentNanos;
+        balance = Math.min(balance + (double) elapsedNanos * minRetriesPerSecond
+                / NANOS_PER_SECOND, maxBalance);
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("retryRatio", retryRatio)
+                .add("minRetriesPerSecond", minRetriesPerSecond)
+                .add("maxBalance", maxBalance)
+                .toString();
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.github.trask.sandbox.executors;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
@@ -39,7 +40,10 @@ class RetryingCommandWrapper<E> implements Runnable {
     private final RetriableCommand<E> command;
     private final RetryPolicy retryPolicy;
     private final ExecutorService executorService;
+    // exactly one of these two is non-null, whichever the backoffs are scheduled with
     private final ScheduledExecutorService scheduledExecutorService;
+    private final HashedWheelTimer timer;
+    private final RetryingFuture<E> retryingFuture = new RetryingFuture<E>();
 
     // volatile since they could be updated and subsequently read by different threads
     private volatile long startTimeMillis;
@@ -48,32 +52,69 @@ class RetryingCommandWrapper<E> implements Runnable {
     public RetryingCommandWrapper(RetriableCommand<E> command, RetryPolicy retryPolicy,
             ExecutorService executorService, ScheduledExecutorService scheduledExecutorService) {
 
+        this(command, retryPolicy, executorService, scheduledExecutorService, null);
+    }
+
+    public RetryingCommandWrapper(RetriableCommand<E> command, RetryPolicy retryPolicy,
+            ExecutorService executorService, HashedWheelTimer timer) {
+
+        this(command, retryPolicy, executorService, null, timer);
+    }
+
+    private RetryingCommandWrapper(RetriableCommand<E> command, RetryPolicy retryPolicy,
+            ExecutorService executorService, ScheduledExecutorService scheduledExecutorService,
+            HashedWheelTimer timer) {
+
         this.command = command;
         this.retryPolicy = retryPolicy;
         this.executorService = executorService;
         this.scheduledExecutorService = scheduledExecutorService;
+        this.timer = timer;
         if (retryPolicy != null) {
             retryIntervalSeconds = retryPolicy.getInitialRetryIntervalSeconds();
         }
     }
 
+    public RetryingFuture<E> getRetryingFuture() {
+        return retryingFuture;
+    }
+
     public void run() {
+        if (retryingFuture.isDone()) {
+            // cancelled while waiting in the executor service's queue
+            return;
+        }
+        retryingFuture.incrementAttemptCount();
         if (startTimeMillis == 0) {
             // mark the start time of the first attempt
             startTimeMillis = System.currentTimeMillis();
         }
         try {
             final ListenableFuture<E> future = command.execute();
+            retryingFuture.setInFlightFuture(future);
             future.addListener(new Runnable() {
                 public void run() {
+                    if (retryingFuture.isDone()) {
+                        // cancelled, the in flight future has been cancelled along with it
+                        return;
+                    }
                     try {
                         E result = future.get();
                         handleResult(result);
                     } catch (InterruptedException e) {
                         // we've been interrupted, presumably for a good reason (e.g. shutdown)
                         // so we terminate this command
+                        retryingFuture.fail(e);
+                    } catch (CancellationException e) {
+                        // the in flight future was cancelled by someone other than us
+                        retryingFuture.cancel(false);
                     } catch (ExecutionException e) {
                         handleAsyncException(e.getCause());
+                    } catch (RuntimeException e) {
+                        // thrown by checkResult() or onSuccess() (or by the rescheduling), the
+                        // retrying future would otherwise never complete
+                        logger.error(e.getMessage(), e);
+                        retryingFuture.fail(e);
                     }
                 }
             }, executorService);
@@ -82,7 +123,13 @@ class RetryingCommandWrapper<E> implements Runnable {
         } catch (FailAndBackoffException e) {
             rescheduleWithBackoff();
         } catch (AbortException e) {
-            // do nothing and allow thread to terminate
+            // allow thread to terminate
+            retryingFuture.fail(e);
+        } catch (RuntimeException e) {
+            // thrown by execute() (or by the rescheduling), the retrying future would otherwise
+            // never complete
+            logger.error(e.getMessage(), e);
+            retryingFuture.fail(e);
         }
     }
 
@@ -91,6 +138,7 @@ class RetryingCommandWrapper<E> implements Runnable {
         switch (command.checkResult(result)) {
         case Success:
             command.onSuccess(result);
+            retryingFuture.succeed(result);
             break;
         case FailureWithoutBackoff:
             resetBackoffAndReExecuteImmediately();
@@ -105,6 +153,7 @@ class RetryingCommandWrapper<E> implements Runnable {
         logger.debug("handleException(): exception={}", t);
         switch (command.checkAsyncException(t)) {
         case Abort:
+            retryingFuture.fail(t);
             break;
         case FailButResetBackoff:
             resetBackoffAndReExecuteImmediately();
@@ -117,19 +166,25 @@ class RetryingCommandWrapper<E> implements Runnable {
 
     private void backoff() {
         if (retryPolicy == null) {
-            command.onExceedMaxRetries();
+            exceedMaxRetries();
         } else if (isTimeToFail()) {
             // we've exceeded our patience, time to terminate this command without rescheduling
-            command.onExceedMaxRetries();
+            exceedMaxRetries();
         } else {
             rescheduleWithBackoff();
         }
     }
 
+    private void exceedMaxRetries() {
+        command.onExceedMaxRetries();
+        retryingFuture.fail(new RetryingFuture.ExceededMaxRetriesException(
+                retryingFuture.getAttemptCount()));
+    }
+
     private boolean isTimeToFail() {
         int finallyFailAfterSeconds = retryPolicy.getFinallyFailAfterSeconds();
-        long totalSeconds = System.currentTimeMillis() - startTimeMillis;
-        return finallyFailAfterSeconds > 0 && totalSeconds > finallyFailAfterSeconds;
+        long totalMillis = System.currentTimeMillis() - startTimeMillis;
+        return finallyFailAfterSeconds > 0 && totalMillis > finallyFailAfterSeconds * 1000L;
     }
 
     private void resetBackoffAndReExecuteImmediately() {
@@ -145,7 +200,20 @@ class RetryingCommandWrapper<E> implements Runnable {
                 retryIntervalSeconds * retryPolicy.getRetryIntervalMultiplier(),
                 retryPolicy.getMaxRetryIntervalSeconds());
         logger.debug("rescheduleWithBackoff(): backing off {} seconds", localRetryIntervalSeconds);
-        scheduledExecutorService.schedule(this, localRetryIntervalSeconds,
-                TimeUnit.SECONDS);
+        // the attempt is handed back to the executor service rather than run on the scheduled
+        // executor service's (or timer's) thread, which would otherwise be tied up by a blocking
+        // attempt
+        Runnable resubmit = new Runnable() {
+            public void run() {
+                executorService.submit(RetryingCommandWrapper.this);
+            }
+        };
+        if (timer == null) {
+            retryingFuture.setPendingBackoff(scheduledExecutorService.schedule(resubmit,
+                    localRetryIntervalSeconds, TimeUnit.SECONDS));
+        } else {
+            retryingFuture.setPendingBackoff(timer.schedule(resubmit, localRetryIntervalSeconds,
+                    TimeUnit.SECONDS));
+        }
     }
 }
@@ -22,6 +22,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Each attempt runs on the executor service, while the scheduled executor service (or hashed wheel
+ * timer) is only used to wait out the backoff between attempts.
+ * 
  * @author Trask Stalnaker
  */
 public class RetryingExecutorService {
@@ -29,20 +32,50 @@ public class RetryingExecutorService {
     private static final Logger logger = LoggerFactory.getLogger(RetryingExecutorService.class);
 
     private final ExecutorService executorService;
+    // exactly one of these two is non-null
     private final ScheduledExecutorService scheduledExecutorService;
+    private final HashedWheelTimer timer;
 
     public RetryingExecutorService(ExecutorService executorService,
             ScheduledExecutorService scheduledExecutorService) {
 
         this.executorService = executorService;
         this.scheduledExecutorService = scheduledExecutorService;
+        timer = null;
     }
 
-    public <E> void submit(final RetriableCommand<E> command, RetryPolicy retryPolicy) {
+    // better when many retrying commands are backing off at the same time, backoffs are in whole
+    // seconds anyway so the timer's coarse resolution doesn't matter
+    public RetryingExecutorService(ExecutorService executorService, HashedWheelTimer timer) {
+        this.executorService = executorService;
+        scheduledExecutorService = null;
+        this.timer = timer;
+    }
+
+    // runs each attempt on its own virtual thread (see
+    // DaemonExecutors.newVirtualThreadPerTaskExecutor()), so that a large number of in flight
+    // commands that block, e.g. long polling http requests, only costs a few kilobytes each
+    // instead of a platform thread each
+    public RetryingExecutorService(ScheduledExecutorService scheduledExecutorService,
+            String name) {
+
+        this(DaemonExecutors.newVirtualThreadPerTaskExecutor(name), scheduledExecutorService);
+    }
+
+    // cancelling the returned future stops the command from being retried, see RetryingFuture
+    public <E> RetryingFuture<E> submit(final RetriableCommand<E> command,
+            RetryPolicy retryPolicy) {
 
         logger.debug("submit() command={}", command);
-        RetryingCommandWrapper<E> retryingCommandWrapper = new RetryingCommandWrapper<E>(command,
-                retryPolicy, executorService, scheduledExecutorService);
+        RetryingCommandWrapper<E> retryingCommandWrapper;
+        if (timer == null) {
+            retryingCommandWrapper = new RetryingCommandWrapper<E>(command, retryPolicy,
+                    executorService, scheduledExecutorService);
+        } else {
+            retryingCommandWrapper = new RetryingCommandWrapper<E>(command, retryPolicy,
+                    executorService, timer);
+        }
         executorService.submit(retryingCommandWrapper);
+        return retryingCommandWrapper.getRetryingFuture();
     }
 }
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.executors;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.trask.sandbox.executors.HashedWheelTimer.Timeout;
+import com.google.common.util.concurrent.AbstractFuture;
+
+/**
+ * Handle to a command submitted to {@link RetryingExecutorService}, which completes with the result
+ * of the successful attempt, or fails with the exception that ended the retries.
+ * 
+ * @author Trask Stalnaker
+ */
+public class RetryingFuture<E> extends AbstractFuture<E> {
+
+    private final AtomicInteger attemptCount = new AtomicInteger();
+
+    // each of these is set before checking isDone() and is read after the cancelled state is set
+    // (both sides via volatile), so either the setter or cancel() sees the other
+    private volatile Future<?> inFlightFuture;
+    private volatile Future<?> pendingBackoff;
+    private volatile Timeout pendingTimeout;
+
+    // package protected, only created by RetryingExecutorService
+    RetryingFuture() {}
+
+    // the number of attempts that have been started so far
+    public int getAttemptCount() {
+        return attemptCount.get();
+    }
+
+    // also cancels the in flight attempt and the pending backoff (if any), so that an abandoned
+    // command stops holding connections and scheduler slots right away
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!super.cancel(mayInterruptIfRunning)) {
+            return false;
+        }
+        Future<?> localInFlightFuture = inFlightFuture;
+        if (localInFlightFuture != null) {
+            localInFlightFuture.cancel(mayInterruptIfRunning);
+        }
+        Future<?> localPendingBackoff = pendingBackoff;
+        if (localPendingBackoff != null) {
+            localPendingBackoff.cancel(false);
+        }
+        Timeout localPendingTimeout = pendingTimeout;
+        if (localPendingTimeout != null) {
+            localPendingTimeout.cancel();
+        }
+        return true;
+    }
+
+    int incrementAttemptCount() {
+        return attemptCount.incrementAndGet();
+    }
+
+    void setInFlightFuture(Future<?> future) {
+        inFlightFuture = future;
+        pendingBackoff = null;
+        pendingTimeout = null;
+        if (isCancelled()) {
+            future.cancel(false);
+        }
+    }
+
+    void setPendingBackoff(Future<?> future) {
+        inFlightFuture = null;
+        pendingBackoff = future;
+        if (isCancelled()) {
+            future.cancel(false);
+        }
+    }
+
+    void setPendingBackoff(Timeout timeout) {
+        inFlightFuture = null;
+        pendingTimeout = timeout;
+        if (isCancelled()) {
+            timeout.cancel();
+        }
+    }
+
+    boolean succeed(E result) {
+        clearReferences();
+        return set(result);
+    }
+
+    boolean fail(Throwable t) {
+        clearReferences();
+        return setException(t);
+    }
+
+    private void clearReferences() {
+        inFlightFuture = null;
+        pendingBackoff = null;
+        pendingTimeout = null;
+    }
+
+    @SuppressWarnings("serial")
+    public static class ExceededMaxRetriesException extends Exception {
+        public ExceededMaxRetriesException(int attemptCount) {
+            super("gave up after " + attemptCount + " attempts");
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.github.trask.sandbox.executors.Backoff.Jitter;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class BackoffTest {
+
+    @Test
+    public void shouldDoubleUpToCapWithoutJitter() {
+        // given
+        Backoff backoff = new Backoff(1000, 10000, Jitter.NONE);
+        // when
+        // then
+        assertThat(backoff.getDelayMillis(0), is(1000L));
+        assertThat(backoff.getDelayMillis(1), is(2000L));
+        assertThat(backoff.getDelayMillis(3), is(8000L));
+        assertThat(backoff.getDelayMillis(4), is(10000L));
+        assertThat(backoff.getDelayMillis(1000), is(10000L));
+    }
+
+    @Test
+    public void shouldStayWithinBoundsWithFullJitter() {
+        // given
+        Backoff backoff = new Backoff(1000, 10000, Jitter.FULL);
+        Random random = new Random(0);
+        // when
+        // then
+        for (int attempt = 0; attempt < 10; attempt++) {
+            long max = Math.min(1000L << (attempt + 1), 10000);
+            for (int i = 0; i < 1000; i++) {
+                long delayMillis = backoff.getDelayMillis(attempt, random);
+                assertThat(delayMillis >= 1000 && delayMillis <= max, is(true));
+            }
+        }
+    }
+
+    @Test
+    public void shouldSpreadDelaysWithFullJitter() {
+        // given
+        Backoff backoff = new Backoff(1000, 100000, Jitter.FULL);
+        Random random = new Random(0);
+        // when
+        int nBelowMidpoint = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (backoff.getDelayMillis(4, random) < 16500) {
+                nBelowMidpoint++;
+            }
+        }
+        // then
+        assertThat(nBelowMidpoint > 400 && nBelowMidpoint < 600, is(true));
+    }
+
+    @Test
+    public void shouldSpreadFirstRetryWithFullJitter() {
+        // given
+        Backoff backoff = new Backoff(1000, 100000, Jitter.FULL);
+        Random random = new Random(0);
+        // when
+        int nBelowMidpoint = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delayMillis = backoff.getDelayMillis(0, random);
+            assertThat(delayMillis >= 1000 && delayMillis <= 2000, is(true));
+            if (delayMillis < 1500) {
+                nBelowMidpoint++;
+            }
+        }
+        // then
+        assertThat(nBelowMidpoint > 400 && nBelowMidpoint < 600, is(true));
+    }
+
+    @Test
+    public void shouldStayWithinBoundsWithDecorrelatedJitter() {
+        // given
+        Backoff backoff = new Backoff(1000, 10000, Jitter.DECORRELATED);
+        Random random = new Random(0);
+        // when
+        // then
+        for (int i = 0; i < 1000; i++) {
+            long delayMillis = backoff.getDelayMillis(0, random);
+            assertThat(delayMillis >= 1000 && delayMillis <= 3000, is(true));
+            delayMillis = backoff.getDelayMillis(2, random);
+            assertThat(delayMillis >= 1000 && delayMillis <= 6000, is(true));
+            delayMillis = backoff.getDelayMillis(1000, random);
+            assertThat(delayMillis >= 1000 && delayMillis <= 10000, is(true));
+        }
+    }
+
+    @Test
+    public void shouldHoldBackNearCap() {
+        // given
+        Backoff backoff = new Backoff(1000, 10000, Jitter.FULL);
+        Random random = new Random(0);
+        // when
+        // then
+        for (int i = 0; i < 1000; i++) {
+            long delayMillis = backoff.getHeldBackDelayMillis(random);
+            assertThat(delayMillis >= 5000 && delayMillis <= 10000, is(true));
+        }
+        assertThat(new Backoff(1000, 10000, Jitter.NONE).getHeldBackDelayMillis(), is(10000L));
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class DaemonExecutorsTest {
+
+    @Test
+    public void shouldRunTasksOnVirtualThreadsWhenSupported() throws Exception {
+        // given
+        ExecutorService executorService = DaemonExecutors.newVirtualThreadPerTaskExecutor("test");
+        // when
+        Thread thread = executorService.submit(new Callable<Thread>() {
+            public Thread call() {
+                return Thread.currentThread();
+            }
+        }).get();
+        // then
+        assertThat(thread.getName().startsWith("test-"), is(true));
+        assertThat(thread.isDaemon(), is(true));
+        assertThat(isVirtual(thread), is(DaemonExecutors.isVirtualThreadSupported()));
+        executorService.shutdown();
+    }
+
+    private static boolean isVirtual(Thread thread) throws Exception {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.executors.HashedWheelTimer.Timeout;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class HashedWheelTimerTest {
+
+    private HashedWheelTimer timer;
+
+    @Before
+    public void before() {
+        timer = new HashedWheelTimer(10, 8, "test");
+    }
+
+    @After
+    public void after() {
+        timer.shutdown();
+    }
+
+    @Test
+    public void shouldRunTaskAfterDelay() throws InterruptedException {
+        // given
+        CountDownLatch latch = new CountDownLatch(1);
+        long startTime = System.nanoTime();
+        // when
+        Timeout timeout = timer.schedule(new CountDown(latch), 50, TimeUnit.MILLISECONDS);
+        // then
+        assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos(50), is(true));
+        assertThat(timeout.isExpired(), is(true));
+        assertThat(timer.size(), is(0));
+    }
+
+    @Test
+    public void shouldRunTaskMoreThanOneTurnOfTheWheelOut() throws InterruptedException {
+        // given
+        CountDownLatch latch = new CountDownLatch(1);
+        long startTime = System.nanoTime();
+        // when
+        // the wheel turns every 80 milliseconds
+        timer.schedule(new CountDown(latch), 250, TimeUnit.MILLISECONDS);
+        // then
+        assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos(250), is(true));
+    }
+
+    @Test
+    public void shouldRunAlreadyDueTask() throws InterruptedException {
+        // given
+        CountDownLatch latch = new CountDownLatch(1);
+        // when
+        timer.schedule(new CountDown(latch), 0, TimeUnit.MILLISECONDS);
+        // then
+        assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void shouldNotRunCancelledTask() throws InterruptedException {
+        // given
+        final AtomicInteger count = new AtomicInteger();
+        Runnable task = new Runnable() {
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+        Timeout cancelled = timer.schedule(task, 50, TimeUnit.MILLISECONDS);
+        CountDownLatch latch = new CountDownLatch(1);
+        timer.schedule(new CountDown(latch), 100, TimeUnit.MILLISECONDS);
+        // when
+        boolean result = cancelled.cancel();
+        // then
+        assertThat(result, is(true));
+        assertThat(latch.await(1, TimeUnit.SECONDS), is(true));
+        assertThat(count.get(), is(0));
+        assertThat(cancelled.isCancelled(), is(true));
+        assertThat(cancelled.cancel(), is(false));
+        assertThat(timer.size(), is(0));
+    }
+
+    @Test
+    public void shouldRunManyTasks() throws InterruptedException {
+        // given
+        CountDownLatch latch = new CountDownLatch(10000);
+        // when
+        for (int i = 0; i < 10000; i++) {
+            timer.schedule(new CountDown(latch), i % 200, TimeUnit.MILLISECONDS);
+        }
+        // then
+        assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(timer.size(), is(0));
+    }
+
+    @Test
+    public void shouldRunTasksScheduledConcurrently() throws InterruptedException {
+        // given
+        final CountDownLatch latch = new CountDownLatch(8 * 10000);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        timer.schedule(new CountDown(latch), j % 100, TimeUnit.MILLISECONDS);
+                    }
+                }
+            };
+        }
+        // when
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // then
+        assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(timer.size(), is(0));
+    }
+
+    private static class CountDown implements Runnable {
+        private final CountDownLatch latch;
+        private CountDown(CountDownLatch latch) {
+            this.latch = latch;
+        }
+        public void run() {
+            latch.countDown();
+        }
+    }
+}
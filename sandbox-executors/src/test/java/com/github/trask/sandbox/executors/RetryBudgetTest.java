@@ -0,0 +1,94 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.executors;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class RetryBudgetTest {
+
+    private MockTicker ticker;
+
+    @Before
+    public void before() {
+        ticker = new MockTicker();
+    }
+
+    @Test
+    public void shouldAllowRetriesInProportionToFirstAttempts() {
+        // given
+        RetryBudget retryBudget = new RetryBudget(0.25, 0, 100, ticker);
+        // when
+        for (int i = 0; i < 20; i++) {
+            retryBudget.deposit();
+        }
+        // then
+        for (int i = 0; i < 5; i++) {
+            assertThat(retryBudget.tryWithdraw(), is(true));
+        }
+        assertThat(retryBudget.tryWithdraw(), is(false));
+    }
+
+    @Test
+    public void shouldAllowMinRetriesPerSecond() {
+        // given
+        RetryBudget retryBudget = new RetryBudget(0.1, 2, 100, ticker);
+        for (int i = 0; i < 2; i++) {
+            retryBudget.tryWithdraw();
+        }
+        // when
+        ticker.forward(TimeUnit.SECONDS.toNanos(3));
+        // then
+        for (int i = 0; i < 6; i++) {
+            assertThat(retryBudget.tryWithdraw(), is(true));
+        }
+        assertThat(retryBudget.tryWithdraw(), is(false));
+    }
+
+    @Test
+    public void shouldCapBalance() {
+        // given
+        RetryBudget retryBudget = new RetryBudget(1, 10, 5, ticker);
+        // when
+        ticker.forward(TimeUnit.SECONDS.toNanos(3600));
+        for (int i = 0; i < 100; i++) {
+            retryBudget.deposit();
+        }
+        // then
+        assertThat(retryBudget.getBalance(), is(5.0));
+    }
+
+    private static class MockTicker extends Ticker {
+        private long nanos;
+        @Override
+        public long read() {
+            return nanos;
+        }
+        private void forward(long nanos) {
+            this.nanos += nanos;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.sandbox.executors;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.sandbox.executors.RetryingFuture.ExceededMaxRetriesException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class RetryingExecutorServiceTest {
+
+    // long enough that the backoff is still pending when the test checks on it
+    private static final RetryPolicy LONG_BACKOFF_RETRY_POLICY = new RetryPolicy(60, 2, 60, 0);
+
+    private ExecutorService executorService;
+    private HashedWheelTimer timer;
+    private RetryingExecutorService retryingExecutorService;
+
+    @Before
+    public void before() {
+        executorService = DaemonExecutors.newCachedThreadPool("test");
+        timer = new HashedWheelTimer(10, 8, "test-timer");
+        retryingExecutorService = new RetryingExecutorService(executorService, timer);
+    }
+
+    @After
+    public void after() {
+        executorService.shutdownNow();
+        timer.shutdown();
+    }
+
+    @Test
+    public void shouldCompleteWithResultOfSuccessfulAttempt() throws Exception {
+        // given
+        TestCommand command = new TestCommand(2);
+        // when
+        RetryingFuture<String> future = retryingExecutorService.submit(command,
+                LONG_BACKOFF_RETRY_POLICY);
+        // then
+        assertThat(future.get(1, TimeUnit.SECONDS), is("success"));
+        assertThat(future.getAttemptCount(), is(3));
+    }
+
+    @Test
+    public void shouldCancelPendingBackoff() throws Exception {
+        // given
+        TestCommand command = new TestCommand(Integer.MAX_VALUE);
+        command.failWithBackoff = true;
+        RetryingFuture<String> future = retryingExecutorService.submit(command,
+                LONG_BACKOFF_RETRY_POLICY);
+        waitForPendingBackoff();
+        // when
+        boolean cancelled = future.cancel(false);
+        // then
+        assertThat(cancelled, is(true));
+        assertThat(future.isCancelled(), is(true));
+        assertThat(future.getAttemptCount(), is(1));
+        assertThat(timer.size(), is(0));
+    }
+
+    @Test
+    public void shouldCancelInFlightAttempt() throws Exception {
+        // given
+        TestCommand command = new TestCommand(0);
+        command.inFlightFuture = SettableFuture.create();
+        RetryingFuture<String> future = retryingExecutorService.submit(command,
+                LONG_BACKOFF_RETRY_POLICY);
+        waitForAttempt(future);
+        // when
+        future.cancel(true);
+        // then
+        assertThat(command.inFlightFuture.isCancelled(), is(true));
+        assertThat(command.successCount, is(0));
+    }
+
+    @Test
+    public void shouldFailWhenNoRetryPolicy() throws Exception {
+        // given
+        TestCommand command = new TestCommand(Integer.MAX_VALUE);
+        command.failWithBackoff = true;
+        command.failAsync = true;
+        // when
+        RetryingFuture<String> future = retryingExecutorService.submit(command, null);
+        // then
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(ExceededMaxRetriesException.class));
+        }
+        assertThat(command.exceededMaxRetries, is(true));
+        assertThat(future.getAttemptCount(), is(1));
+    }
+
+    @Test
+    public void shouldFailWhenExecuteThrows() throws Exception {
+        // given
+        TestCommand command = new TestCommand(0);
+        command.executeException = new IllegalStateException();
+        // when
+        RetryingFuture<String> future = retryingExecutorService.submit(command,
+                LONG_BACKOFF_RETRY_POLICY);
+        // then
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() == command.executeException, is(true));
+        }
+    }
+
+    @Test
+    public void shouldFailWhenOnSuccessThrows() throws Exception {
+        // given
+        TestCommand command = new TestCommand(0);
+        command.onSuccessException = new IllegalStateException();
+        // when
+        RetryingFuture<String> future = retryingExecutorService.submit(command,
+                LONG_BACKOFF_RETRY_POLICY);
+        // then
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() == command.onSuccessException, is(true));
+        }
+    }
+
+    @Test
+    public void shouldNotFinallyFailBeforeFinallyFailAfterSeconds() throws Exception {
+        // given
+        TestCommand command = new TestCommand(Integer.MAX_VALUE);
+        command.failAsync = true;
+        command.attemptMillis = 10;
+        // when
+        RetryingFuture<String> future = retryingExecutorService.submit(command,
+                new RetryPolicy(60, 2, 60, 1));
+        waitForPendingBackoff();
+        // then
+        assertThat(future.isDone(), is(false));
+        assertThat(command.exceededMaxRetries, is(false));
+        future.cancel(false);
+    }
+
+    private void waitForPendingBackoff() throws InterruptedException, TimeoutException {
+        long startTime = System.currentTimeMillis();
+        while (timer.size() == 0) {
+            if (System.currentTimeMillis() - startTime > 1000) {
+                throw new TimeoutException();
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static void waitForAttempt(RetryingFuture<?> future) throws InterruptedException,
+            TimeoutException {
+
+        long startTime = System.currentTimeMillis();
+        while (future.getAttemptCount() == 0) {
+            if (System.currentTimeMillis() - startTime > 1000) {
+                throw new TimeoutException();
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static class TestCommand implements RetriableCommand<String> {
+        private final int nFailures;
+        private volatile int nAttempts;
+        private volatile boolean failWithBackoff;
+        private volatile boolean failAsync;
+        private volatile SettableFuture<String> inFlightFuture;
+        private volatile int successCount;
+        private volatile boolean exceededMaxRetries;
+        private volatile long attemptMillis;
+        private volatile RuntimeException executeException;
+        private volatile RuntimeException onSuccessException;
+        private TestCommand(int nFailures) {
+            this.nFailures = nFailures;
+        }
+        public ListenableFuture<String> execute() {
+            if (attemptMillis > 0) {
+                try {
+                    Thread.sleep(attemptMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (executeException != null) {
+                throw executeException;
+            }
+            if (inFlightFuture != null) {
+                return inFlightFuture;
+            }
+            if (nAttempts++ < nFailures) {
+                if (failAsync) {
+                    return Futures.immediateFailedFuture(new IllegalStateException());
+                } else {
+                    return Futures.immediateFuture("failure");
+                }
+            }
+            return Futures.immediateFuture("success");
+        }
+        public ResultType checkResult(String result) {
+            if (result.equals("success")) {
+                return ResultType.Success;
+            } else if (failWithBackoff) {
+                return ResultType.FailureWithBackoff;
+            } else {
+                return ResultType.FailureWithoutBackoff;
+            }
+        }
+        public ExceptionType checkAsyncException(Throwable t) {
+            return ExceptionType.FailAndBackoff;
+        }
+        public void onSuccess(String result) {
+            if (onSuccessException != null) {
+                throw onSuccessException;
+            }
+            successCount++;
+        }
+        public void onExceedMaxRetries() {
+            exceededMaxRetries = true;
+        }
+    }
+}
@@ -21,6 +21,7 @@ import org.slf4j.LoggerFactory;
 import com.github.trask.sandbox.clock.Clock;
 import com.github.trask.sandbox.executors.RetryPolicy;
 import com.github.trask.sandbox.executors.RetryingExecutorService;
+import com.github.trask.sandbox.executors.RetryingFuture;
 import com.ning.http.client.AsyncHttpClient;
 
 /**
@@ -43,27 +44,29 @@ public class RetryingHttpClient {
         this.clock = clock;
     }
 
-    public void sendHttp(HttpRequest httpRequest, ResponseCallback responseCallback,
-            RetryPolicy retryPolicy) {
+    public RetryingFuture<HttpResponse> sendHttp(HttpRequest httpRequest,
+            ResponseCallback responseCallback, RetryPolicy retryPolicy) {
 
-        sendHttp(httpRequest, EMPTY_BASE_URL_PROVIDER, responseCallback, retryPolicy);
+        return sendHttp(httpRequest, EMPTY_BASE_URL_PROVIDER, responseCallback, retryPolicy);
     }
 
-    public void sendHttp(HttpRequest httpRequest, UrlProvider baseUrlProvider,
-            ResponseCallback responseCallback, RetryPolicy retryPolicy) {
+    public RetryingFuture<HttpResponse> sendHttp(HttpRequest httpRequest,
+            UrlProvider baseUrlProvider, ResponseCallback responseCallback,
+            RetryPolicy retryPolicy) {
 
         logger.debug("sendHttp(): httpRequest.relativeUrl={}", httpRequest.getUrl());
         HttpCommand command = new HttpCommand(httpRequest, baseUrlProvider, responseCallback,
                 asyncHttpClient);
-        retryingExecutorService.submit(command, retryPolicy);
+        return retryingExecutorService.submit(command, retryPolicy);
     }
 
-    public void sendComet(HttpRequest httpRequest, UrlProvider baseUrlProvider,
-            ResponseCallback responseCallback, RetryPolicy retryPolicy) {
+    public RetryingFuture<HttpResponse> sendComet(HttpRequest httpRequest,
+            UrlProvider baseUrlProvider, ResponseCallback responseCallback,
+            RetryPolicy retryPolicy) {
 
         logger.debug("sendComet(): httpRequest.relativeUrl={}", httpRequest.getUrl());
         CometCommand command = new CometCommand(httpRequest, baseUrlProvider, responseCallback,
                 asyncHttpClient, clock);
-        retryingExecutorService.submit(command, retryPolicy);
+        return retryingExecutorService.submit(command, retryPolicy);
     }
 }